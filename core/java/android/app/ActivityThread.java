@@ -1108,6 +1108,9 @@ public final class ActivityThread {
                     "Proxy Binders:", binderProxyObjectCount);
             printRow(pw, TWO_COUNT_COLUMNS, "Parcel memory:", parcelSize/1024,
                     "Parcel count:", parcelCount);
+            final long[] blobStats = Parcel.getBlobStats();
+            printRow(pw, TWO_COUNT_COLUMNS, "Parcel blobs:", blobStats[0],
+                    "Blobs in ashmem:", blobStats[2]);
             printRow(pw, TWO_COUNT_COLUMNS, "Death Recipients:", binderDeathObjectCount,
                     "OpenSSL Sockets:", openSslSocketCount);
 
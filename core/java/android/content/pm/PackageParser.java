@@ -43,6 +43,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.FileUtils;
+import android.os.Parcel;
 import android.os.PatternMatcher;
 import android.os.SystemProperties;
 import android.os.UserHandle;
@@ -4444,7 +4445,7 @@ public class PackageParser {
         public boolean baseHardwareAccelerated;
 
         // For now we only support one application per package.
-        public final ApplicationInfo applicationInfo = new ApplicationInfo();
+        public final ApplicationInfo applicationInfo;
 
         public final ArrayList<Permission> permissions = new ArrayList<Permission>(0);
         public final ArrayList<PermissionGroup> permissionGroups = new ArrayList<PermissionGroup>(0);
@@ -4558,10 +4559,216 @@ public class PackageParser {
 
         public Package(String packageName) {
             this.packageName = packageName;
+            applicationInfo = new ApplicationInfo();
             applicationInfo.packageName = packageName;
             applicationInfo.uid = -1;
         }
 
+        /**
+         * Restores a package flattened by {@link #writeToParcel(Parcel)}.
+         * Only state produced by parsing the manifest is restored; signatures,
+         * certificates and anything filled in later by the package manager
+         * are left for the caller to collect again.
+         */
+        public Package(Parcel in) {
+            packageName = in.readString();
+            splitNames = in.readStringArray();
+            volumeUuid = in.readString();
+            codePath = in.readString();
+            baseCodePath = in.readString();
+            splitCodePaths = in.readStringArray();
+            baseRevisionCode = in.readInt();
+            splitRevisionCodes = in.createIntArray();
+            splitFlags = in.createIntArray();
+            splitPrivateFlags = in.createIntArray();
+            baseHardwareAccelerated = in.readInt() != 0;
+            applicationInfo = ApplicationInfo.CREATOR.createFromParcel(in);
+
+            int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                permissions.add(new Permission(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                permissionGroups.add(new PermissionGroup(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                activities.add(new Activity(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                receivers.add(new Activity(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                providers.add(new Provider(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                services.add(new Service(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                instrumentation.add(new Instrumentation(this, in));
+            }
+            N = in.readInt();
+            if (N >= 0) {
+                preferredActivityFilters = new ArrayList<ActivityIntentInfo>(N);
+                for (int i = 0; i < N; i++) {
+                    final Activity activity = activities.get(in.readInt());
+                    preferredActivityFilters.add(new ActivityIntentInfo(activity, in));
+                }
+            }
+
+            in.readStringList(requestedPermissions);
+            protectedBroadcasts = in.createStringArrayList();
+            libraryNames = in.createStringArrayList();
+            usesLibraries = in.createStringArrayList();
+            usesOptionalLibraries = in.createStringArrayList();
+            mOriginalPackages = in.createStringArrayList();
+            mRealPackage = in.readString();
+            mAdoptPermissions = in.createStringArrayList();
+            mAppMetaData = in.readBundle(Package.class.getClassLoader());
+            mVersionCode = in.readInt();
+            mVersionName = in.readString();
+            mSharedUserId = in.readString();
+            mSharedUserLabel = in.readInt();
+            configPreferences = in.createTypedArrayList(ConfigurationInfo.CREATOR);
+            reqFeatures = in.createTypedArrayList(FeatureInfo.CREATOR);
+            featureGroups = in.createTypedArrayList(FeatureGroupInfo.CREATOR);
+            installLocation = in.readInt();
+            coreApp = in.readInt() != 0;
+            mRequiredForAllUsers = in.readInt() != 0;
+            mRestrictedAccountType = in.readString();
+            mRequiredAccountType = in.readString();
+            mOverlayTarget = in.readString();
+            mOverlayPriority = in.readInt();
+            mTrustedOverlay = in.readInt() != 0;
+
+            final ArrayList<String> upgradeKeySets = in.createStringArrayList();
+            if (upgradeKeySets != null) {
+                mUpgradeKeySets = new ArraySet<String>(upgradeKeySets);
+            }
+            N = in.readInt();
+            if (N >= 0) {
+                mKeySetMapping = new ArrayMap<String, ArraySet<PublicKey>>(N);
+                for (int i = 0; i < N; i++) {
+                    final String keySetName = in.readString();
+                    final int keyCount = in.readInt();
+                    final ArraySet<PublicKey> keys = new ArraySet<PublicKey>(keyCount);
+                    for (int j = 0; j < keyCount; j++) {
+                        final PublicKey key = parsePublicKey(in.readString());
+                        if (key != null) {
+                            keys.add(key);
+                        }
+                    }
+                    mKeySetMapping.put(keySetName, keys);
+                }
+            }
+        }
+
+        /**
+         * Flattens the parsed state of this package so it can be restored
+         * with {@link #Package(Parcel)} without parsing the manifest again.
+         * Must be called before the package manager starts modifying it.
+         */
+        public void writeToParcel(Parcel dest) {
+            dest.writeString(packageName);
+            dest.writeStringArray(splitNames);
+            dest.writeString(volumeUuid);
+            dest.writeString(codePath);
+            dest.writeString(baseCodePath);
+            dest.writeStringArray(splitCodePaths);
+            dest.writeInt(baseRevisionCode);
+            dest.writeIntArray(splitRevisionCodes);
+            dest.writeIntArray(splitFlags);
+            dest.writeIntArray(splitPrivateFlags);
+            dest.writeInt(baseHardwareAccelerated ? 1 : 0);
+            applicationInfo.writeToParcel(dest, 0);
+
+            dest.writeInt(permissions.size());
+            for (int i = 0; i < permissions.size(); i++) {
+                permissions.get(i).writeToParcel(dest);
+            }
+            dest.writeInt(permissionGroups.size());
+            for (int i = 0; i < permissionGroups.size(); i++) {
+                permissionGroups.get(i).writeToParcel(dest);
+            }
+            dest.writeInt(activities.size());
+            for (int i = 0; i < activities.size(); i++) {
+                activities.get(i).writeToParcel(dest);
+            }
+            dest.writeInt(receivers.size());
+            for (int i = 0; i < receivers.size(); i++) {
+                receivers.get(i).writeToParcel(dest);
+            }
+            dest.writeInt(providers.size());
+            for (int i = 0; i < providers.size(); i++) {
+                providers.get(i).writeToParcel(dest);
+            }
+            dest.writeInt(services.size());
+            for (int i = 0; i < services.size(); i++) {
+                services.get(i).writeToParcel(dest);
+            }
+            dest.writeInt(instrumentation.size());
+            for (int i = 0; i < instrumentation.size(); i++) {
+                instrumentation.get(i).writeToParcel(dest);
+            }
+            if (preferredActivityFilters != null) {
+                dest.writeInt(preferredActivityFilters.size());
+                for (int i = 0; i < preferredActivityFilters.size(); i++) {
+                    final ActivityIntentInfo filter = preferredActivityFilters.get(i);
+                    dest.writeInt(activities.indexOf(filter.activity));
+                    filter.writeIntentInfoToParcel(dest);
+                }
+            } else {
+                dest.writeInt(-1);
+            }
+
+            dest.writeStringList(requestedPermissions);
+            dest.writeStringList(protectedBroadcasts);
+            dest.writeStringList(libraryNames);
+            dest.writeStringList(usesLibraries);
+            dest.writeStringList(usesOptionalLibraries);
+            dest.writeStringList(mOriginalPackages);
+            dest.writeString(mRealPackage);
+            dest.writeStringList(mAdoptPermissions);
+            dest.writeBundle(mAppMetaData);
+            dest.writeInt(mVersionCode);
+            dest.writeString(mVersionName);
+            dest.writeString(mSharedUserId);
+            dest.writeInt(mSharedUserLabel);
+            dest.writeTypedList(configPreferences);
+            dest.writeTypedList(reqFeatures);
+            dest.writeTypedList(featureGroups);
+            dest.writeInt(installLocation);
+            dest.writeInt(coreApp ? 1 : 0);
+            dest.writeInt(mRequiredForAllUsers ? 1 : 0);
+            dest.writeString(mRestrictedAccountType);
+            dest.writeString(mRequiredAccountType);
+            dest.writeString(mOverlayTarget);
+            dest.writeInt(mOverlayPriority);
+            dest.writeInt(mTrustedOverlay ? 1 : 0);
+
+            dest.writeStringList(mUpgradeKeySets != null
+                    ? new ArrayList<String>(mUpgradeKeySets) : null);
+            if (mKeySetMapping != null) {
+                dest.writeInt(mKeySetMapping.size());
+                for (int i = 0; i < mKeySetMapping.size(); i++) {
+                    dest.writeString(mKeySetMapping.keyAt(i));
+                    final ArraySet<PublicKey> keys = mKeySetMapping.valueAt(i);
+                    dest.writeInt(keys.size());
+                    for (int j = 0; j < keys.size(); j++) {
+                        dest.writeString(Base64.encodeToString(keys.valueAt(j).getEncoded(),
+                                Base64.NO_WRAP));
+                    }
+                }
+            } else {
+                dest.writeInt(-1);
+            }
+        }
+
         public List<String> getAllCodePaths() {
             ArrayList<String> paths = new ArrayList<>();
             paths.add(baseCodePath);
@@ -4768,6 +4975,27 @@ public class PackageParser {
             outInfo.enabled = args.sa.getBoolean(args.enabledRes, true);
         }
 
+        Component(Package _owner, Parcel in) {
+            owner = _owner;
+            className = in.readString();
+            metaData = in.readBundle(Component.class.getClassLoader());
+            intents = in.readInt() != 0 ? new ArrayList<II>(0) : null;
+        }
+
+        void writeToParcel(Parcel dest) {
+            dest.writeString(className);
+            dest.writeBundle(metaData);
+            dest.writeInt(intents != null ? 1 : 0);
+        }
+
+        void writeIntentsToParcel(Parcel dest) {
+            final int N = intents != null ? intents.size() : 0;
+            dest.writeInt(N);
+            for (int i = 0; i < N; i++) {
+                intents.get(i).writeIntentInfoToParcel(dest);
+            }
+        }
+
         public Component(Component<II> clone) {
             owner = clone.owner;
             intents = clone.intents;
@@ -4816,6 +5044,19 @@ public class PackageParser {
             info = _info;
         }
 
+        Permission(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = PermissionInfo.CREATOR.createFromParcel(in);
+            tree = in.readInt() != 0;
+        }
+
+        @Override
+        void writeToParcel(Parcel dest) {
+            super.writeToParcel(dest);
+            info.writeToParcel(dest, 0);
+            dest.writeInt(tree ? 1 : 0);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -4841,6 +5082,17 @@ public class PackageParser {
             info = _info;
         }
 
+        PermissionGroup(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = PermissionGroupInfo.CREATOR.createFromParcel(in);
+        }
+
+        @Override
+        void writeToParcel(Parcel dest) {
+            super.writeToParcel(dest);
+            info.writeToParcel(dest, 0);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5007,6 +5259,23 @@ public class PackageParser {
             info.applicationInfo = args.owner.applicationInfo;
         }
 
+        Activity(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = ActivityInfo.CREATOR.createFromParcel(in);
+            info.applicationInfo = _owner.applicationInfo;
+            final int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                intents.add(new ActivityIntentInfo(this, in));
+            }
+        }
+
+        @Override
+        void writeToParcel(Parcel dest) {
+            super.writeToParcel(dest);
+            info.writeToParcel(dest, 0);
+            writeIntentsToParcel(dest);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5061,6 +5330,23 @@ public class PackageParser {
             info.applicationInfo = args.owner.applicationInfo;
         }
 
+        Service(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = ServiceInfo.CREATOR.createFromParcel(in);
+            info.applicationInfo = _owner.applicationInfo;
+            final int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                intents.add(new ServiceIntentInfo(this, in));
+            }
+        }
+
+        @Override
+        void writeToParcel(Parcel dest) {
+            super.writeToParcel(dest);
+            info.writeToParcel(dest, 0);
+            writeIntentsToParcel(dest);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5104,6 +5390,25 @@ public class PackageParser {
             syncable = false;
         }
 
+        Provider(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = ProviderInfo.CREATOR.createFromParcel(in);
+            info.applicationInfo = _owner.applicationInfo;
+            syncable = in.readInt() != 0;
+            final int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                intents.add(new ProviderIntentInfo(this, in));
+            }
+        }
+
+        @Override
+        void writeToParcel(Parcel dest) {
+            super.writeToParcel(dest);
+            info.writeToParcel(dest, 0);
+            dest.writeInt(syncable ? 1 : 0);
+            writeIntentsToParcel(dest);
+        }
+
         public Provider(Provider existingProvider) {
             super(existingProvider);
             this.info = existingProvider.info;
@@ -5155,6 +5460,20 @@ public class PackageParser {
             info = _info;
         }
 
+        Instrumentation(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = InstrumentationInfo.CREATOR.createFromParcel(in);
+            // Instrumentation never carries intent filters.
+            in.readInt();
+        }
+
+        @Override
+        void writeToParcel(Parcel dest) {
+            super.writeToParcel(dest);
+            info.writeToParcel(dest, 0);
+            writeIntentsToParcel(dest);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5190,6 +5509,31 @@ public class PackageParser {
         public int logo;
         public int banner;
         public int preferred;
+
+        public IntentInfo() {
+        }
+
+        IntentInfo(Parcel in) {
+            super(IntentFilter.CREATOR.createFromParcel(in));
+            hasDefault = in.readInt() != 0;
+            labelRes = in.readInt();
+            nonLocalizedLabel = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
+            icon = in.readInt();
+            logo = in.readInt();
+            banner = in.readInt();
+            preferred = in.readInt();
+        }
+
+        void writeIntentInfoToParcel(Parcel dest) {
+            writeToParcel(dest, 0);
+            dest.writeInt(hasDefault ? 1 : 0);
+            dest.writeInt(labelRes);
+            TextUtils.writeToParcel(nonLocalizedLabel, dest, 0);
+            dest.writeInt(icon);
+            dest.writeInt(logo);
+            dest.writeInt(banner);
+            dest.writeInt(preferred);
+        }
     }
 
     public final static class ActivityIntentInfo extends IntentInfo {
@@ -5199,6 +5543,11 @@ public class PackageParser {
             activity = _activity;
         }
 
+        ActivityIntentInfo(Activity _activity, Parcel in) {
+            super(in);
+            activity = _activity;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder(128);
             sb.append("ActivityIntentInfo{");
@@ -5217,6 +5566,11 @@ public class PackageParser {
             service = _service;
         }
 
+        ServiceIntentInfo(Service _service, Parcel in) {
+            super(in);
+            service = _service;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder(128);
             sb.append("ServiceIntentInfo{");
@@ -5235,6 +5589,11 @@ public class PackageParser {
             this.provider = provider;
         }
 
+        ProviderIntentInfo(Provider provider, Parcel in) {
+            super(in);
+            this.provider = provider;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder(128);
             sb.append("ProviderIntentInfo{");
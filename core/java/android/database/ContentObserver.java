@@ -145,6 +145,29 @@ public abstract class ContentObserver {
         onChange(selfChange, uri);
     }
 
+    /**
+     * Dispatches a batch of change notifications to the observer, as delivered
+     * when the content service coalesces notifications.  The Uris are in the
+     * order they were first notified, without duplicates.
+     * <p>
+     * The default implementation calls {@link #onChange(boolean, Uri, int)} once
+     * per Uri.  Observers that can handle several changes at once, for example by
+     * re-querying only once, should override this method.
+     * </p>
+     *
+     * @param selfChange True if this is a self-change notification.
+     * @param uris The Uris of the changed content.
+     * @param userId The user whose content changed. Can be either a specific
+     *         user or {@link UserHandle#USER_ALL}.
+     *
+     * @hide
+     */
+    public void onBatchChange(boolean selfChange, Uri[] uris, int userId) {
+        for (Uri uri : uris) {
+            onChange(selfChange, uri, userId);
+        }
+    }
+
     /**
      * Dispatches a change notification to the observer.
      * <p>
@@ -199,21 +222,42 @@ public abstract class ContentObserver {
         }
     }
 
+    private void dispatchBatchChange(boolean selfChange, Uri[] uris, int userId) {
+        if (mHandler == null) {
+            onBatchChange(selfChange, uris, userId);
+        } else {
+            mHandler.post(new NotificationRunnable(selfChange, uris, userId));
+        }
+    }
+
 
     private final class NotificationRunnable implements Runnable {
         private final boolean mSelfChange;
         private final Uri mUri;
+        private final Uri[] mUris;
         private final int mUserId;
 
         public NotificationRunnable(boolean selfChange, Uri uri, int userId) {
             mSelfChange = selfChange;
             mUri = uri;
+            mUris = null;
+            mUserId = userId;
+        }
+
+        public NotificationRunnable(boolean selfChange, Uri[] uris, int userId) {
+            mSelfChange = selfChange;
+            mUri = null;
+            mUris = uris;
             mUserId = userId;
         }
 
         @Override
         public void run() {
-            ContentObserver.this.onChange(mSelfChange, mUri, mUserId);
+            if (mUris != null) {
+                ContentObserver.this.onBatchChange(mSelfChange, mUris, mUserId);
+            } else {
+                ContentObserver.this.onChange(mSelfChange, mUri, mUserId);
+            }
         }
     }
 
@@ -232,6 +276,14 @@ public abstract class ContentObserver {
             }
         }
 
+        @Override
+        public void onBatchChange(boolean selfChange, Uri[] uris, int userId) {
+            ContentObserver contentObserver = mContentObserver;
+            if (contentObserver != null) {
+                contentObserver.dispatchBatchChange(selfChange, uris, userId);
+            }
+        }
+
         public void releaseContentObserver() {
             mContentObserver = null;
         }
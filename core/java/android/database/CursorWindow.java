@@ -94,19 +94,23 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
      * @param name The name of the cursor window, or null if none.
      */
     public CursorWindow(String name) {
+        this(name, getDefaultCursorWindowSize());
+    }
+
+    /**
+     * Creates a new empty cursor window of the given size.
+     *
+     * @param name The name of the cursor window, or null if none.
+     * @param windowSizeBytes The capacity of the window, in bytes.
+     * @hide
+     */
+    public CursorWindow(String name, int windowSizeBytes) {
         mStartPos = 0;
         mName = name != null && name.length() != 0 ? name : "<unnamed>";
-        if (sCursorWindowSize < 0) {
-            /** The cursor window size. resource xml file specifies the value in kB.
-             * convert it to bytes here by multiplying with 1024.
-             */
-            sCursorWindowSize = Resources.getSystem().getInteger(
-                com.android.internal.R.integer.config_cursorWindowSize) * 1024;
-        }
-        mWindowPtr = nativeCreate(mName, sCursorWindowSize);
+        mWindowPtr = nativeCreate(mName, windowSizeBytes);
         if (mWindowPtr == 0) {
             throw new CursorWindowAllocationException("Cursor window allocation of " +
-                    (sCursorWindowSize / 1024) + " kb failed. " + printStats());
+                    (windowSizeBytes / 1024) + " kb failed. " + printStats());
         }
         mCloseGuard.open("close");
         recordNewWindow(Binder.getCallingPid(), mWindowPtr);
@@ -130,6 +134,21 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         this((String)null);
     }
 
+    /**
+     * Returns the size of the windows created by {@link #CursorWindow(String)}, in bytes.
+     * @hide
+     */
+    public static int getDefaultCursorWindowSize() {
+        if (sCursorWindowSize < 0) {
+            /** The cursor window size. resource xml file specifies the value in kB.
+             * convert it to bytes here by multiplying with 1024.
+             */
+            sCursorWindowSize = Resources.getSystem().getInteger(
+                com.android.internal.R.integer.config_cursorWindowSize) * 1024;
+        }
+        return sCursorWindowSize;
+    }
+
     private CursorWindow(Parcel source) {
         mStartPos = source.readInt();
         mWindowPtr = nativeCreateFromParcel(source);
@@ -106,6 +106,14 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // A query statement that a streaming executeForCursorWindow left part way through its
+    // results, still marked in use.  The next window for the same owner can continue
+    // stepping it instead of executing the query again and skipping to the start position.
+    // Any other use of the connection resets it first.
+    private PreparedStatement mParkedStatement;
+    private Object mParkedOwner;
+    private int mParkedPos;
+
     // The recent operations log.
     private final OperationLog mRecentOperations = new OperationLog();
 
@@ -155,7 +163,8 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             long connectionPtr, long statementPtr);
     private static native long nativeExecuteForCursorWindow(
             long connectionPtr, long statementPtr, long windowPtr,
-            int startPos, int requiredPos, boolean countAllRows);
+            int startPos, int requiredPos, boolean countAllRows,
+            int resumePos, boolean keepPosition);
     private static native int nativeGetDbLookaside(long connectionPtr);
     private static native void nativeCancel(long connectionPtr);
     private static native void nativeResetCancel(long connectionPtr, boolean cancelable);
@@ -169,7 +178,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         mIsPrimaryConnection = primaryConnection;
         mIsReadOnlyConnection = (configuration.openFlags & SQLiteDatabase.OPEN_READONLY) != 0;
         mPreparedStatementCache = new PreparedStatementCache(
-                mConfiguration.maxSqlCacheSize);
+                mConfiguration.maxSqlCacheSize, SQLiteGlobal.isAdaptivePoolingEnabled());
         mCloseGuard.open("close");
     }
 
@@ -239,6 +248,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         if (mConnectionPtr != 0) {
             final int cookie = mRecentOperations.beginOperation("close", null, null);
             try {
+                unparkStatement();
                 mPreparedStatementCache.evictAll();
                 nativeClose(mConnectionPtr);
                 mConnectionPtr = 0;
@@ -405,6 +415,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     // Called by SQLiteConnectionPool only.
     void reconfigure(SQLiteDatabaseConfiguration configuration) {
         mOnlyAllowReadOnlyOperations = false;
+        unparkStatement();
 
         // Register custom functions.
         final int functionCount = configuration.customFunctions.size();
@@ -426,7 +437,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         mConfiguration.updateParametersFrom(configuration);
 
         // Update prepared statement cache size.
-        mPreparedStatementCache.resize(configuration.maxSqlCacheSize);
+        mPreparedStatementCache.setConfiguredSize(configuration.maxSqlCacheSize);
 
         // Update foreign key mode.
         if (foreignKeyModeChanged) {
@@ -827,6 +838,24 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     public int executeForCursorWindow(String sql, Object[] bindArgs,
             CursorWindow window, int startPos, int requiredPos, boolean countAllRows,
             CancellationSignal cancellationSignal) {
+        return executeForCursorWindow(sql, bindArgs, window, startPos, requiredPos,
+                countAllRows, null, cancellationSignal);
+    }
+
+    /**
+     * Like {@link #executeForCursorWindow(String, Object[], CursorWindow, int, int, boolean,
+     * CancellationSignal)}, but when <code>streamOwner</code> is not null and the window
+     * fills up before the results run out, the statement is kept on the first row that did
+     * not fit.  A later call for the same owner, statement and arguments whose
+     * <code>startPos</code> is that row continues from there without stepping over the
+     * rows before it again.
+     *
+     * @param streamOwner Identifies the reader of the results, usually its
+     * {@link SQLiteQuery}, or null to always execute the statement from the start.
+     */
+    public int executeForCursorWindow(String sql, Object[] bindArgs,
+            CursorWindow window, int startPos, int requiredPos, boolean countAllRows,
+            Object streamOwner, CancellationSignal cancellationSignal) {
         if (sql == null) {
             throw new IllegalArgumentException("sql must not be null.");
         }
@@ -842,26 +871,52 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             final int cookie = mRecentOperations.beginOperation("executeForCursorWindow",
                     sql, bindArgs);
             try {
-                final PreparedStatement statement = acquirePreparedStatement(sql);
+                int resumePos = -1;
+                final PreparedStatement statement;
+                if (streamOwner != null && streamOwner == mParkedOwner
+                        && startPos == mParkedPos && requiredPos >= startPos && !countAllRows
+                        && mParkedStatement.mSql.equals(sql)) {
+                    // Pick up where the last window for this reader stopped.
+                    statement = mParkedStatement;
+                    resumePos = mParkedPos;
+                    mParkedStatement = null;
+                    mParkedOwner = null;
+                } else {
+                    statement = acquirePreparedStatement(sql);
+                }
+                boolean parked = false;
                 try {
-                    throwIfStatementForbidden(statement);
-                    bindArguments(statement, bindArgs);
+                    if (resumePos < 0) {
+                        throwIfStatementForbidden(statement);
+                        bindArguments(statement, bindArgs);
+                    }
                     applyBlockGuardPolicy(statement);
                     attachCancellationSignal(cancellationSignal);
                     try {
                         final long result = nativeExecuteForCursorWindow(
                                 mConnectionPtr, statement.mStatementPtr, window.mWindowPtr,
-                                startPos, requiredPos, countAllRows);
+                                startPos, requiredPos, countAllRows,
+                                resumePos, streamOwner != null);
                         actualPos = (int)(result >> 32);
                         countedRows = (int)result;
                         filledRows = window.getNumRows();
                         window.setStartPosition(actualPos);
+                        if (streamOwner != null && !countAllRows
+                                && countedRows > actualPos + filledRows) {
+                            // The native code kept the statement on the row that did not fit.
+                            mParkedStatement = statement;
+                            mParkedOwner = streamOwner;
+                            mParkedPos = actualPos + filledRows;
+                            parked = true;
+                        }
                         return countedRows;
                     } finally {
                         detachCancellationSignal(cancellationSignal);
                     }
                 } finally {
-                    releasePreparedStatement(statement);
+                    if (!parked) {
+                        releasePreparedStatement(statement);
+                    }
                 }
             } catch (RuntimeException ex) {
                 mRecentOperations.failOperation(cookie, ex);
@@ -881,7 +936,11 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     }
 
     private PreparedStatement acquirePreparedStatement(String sql) {
+        // Nothing else runs while a statement is left part way through its results.
+        unparkStatement();
+
         PreparedStatement statement = mPreparedStatementCache.get(sql);
+        mPreparedStatementCache.noteLookup();
         boolean skipCache = false;
         if (statement != null) {
             if (!statement.mInUse) {
@@ -915,6 +974,27 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return statement;
     }
 
+    /**
+     * Resets the statement left positioned for <code>streamOwner</code>, if any, ending
+     * the read transaction it holds.
+     *
+     * @param streamOwner The reader that is done with its results.
+     */
+    void endStream(Object streamOwner) {
+        if (streamOwner == mParkedOwner) {
+            unparkStatement();
+        }
+    }
+
+    private void unparkStatement() {
+        final PreparedStatement statement = mParkedStatement;
+        if (statement != null) {
+            mParkedStatement = null;
+            mParkedOwner = null;
+            releasePreparedStatement(statement);
+        }
+    }
+
     private void releasePreparedStatement(PreparedStatement statement) {
         statement.mInUse = false;
         if (statement.mInCache) {
@@ -1084,6 +1164,8 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         printer.println("  isPrimaryConnection: " + mIsPrimaryConnection);
         printer.println("  onlyAllowReadOnlyOperations: " + mOnlyAllowReadOnlyOperations);
 
+        printer.println("  preparedStatementCache: " + mPreparedStatementCache.describeStats());
+
         mRecentOperations.dump(printer, verbose);
 
         if (verbose) {
@@ -1174,10 +1256,13 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         if (!mIsPrimaryConnection) {
             label += " (" + mConnectionId + ")";
         }
-        return new DbStats(label, pageCount, pageSize, lookaside,
+        DbStats stats = new DbStats(label, pageCount, pageSize, lookaside,
                 mPreparedStatementCache.hitCount(),
                 mPreparedStatementCache.missCount(),
                 mPreparedStatementCache.size());
+        stats.cacheEvictions = mPreparedStatementCache.evictionCount();
+        stats.cacheMaxSize = mPreparedStatementCache.maxSize();
+        return stats;
     }
 
     @Override
@@ -1259,8 +1344,62 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private final class PreparedStatementCache
             extends LruCache<String, PreparedStatement> {
-        public PreparedStatementCache(int size) {
+        // Number of lookups between checks of an adaptive cache's eviction rate.
+        private static final int ADAPT_WINDOW_LOOKUPS = 128;
+
+        private final boolean mAdaptive;
+        private int mConfiguredSize;
+        private int mWindowLookups;
+        private int mWindowStartEvictions;
+        private int mGrowCount;
+
+        public PreparedStatementCache(int size, boolean adaptive) {
             super(size);
+            mConfiguredSize = size;
+            mAdaptive = adaptive;
+        }
+
+        public void setConfiguredSize(int size) {
+            mConfiguredSize = size;
+            resize(size);
+            mWindowLookups = 0;
+            mWindowStartEvictions = evictionCount();
+        }
+
+        // Called by the owning thread after each statement lookup.  When an adaptive
+        // cache keeps evicting statements that are then prepared again, double its
+        // size, up to the largest size SQLiteDatabase allows to be configured.
+        // The configured size is restored when the connection is reconfigured.
+        public void noteLookup() {
+            if (!mAdaptive || ++mWindowLookups < ADAPT_WINDOW_LOOKUPS) {
+                return;
+            }
+            final int evictions = evictionCount();
+            final int windowEvictions = evictions - mWindowStartEvictions;
+            mWindowLookups = 0;
+            mWindowStartEvictions = evictions;
+
+            final int maxSize = maxSize();
+            if (windowEvictions * 8 > ADAPT_WINDOW_LOOKUPS
+                    && maxSize < SQLiteDatabase.MAX_SQL_CACHE_SIZE) {
+                final int newSize = Math.min(maxSize * 2, SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+                if (DEBUG) {
+                    Log.d(TAG, "Growing prepared statement cache of " + mConfiguration.label
+                            + " from " + maxSize + " to " + newSize + " after "
+                            + windowEvictions + " evictions.");
+                }
+                resize(newSize);
+                mGrowCount += 1;
+            }
+        }
+
+        public String describeStats() {
+            return "size=" + size() + "/" + maxSize()
+                    + " (configured " + mConfiguredSize + ")"
+                    + ", hits=" + hitCount()
+                    + ", misses=" + missCount()
+                    + ", evictions=" + evictionCount()
+                    + (mAdaptive ? ", grown=" + mGrowCount : "");
         }
 
         @Override
@@ -18,6 +18,7 @@ package android.database.sqlite;
 
 import dalvik.system.CloseGuard;
 
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
 import android.os.OperationCanceledException;
@@ -76,6 +77,13 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Number of acquisitions between adjustments of an adaptive pool's size.
+    private static final int ADAPT_WINDOW_ACQUISITIONS = 64;
+
+    // Grow an adaptive pool when at least this fraction (1/n) of the acquisitions in a
+    // window had to wait for a non-primary connection.
+    private static final int ADAPT_GROW_WAIT_FRACTION = 8;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
@@ -85,6 +93,23 @@ public final class SQLiteConnectionPool implements Closeable {
     private boolean mIsOpen;
     private int mNextConnectionId;
 
+    // When adaptive, mMaxConnectionPoolSize moves between the configured size and
+    // mConnectionPoolSizeLimit depending on how often acquisitions have to wait.
+    private final boolean mAdaptive;
+    private int mConfiguredConnectionPoolSize;
+    private int mConnectionPoolSizeLimit;
+    private int mWindowAcquisitions;
+    private int mWindowNonPrimaryWaits;
+    private int mWindowPeakAcquired;
+
+    // Connection wait statistics, for dumpsys dbinfo and SQLiteDebug.
+    private long mAcquisitionCount;
+    private long mWaitCount;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+    private int mGrowCount;
+    private int mShrinkCount;
+
     private ConnectionWaiter mConnectionWaiterPool;
     private ConnectionWaiter mConnectionWaiterQueue;
 
@@ -147,6 +172,7 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private SQLiteConnectionPool(SQLiteDatabaseConfiguration configuration) {
         mConfiguration = new SQLiteDatabaseConfiguration(configuration);
+        mAdaptive = SQLiteGlobal.isAdaptivePoolingEnabled();
         setMaxConnectionPoolSizeLocked();
     }
 
@@ -456,6 +482,25 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Resets the statements left positioned for a streaming reader on the connections
+     * that are not in use.  A connection that is in use resets its statement before it
+     * runs anything else.
+     *
+     * @param streamOwner The reader whose statements to reset.
+     */
+    public void endStream(Object streamOwner) {
+        synchronized (mLock) {
+            if (mAvailablePrimaryConnection != null) {
+                mAvailablePrimaryConnection.endStream(streamOwner);
+            }
+
+            for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
+                connection.endStream(streamOwner);
+            }
+        }
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
@@ -613,6 +658,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
             if (connection != null) {
+                noteConnectionAcquiredLocked(null);
                 return connection;
             }
 
@@ -679,6 +725,9 @@ public final class SQLiteConnectionPool implements Closeable {
                     final SQLiteConnection connection = waiter.mAssignedConnection;
                     final RuntimeException ex = waiter.mException;
                     if (connection != null || ex != null) {
+                        if (connection != null) {
+                            noteConnectionAcquiredLocked(waiter);
+                        }
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
                             return connection;
@@ -948,12 +997,99 @@ public final class SQLiteConnectionPool implements Closeable {
     private void setMaxConnectionPoolSizeLocked() {
         if ((mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
             mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mConnectionPoolSizeLimit = mAdaptive
+                    ? SQLiteGlobal.getWALMaxConnectionPoolSize() : mMaxConnectionPoolSize;
         } else {
             // TODO: We don't actually need to restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
             // with other journal modes.  For now, enabling connection pooling and
             // using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
+            mConnectionPoolSizeLimit = 1;
+        }
+        mConfiguredConnectionPoolSize = mMaxConnectionPoolSize;
+        mWindowAcquisitions = 0;
+        mWindowNonPrimaryWaits = 0;
+        mWindowPeakAcquired = 0;
+    }
+
+    // Can't throw.
+    // Records an acquisition, and the wait that preceded it if waiter is not null.
+    private void noteConnectionAcquiredLocked(ConnectionWaiter waiter) {
+        mAcquisitionCount += 1;
+        if (waiter != null) {
+            final long waitMillis = SystemClock.uptimeMillis() - waiter.mStartTime;
+            mWaitCount += 1;
+            mTotalWaitMillis += waitMillis;
+            if (waitMillis > mMaxWaitMillis) {
+                mMaxWaitMillis = waitMillis;
+            }
+            if (!waiter.mWantPrimaryConnection) {
+                mWindowNonPrimaryWaits += 1;
+            }
+        }
+        if (mAcquiredConnections.size() > mWindowPeakAcquired) {
+            mWindowPeakAcquired = mAcquiredConnections.size();
+        }
+        if (++mWindowAcquisitions >= ADAPT_WINDOW_ACQUISITIONS) {
+            adaptConnectionPoolSizeLocked();
+        }
+    }
+
+    // Can't throw.
+    // Called at the end of each window of acquisitions.  Grows an adaptive pool by one
+    // connection when readers keep waiting for non-primary connections, and gives one
+    // back when a whole window passed without waits and without using every connection.
+    private void adaptConnectionPoolSizeLocked() {
+        final int waits = mWindowNonPrimaryWaits;
+        final int peakAcquired = mWindowPeakAcquired;
+        mWindowAcquisitions = 0;
+        mWindowNonPrimaryWaits = 0;
+        mWindowPeakAcquired = 0;
+        if (!mAdaptive) {
+            return;
+        }
+
+        if (waits * ADAPT_GROW_WAIT_FRACTION >= ADAPT_WINDOW_ACQUISITIONS
+                && mMaxConnectionPoolSize < mConnectionPoolSizeLimit) {
+            mMaxConnectionPoolSize += 1;
+            mGrowCount += 1;
+            if (SQLiteDebug.DEBUG_SQL_LOG) {
+                Log.d(TAG, "Connection pool for " + mConfiguration.label + " grew to "
+                        + mMaxConnectionPoolSize + " connections after " + waits + " waits.");
+            }
+            // Let waiters open the new connection right away.
+            wakeConnectionWaitersLocked();
+        } else if (waits == 0 && peakAcquired < mMaxConnectionPoolSize - 1
+                && mMaxConnectionPoolSize > mConfiguredConnectionPoolSize) {
+            mMaxConnectionPoolSize -= 1;
+            mShrinkCount += 1;
+            if (SQLiteDebug.DEBUG_SQL_LOG) {
+                Log.d(TAG, "Connection pool for " + mConfiguration.label + " shrank to "
+                        + mMaxConnectionPoolSize + " connections.");
+            }
+            closeExcessConnectionsAndLogExceptionsLocked();
+        }
+    }
+
+    /**
+     * Collects statistics about waits for connections from this pool.
+     *
+     * @return The statistics, never null.
+     */
+    public ConnectionPoolStats getConnectionPoolStats() {
+        synchronized (mLock) {
+            ConnectionPoolStats stats = new ConnectionPoolStats();
+            stats.dbName = mConfiguration.path;
+            stats.maxConnections = mMaxConnectionPoolSize;
+            stats.configuredMaxConnections = mConfiguredConnectionPoolSize;
+            stats.acquisitions = mAcquisitionCount;
+            stats.waits = mWaitCount;
+            stats.totalWaitMillis = mTotalWaitMillis;
+            stats.maxWaitMillis = mMaxWaitMillis;
+            stats.grows = mGrowCount;
+            stats.shrinks = mShrinkCount;
+            return stats;
         }
     }
 
@@ -1004,6 +1140,15 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            if (mAdaptive) {
+                printer.println("  Adaptive: configured=" + mConfiguredConnectionPoolSize
+                        + ", limit=" + mConnectionPoolSizeLimit
+                        + ", grown=" + mGrowCount + ", shrunk=" + mShrinkCount);
+            }
+            printer.println("  Acquisitions: " + mAcquisitionCount
+                    + ", waits=" + mWaitCount
+                    + ", totalWaitMillis=" + mTotalWaitMillis
+                    + ", maxWaitMillis=" + mMaxWaitMillis);
 
             printer.println("  Available primary connection:");
             if (mAvailablePrimaryConnection != null) {
@@ -29,6 +29,12 @@ import android.util.Log;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -42,6 +48,28 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     static final String TAG = "SQLiteCursor";
     static final int NO_COUNT = -1;
 
+    /** Size of the first window of a streaming cursor; see {@link #mStreaming}. */
+    private static final int MIN_STREAMING_WINDOW_SIZE = 128 * 1024;
+
+    /** Threads filling the next window of streaming cursors in the background. */
+    private static final int PREFETCH_THREADS = 2;
+    /** Background fills that may wait for a thread; past this, cursors fill when they get there. */
+    private static final int PREFETCH_QUEUE_SIZE = 16;
+
+    private static final ThreadFactory sPrefetchThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "SQLiteCursor prefetch #" + mCount.getAndIncrement());
+        }
+    };
+
+    /**
+     * Runs nothing but {@link Prefetch} tasks, so a cursor waiting for its prefetch never
+     * waits behind unrelated work that might in turn be waiting for the cursor's thread.
+     */
+    private static final ThreadPoolExecutor sPrefetchExecutor = createPrefetchExecutor();
+
     /** The name of the table to edit */
     private final String mEditTable;
 
@@ -66,6 +94,25 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     /** Used to find out where a cursor was allocated in case it never got released. */
     private final Throwable mStackTrace;
 
+    /**
+     * True if forward scans are read a window at a time without executing the query
+     * again for each window.  Each window starts exactly where the last one ended, the
+     * connection keeps the statement positioned between windows, windows grow from
+     * {@link #MIN_STREAMING_WINDOW_SIZE} to the default size as the scan goes on (at once
+     * if a row does not fit), and on WAL databases the next window is filled on a
+     * background thread.
+     */
+    private final boolean mStreaming;
+
+    /** Size of the next window a streaming scan allocates. */
+    private int mStreamingWindowSize;
+
+    /** Size of {@link #mWindow}, if this cursor allocated it, or else the default size. */
+    private int mWindowSize;
+
+    /** The window following the current one, being filled in the background, or null. */
+    private Prefetch mPrefetch;
+
     /**
      * Execute a query and provide access to its result set through a Cursor
      * interface. For a query such as: {@code SELECT name, birth, phone FROM
@@ -111,6 +158,8 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         mQuery = query;
 
         mColumns = query.getColumnNames();
+        mStreaming = SQLiteGlobal.isCursorStreamingEnabled();
+        mStreamingWindowSize = MIN_STREAMING_WINDOW_SIZE;
 
         /** M: when new a cursor, log information */
         if (Log.isLoggable("Debug_Cursor", Log.VERBOSE)) {
@@ -146,12 +195,29 @@ public class SQLiteCursor extends AbstractWindowedCursor {
     }
 
     private void fillWindow(int requiredPos) {
-        clearOrCreateWindow(getDatabase().getPath());
+        if (mStreaming && mCount != NO_COUNT && mWindow != null && mWindow.getNumRows() > 0
+                && requiredPos == mWindow.getStartPosition() + mWindow.getNumRows()) {
+            fillNextWindow(requiredPos);
+            return;
+        }
+        cancelPrefetch();
+        if (mStreaming && mWindow == null) {
+            mWindow = new CursorWindow(getDatabase().getPath(), mStreamingWindowSize);
+            mWindowSize = mStreamingWindowSize;
+        } else {
+            if (mWindow == null) {
+                mWindowSize = CursorWindow.getDefaultCursorWindowSize();
+            }
+            clearOrCreateWindow(getDatabase().getPath());
+        }
 
         try {
             if (mCount == NO_COUNT) {
                 int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(requiredPos, 0);
                 mCount = mQuery.fillWindow(mWindow, startPos, requiredPos, true);
+                if (growWindowForLargeRow(requiredPos)) {
+                    mQuery.fillWindow(mWindow, startPos, requiredPos, true);
+                }
                 mCursorWindowCapacity = mWindow.getNumRows();
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
                     Log.d(TAG, "received count(*) from native_fill_window: " + mCount);
@@ -160,6 +226,9 @@ public class SQLiteCursor extends AbstractWindowedCursor {
                 int startPos = DatabaseUtils.cursorPickFillWindowStartPosition(requiredPos,
                         mCursorWindowCapacity);
                 mQuery.fillWindow(mWindow, startPos, requiredPos, false);
+                if (growWindowForLargeRow(requiredPos)) {
+                    mQuery.fillWindow(mWindow, startPos, requiredPos, false);
+                }
             }
         } catch (RuntimeException ex) {
             //// M: Debug
@@ -174,6 +243,183 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         }
     }
 
+    /**
+     * Moves a streaming cursor on to the window that follows the current one.
+     */
+    private void fillNextWindow(int startPos) {
+        final Prefetch prefetch = mPrefetch;
+        mPrefetch = null;
+        if (prefetch != null) {
+            finishPrefetch(prefetch);
+            // A window that the next row did not fit in is filled again below.
+            if (prefetch.mStartPos == startPos && prefetch.mException == null
+                    && prefetch.mWindow.getNumRows() > 0) {
+                closeWindow();
+                mWindow = prefetch.mWindow;
+                mWindowSize = prefetch.mWindowSize;
+                maybeStartPrefetch();
+                return;
+            }
+            prefetch.mWindow.close();
+        }
+
+        final int defaultSize = CursorWindow.getDefaultCursorWindowSize();
+        if (mStreamingWindowSize < defaultSize) {
+            mStreamingWindowSize = Math.min(mStreamingWindowSize * 2, defaultSize);
+            closeWindow();
+            mWindow = new CursorWindow(getDatabase().getPath(), mStreamingWindowSize);
+            mWindowSize = mStreamingWindowSize;
+        } else {
+            mWindow.clear();
+        }
+        try {
+            mQuery.fillWindow(mWindow, startPos, startPos, false, true);
+            if (growWindowForLargeRow(startPos)) {
+                mQuery.fillWindow(mWindow, startPos, startPos, false, true);
+            }
+        } catch (RuntimeException ex) {
+            Log.v(TAG, "fillWindow() exception " + ex.getMessage(), ex);
+            closeWindow();
+            throw ex;
+        }
+        maybeStartPrefetch();
+    }
+
+    /**
+     * Replaces a streaming window that a fill added no rows to, though rows remain, with
+     * one of the default size.  A row that does not fit in a smaller window may well fit
+     * in that one, as it would have without streaming.
+     *
+     * @return True if the window was replaced and should be filled again.
+     */
+    private boolean growWindowForLargeRow(int requiredPos) {
+        final int defaultSize = CursorWindow.getDefaultCursorWindowSize();
+        if (!mStreaming || mWindow.getNumRows() > 0 || requiredPos >= mCount
+                || mWindowSize >= defaultSize) {
+            return false;
+        }
+        closeWindow();
+        mWindow = new CursorWindow(getDatabase().getPath());
+        mWindowSize = defaultSize;
+        mStreamingWindowSize = defaultSize;
+        return true;
+    }
+
+    /**
+     * Starts filling the window after the current one in the background, when the
+     * scan is not done yet and reading from another thread cannot deadlock or see
+     * different data: the database must use WAL and this thread must not be in a
+     * transaction.
+     */
+    private void maybeStartPrefetch() {
+        final int nextPos = mWindow.getStartPosition() + mWindow.getNumRows();
+        final SQLiteDatabase db = getDatabase();
+        if (mWindow.getNumRows() == 0 || nextPos >= mCount
+                || !db.isWriteAheadLoggingEnabled() || db.inTransaction()) {
+            return;
+        }
+        final int defaultSize = CursorWindow.getDefaultCursorWindowSize();
+        mStreamingWindowSize = Math.min(mStreamingWindowSize * 2, defaultSize);
+        final Prefetch prefetch = new Prefetch(
+                new CursorWindow(db.getPath(), mStreamingWindowSize), mStreamingWindowSize,
+                nextPos);
+        try {
+            sPrefetchExecutor.execute(prefetch);
+        } catch (RejectedExecutionException ex) {
+            // Too many cursors are prefetching; fillNextWindow() reads this one on our thread.
+            prefetch.mWindow.close();
+            return;
+        }
+        mPrefetch = prefetch;
+    }
+
+    /**
+     * Makes sure a background fill has completed, running it on this thread if it has not
+     * started yet rather than waiting for it to reach the front of the queue.
+     */
+    private static void finishPrefetch(Prefetch prefetch) {
+        if (sPrefetchExecutor.remove(prefetch)) {
+            prefetch.run();
+        } else {
+            prefetch.await();
+        }
+    }
+
+    /** Stops a background fill that is no longer wanted and drops its window. */
+    private void cancelPrefetch() {
+        final Prefetch prefetch = mPrefetch;
+        if (prefetch != null) {
+            mPrefetch = null;
+            if (!sPrefetchExecutor.remove(prefetch)) {
+                prefetch.await();
+            }
+            prefetch.mWindow.close();
+        }
+    }
+
+    /**
+     * Resets the statement a streaming scan left positioned on its connection, ending the
+     * read transaction it holds.
+     */
+    private void endStream() {
+        cancelPrefetch();
+        if (mStreaming && mQuery.getDatabase().isOpen()) {
+            mQuery.endStream();
+        }
+    }
+
+    private static ThreadPoolExecutor createPrefetchExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(PREFETCH_THREADS,
+                PREFETCH_THREADS, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), sPrefetchThreadFactory);
+        // Processes that never stream, and the zygote, keep no idle threads around.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final class Prefetch implements Runnable {
+        final CursorWindow mWindow;
+        final int mWindowSize;
+        final int mStartPos;
+        RuntimeException mException;
+        private boolean mDone;
+
+        Prefetch(CursorWindow window, int windowSize, int startPos) {
+            mWindow = window;
+            mWindowSize = windowSize;
+            mStartPos = startPos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mQuery.fillWindow(mWindow, mStartPos, mStartPos, false, true);
+            } catch (RuntimeException ex) {
+                // The cursor's own thread fills the window again and reports the error.
+                mException = ex;
+            } finally {
+                synchronized (this) {
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public int getColumnIndex(String columnName) {
         // Create mColumnNameMap on demand
@@ -210,6 +456,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
 
     @Override
     public void deactivate() {
+        endStream();
         super.deactivate();
         mDriver.cursorDeactivated();
     }
@@ -220,6 +467,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         if (Log.isLoggable("Debug_Cursor", Log.VERBOSE)) {
             Log.v(TAG, "Cursor close object=" + this.hashCode());
         }
+        endStream();
         super.close();
         synchronized (this) {
             mQuery.close();
@@ -233,6 +481,7 @@ public class SQLiteCursor extends AbstractWindowedCursor {
             return false;
         }
 
+        endStream();
         synchronized (this) {
             if (!mQuery.getDatabase().isOpen()) {
                 return false;
@@ -258,7 +507,9 @@ public class SQLiteCursor extends AbstractWindowedCursor {
 
     @Override
     public void setWindow(CursorWindow window) {
+        cancelPrefetch();
         super.setWindow(window);
+        mWindowSize = CursorWindow.getDefaultCursorWindowSize();
         mCount = NO_COUNT;
     }
 
@@ -27,6 +27,7 @@ import android.database.DatabaseErrorHandler;
 import android.database.DatabaseUtils;
 import android.database.DefaultDatabaseErrorHandler;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
 import android.os.Looper;
@@ -2057,6 +2058,22 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Collects connection wait statistics about all active databases in the current process.
+     * Used by bug report.
+     */
+    static ArrayList<ConnectionPoolStats> getConnectionPoolStats() {
+        ArrayList<ConnectionPoolStats> poolStatsList = new ArrayList<ConnectionPoolStats>();
+        for (SQLiteDatabase db : getActiveDatabases()) {
+            synchronized (db.mLock) {
+                if (db.mConnectionPoolLocked != null) {
+                    poolStatsList.add(db.mConnectionPoolLocked.getConnectionPoolStats());
+                }
+            }
+        }
+        return poolStatsList;
+    }
+
     private static ArrayList<SQLiteDatabase> getActiveDatabases() {
         ArrayList<SQLiteDatabase> databases = new ArrayList<SQLiteDatabase>();
         synchronized (sActiveDatabases) {
@@ -112,6 +112,11 @@ public final class SQLiteDebug {
          * running on the android device
          */
         public ArrayList<DbStats> dbStats;
+
+        /** a list of {@link ConnectionPoolStats} - one for each open database connection pool
+         * in the current process
+         */
+        public ArrayList<ConnectionPoolStats> poolStats;
     }
 
     /**
@@ -133,6 +138,14 @@ public final class SQLiteDebug {
         /** statement cache stats: hits/misses/cachesize */
         public String cache;
 
+        /** number of prepared statements the statement cache had to evict */
+        public int cacheEvictions;
+
+        /** current capacity of the statement cache, which may exceed the configured size
+         * when adaptive pooling is enabled
+         */
+        public int cacheMaxSize;
+
         public DbStats(String dbName, long pageCount, long pageSize, int lookaside,
             int hits, int misses, int cachesize) {
             this.dbName = dbName;
@@ -143,6 +156,34 @@ public final class SQLiteDebug {
         }
     }
 
+    /**
+     * contains statistics about waits for connections from a connection pool
+     */
+    public static class ConnectionPoolStats {
+        /** path of the database */
+        public String dbName;
+
+        /** number of connections the pool may currently open */
+        public int maxConnections;
+
+        /** number of connections the pool was configured with */
+        public int configuredMaxConnections;
+
+        /** number of connections acquired from the pool */
+        public long acquisitions;
+
+        /** number of acquisitions that had to wait for a connection */
+        public long waits;
+
+        /** total and longest time spent waiting for a connection, in milliseconds */
+        public long totalWaitMillis;
+        public long maxWaitMillis;
+
+        /** number of times an adaptive pool grew or shrank */
+        public int grows;
+        public int shrinks;
+    }
+
     /**
      * return all pager and database stats for the current process.
      * @return {@link PagerStats}
@@ -151,6 +192,7 @@ public final class SQLiteDebug {
         PagerStats stats = new PagerStats();
         nativeGetPagerStats(stats);
         stats.dbStats = SQLiteDatabase.getDbStats();
+        stats.poolStats = SQLiteDatabase.getConnectionPoolStats();
         return stats;
     }
 
@@ -39,6 +39,7 @@ public final class SQLiteGlobal {
 
     private static final Object sLock = new Object();
     private static int sDefaultPageSize;
+    private static volatile Boolean sCursorStreamingForTest;
 
     private static native int nativeReleaseMemory();
 
@@ -122,4 +123,43 @@ public final class SQLiteGlobal {
                 com.android.internal.R.integer.db_connection_pool_size));
         return Math.max(2, value);
     }
+
+    /**
+     * Returns true if WAL connection pools and prepared statement caches should resize
+     * themselves based on measured connection waits and cache evictions, rather than
+     * staying at their configured sizes.
+     */
+    public static boolean isAdaptivePoolingEnabled() {
+        return SystemProperties.getBoolean("debug.sqlite.adaptivepool", false);
+    }
+
+    /**
+     * Returns true if cursors should read forward scans a window at a time, keeping
+     * the statement positioned between windows instead of executing the query again
+     * for each one.  See {@link SQLiteCursor}.
+     */
+    public static boolean isCursorStreamingEnabled() {
+        final Boolean forTest = sCursorStreamingForTest;
+        if (forTest != null) {
+            return forTest;
+        }
+        return SystemProperties.getBoolean("debug.sqlite.cursorstreaming", false);
+    }
+
+    /**
+     * Overrides debug.sqlite.cursorstreaming for cursors created from now on, or restores
+     * it when <code>enabled</code> is null.  For tests only.
+     */
+    public static void setCursorStreamingEnabledForTest(Boolean enabled) {
+        sCursorStreamingForTest = enabled;
+    }
+
+    /**
+     * Gets the largest connection pool size an adaptive WAL connection pool may grow to.
+     */
+    public static int getWALMaxConnectionPoolSize() {
+        final int poolSize = getWALConnectionPoolSize();
+        int value = SystemProperties.getInt("debug.sqlite.wal.maxpoolsize", poolSize * 2);
+        return Math.max(poolSize, value);
+    }
 }
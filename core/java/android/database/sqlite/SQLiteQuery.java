@@ -55,13 +55,26 @@ public final class SQLiteQuery extends SQLiteProgram {
      * @throws OperationCanceledException if the operation was canceled.
      */
     int fillWindow(CursorWindow window, int startPos, int requiredPos, boolean countAllRows) {
+        return fillWindow(window, startPos, requiredPos, countAllRows, false);
+    }
+
+    /**
+     * Reads rows into a buffer, optionally leaving the statement positioned so that
+     * the following window can be read without executing the query again.
+     *
+     * @param stream True if the caller is reading the results front to back and
+     * will likely ask for the rows that follow this window next.
+     * @see #fillWindow(CursorWindow, int, int, boolean)
+     */
+    int fillWindow(CursorWindow window, int startPos, int requiredPos, boolean countAllRows,
+            boolean stream) {
         acquireReference();
         try {
             window.acquireReference();
             try {
                 int numRows = getSession().executeForCursorWindow(getSql(), getBindArgs(),
-                        window, startPos, requiredPos, countAllRows, getConnectionFlags(),
-                        mCancellationSignal);
+                        window, startPos, requiredPos, countAllRows, stream ? this : null,
+                        getConnectionFlags(), mCancellationSignal);
                 return numRows;
             } catch (SQLiteDatabaseCorruptException ex) {
                 onCorruption();
@@ -77,6 +90,15 @@ public final class SQLiteQuery extends SQLiteProgram {
         }
     }
 
+    /**
+     * Resets any statement a streaming {@link #fillWindow} left positioned for this query,
+     * ending the read transaction it holds.  Only connections not in use by another thread
+     * are reset; those reset the statement themselves before they run anything else.
+     */
+    void endStream() {
+        getSession().endStream(this);
+    }
+
     @Override
     public String toString() {
         return "SQLiteQuery: " + getSql();
@@ -819,6 +819,22 @@ public final class SQLiteSession {
     public int executeForCursorWindow(String sql, Object[] bindArgs,
             CursorWindow window, int startPos, int requiredPos, boolean countAllRows,
             int connectionFlags, CancellationSignal cancellationSignal) {
+        return executeForCursorWindow(sql, bindArgs, window, startPos, requiredPos,
+                countAllRows, null, connectionFlags, cancellationSignal);
+    }
+
+    /**
+     * Like {@link #executeForCursorWindow(String, Object[], CursorWindow, int, int, boolean,
+     * int, CancellationSignal)}, but lets the connection keep the statement positioned
+     * for the next window of the same reader.  See
+     * {@link SQLiteConnection#executeForCursorWindow(String, Object[], CursorWindow, int, int,
+     * boolean, Object, CancellationSignal)}.
+     *
+     * @param streamOwner Identifies the reader of the results, or null if none.
+     */
+    public int executeForCursorWindow(String sql, Object[] bindArgs,
+            CursorWindow window, int startPos, int requiredPos, boolean countAllRows,
+            Object streamOwner, int connectionFlags, CancellationSignal cancellationSignal) {
         if (sql == null) {
             throw new IllegalArgumentException("sql must not be null.");
         }
@@ -835,12 +851,31 @@ public final class SQLiteSession {
         try {
             return mConnection.executeForCursorWindow(sql, bindArgs,
                     window, startPos, requiredPos, countAllRows,
-                    cancellationSignal); // might throw
+                    streamOwner, cancellationSignal); // might throw
         } finally {
             releaseConnection(); // might throw
         }
     }
 
+    /**
+     * Resets the statements left positioned for <code>streamOwner</code> by
+     * {@link #executeForCursorWindow(String, Object[], CursorWindow, int, int, boolean,
+     * Object, int, CancellationSignal)}, on the connection this session holds and on the
+     * pool's idle connections.
+     *
+     * @param streamOwner The reader whose statements to reset.
+     */
+    public void endStream(Object streamOwner) {
+        if (streamOwner == null) {
+            throw new IllegalArgumentException("streamOwner must not be null.");
+        }
+
+        if (mConnection != null) {
+            mConnection.endStream(streamOwner);
+        }
+        mConnectionPool.endStream(streamOwner);
+    }
+
     /**
      * Performs special reinterpretation of certain SQL statements such as "BEGIN",
      * "COMMIT" and "ROLLBACK" to ensure that transaction state invariants are
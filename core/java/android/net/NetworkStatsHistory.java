@@ -25,8 +25,10 @@ import static android.net.NetworkStats.IFACE_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readFixedLongArray;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readFullLongArray;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeFixedLongArray;
 import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLongArray;
 import static android.net.NetworkStatsHistory.Entry.UNKNOWN;
 import static android.net.NetworkStatsHistory.ParcelUtils.readLongArray;
@@ -68,6 +70,7 @@ public class NetworkStatsHistory implements Parcelable {
     private static final int VERSION_INIT = 1;
     private static final int VERSION_ADD_PACKETS = 2;
     private static final int VERSION_ADD_ACTIVE = 3;
+    private static final int VERSION_FIXED_COLUMNS = 4;
 
     public static final int FIELD_ACTIVE_TIME = 0x01;
     public static final int FIELD_RX_BYTES = 0x02;
@@ -184,6 +187,20 @@ public class NetworkStatsHistory implements Parcelable {
                 totalBytes = total(rxBytes) + total(txBytes);
                 break;
             }
+            case VERSION_FIXED_COLUMNS: {
+                bucketDuration = in.readLong();
+                bucketCount = in.readInt();
+                if (bucketCount < 0) throw new ProtocolException("negative array size");
+                bucketStart = readFixedLongArray(in, bucketCount);
+                activeTime = readFixedLongArray(in, bucketCount);
+                rxBytes = readFixedLongArray(in, bucketCount);
+                rxPackets = readFixedLongArray(in, bucketCount);
+                txBytes = readFixedLongArray(in, bucketCount);
+                txPackets = readFixedLongArray(in, bucketCount);
+                operations = readFixedLongArray(in, bucketCount);
+                totalBytes = total(rxBytes) + total(txBytes);
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
@@ -208,6 +225,27 @@ public class NetworkStatsHistory implements Parcelable {
         writeVarLongArray(out, operations, bucketCount);
     }
 
+    /**
+     * Write this history with every column at full width, one after another,
+     * so that readers can find any bucket by its offset without parsing the
+     * columns before it.
+     * <p>
+     * columns := bucketDuration bucketCount 7 *(bucketCount *long), in the order
+     * bucketStart activeTime rxBytes rxPackets txBytes txPackets operations.
+     */
+    public void writeColumnsToStream(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION_FIXED_COLUMNS);
+        out.writeLong(bucketDuration);
+        out.writeInt(bucketCount);
+        writeFixedLongArray(out, bucketStart, bucketCount);
+        writeFixedLongArray(out, activeTime, bucketCount);
+        writeFixedLongArray(out, rxBytes, bucketCount);
+        writeFixedLongArray(out, rxPackets, bucketCount);
+        writeFixedLongArray(out, txBytes, bucketCount);
+        writeFixedLongArray(out, txPackets, bucketCount);
+        writeFixedLongArray(out, operations, bucketCount);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -705,6 +743,28 @@ public class NetworkStatsHistory implements Parcelable {
             return values;
         }
 
+        public static long[] readFixedLongArray(DataInputStream in, int size)
+                throws IOException {
+            final long[] values = new long[size];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readLong();
+            }
+            return values;
+        }
+
+        /**
+         * Write exactly {@code size} values, writing zeros for a missing array.
+         */
+        public static void writeFixedLongArray(DataOutputStream out, long[] values, int size)
+                throws IOException {
+            if (values != null && size > values.length) {
+                throw new IllegalArgumentException("size larger than length");
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeLong(values != null ? values[i] : 0L);
+            }
+        }
+
         /**
          * Read variable-length {@link Long} using protobuf-style approach.
          */
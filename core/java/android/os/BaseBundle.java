@@ -19,9 +19,12 @@ package android.os;
 import android.annotation.Nullable;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Size;
+import android.util.SizeF;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -55,6 +58,28 @@ public class BaseBundle {
      */
     private ClassLoader mClassLoader;
 
+    /**
+     * When set, single key lookups on a parcelled bundle decode only the
+     * requested value, and a bundle that was only read is written back out
+     * as a copy of its original bytes.  Set {@code persist.sys.lazy_bundle}.
+     */
+    private static boolean sLazyUnparcel =
+            SystemProperties.getBoolean("persist.sys.lazy_bundle", false);
+
+    private static final Object NOT_FOUND = new Object();
+
+    /*
+     * Lazy unparcelling state, only used while mParcelledData is set.
+     * Keys are scanned in order from mLazyScanPos, skipping over values
+     * whose size is known from their header and decoding the others.
+     * mLazyOffsets holds where each skipped value starts, mLazyValues the
+     * values decoded so far.  mLazyOffsets is null until the first lookup.
+     */
+    private ArrayMap<String, Integer> mLazyOffsets;
+    private ArrayMap<String, Object> mLazyValues;
+    private int mLazyScanPos;
+    private int mLazyRemaining;
+
     /**
      * Constructs a new, empty Bundle that uses a specific ClassLoader for
      * instantiating Parcelable and Serializable objects.
@@ -118,6 +143,7 @@ public class BaseBundle {
      * @param b a Bundle to be copied.
      */
     BaseBundle(BaseBundle b) {
+        b.unparcelIfLazyValuesMutable();
         if (b.mParcelledData != null) {
             if (b.mParcelledData == EMPTY_PARCEL) {
                 mParcelledData = EMPTY_PARCEL;
@@ -206,6 +232,9 @@ public class BaseBundle {
             return;
         }
 
+        if (mLazyOffsets != null) {
+            mParcelledData.setDataPosition(0);
+        }
         int N = mParcelledData.readInt();
         if (DEBUG) Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
                 + ": reading " + N + " maps");
@@ -219,12 +248,124 @@ public class BaseBundle {
             mMap.ensureCapacity(N);
         }
         mParcelledData.readArrayMapInternal(mMap, N, mClassLoader);
+        if (mLazyValues != null) {
+            // Keep handing out the instances callers already have.
+            mMap.putAll(mLazyValues);
+        }
+        mLazyOffsets = null;
+        mLazyValues = null;
         mParcelledData.recycle();
         mParcelledData = null;
         if (DEBUG) Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
                 + " final map: " + mMap);
     }
 
+    /**
+     * @hide For testing only.
+     */
+    public static void setLazyUnparcel(boolean lazy) {
+        sLazyUnparcel = lazy;
+    }
+
+    /**
+     * Returns the value for the given key, or NOT_FOUND.  In lazy mode a
+     * parcelled bundle only decodes what it needs to; otherwise the whole
+     * bundle is unparcelled.
+     */
+    private Object findValue(String key) {
+        if (sLazyUnparcel) {
+            synchronized (this) {
+                if (mParcelledData != null && mParcelledData != EMPTY_PARCEL) {
+                    return findLazyValueLocked(key);
+                }
+            }
+        }
+        unparcel();
+        final int index = mMap.indexOfKey(key);
+        return index >= 0 ? mMap.valueAt(index) : NOT_FOUND;
+    }
+
+    /**
+     * Returns the value associated with the given key without unparcelling
+     * the rest of the bundle when lazy unparcelling is enabled.
+     */
+    Object getValue(String key) {
+        final Object value = findValue(key);
+        return value != NOT_FOUND ? value : null;
+    }
+
+    private Object findLazyValueLocked(String key) {
+        final Parcel parcel = mParcelledData;
+        if (mLazyOffsets == null) {
+            parcel.setDataPosition(0);
+            final int N = parcel.readInt();
+            mLazyOffsets = new ArrayMap<>(Math.max(N, 0));
+            mLazyValues = new ArrayMap<>();
+            mLazyRemaining = N;
+            mLazyScanPos = parcel.dataPosition();
+        }
+
+        int index = mLazyValues.indexOfKey(key);
+        if (index >= 0) {
+            return mLazyValues.valueAt(index);
+        }
+        index = mLazyOffsets.indexOfKey(key);
+        if (index >= 0) {
+            parcel.setDataPosition(mLazyOffsets.valueAt(index));
+            final Object value = parcel.readValue(mClassLoader);
+            mLazyOffsets.removeAt(index);
+            mLazyValues.put(key, value);
+            return value;
+        }
+
+        parcel.setDataPosition(mLazyScanPos);
+        while (mLazyRemaining > 0) {
+            final String k = parcel.readString();
+            final int valuePos = parcel.dataPosition();
+            final boolean match = Objects.equals(key, k);
+            final boolean seen = mLazyOffsets.containsKey(k) || mLazyValues.containsKey(k);
+            if (!match && parcel.skipValue()) {
+                mLazyScanPos = parcel.dataPosition();
+                mLazyRemaining--;
+                if (!seen) {
+                    mLazyOffsets.put(k, valuePos);
+                }
+                continue;
+            }
+            final Object value = parcel.readValue(mClassLoader);
+            mLazyScanPos = parcel.dataPosition();
+            mLazyRemaining--;
+            if (!seen) {
+                mLazyValues.put(k, value);
+            }
+            if (match) {
+                return value;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Values handed out by lazy lookups may be modified by the caller, so
+     * the original bytes can only be reused if all of them are immutable.
+     */
+    synchronized void unparcelIfLazyValuesMutable() {
+        if (mLazyValues == null) {
+            return;
+        }
+        for (int i = mLazyValues.size() - 1; i >= 0; i--) {
+            final Object value = mLazyValues.valueAt(i);
+            if (value != null && !(value instanceof String) && !(value instanceof Integer)
+                    && !(value instanceof Long) && !(value instanceof Boolean)
+                    && !(value instanceof Double) && !(value instanceof Float)
+                    && !(value instanceof Short) && !(value instanceof Byte)
+                    && !(value instanceof Size) && !(value instanceof SizeF)) {
+                unparcel();
+                return;
+            }
+        }
+    }
+
     /**
      * @hide
      */
@@ -266,8 +407,7 @@ public class BaseBundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
-        unparcel();
-        return mMap.containsKey(key);
+        return findValue(key) != NOT_FOUND;
     }
 
     /**
@@ -278,8 +418,7 @@ public class BaseBundle {
      */
     @Nullable
     public Object get(String key) {
-        unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -619,7 +758,6 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key) {
-        unparcel();
         if (DEBUG) Log.d(TAG, "Getting boolean in "
                 + Integer.toHexString(System.identityHashCode(this)));
         return getBoolean(key, false);
@@ -656,8 +794,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -677,7 +814,6 @@ public class BaseBundle {
      * @return a byte value
      */
     byte getByte(String key) {
-        unparcel();
         return getByte(key, (byte) 0);
     }
 
@@ -690,8 +826,7 @@ public class BaseBundle {
      * @return a byte value
      */
     Byte getByte(String key, byte defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -711,7 +846,6 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key) {
-        unparcel();
         return getChar(key, (char) 0);
     }
 
@@ -724,8 +858,7 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key, char defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -745,7 +878,6 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key) {
-        unparcel();
         return getShort(key, (short) 0);
     }
 
@@ -758,8 +890,7 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key, short defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -779,7 +910,6 @@ public class BaseBundle {
      * @return an int value
      */
     public int getInt(String key) {
-        unparcel();
         return getInt(key, 0);
     }
 
@@ -792,8 +922,7 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -813,7 +942,6 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key) {
-        unparcel();
         return getLong(key, 0L);
     }
 
@@ -826,8 +954,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -847,7 +974,6 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key) {
-        unparcel();
         return getFloat(key, 0.0f);
     }
 
@@ -860,8 +986,7 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key, float defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -881,7 +1006,6 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key) {
-        unparcel();
         return getDouble(key, 0.0);
     }
 
@@ -894,8 +1018,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -917,8 +1040,7 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -953,8 +1075,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -989,8 +1110,7 @@ public class BaseBundle {
      */
     @Nullable
     Serializable getSerializable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1012,8 +1132,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1035,8 +1154,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1058,8 +1176,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1081,8 +1198,7 @@ public class BaseBundle {
      */
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1104,8 +1220,7 @@ public class BaseBundle {
      */
     @Nullable
     byte[] getByteArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1127,8 +1242,7 @@ public class BaseBundle {
      */
     @Nullable
     short[] getShortArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1150,8 +1264,7 @@ public class BaseBundle {
      */
     @Nullable
     char[] getCharArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1173,8 +1286,7 @@ public class BaseBundle {
      */
     @Nullable
     public int[] getIntArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1196,8 +1308,7 @@ public class BaseBundle {
      */
     @Nullable
     public long[] getLongArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1219,8 +1330,7 @@ public class BaseBundle {
      */
     @Nullable
     float[] getFloatArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1242,8 +1352,7 @@ public class BaseBundle {
      */
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1265,8 +1374,7 @@ public class BaseBundle {
      */
     @Nullable
     public String[] getStringArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1288,8 +1396,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1307,6 +1414,7 @@ public class BaseBundle {
      * @param parcel The parcel to copy this bundle to.
      */
     void writeToParcelInner(Parcel parcel, int flags) {
+        unparcelIfLazyValuesMutable();
         if (mParcelledData != null) {
             if (mParcelledData == EMPTY_PARCEL) {
                 parcel.writeInt(0);
@@ -1352,6 +1460,8 @@ public class BaseBundle {
     }
 
     private void readFromParcelInner(Parcel parcel, int length) {
+        mLazyOffsets = null;
+        mLazyValues = null;
         if (length == 0) {
             // Empty Bundle or end of data.
             mParcelledData = EMPTY_PARCEL;
@@ -23,6 +23,7 @@ package android.os;
 
 import android.util.Log;
 import android.util.Slog;
+import com.android.internal.os.BinderCallStats;
 import com.android.internal.util.FastPrintWriter;
 
 import java.io.FileDescriptor;
@@ -446,12 +447,15 @@ public class Binder implements IBinder {
     // Entry point from android_util_Binder.cpp's onTransact
     private boolean execTransact(int code, long dataObj, long replyObj,
             int flags) {
+        final BinderCallStats callStats = BinderCallStats.sIncoming;
+        final long callStart = callStats != null ? BinderCallStats.start() : 0;
         Parcel data = Parcel.obtain(dataObj);
         Parcel reply = Parcel.obtain(replyObj);
         // theoretically, we should call transact, which will call onTransact,
         // but all that does is rewind it, and we just got these from an IPC,
         // so we'll just call it directly.
         boolean res;
+        boolean failed = false;
         // Log any exceptions as warnings, don't silently suppress them.
         // If the call was FLAG_ONEWAY then these exceptions disappear into the ether.
         try {
@@ -465,6 +469,7 @@ public class Binder implements IBinder {
             }
             e.printStackTrace(); /// M: ALPS00303655
             res = true;
+            failed = true;
         } catch (RuntimeException e) {
             if ((flags & FLAG_ONEWAY) != 0) {
                 Log.w(TAG, "Caught a RuntimeException from the binder stub implementation.", e);
@@ -474,6 +479,7 @@ public class Binder implements IBinder {
             }
             e.printStackTrace(); /// M: ALPS00303655
             res = true;
+            failed = true;
         } catch (OutOfMemoryError e) {
             // Unconditionally log this, since this is generally unrecoverable.
             Log.e(TAG, "Caught an OutOfMemoryError from the binder stub implementation.", e);
@@ -482,8 +488,13 @@ public class Binder implements IBinder {
             reply.setDataPosition(0);
             reply.writeException(re);
             res = true;
+            failed = true;
         }
         checkParcel(this, code, reply, "Unreasonably large binder reply buffer");
+        if (callStats != null) {
+            callStats.noteCall(mDescriptor, this, code, callStart, data, reply,
+                    getCallingUid(), failed);
+        }
         reply.recycle();
         data.recycle();
 
@@ -508,7 +519,40 @@ final class BinderProxy implements IBinder {
 
     public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
         Binder.checkParcel(this, code, data, "Unreasonably large binder buffer");
-        return transactNative(code, data, reply, flags);
+        final BinderCallStats callStats = BinderCallStats.sOutgoing;
+        if (callStats == null) {
+            return transactNative(code, data, reply, flags);
+        }
+        return transactWithStats(callStats, code, data, reply, flags);
+    }
+
+    private boolean transactWithStats(BinderCallStats callStats, int code, Parcel data,
+            Parcel reply, int flags) throws RemoteException {
+        final long callStart = BinderCallStats.start();
+        boolean failed = true;
+        try {
+            final boolean res = transactNative(code, data, reply, flags);
+            failed = false;
+            return res;
+        } finally {
+            callStats.noteCall(getDescriptorForStats(code, data), null, code, callStart,
+                    data, reply, Process.myUid(), failed);
+        }
+    }
+
+    /**
+     * Returns the interface a call is counted under.  Read once per proxy from the
+     * interface token of the first AIDL call, so later calls do not allocate.  Codes
+     * outside the AIDL range carry no token and are never read.
+     */
+    private String getDescriptorForStats(int code, Parcel data) {
+        String descriptor = mDescriptorForStats;
+        if (descriptor == null && code >= FIRST_CALL_TRANSACTION
+                && code <= LAST_CALL_TRANSACTION) {
+            descriptor = BinderCallStats.readInterfaceToken(data);
+            mDescriptorForStats = descriptor;
+        }
+        return descriptor;
     }
 
     public native String getInterfaceDescriptor() throws RemoteException;
@@ -574,4 +618,6 @@ final class BinderProxy implements IBinder {
     final private WeakReference mSelf;
     private long mObject;
     private long mOrgue;
+    /** Interface descriptor for {@link BinderCallStats}, once known. */
+    private String mDescriptorForStats;
 }
@@ -720,8 +720,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Size getSize(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -740,8 +739,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -760,8 +758,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Bundle getBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -783,8 +780,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -806,8 +802,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -829,8 +824,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -853,8 +847,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1002,8 +995,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public IBinder getBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1029,8 +1021,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -82,6 +82,7 @@ public final class Looper {
     final Thread mThread;
 
     private Printer mLogging;
+    private volatile LooperStats mStats;
     /// M: MSG Logger Manager @{
     private Printer mMsgMonitorLogging;
     private static final boolean IS_USER_BUILD = "user".equals(Build.TYPE) || "userdebug".equals(Build.TYPE);
@@ -204,8 +205,17 @@ public final class Looper {
             }
             /// M: MSG Logger Manager @}
 
+            final LooperStats stats = me.mStats;
+            if (stats != null) {
+                stats.beginDispatch(msg);
+            }
+
             msg.target.dispatchMessage(msg);
 
+            if (stats != null) {
+                stats.endDispatch();
+            }
+
             if (logging != null) {
                 logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
             }
@@ -328,6 +338,31 @@ public final class Looper {
         return mThread;
     }
 
+    /**
+     * Starts or stops recording dispatch latency statistics for this looper.  Stopping
+     * discards what has been recorded.
+     *
+     * @hide
+     */
+    public void setStatsEnabled(boolean enabled) {
+        if (enabled) {
+            if (mStats == null) {
+                mStats = new LooperStats();
+            }
+        } else {
+            mStats = null;
+        }
+    }
+
+    /**
+     * Returns this looper's dispatch latency statistics, or null if they are not enabled.
+     *
+     * @hide
+     */
+    public @Nullable LooperStats getStats() {
+        return mStats;
+    }
+
     /**
      * Gets this looper's message queue.
      *
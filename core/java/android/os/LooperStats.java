@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Records, for one {@link Looper}, how long messages wait past the time they were due and
+ * how long they take to dispatch, by target class and {@link Message#what}.  The target
+ * class is the posted Runnable's class when there is one, and the Handler's otherwise.
+ *
+ * <p>The delay is measured from {@link Message#getWhen()}, which for messages that are not
+ * delayed is when they were enqueued; messages sent to the front of the queue count as not
+ * delayed.  Dispatches that take longer than the slow threshold are also kept, in order, in
+ * a fixed-size ring buffer.  Recording does not allocate once a (class, what) pair has been
+ * seen: counters live in preallocated arrays, and pairs past {@link #MAX_KEYS} are only
+ * counted in total.
+ *
+ * <p>{@link #beginDispatch} and {@link #endDispatch} are called by the looper thread; the
+ * dump and current dispatch may be read from any thread.
+ *
+ * @hide
+ */
+public final class LooperStats {
+    /** Distinct (class, what) pairs tracked per looper. */
+    public static final int MAX_KEYS = 256;
+    /** Slow dispatches remembered per looper. */
+    public static final int SLOW_HISTORY_SIZE = 32;
+
+    private static final long DEFAULT_SLOW_DISPATCH_MS = 100;
+
+    // Open-addressed table of (class, what) keys; twice MAX_KEYS so probes stay short.
+    private static final int TABLE_SIZE = MAX_KEYS * 2;
+    private final Class<?>[] mClasses = new Class<?>[TABLE_SIZE];
+    private final int[] mWhats = new int[TABLE_SIZE];
+    private final long[] mCounts = new long[TABLE_SIZE];
+    private final long[] mTotalDispatchNanos = new long[TABLE_SIZE];
+    private final long[] mMaxDispatchNanos = new long[TABLE_SIZE];
+    private final long[] mTotalDelayMs = new long[TABLE_SIZE];
+    private final long[] mMaxDelayMs = new long[TABLE_SIZE];
+    private int mKeys;
+    private long mOverflowCount;
+    private long mOverflowDispatchNanos;
+
+    private final Class<?>[] mSlowClasses = new Class<?>[SLOW_HISTORY_SIZE];
+    private final int[] mSlowWhats = new int[SLOW_HISTORY_SIZE];
+    private final long[] mSlowStartTimes = new long[SLOW_HISTORY_SIZE];
+    private final long[] mSlowDispatchNanos = new long[SLOW_HISTORY_SIZE];
+    private final long[] mSlowDelayMs = new long[SLOW_HISTORY_SIZE];
+    private int mSlowNext;
+    private long mSlowCount;
+
+    private long mTotalCount;
+    private long mSlowDispatchNanosThreshold = DEFAULT_SLOW_DISPATCH_MS * 1000000;
+    private long mStartTime = SystemClock.uptimeMillis();
+
+    // The message being dispatched, read by the watchdog.
+    private volatile Class<?> mCurrentClass;
+    private int mCurrentWhat;
+    private long mCurrentStartUptime;
+    private long mCurrentStartNanos;
+    private long mCurrentDelayMs;
+
+    /** Dispatches taking at least this long are kept in the slow message history. */
+    public void setSlowDispatchThresholdMs(long thresholdMs) {
+        synchronized (this) {
+            mSlowDispatchNanosThreshold = thresholdMs * 1000000;
+        }
+    }
+
+    void beginDispatch(Message msg) {
+        final long now = SystemClock.uptimeMillis();
+        mCurrentWhat = msg.what;
+        mCurrentStartUptime = now;
+        mCurrentDelayMs = msg.when != 0 && now > msg.when ? now - msg.when : 0;
+        mCurrentStartNanos = System.nanoTime();
+        mCurrentClass = msg.callback != null ? msg.callback.getClass() : msg.target.getClass();
+    }
+
+    void endDispatch() {
+        final long duration = System.nanoTime() - mCurrentStartNanos;
+        final Class<?> cls = mCurrentClass;
+        mCurrentClass = null;
+        if (cls == null) {
+            return;
+        }
+        final int what = mCurrentWhat;
+        final long delay = mCurrentDelayMs;
+        synchronized (this) {
+            mTotalCount++;
+            final int i = findOrInsertLocked(cls, what);
+            if (i >= 0) {
+                mCounts[i]++;
+                mTotalDispatchNanos[i] += duration;
+                mTotalDelayMs[i] += delay;
+                if (duration > mMaxDispatchNanos[i]) {
+                    mMaxDispatchNanos[i] = duration;
+                }
+                if (delay > mMaxDelayMs[i]) {
+                    mMaxDelayMs[i] = delay;
+                }
+            } else {
+                mOverflowCount++;
+                mOverflowDispatchNanos += duration;
+            }
+            if (duration >= mSlowDispatchNanosThreshold) {
+                final int slot = mSlowNext;
+                mSlowClasses[slot] = cls;
+                mSlowWhats[slot] = what;
+                mSlowStartTimes[slot] = mCurrentStartUptime;
+                mSlowDispatchNanos[slot] = duration;
+                mSlowDelayMs[slot] = delay;
+                mSlowNext = (slot + 1) % SLOW_HISTORY_SIZE;
+                mSlowCount++;
+            }
+        }
+    }
+
+    private int findOrInsertLocked(Class<?> cls, int what) {
+        int i = ((System.identityHashCode(cls) * 31) + what) & (TABLE_SIZE - 1);
+        while (true) {
+            final Class<?> c = mClasses[i];
+            if (c == null) {
+                if (mKeys >= MAX_KEYS) {
+                    return -1;
+                }
+                mClasses[i] = cls;
+                mWhats[i] = what;
+                mKeys++;
+                return i;
+            }
+            if (c == cls && mWhats[i] == what) {
+                return i;
+            }
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+    }
+
+    /**
+     * Describes the message the looper is dispatching, and for how long, or returns null if
+     * it is waiting for one.
+     */
+    public String describeCurrentDispatch() {
+        final Class<?> cls = mCurrentClass;
+        if (cls == null) {
+            return null;
+        }
+        final long elapsed = SystemClock.uptimeMillis() - mCurrentStartUptime;
+        return "dispatching " + cls.getName() + " what=" + mCurrentWhat + " for "
+                + elapsed + "ms";
+    }
+
+    public void reset() {
+        synchronized (this) {
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                mClasses[i] = null;
+                mCounts[i] = 0;
+                mTotalDispatchNanos[i] = 0;
+                mMaxDispatchNanos[i] = 0;
+                mTotalDelayMs[i] = 0;
+                mMaxDelayMs[i] = 0;
+            }
+            for (int i = 0; i < SLOW_HISTORY_SIZE; i++) {
+                mSlowClasses[i] = null;
+            }
+            mKeys = 0;
+            mOverflowCount = 0;
+            mOverflowDispatchNanos = 0;
+            mSlowNext = 0;
+            mSlowCount = 0;
+            mTotalCount = 0;
+            mStartTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            pw.print(prefix); pw.print("Dispatched "); pw.print(mTotalCount);
+            pw.print(" messages over ");
+            TimeUtils.formatDuration(now - mStartTime, pw);
+            pw.print(", "); pw.print(mSlowCount); pw.print(" slower than ");
+            pw.print(mSlowDispatchNanosThreshold / 1000000); pw.println("ms");
+            final String current = describeCurrentDispatch();
+            if (current != null) {
+                pw.print(prefix); pw.print("Now "); pw.println(current);
+            }
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                if (mClasses[i] == null || mCounts[i] == 0) {
+                    continue;
+                }
+                pw.print(prefix); pw.print("  "); pw.print(mClasses[i].getName());
+                pw.print(" what="); pw.print(mWhats[i]);
+                pw.print(": count="); pw.print(mCounts[i]);
+                pw.print(" avgDispatch="); pw.print(mTotalDispatchNanos[i] / mCounts[i] / 1000);
+                pw.print("us maxDispatch="); pw.print(mMaxDispatchNanos[i] / 1000000);
+                pw.print("ms avgDelay="); pw.print(mTotalDelayMs[i] / mCounts[i]);
+                pw.print("ms maxDelay="); pw.print(mMaxDelayMs[i]); pw.println("ms");
+            }
+            if (mOverflowCount > 0) {
+                pw.print(prefix); pw.print("  (other): count="); pw.print(mOverflowCount);
+                pw.print(" avgDispatch=");
+                pw.print(mOverflowDispatchNanos / mOverflowCount / 1000); pw.println("us");
+            }
+            dumpSlowLocked(pw, prefix, now);
+        }
+    }
+
+    /** Prints the slow message history, oldest first. */
+    public void dumpSlow(PrintWriter pw, String prefix) {
+        final long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            dumpSlowLocked(pw, prefix, now);
+        }
+    }
+
+    private void dumpSlowLocked(PrintWriter pw, String prefix, long now) {
+        if (mSlowCount == 0) {
+            return;
+        }
+        pw.print(prefix); pw.println("Slow messages:");
+        for (int n = 0; n < SLOW_HISTORY_SIZE; n++) {
+            final int i = (mSlowNext + n) % SLOW_HISTORY_SIZE;
+            if (mSlowClasses[i] == null) {
+                continue;
+            }
+            pw.print(prefix); pw.print("  ");
+            TimeUtils.formatDuration(mSlowStartTimes[i], now, pw);
+            pw.print(" "); pw.print(mSlowClasses[i].getName());
+            pw.print(" what="); pw.print(mSlowWhats[i]);
+            pw.print(" dispatch="); pw.print(mSlowDispatchNanos[i] / 1000000);
+            pw.print("ms delay="); pw.print(mSlowDelayMs[i]); pw.println("ms");
+        }
+    }
+}
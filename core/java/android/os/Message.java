@@ -96,6 +96,9 @@ public final class Message implements Parcelable {
     /** If set message is asynchronous */
     /*package*/ static final int FLAG_ASYNCHRONOUS = 1 << 1;
 
+    /** If set message is dispatched ahead of other due messages by an indexed queue */
+    /*package*/ static final int FLAG_URGENT = 1 << 2;
+
     /** Flags to clear in the copyFrom method */
     /*package*/ static final int FLAGS_TO_CLEAR_ON_COPY_FROM = FLAG_IN_USE;
 
@@ -112,6 +115,13 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
     /*package*/ Message next;
 
+    // Position in an indexed MessageQueue; see MessageIndex.
+    /*package*/ long seq;
+    /*package*/ int indexHeap;
+    /*package*/ int heapIndex = -1;
+    /*package*/ Message targetNext;
+    /*package*/ Message targetPrev;
+
     /// M: Add message protect mechanism
     /**
      * @hide
@@ -475,6 +485,32 @@ public final class Message implements Parcelable {
         }
     }
 
+    /**
+     * Returns true if the message is urgent.
+     *
+     * @see #setUrgent(boolean)
+     * @hide
+     */
+    public boolean isUrgent() {
+        return (flags & FLAG_URGENT) != 0;
+    }
+
+    /**
+     * Sets whether the message is urgent.  When several messages are due, a queue that has
+     * been indexed with {@link MessageQueue#enableIndexing} delivers the urgent ones first,
+     * in time order among themselves.  Other queues ignore this flag.
+     *
+     * @param urgent True if the message is urgent.
+     * @hide
+     */
+    public void setUrgent(boolean urgent) {
+        if (urgent) {
+            flags |= FLAG_URGENT;
+        } else {
+            flags &= ~FLAG_URGENT;
+        }
+    }
+
     /*package*/ boolean isInUse() {
         return ((flags & FLAG_IN_USE) == FLAG_IN_USE);
     }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.ArrayMap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Pending messages of an indexed {@link MessageQueue}, kept in binary min-heaps ordered by
+ * {@link Message#when} and then by enqueue order, so that enqueueing and removing a message
+ * are O(log n) instead of a walk of the queue's list.  There is one heap for each
+ * combination of urgent and asynchronous; the urgent heaps are looked at first when more
+ * than one message is due.  Each message is also linked into a per-{@link Handler} list,
+ * so that the removeMessages() and hasMessages() family only look at the messages of their
+ * target.
+ *
+ * <p>Sync barriers stay in the queue's own list; {@link #peek} is told the earliest one.
+ *
+ * <p>Not thread safe; guarded by the MessageQueue lock.
+ */
+final class MessageIndex {
+    private static final int HEAP_ASYNC = 1;
+    private static final int HEAP_URGENT = 2;
+    private static final int NUM_HEAPS = 4;
+
+    private static final Comparator<Message> ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message a, Message b) {
+            return MessageIndex.compare(a, b);
+        }
+    };
+
+    private final Message[][] mHeaps = new Message[NUM_HEAPS][];
+    private final int[] mSizes = new int[NUM_HEAPS];
+    private final ArrayMap<Handler, Message> mByTarget = new ArrayMap<Handler, Message>();
+    private int mSize;
+
+    // Enqueue order; messages sent to the front of the queue count down so that the last one
+    // sent is the first one delivered, as in the list.
+    private long mNextSeq = 1;
+    private long mNextFrontSeq = -1;
+
+    MessageIndex() {
+        for (int i = 0; i < NUM_HEAPS; i++) {
+            mHeaps[i] = new Message[8];
+        }
+    }
+
+    static int compare(Message a, Message b) {
+        if (a.when != b.when) {
+            return a.when < b.when ? -1 : 1;
+        }
+        return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+    }
+
+    /** Returns the next enqueue sequence number, for a sync barrier added at the same time. */
+    long nextSeq() {
+        return mNextSeq++;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void add(Message msg) {
+        msg.seq = msg.when == 0 ? mNextFrontSeq-- : mNextSeq++;
+        insert(msg);
+    }
+
+    /** Adds a message whose sequence number has already been assigned. */
+    void insert(Message msg) {
+        final int h = (msg.isAsynchronous() ? HEAP_ASYNC : 0)
+                | (msg.isUrgent() ? HEAP_URGENT : 0);
+        Message[] heap = mHeaps[h];
+        final int n = mSizes[h];
+        if (n == heap.length) {
+            heap = mHeaps[h] = Arrays.copyOf(heap, n * 2);
+        }
+        msg.indexHeap = h;
+        heap[n] = msg;
+        msg.heapIndex = n;
+        mSizes[h] = n + 1;
+        siftUp(h, n);
+
+        final Message first = mByTarget.put(msg.target, msg);
+        msg.targetNext = first;
+        if (first != null) {
+            first.targetPrev = msg;
+        }
+        mSize++;
+    }
+
+    /** Removes a message from the index; the caller recycles or returns it. */
+    void remove(Message msg) {
+        final int h = msg.indexHeap;
+        final Message[] heap = mHeaps[h];
+        final int i = msg.heapIndex;
+        final int last = --mSizes[h];
+        if (i != last) {
+            heap[i] = heap[last];
+            heap[i].heapIndex = i;
+            heap[last] = null;
+            if (!siftUp(h, i)) {
+                siftDown(h, i);
+            }
+        } else {
+            heap[i] = null;
+        }
+        msg.heapIndex = -1;
+        unlinkTarget(msg);
+        mSize--;
+    }
+
+    /** Returns the first of the messages for a handler, in no particular order. */
+    Message first(Handler h) {
+        return mByTarget.get(h);
+    }
+
+    /**
+     * Returns the message to deliver next, without removing it: the first due message of the
+     * highest priority if any are due at {@code now}, and otherwise the earliest one.  Sync
+     * messages enqueued after {@code barrier} are not considered.  Returns null if nothing
+     * can be delivered.
+     */
+    Message peek(long now, Message barrier) {
+        Message due = null;
+        Message next = null;
+        for (int h = NUM_HEAPS - 1; h >= 0; h--) {
+            if (mSizes[h] == 0) {
+                continue;
+            }
+            final Message top = mHeaps[h][0];
+            if ((h & HEAP_ASYNC) == 0 && barrier != null && compare(barrier, top) < 0) {
+                // Stalled by the barrier.
+                continue;
+            }
+            if (top.when <= now) {
+                // Heaps are visited urgent first, so only replace a due one of the same class.
+                if (due == null || ((due.indexHeap ^ h) & HEAP_URGENT) == 0
+                        && compare(top, due) < 0) {
+                    due = top;
+                }
+            } else if (next == null || compare(top, next) < 0) {
+                next = top;
+            }
+        }
+        return due != null ? due : next;
+    }
+
+    /** Returns the earliest time of any message, or {@link Long#MAX_VALUE} if empty. */
+    long earliestWhen() {
+        long when = Long.MAX_VALUE;
+        for (int h = 0; h < NUM_HEAPS; h++) {
+            if (mSizes[h] != 0 && mHeaps[h][0].when < when) {
+                when = mHeaps[h][0].when;
+            }
+        }
+        return when;
+    }
+
+    /** Removes and recycles every message. */
+    void removeAll() {
+        removeAllAfter(Long.MIN_VALUE);
+    }
+
+    /** Removes and recycles every message due after {@code now}. */
+    void removeAllAfter(long now) {
+        for (int h = 0; h < NUM_HEAPS; h++) {
+            final Message[] heap = mHeaps[h];
+            final int n = mSizes[h];
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                final Message msg = heap[i];
+                heap[i] = null;
+                if (msg.when <= now) {
+                    heap[kept] = msg;
+                    msg.heapIndex = kept++;
+                } else {
+                    unlinkTarget(msg);
+                    msg.heapIndex = -1;
+                    msg.recycleUnchecked();
+                    mSize--;
+                }
+            }
+            mSizes[h] = kept;
+            for (int i = kept / 2 - 1; i >= 0; i--) {
+                siftDown(h, i);
+            }
+        }
+    }
+
+    private void unlinkTarget(Message msg) {
+        final Message prev = msg.targetPrev;
+        final Message next = msg.targetNext;
+        if (next != null) {
+            next.targetPrev = prev;
+        }
+        if (prev != null) {
+            prev.targetNext = next;
+        } else if (next != null) {
+            mByTarget.put(msg.target, next);
+        } else {
+            mByTarget.remove(msg.target);
+        }
+        msg.targetPrev = null;
+        msg.targetNext = null;
+    }
+
+    /** Returns every message in delivery order, ignoring priority; for dumps. */
+    Message[] toSortedArray() {
+        final Message[] out = new Message[mSize];
+        int n = 0;
+        for (int h = 0; h < NUM_HEAPS; h++) {
+            System.arraycopy(mHeaps[h], 0, out, n, mSizes[h]);
+            n += mSizes[h];
+        }
+        Arrays.sort(out, ORDER);
+        return out;
+    }
+
+    private boolean siftUp(int h, int i) {
+        final Message[] heap = mHeaps[h];
+        final Message msg = heap[i];
+        final int start = i;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (compare(heap[parent], msg) <= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heap[i].heapIndex = i;
+            i = parent;
+        }
+        heap[i] = msg;
+        msg.heapIndex = i;
+        return i != start;
+    }
+
+    private void siftDown(int h, int i) {
+        final Message[] heap = mHeaps[h];
+        final int n = mSizes[h];
+        final Message msg = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && compare(heap[child + 1], heap[child]) < 0) {
+                child++;
+            }
+            if (compare(msg, heap[child]) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            heap[i].heapIndex = i;
+            i = child;
+        }
+        heap[i] = msg;
+        msg.heapIndex = i;
+    }
+}
@@ -51,6 +51,8 @@ public final class MessageQueue {
     private long mPtr; // used by native code
 
     Message mMessages;
+    // When indexed, pending messages are in here and mMessages only holds sync barriers.
+    private MessageIndex mIndex;
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
@@ -103,7 +105,50 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            return isIdleLocked(now);
+        }
+    }
+
+    private boolean isIdleLocked(long now) {
+        if (mMessages != null && now >= mMessages.when) {
+            return false;
+        }
+        return mIndex == null || now < mIndex.earliestWhen();
+    }
+
+    /**
+     * Keeps the pending messages of this queue in heaps indexed by target instead of a
+     * list, so that enqueueing and removing messages does not walk the whole queue, and
+     * delivers {@link Message#setUrgent urgent} messages ahead of other due messages.  Meant
+     * for busy system threads that hold many delayed messages.  Cannot be undone.
+     *
+     * @hide
+     */
+    public void enableIndexing() {
+        synchronized (this) {
+            if (mIndex != null) {
+                return;
+            }
+            mIndex = new MessageIndex();
+            // Move everything but the barriers over, keeping the current order.
+            Message prev = null;
+            Message p = mMessages;
+            while (p != null) {
+                final Message n = p.next;
+                p.seq = mIndex.nextSeq();
+                if (p.target != null) {
+                    if (prev != null) {
+                        prev.next = n;
+                    } else {
+                        mMessages = n;
+                    }
+                    p.next = null;
+                    mIndex.insert(p);
+                } else {
+                    prev = p;
+                }
+                p = n;
+            }
         }
     }
 
@@ -331,13 +376,18 @@ public final class MessageQueue {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
                 Message prevMsg = null;
-                Message msg = mMessages;
-                if (msg != null && msg.target == null) {
-                    // Stalled by a barrier.  Find the next asynchronous message in the queue.
-                    do {
-                        prevMsg = msg;
-                        msg = msg.next;
-                    } while (msg != null && !msg.isAsynchronous());
+                Message msg;
+                if (mIndex != null) {
+                    msg = mIndex.peek(now, mMessages);
+                } else {
+                    msg = mMessages;
+                    if (msg != null && msg.target == null) {
+                        // Stalled by a barrier.  Find the next asynchronous message in the queue.
+                        do {
+                            prevMsg = msg;
+                            msg = msg.next;
+                        } while (msg != null && !msg.isAsynchronous());
+                    }
                 }
                 if (msg != null) {
                     if (now < msg.when) {
@@ -346,7 +396,9 @@ public final class MessageQueue {
                     } else {
                         // Got a message.
                         mBlocked = false;
-                        if (prevMsg != null) {
+                        if (mIndex != null) {
+                            mIndex.remove(msg);
+                        } else if (prevMsg != null) {
                             prevMsg.next = msg.next;
                         } else {
                             mMessages = msg.next;
@@ -370,8 +422,7 @@ public final class MessageQueue {
                 // If first time idle, then get the number of idlers to run.
                 // Idle handles only run if the queue is empty or if the first message
                 // in the queue (possibly a barrier) is due to be handled in the future.
-                if (pendingIdleHandlerCount < 0
-                        && (mMessages == null || now < mMessages.when)) {
+                if (pendingIdleHandlerCount < 0 && isIdleLocked(now)) {
                     pendingIdleHandlerCount = mIdleHandlers.size();
                 }
                 if (pendingIdleHandlerCount <= 0) {
@@ -473,6 +524,9 @@ public final class MessageQueue {
             msg.markInUse();
             msg.when = when;
             msg.arg1 = token;
+            if (mIndex != null) {
+                msg.seq = mIndex.nextSeq();
+            }
 
             Message prev = null;
             Message p = mMessages;
@@ -523,7 +577,7 @@ public final class MessageQueue {
                 needWake = false;
             } else {
                 mMessages = p.next;
-                needWake = mMessages == null || mMessages.target != null;
+                needWake = mMessages == null || mMessages.target != null || mIndex != null;
             }
             p.recycleUnchecked();
 
@@ -561,6 +615,14 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
+            if (mIndex != null) {
+                mIndex.add(msg);
+                // Wake up the event queue if this is now the next message it should handle.
+                if (mBlocked && mIndex.peek(SystemClock.uptimeMillis(), mMessages) == msg) {
+                    nativeWake(mPtr);
+                }
+                return true;
+            }
             Message p = mMessages;
             boolean needWake;
             if (p == null || when == 0 || when < p.when) {
@@ -602,12 +664,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            Message p = mIndex != null ? mIndex.first(h) : mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
                     return true;
                 }
-                p = p.next;
+                p = mIndex != null ? p.targetNext : p.next;
             }
             return false;
         }
@@ -619,12 +681,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            Message p = mIndex != null ? mIndex.first(h) : mMessages;
             while (p != null) {
                 if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
                     return true;
                 }
-                p = p.next;
+                p = mIndex != null ? p.targetNext : p.next;
             }
             return false;
         }
@@ -636,6 +698,19 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mIndex != null) {
+                Message p = mIndex.first(h);
+                while (p != null) {
+                    final Message n = p.targetNext;
+                    if (p.what == what && (object == null || p.obj == object)) {
+                        mIndex.remove(p);
+                        p.recycleUnchecked();
+                    }
+                    p = n;
+                }
+                return;
+            }
+
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -670,6 +745,19 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mIndex != null) {
+                Message p = mIndex.first(h);
+                while (p != null) {
+                    final Message n = p.targetNext;
+                    if (p.callback == r && (object == null || p.obj == object)) {
+                        mIndex.remove(p);
+                        p.recycleUnchecked();
+                    }
+                    p = n;
+                }
+                return;
+            }
+
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -704,6 +792,19 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mIndex != null) {
+                Message p = mIndex.first(h);
+                while (p != null) {
+                    final Message n = p.targetNext;
+                    if (object == null || p.obj == object) {
+                        mIndex.remove(p);
+                        p.recycleUnchecked();
+                    }
+                    p = n;
+                }
+                return;
+            }
+
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -732,6 +833,9 @@ public final class MessageQueue {
     }
 
     private void removeAllMessagesLocked() {
+        if (mIndex != null) {
+            mIndex.removeAll();
+        }
         Message p = mMessages;
         while (p != null) {
             Message n = p.next;
@@ -743,6 +847,9 @@ public final class MessageQueue {
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
+        if (mIndex != null) {
+            mIndex.removeAllAfter(now);
+        }
         Message p = mMessages;
         if (p != null) {
             if (p.when > now) {
@@ -777,8 +884,15 @@ public final class MessageQueue {
                 pw.println(prefix + "Message " + n + ": " + msg.toString(now));
                 n++;
             }
+            if (mIndex != null) {
+                // Barriers first, then the rest in time order.
+                for (Message msg : mIndex.toSortedArray()) {
+                    pw.println(prefix + "Message " + n + ": " + msg.toString(now));
+                    n++;
+                }
+            }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
-                    + ", quitting=" + mQuitting + ")");
+                    + ", quitting=" + mQuitting + ", indexed=" + (mIndex != null) + ")");
         }
     }
 
@@ -912,6 +1026,14 @@ public final class MessageQueue {
             messageQueue = messageQueue + "mMessages is null" + "\n";
             Log.d("MessageQueue", "mMessages is null");
         }
+        if (mIndex != null) {
+            final Message[] indexed = mIndex.toSortedArray();
+            messageQueue = messageQueue + "Indexed messages: " + indexed.length + "\n";
+            for (int i = 0; i < indexed.length && i < MESSAGE_DUMP_SIZE_MAX; i++) {
+                messageQueue = messageQueue + "Dump Message in Queue (" + (i + 1) + "): "
+                        + indexed[i] + "\n";
+            }
+        }
         return messageQueue;
     }
 }
@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -197,8 +198,71 @@ public final class Parcel {
     private RuntimeException mStack;
 
     private static final int POOL_SIZE = 6;
-    private static final Parcel[] sOwnedPool = new Parcel[POOL_SIZE];
-    private static final Parcel[] sHolderPool = new Parcel[POOL_SIZE];
+    private static final int MAX_POOL_SIZE = 48;
+    private static final Pool sOwnedPool = new Pool();
+    private static final Pool sHolderPool = new Pool();
+
+    /**
+     * Byte arrays written with {@link #writeValue} that are at least this
+     * large go through {@link #writeBlob}, which moves them into ashmem
+     * instead of the binder buffer when the parcel allows file descriptors
+     * and the array is over the native in-place limit (16k).  Such parcels
+     * can no longer be {@link #marshall marshalled}, so this is opt-in.
+     * Set with {@code persist.sys.parcel_blob_spill}; 0 disables.
+     */
+    private static final int BLOB_SPILL_THRESHOLD =
+            SystemProperties.getInt("persist.sys.parcel_blob_spill", 0);
+
+    /**
+     * A free list of recycled Parcels.  It starts at {@link #POOL_SIZE} and
+     * doubles, up to {@link #MAX_POOL_SIZE}, when more obtains miss than the
+     * pool can hold, so bursts of nested transactions stop allocating.
+     * Pooled Parcels have already released their data buffer, so a larger
+     * pool only costs the empty objects.
+     */
+    private static final class Pool {
+        Parcel[] mParcels = new Parcel[POOL_SIZE];
+        int mCount;
+        int mMissesSinceGrow;
+        long mHits;
+        long mMisses;
+        int mGrows;
+
+        /** Returns a pooled Parcel, or null if empty.  Call with the pool locked. */
+        Parcel take() {
+            if (mCount > 0) {
+                mHits++;
+                final Parcel p = mParcels[--mCount];
+                mParcels[mCount] = null;
+                return p;
+            }
+            mMisses++;
+            mMissesSinceGrow++;
+            return null;
+        }
+
+        /** Call with the pool locked. */
+        void put(Parcel p) {
+            if (mCount == mParcels.length) {
+                if (mMissesSinceGrow < mParcels.length || mParcels.length >= MAX_POOL_SIZE) {
+                    return;
+                }
+                mParcels = Arrays.copyOf(mParcels,
+                        Math.min(mParcels.length * 2, MAX_POOL_SIZE));
+                mMissesSinceGrow = 0;
+                mGrows++;
+            }
+            mParcels[mCount++] = p;
+        }
+
+        void dump(PrintWriter pw, String prefix, String name) {
+            pw.print(prefix); pw.print(name); pw.print(" pool: size=");
+            pw.print(mCount); pw.print("/"); pw.print(mParcels.length);
+            pw.print(" hits="); pw.print(mHits);
+            pw.print(" misses="); pw.print(mMisses);
+            pw.print(" grows="); pw.println(mGrows);
+        }
+    }
 
     private static final int VAL_NULL = -1;
     private static final int VAL_STRING = 0;
@@ -229,6 +293,7 @@ public final class Parcel {
     private static final int VAL_PERSISTABLEBUNDLE = 25;
     private static final int VAL_SIZE = 26;
     private static final int VAL_SIZEF = 27;
+    private static final int VAL_BLOB = 28; // byte[] written with writeBlob()
 
     // The initial int32 in a Binder call's reply Parcel header:
     private static final int EX_SECURITY = -1;
@@ -285,6 +350,7 @@ public final class Parcel {
     private static native void nativeEnforceInterface(long nativePtr, String interfaceName);
 
     private static native long nativeGetBlobAshmemSize(long nativePtr);
+    private static native void nativeGetBlobStats(long[] stats);
 
     public final static Parcelable.Creator<String> STRING_CREATOR
              = new Parcelable.Creator<String>() {
@@ -300,18 +366,14 @@ public final class Parcel {
      * Retrieve a new Parcel object from the pool.
      */
     public static Parcel obtain() {
-        final Parcel[] pool = sOwnedPool;
+        final Pool pool = sOwnedPool;
         synchronized (pool) {
-            Parcel p;
-            for (int i=0; i<POOL_SIZE; i++) {
-                p = pool[i];
-                if (p != null) {
-                    pool[i] = null;
-                    if (DEBUG_RECYCLE) {
-                        p.mStack = new RuntimeException();
-                    }
-                    return p;
+            final Parcel p = pool.take();
+            if (p != null) {
+                if (DEBUG_RECYCLE) {
+                    p.mStack = new RuntimeException();
                 }
+                return p;
             }
         }
         return new Parcel(0);
@@ -325,7 +387,7 @@ public final class Parcel {
         if (DEBUG_RECYCLE) mStack = null;
         freeBuffer();
 
-        final Parcel[] pool;
+        final Pool pool;
         if (mOwnsNativeParcelObject) {
             pool = sOwnedPool;
         } else {
@@ -334,12 +396,7 @@ public final class Parcel {
         }
 
         synchronized (pool) {
-            for (int i=0; i<POOL_SIZE; i++) {
-                if (pool[i] == null) {
-                    pool[i] = this;
-                    return;
-                }
-            }
+            pool.put(this);
         }
     }
 
@@ -349,6 +406,39 @@ public final class Parcel {
     /** @hide */
     public static native long getGlobalAllocCount();
 
+    /**
+     * Returns the number of blobs written by this process, and how many of
+     * them were moved to ashmem: {written, bytes written, spilled, bytes spilled}.
+     * Counted in native code, so this covers {@link #writeBlob} as well as
+     * native writers such as {@link android.graphics.Bitmap}.
+     * @hide
+     */
+    public static long[] getBlobStats() {
+        final long[] stats = new long[4];
+        nativeGetBlobStats(stats);
+        return stats;
+    }
+
+    /**
+     * Prints pool and blob statistics for this process.
+     * @hide
+     */
+    public static void dumpStats(PrintWriter pw, String prefix) {
+        synchronized (sOwnedPool) {
+            sOwnedPool.dump(pw, prefix, "Owned");
+        }
+        synchronized (sHolderPool) {
+            sHolderPool.dump(pw, prefix, "Holder");
+        }
+        final long[] blobs = getBlobStats();
+        pw.print(prefix); pw.print("Blobs: written="); pw.print(blobs[0]);
+        pw.print(" ("); pw.print(blobs[1] / 1024); pw.print("kB)");
+        pw.print(" spilled to ashmem="); pw.print(blobs[2]);
+        pw.print(" ("); pw.print(blobs[3] / 1024); pw.print("kB)");
+        pw.print(" spill threshold=");
+        pw.println(BLOB_SPILL_THRESHOLD > 0 ? String.valueOf(BLOB_SPILL_THRESHOLD) : "off");
+    }
+
     /**
      * Returns the total amount of data contained in the parcel.
      */
@@ -1349,8 +1439,14 @@ public final class Parcel {
             writeInt(VAL_BOOLEANARRAY);
             writeBooleanArray((boolean[]) v);
         } else if (v instanceof byte[]) {
-            writeInt(VAL_BYTEARRAY);
-            writeByteArray((byte[]) v);
+            final byte[] b = (byte[]) v;
+            if (BLOB_SPILL_THRESHOLD > 0 && b.length >= BLOB_SPILL_THRESHOLD) {
+                writeInt(VAL_BLOB);
+                writeBlob(b);
+            } else {
+                writeInt(VAL_BYTEARRAY);
+                writeByteArray(b);
+            }
         } else if (v instanceof String[]) {
             writeInt(VAL_STRINGARRAY);
             writeStringArray((String[]) v);
@@ -2269,6 +2365,9 @@ public final class Parcel {
         case VAL_BYTEARRAY:
             return createByteArray();
 
+        case VAL_BLOB:
+            return readBlob();
+
         case VAL_STRINGARRAY:
             return readStringArray();
 
@@ -2507,19 +2606,15 @@ public final class Parcel {
 
     /** @hide */
     static protected final Parcel obtain(long obj) {
-        final Parcel[] pool = sHolderPool;
+        final Pool pool = sHolderPool;
         synchronized (pool) {
-            Parcel p;
-            for (int i=0; i<POOL_SIZE; i++) {
-                p = pool[i];
-                if (p != null) {
-                    pool[i] = null;
-                    if (DEBUG_RECYCLE) {
-                        p.mStack = new RuntimeException();
-                    }
-                    p.init(obj);
-                    return p;
+            final Parcel p = pool.take();
+            if (p != null) {
+                if (DEBUG_RECYCLE) {
+                    p.mStack = new RuntimeException();
                 }
+                p.init(obj);
+                return p;
             }
         }
         return new Parcel(obj);
@@ -2616,6 +2711,92 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Moves past a value written by {@link #writeValue} without creating it.
+     * Returns false, with the position left at the start of the value, for
+     * types whose length can only be found by decoding them.
+     */
+    /* package */ boolean skipValue() {
+        final int start = dataPosition();
+        final int type = readInt();
+        final boolean skipped;
+        switch (type) {
+            case VAL_NULL:
+                skipped = true;
+                break;
+            case VAL_STRING:
+                skipped = skipString();
+                break;
+            case VAL_INTEGER:
+            case VAL_SHORT:
+            case VAL_FLOAT:
+            case VAL_BOOLEAN:
+            case VAL_BYTE:
+                skipped = skipBytes(4);
+                break;
+            case VAL_LONG:
+            case VAL_DOUBLE:
+            case VAL_SIZE:
+            case VAL_SIZEF:
+                skipped = skipBytes(8);
+                break;
+            case VAL_BYTEARRAY: {
+                final int len = readInt();
+                skipped = len <= 0 || skipBytes((len + 3) & ~3);
+                break;
+            }
+            case VAL_INTARRAY:
+            case VAL_BOOLEANARRAY: {
+                final int len = readInt();
+                skipped = len <= 0 || skipBytes(len * 4L);
+                break;
+            }
+            case VAL_LONGARRAY: {
+                final int len = readInt();
+                skipped = len <= 0 || skipBytes(len * 8L);
+                break;
+            }
+            case VAL_STRINGARRAY: {
+                int len = readInt();
+                boolean ok = true;
+                while (ok && len-- > 0) {
+                    ok = skipString();
+                }
+                skipped = ok;
+                break;
+            }
+            case VAL_BUNDLE:
+            case VAL_PERSISTABLEBUNDLE: {
+                // Length prefixed, see BaseBundle.writeToParcelInner().
+                final int len = readInt();
+                skipped = len <= 0 || skipBytes(4L + len);
+                break;
+            }
+            default:
+                skipped = false;
+                break;
+        }
+        if (!skipped) {
+            setDataPosition(start);
+        }
+        return skipped;
+    }
+
+    private boolean skipString() {
+        final int len = readInt();
+        // UTF-16 with a terminating null, padded to four bytes.
+        return len < 0 || skipBytes(((len + 1) * 2L + 3) & ~3L);
+    }
+
+    private boolean skipBytes(long len) {
+        final long end = dataPosition() + len;
+        if (len < 0 || end > dataSize()) {
+            return false;
+        }
+        setDataPosition((int) end);
+        return true;
+    }
+
     /**
      * @hide For testing only.
      */
@@ -154,8 +154,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
      */
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -52,17 +52,18 @@ import android.util.PrintWriterPrinter;
 import android.util.Printer;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 import android.util.Xml;
 import android.view.Display;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.net.NetworkStatsFactory;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.FastXmlSerializer;
-import com.android.internal.util.JournaledFile;
 import com.android.internal.util.XmlUtils;
 import com.android.server.NetworkManagementSocketTagger;
 import libcore.util.EmptyArray;
@@ -79,6 +80,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -120,7 +122,7 @@ public final class BatteryStatsImpl extends BatteryStats {
 
     private static int sNumSpeedSteps;
 
-    private final JournaledFile mFile;
+    private final BatteryStatsSummaryFile mFile;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -259,6 +261,9 @@ public final class BatteryStatsImpl extends BatteryStats {
     int mNumHistoryTagChars = 0;
     int mHistoryBufferLastPos = -1;
     boolean mHistoryOverflow = false;
+    // How much of mHistoryBuffer, and which tags of mHistoryTagPool, are in mFile already.
+    int mHistorySavedSize = 0;
+    int mHistorySavedTagCount = 0;
     int mActiveHistoryStates = 0xffffffff;
     int mActiveHistoryStates2 = 0xffffffff;
     long mLastHistoryElapsedRealtime = 0;
@@ -508,8 +513,16 @@ public final class BatteryStatsImpl extends BatteryStats {
         void onTimeStopped(long elapsedRealtime, long baseUptime, long baseRealtime);
     }
 
-    static class TimeBase {
+    @VisibleForTesting
+    public static class TimeBase {
         private final ArrayList<TimeBaseObs> mObservers = new ArrayList<>();
+        // The long counters on this time base, which are started and stopped in bulk
+        // rather than as observers.
+        @VisibleForTesting
+        public final LongCounterPool mLongCounters = new LongCounterPool(16);
+        // The long counters that have been detached from this time base.
+        @VisibleForTesting
+        public final LongCounterPool mDetachedLongCounters = LongCounterPool.createDetached();
 
         private long mUptime;
         private long mRealtime;
@@ -646,6 +659,7 @@ public final class BatteryStatsImpl extends BatteryStats {
                     long batteryUptime = mUnpluggedUptime = getUptime(uptime);
                     long batteryRealtime = mUnpluggedRealtime = getRealtime(realtime);
 
+                    mLongCounters.onTimeStarted();
                     for (int i = mObservers.size() - 1; i >= 0; i--) {
                         mObservers.get(i).onTimeStarted(realtime, batteryUptime, batteryRealtime);
                     }
@@ -656,6 +670,7 @@ public final class BatteryStatsImpl extends BatteryStats {
                     long batteryUptime = getUptime(uptime);
                     long batteryRealtime = getRealtime(realtime);
 
+                    mLongCounters.onTimeStopped();
                     for (int i = mObservers.size() - 1; i >= 0; i--) {
                         mObservers.get(i).onTimeStopped(realtime, batteryUptime, batteryRealtime);
                     }
@@ -809,52 +824,136 @@ public final class BatteryStatsImpl extends BatteryStats {
         }
     }
 
-    public static class LongSamplingCounter extends LongCounter implements TimeBaseObs {
-        final TimeBase mTimeBase;
-        long mCount;
-        long mLoadedCount;
-        long mLastCount;
-        long mUnpluggedCount;
-        long mPluggedCount;
+    /**
+     * The state of the {@link LongSamplingCounter}s on a {@link TimeBase}, one array per
+     * field, so that starting or stopping the time base is a loop over the arrays rather than
+     * a call to every counter.  A counter refers to its state by slot.  Freed slots stay in
+     * the loops until they are reused; they hold zeros, which the loops leave alone.
+     *
+     * <p>Only long counters are kept here.  Timers and the atomic int {@link Counter} are
+     * handed out through the public stats API as objects, and each timer type computes its
+     * time differently, so they keep their own fields and remain {@link TimeBaseObs}
+     * observers of their time base.
+     */
+    @VisibleForTesting
+    public static final class LongCounterPool {
+        /**
+         * In a pool made by {@link #createDetached}, the slot shared by every detached
+         * counter that holds no counts.  It always reads as zero; a counter on it takes a
+         * slot of its own before it is written.
+         */
+        public static final int SHARED_ZERO_SLOT = 0;
 
-        LongSamplingCounter(TimeBase timeBase, Parcel in) {
-            mTimeBase = timeBase;
-            mPluggedCount = in.readLong();
-            mCount = mPluggedCount;
-            mLoadedCount = in.readLong();
-            mLastCount = 0;
-            mUnpluggedCount = in.readLong();
-            timeBase.add(this);
+        long[] mCount;
+        long[] mLoadedCount;
+        long[] mUnpluggedCount;
+        long[] mPluggedCount;
+
+        private int mSize;
+        private int[] mFree;
+        private int mFreeCount;
+
+        LongCounterPool(int capacity) {
+            mCount = new long[capacity];
+            mLoadedCount = new long[capacity];
+            mUnpluggedCount = new long[capacity];
+            mPluggedCount = new long[capacity];
+            mFree = new int[capacity];
         }
 
-        LongSamplingCounter(TimeBase timeBase) {
-            mTimeBase = timeBase;
-            timeBase.add(this);
+        static LongCounterPool createDetached() {
+            final LongCounterPool pool = new LongCounterPool(4);
+            pool.allocate(); // SHARED_ZERO_SLOT
+            return pool;
         }
 
-        public void writeToParcel(Parcel out) {
-            out.writeLong(mCount);
-            out.writeLong(mLoadedCount);
-            out.writeLong(mUnpluggedCount);
+        @VisibleForTesting
+        public boolean isClear(int slot) {
+            return mCount[slot] == 0 && mLoadedCount[slot] == 0 && mUnpluggedCount[slot] == 0
+                    && mPluggedCount[slot] == 0;
         }
 
-        @Override
-        public void onTimeStarted(long elapsedRealtime, long baseUptime, long baseRealtime) {
-            mUnpluggedCount = mPluggedCount;
-            mCount = mPluggedCount;
+        int allocate() {
+            if (mFreeCount > 0) {
+                return mFree[--mFreeCount];
+            }
+            if (mSize == mCount.length) {
+                final int capacity = Math.max(mSize * 2, 16);
+                mCount = Arrays.copyOf(mCount, capacity);
+                mLoadedCount = Arrays.copyOf(mLoadedCount, capacity);
+                mUnpluggedCount = Arrays.copyOf(mUnpluggedCount, capacity);
+                mPluggedCount = Arrays.copyOf(mPluggedCount, capacity);
+            }
+            return mSize++;
         }
 
-        @Override
-        public void onTimeStopped(long elapsedRealtime, long baseUptime, long baseRealtime) {
-            mPluggedCount = mCount;
+        void free(int slot) {
+            clear(slot);
+            if (mFreeCount == mFree.length) {
+                mFree = Arrays.copyOf(mFree, Math.max(mFreeCount * 2, 16));
+            }
+            mFree[mFreeCount++] = slot;
+        }
+
+        void clear(int slot) {
+            mCount[slot] = mLoadedCount[slot] = mUnpluggedCount[slot] = mPluggedCount[slot] = 0;
+        }
+
+        void onTimeStarted() {
+            final long[] count = mCount;
+            final long[] unpluggedCount = mUnpluggedCount;
+            final long[] pluggedCount = mPluggedCount;
+            for (int i = mSize - 1; i >= 0; i--) {
+                unpluggedCount[i] = count[i] = pluggedCount[i];
+            }
+        }
+
+        void onTimeStopped() {
+            System.arraycopy(mCount, 0, mPluggedCount, 0, mSize);
+        }
+    }
+
+    /**
+     * A long counter whose state is kept in its time base's {@link LongCounterPool}.  Once
+     * detached it moves to the time base's detached pool, so that it keeps its values but no
+     * longer follows the time base.  Counters are reset before they are detached, so they
+     * normally share that pool's zero slot and only take a slot of their own if written again.
+     */
+    public static class LongSamplingCounter extends LongCounter {
+        final TimeBase mTimeBase;
+        @VisibleForTesting
+        public LongCounterPool mPool;
+        @VisibleForTesting
+        public int mSlot;
+
+        LongSamplingCounter(TimeBase timeBase, Parcel in) {
+            this(timeBase);
+            final long pluggedCount = in.readLong();
+            mPool.mPluggedCount[mSlot] = pluggedCount;
+            mPool.mCount[mSlot] = pluggedCount;
+            mPool.mLoadedCount[mSlot] = in.readLong();
+            mPool.mUnpluggedCount[mSlot] = in.readLong();
+        }
+
+        @VisibleForTesting
+        public LongSamplingCounter(TimeBase timeBase) {
+            mTimeBase = timeBase;
+            mPool = timeBase.mLongCounters;
+            mSlot = mPool.allocate();
+        }
+
+        public void writeToParcel(Parcel out) {
+            out.writeLong(mPool.mCount[mSlot]);
+            out.writeLong(mPool.mLoadedCount[mSlot]);
+            out.writeLong(mPool.mUnpluggedCount[mSlot]);
         }
 
         public long getCountLocked(int which) {
-            long val = mCount;
+            long val = mPool.mCount[mSlot];
             if (which == STATS_SINCE_UNPLUGGED) {
-                val -= mUnpluggedCount;
+                val -= mPool.mUnpluggedCount[mSlot];
             } else if (which != STATS_SINCE_CHARGED) {
-                val -= mLoadedCount;
+                val -= mPool.mLoadedCount[mSlot];
             }
 
             return val;
@@ -862,40 +961,78 @@ public final class BatteryStatsImpl extends BatteryStats {
 
         @Override
         public void logState(Printer pw, String prefix) {
-            pw.println(prefix + "mCount=" + mCount
-                    + " mLoadedCount=" + mLoadedCount + " mLastCount=" + mLastCount
-                    + " mUnpluggedCount=" + mUnpluggedCount
-                    + " mPluggedCount=" + mPluggedCount);
+            pw.println(prefix + "mCount=" + mPool.mCount[mSlot]
+                    + " mLoadedCount=" + mPool.mLoadedCount[mSlot]
+                    + " mUnpluggedCount=" + mPool.mUnpluggedCount[mSlot]
+                    + " mPluggedCount=" + mPool.mPluggedCount[mSlot]);
         }
 
-        void addCountLocked(long count) {
-            mCount += count;
+        @VisibleForTesting
+        public void addCountLocked(long count) {
+            ensureWritableLocked();
+            mPool.mCount[mSlot] += count;
         }
 
         /**
          * Clear state of this counter.
          */
-        void reset(boolean detachIfReset) {
-            mCount = 0;
-            mLoadedCount = mLastCount = mPluggedCount = mUnpluggedCount = 0;
+        @VisibleForTesting
+        public void reset(boolean detachIfReset) {
+            if (mPool == mTimeBase.mDetachedLongCounters) {
+                if (mSlot != LongCounterPool.SHARED_ZERO_SLOT) {
+                    mPool.free(mSlot);
+                    mSlot = LongCounterPool.SHARED_ZERO_SLOT;
+                }
+                return;
+            }
+            mPool.clear(mSlot);
             if (detachIfReset) {
                 detach();
             }
         }
 
-        void detach() {
-            mTimeBase.remove(this);
+        @VisibleForTesting
+        public void detach() {
+            if (mPool != mTimeBase.mLongCounters) {
+                Slog.wtf(TAG, "Detached counter twice: " + this);
+                return;
+            }
+            final LongCounterPool detached = mTimeBase.mDetachedLongCounters;
+            int slot = LongCounterPool.SHARED_ZERO_SLOT;
+            if (!mPool.isClear(mSlot)) {
+                slot = detached.allocate();
+                detached.mCount[slot] = mPool.mCount[mSlot];
+                detached.mLoadedCount[slot] = mPool.mLoadedCount[mSlot];
+                detached.mUnpluggedCount[slot] = mPool.mUnpluggedCount[mSlot];
+                detached.mPluggedCount[slot] = mPool.mPluggedCount[mSlot];
+            }
+            mPool.free(mSlot);
+            mPool = detached;
+            mSlot = slot;
+        }
+
+        /**
+         * Moves a detached counter off the shared zero slot before its state is written.
+         */
+        private void ensureWritableLocked() {
+            if (mSlot == LongCounterPool.SHARED_ZERO_SLOT
+                    && mPool == mTimeBase.mDetachedLongCounters) {
+                mSlot = mPool.allocate();
+            }
         }
 
         void writeSummaryFromParcelLocked(Parcel out) {
-            out.writeLong(mCount);
+            out.writeLong(mPool.mCount[mSlot]);
         }
 
-        void readSummaryFromParcelLocked(Parcel in) {
-            mLoadedCount = in.readLong();
-            mCount = mLoadedCount;
-            mLastCount = 0;
-            mUnpluggedCount = mPluggedCount = mLoadedCount;
+        @VisibleForTesting
+        public void readSummaryFromParcelLocked(Parcel in) {
+            final long loadedCount = in.readLong();
+            ensureWritableLocked();
+            mPool.mLoadedCount[mSlot] = loadedCount;
+            mPool.mCount[mSlot] = loadedCount;
+            mPool.mUnpluggedCount[mSlot] = loadedCount;
+            mPool.mPluggedCount[mSlot] = loadedCount;
         }
     }
 
@@ -1385,6 +1522,14 @@ public final class BatteryStatsImpl extends BatteryStats {
             recomputeLastDuration(now, true);
         }
 
+        /**
+         * @return whether the last added duration has not run out yet, so that the time
+         * reported by the timer still grows.
+         */
+        boolean isRunningLocked() {
+            return computeOverage(SystemClock.elapsedRealtime() * 1000) > 0;
+        }
+
         @Override
         protected int computeCurrentCountLocked() {
             return mCount;
@@ -1484,6 +1629,10 @@ public final class BatteryStatsImpl extends BatteryStats {
 
         void startRunningLocked(long elapsedRealtimeMs) {
             if (mNesting++ == 0) {
+                if (mUid != null) {
+                    mUid.mRunningCount++;
+                    mUid.mSummaryDirty = true;
+                }
                 final long batteryRealtime = mTimeBase.getRealtime(elapsedRealtimeMs * 1000);
                 mUpdateTime = batteryRealtime;
                 if (mTimerPool != null) {
@@ -1514,6 +1663,10 @@ public final class BatteryStatsImpl extends BatteryStats {
                 return;
             }
             if (--mNesting == 0) {
+                if (mUid != null) {
+                    mUid.mRunningCount--;
+                    mUid.mSummaryDirty = true;
+                }
                 final long batteryRealtime = mTimeBase.getRealtime(elapsedRealtimeMs * 1000);
                 if (mTimerPool != null) {
                     // Accumulate time to all active counters, scaled by the total
@@ -2250,6 +2403,10 @@ public final class BatteryStatsImpl extends BatteryStats {
             // as long as no bit has changed both between now and the last entry, as
             // well as the last entry and the one before it (so we capture any toggles).
             if (DEBUG) Slog.i(TAG, "ADD: rewinding back to " + mHistoryBufferLastPos);
+            if (mHistoryBufferLastPos < mHistorySavedSize) {
+                // The entry being rewritten has already been saved.
+                mHistorySavedSize = mHistoryBufferLastPos;
+            }
             mHistoryBuffer.setDataSize(mHistoryBufferLastPos);
             mHistoryBuffer.setDataPosition(mHistoryBufferLastPos);
             mHistoryBufferLastPos = -1;
@@ -2499,13 +2656,21 @@ public final class BatteryStatsImpl extends BatteryStats {
         mNumHistoryTagChars = 0;
         mHistoryBufferLastPos = -1;
         mHistoryOverflow = false;
+        mHistorySavedSize = 0;
+        mHistorySavedTagCount = 0;
+        mSummaryNeedsFullWrite = true;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
     }
 
     public void updateTimeBasesLocked(boolean unplugged, boolean screenOff, long uptime,
             long realtime) {
-        mOnBatteryTimeBase.setRunning(unplugged, uptime, realtime);
+        if (mOnBatteryTimeBase.setRunning(unplugged, uptime, realtime)) {
+            // Counters on this time base drop what was added while it was stopped.
+            for (int i = mUidStats.size() - 1; i >= 0; i--) {
+                mUidStats.valueAt(i).mSummaryDirty = true;
+            }
+        }
 
         boolean unpluggedScreenOff = unplugged && screenOff;
         if (unpluggedScreenOff != mOnBatteryScreenOffTimeBase.isRunning()) {
@@ -4352,6 +4517,16 @@ public final class BatteryStatsImpl extends BatteryStats {
 
         final int mUid;
 
+        /**
+         * Whether this uid's summary may differ from the one last saved to mFile.  Set by
+         * {@link #getUidStatsLocked} and by the objects that are updated directly by their
+         * holders (Proc, Pkg and Serv), and kept set while {@link #isAccumulatingLocked}.
+         */
+        boolean mSummaryDirty = true;
+
+        /** Timers and services of this uid that are currently accumulating time. */
+        int mRunningCount;
+
         boolean mWifiRunning;
         StopwatchTimer mWifiRunningTimer;
 
@@ -4620,6 +4795,7 @@ public final class BatteryStatsImpl extends BatteryStats {
         }
 
         public void noteWifiControllerActivityLocked(int type, long timeMs) {
+            mSummaryDirty = true;
             if (mWifiControllerTime[type] == null) {
                 mWifiControllerTime[type] = new LongSamplingCounter(mOnBatteryTimeBase);
             }
@@ -5038,11 +5214,21 @@ public final class BatteryStatsImpl extends BatteryStats {
             mMobileRadioActiveCount = new LongSamplingCounter(mOnBatteryTimeBase);
         }
 
+        /**
+         * @return whether the summary of this uid changes with time alone, because one of
+         * its timers or services is running.
+         */
+        boolean isAccumulatingLocked() {
+            return mRunningCount > 0
+                    || (mVibratorOnTimer != null && mVibratorOnTimer.isRunningLocked());
+        }
+
         /**
          * Clear all stats for this uid.  Returns true if the uid is completely
          * inactive so can be dropped.
          */
         boolean reset() {
+            mSummaryDirty = true;
             boolean active = false;
 
             if (mWifiRunningTimer != null) {
@@ -6009,6 +6195,7 @@ public final class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addExcessiveWake(long overTime, long usedTime) {
+                mSummaryDirty = true;
                 if (mExcessivePower == null) {
                     mExcessivePower = new ArrayList<ExcessivePower>();
                 }
@@ -6020,6 +6207,7 @@ public final class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addExcessiveCpu(long overTime, long usedTime) {
+                mSummaryDirty = true;
                 if (mExcessivePower == null) {
                     mExcessivePower = new ArrayList<ExcessivePower>();
                 }
@@ -6113,23 +6301,28 @@ public final class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addCpuTimeLocked(int utime, int stime) {
+                mSummaryDirty = true;
                 mUserTime += utime;
                 mSystemTime += stime;
             }
 
             public void addForegroundTimeLocked(long ttime) {
+                mSummaryDirty = true;
                 mForegroundTime += ttime;
             }
 
             public void incStartsLocked() {
+                mSummaryDirty = true;
                 mStarts++;
             }
 
             public void incNumCrashesLocked() {
+                mSummaryDirty = true;
                 mNumCrashes++;
             }
 
             public void incNumAnrsLocked() {
+                mSummaryDirty = true;
                 mNumAnrs++;
             }
 
@@ -6275,6 +6468,7 @@ public final class BatteryStatsImpl extends BatteryStats {
             }
 
             public void noteWakeupAlarmLocked(String tag) {
+                mSummaryDirty = true;
                 Counter c = mWakeupAlarms.get(tag);
                 if (c == null) {
                     c = new Counter(mOnBatteryTimeBase);
@@ -6450,6 +6644,8 @@ public final class BatteryStatsImpl extends BatteryStats {
 
                 public void startLaunchedLocked() {
                     if (!mLaunched) {
+                        mRunningCount++;
+                        mSummaryDirty = true;
                         mLaunches++;
                         mLaunchedSince = getBatteryUptimeLocked();
                         mLaunched = true;
@@ -6458,6 +6654,8 @@ public final class BatteryStatsImpl extends BatteryStats {
 
                 public void stopLaunchedLocked() {
                     if (mLaunched) {
+                        mRunningCount--;
+                        mSummaryDirty = true;
                         long time = getBatteryUptimeLocked() - mLaunchedSince;
                         if (time > 0) {
                             mLaunchedTime += time;
@@ -6470,6 +6668,8 @@ public final class BatteryStatsImpl extends BatteryStats {
 
                 public void startRunningLocked() {
                     if (!mRunning) {
+                        mRunningCount++;
+                        mSummaryDirty = true;
                         mStarts++;
                         mRunningSince = getBatteryUptimeLocked();
                         mRunning = true;
@@ -6478,6 +6678,8 @@ public final class BatteryStatsImpl extends BatteryStats {
 
                 public void stopRunningLocked() {
                     if (mRunning) {
+                        mRunningCount--;
+                        mSummaryDirty = true;
                         long time = getBatteryUptimeLocked() - mRunningSince;
                         if (time > 0) {
                             mStartTime += time;
@@ -6790,8 +6992,9 @@ public final class BatteryStatsImpl extends BatteryStats {
 
     public BatteryStatsImpl(File systemDir, Handler handler, ExternalStatsSync externalSync) {
         if (systemDir != null) {
-            mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
-                    new File(systemDir, "batterystats.bin.tmp"));
+            mFile = new BatteryStatsSummaryFile(new File(systemDir, "batterystats.bin"),
+                    new File(systemDir, "batterystats.bin.tmp"),
+                    new File(systemDir, "batterystats-delta.bin"));
         } else {
             mFile = null;
         }
@@ -8112,6 +8315,7 @@ public final class BatteryStatsImpl extends BatteryStats {
                         Slog.d(TAG, sb.toString());
                     }
 
+                    timer.mUid.mSummaryDirty = true;
                     timer.mUid.mUserCpuTime.addCountLocked(userTimeUs);
                     timer.mUid.mSystemCpuTime.addCountLocked(systemTimeUs);
 
@@ -8791,6 +8995,8 @@ public final class BatteryStatsImpl extends BatteryStats {
             u = new Uid(uid);
             mUidStats.put(uid, u);
         }
+        // Callers get the uid to update it.
+        u.mSummaryDirty = true;
         return u;
     }
 
@@ -8838,9 +9044,17 @@ public final class BatteryStatsImpl extends BatteryStats {
         mShuttingDown = true;
     }
 
-    Parcel mPendingWrite = null;
+    // Records waiting to be written to mFile, in order.
+    final ArrayList<Parcel> mPendingWrites = new ArrayList<>();
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    // What mFile holds once the pending records are written, so that the next record only
+    // has to carry what changed: the uids that have a section.  Which uids changed since is
+    // tracked by Uid.mSummaryDirty.
+    boolean mSummaryNeedsFullWrite = true;
+    final SparseBooleanArray mSavedUids = new SparseBooleanArray();
+    private final Parcel mSummarySection = Parcel.obtain();
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -8859,14 +9073,20 @@ public final class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
+        final boolean full = mSummaryNeedsFullWrite || mFile.needsFullWrite();
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        writeSummaryRecordLocked(out, full);
+        mSummaryNeedsFullWrite = false;
         mLastWriteTime = SystemClock.elapsedRealtime();
 
-        if (mPendingWrite != null) {
-            mPendingWrite.recycle();
+        if (full) {
+            // Everything still waiting is superseded.
+            for (int i = 0; i < mPendingWrites.size(); i++) {
+                mPendingWrites.get(i).recycle();
+            }
+            mPendingWrites.clear();
         }
-        mPendingWrite = out;
+        mPendingWrites.add(out);
 
         if (sync) {
             commitPendingDataToDisk();
@@ -8879,30 +9099,129 @@ public final class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /**
+     * Writes a record of the summary for {@link BatteryStatsSummaryFile}: the history added
+     * since the last record, the global stats, and the uids that changed or went away.  A
+     * full record has all of the history and every uid.  Only uids marked dirty since their
+     * last record are serialized; the old history, only kept for debugging, is not saved.
+     */
+    private void writeSummaryRecordLocked(Parcel out, boolean full) {
+        pullPendingStateUpdatesLocked();
+
+        // Pull the clock time.  This may update the time and make a new history entry
+        // if we had originally pulled a time before the RTC was set.
+        long startClockTime = getStartClockTime();
+
+        final long NOW_SYS = SystemClock.uptimeMillis() * 1000;
+        final long NOWREAL_SYS = SystemClock.elapsedRealtime() * 1000;
+
+        if (full) {
+            mHistorySavedSize = 0;
+            mHistorySavedTagCount = 0;
+            mSavedUids.clear();
+        }
+        final Parcel section = mSummarySection;
+
+        out.writeInt(full ? BatteryStatsSummaryFile.FLAG_FULL : 0);
+        out.writeLong(mHistoryBaseTime + mLastHistoryElapsedRealtime);
+        out.writeInt(mHistorySavedSize);
+        section.setDataSize(0);
+        section.setDataPosition(0);
+        int newTags = 0;
+        for (HashMap.Entry<HistoryTag, Integer> ent : mHistoryTagPool.entrySet()) {
+            if (ent.getValue() >= mHistorySavedTagCount) {
+                HistoryTag tag = ent.getKey();
+                section.writeInt(ent.getValue());
+                section.writeString(tag.string);
+                section.writeInt(tag.uid);
+                newTags++;
+            }
+        }
+        out.writeInt(newTags);
+        out.writeInt(section.dataSize());
+        out.appendFrom(section, 0, section.dataSize());
+        final int historySize = mHistoryBuffer.dataSize();
+        out.writeInt(historySize - mHistorySavedSize);
+        out.appendFrom(mHistoryBuffer, mHistorySavedSize, historySize - mHistorySavedSize);
+        mHistorySavedSize = historySize;
+        mHistorySavedTagCount = mNextHistoryTagIdx;
+
+        section.setDataSize(0);
+        section.setDataPosition(0);
+        writeSummaryGlobalLocked(section, startClockTime, NOW_SYS, NOWREAL_SYS);
+        out.writeInt(section.dataSize());
+        out.appendFrom(section, 0, section.dataSize());
+
+        int countPos = out.dataPosition();
+        int count = 0;
+        out.writeInt(0);
+        final int NU = mUidStats.size();
+        for (int iu = 0; iu < NU; iu++) {
+            final int uid = mUidStats.keyAt(iu);
+            final Uid u = mUidStats.valueAt(iu);
+            if (!full && !u.mSummaryDirty && mSavedUids.get(uid)) {
+                continue;
+            }
+            // A uid with running timers changes with time, so it is written every time.
+            u.mSummaryDirty = u.isAccumulatingLocked();
+            mSavedUids.put(uid, true);
+            out.writeInt(uid);
+            final int sizePos = out.dataPosition();
+            out.writeInt(0);
+            writeUidSummaryLocked(out, u, NOW_SYS, NOWREAL_SYS);
+            final int uidEndPos = out.dataPosition();
+            out.setDataPosition(sizePos);
+            out.writeInt(uidEndPos - sizePos - 4);
+            out.setDataPosition(uidEndPos);
+            count++;
+        }
+        int endPos = out.dataPosition();
+        out.setDataPosition(countPos);
+        out.writeInt(count);
+        out.setDataPosition(endPos);
+
+        countPos = endPos;
+        count = 0;
+        out.writeInt(0);
+        for (int i = mSavedUids.size() - 1; i >= 0; i--) {
+            final int uid = mSavedUids.keyAt(i);
+            if (mUidStats.indexOfKey(uid) < 0) {
+                mSavedUids.removeAt(i);
+                out.writeInt(uid);
+                count++;
+            }
+        }
+        endPos = out.dataPosition();
+        out.setDataPosition(countPos);
+        out.writeInt(count);
+        out.setDataPosition(endPos);
+    }
+
     public void commitPendingDataToDisk() {
-        final Parcel next;
+        final Parcel[] next;
         synchronized (this) {
-            next = mPendingWrite;
-            mPendingWrite = null;
-            if (next == null) {
+            if (mPendingWrites.isEmpty()) {
                 return;
             }
+            next = mPendingWrites.toArray(new Parcel[mPendingWrites.size()]);
+            mPendingWrites.clear();
 
             mWriteLock.lock();
         }
 
         try {
-            FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
-            stream.flush();
-            FileUtils.sync(stream);
-            stream.close();
-            mFile.commit();
-        } catch (IOException e) {
-            Slog.w("BatteryStats", "Error writing battery statistics", e);
-            mFile.rollback();
+            for (Parcel record : next) {
+                try {
+                    mFile.write(VERSION, record);
+                } catch (IOException e) {
+                    // The file asks for a full write next.
+                    Slog.w("BatteryStats", "Error writing battery statistics", e);
+                }
+            }
         } finally {
-            next.recycle();
+            for (Parcel record : next) {
+                record.recycle();
+            }
             mWriteLock.unlock();
         }
     }
@@ -8920,19 +9239,15 @@ public final class BatteryStatsImpl extends BatteryStats {
         mUidStats.clear();
 
         try {
-            File file = mFile.chooseForRead();
-            if (!file.exists()) {
+            Parcel in = mFile.read();
+            if (in == null) {
                 return;
             }
-            FileInputStream stream = new FileInputStream(file);
-
-            byte[] raw = BatteryStatsHelper.readFully(stream);
-            Parcel in = Parcel.obtain();
-            in.unmarshall(raw, 0, raw.length);
-            in.setDataPosition(0);
-            stream.close();
-
-            readSummaryFromParcel(in);
+            try {
+                readSummaryFromParcel(in);
+            } finally {
+                in.recycle();
+            }
         } catch(Exception e) {
             Slog.e("BatteryStats", "Error reading battery statistics", e);
             resetAllStatsLocked();
@@ -8966,6 +9281,9 @@ public final class BatteryStatsImpl extends BatteryStats {
         mHistoryTagPool.clear();
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
+        mHistorySavedSize = 0;
+        mHistorySavedTagCount = 0;
+        mSummaryNeedsFullWrite = true;
 
         int numTags = in.readInt();
         for (int i=0; i<numTags; i++) {
@@ -9426,6 +9744,21 @@ public final class BatteryStatsImpl extends BatteryStats {
 
         writeHistory(out, inclHistory, true);
 
+        writeSummaryGlobalLocked(out, startClockTime, NOW_SYS, NOWREAL_SYS);
+        final int NU = mUidStats.size();
+        out.writeInt(NU);
+        for (int iu = 0; iu < NU; iu++) {
+            out.writeInt(mUidStats.keyAt(iu));
+            writeUidSummaryLocked(out, mUidStats.valueAt(iu), NOW_SYS, NOWREAL_SYS);
+        }
+    }
+
+    /**
+     * Writes the part of the summary that isn't history or per-uid: everything between the
+     * history and the uid count.
+     */
+    private void writeSummaryGlobalLocked(Parcel out, long startClockTime, long NOW_SYS,
+            long NOWREAL_SYS) {
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
         out.writeLong(computeRealtime(NOWREAL_SYS, STATS_SINCE_CHARGED));
@@ -9533,224 +9866,220 @@ public final class BatteryStatsImpl extends BatteryStats {
         }
 
         out.writeInt(sNumSpeedSteps);
-        final int NU = mUidStats.size();
-        out.writeInt(NU);
-        for (int iu = 0; iu < NU; iu++) {
-            out.writeInt(mUidStats.keyAt(iu));
-            Uid u = mUidStats.valueAt(iu);
+    }
 
-            if (u.mWifiRunningTimer != null) {
-                out.writeInt(1);
-                u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mFullWifiLockTimer != null) {
+    private void writeUidSummaryLocked(Parcel out, Uid u, long NOW_SYS, long NOWREAL_SYS) {
+        if (u.mWifiRunningTimer != null) {
+            out.writeInt(1);
+            u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFullWifiLockTimer != null) {
+            out.writeInt(1);
+            u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mWifiScanTimer != null) {
+            out.writeInt(1);
+            u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+            if (u.mWifiBatchedScanTimer[i] != null) {
                 out.writeInt(1);
-                u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mWifiScanTimer != null) {
+        }
+        if (u.mWifiMulticastTimer != null) {
+            out.writeInt(1);
+            u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAudioTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mVideoTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFlashlightTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mCameraTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundActivityTimer != null) {
+            out.writeInt(1);
+            u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+            if (u.mProcessStateTimer[i] != null) {
                 out.writeInt(1);
-                u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (u.mWifiBatchedScanTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mWifiMulticastTimer != null) {
-                out.writeInt(1);
-                u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        }
+        if (u.mVibratorOnTimer != null) {
+            out.writeInt(1);
+            u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mUserActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
             }
-            if (u.mAudioTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        }
+
+        if (u.mNetworkByteActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
+                u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
             }
-            if (u.mVideoTurnedOnTimer != null) {
+            u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
+            u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
+        }
+
+        u.mUserCpuTime.writeSummaryFromParcelLocked(out);
+        u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
+        u.mCpuPower.writeSummaryFromParcelLocked(out);
+
+        out.writeInt(u.mSpeedBins.length);
+        for (int i = 0; i < u.mSpeedBins.length; i++) {
+            LongSamplingCounter speedBin = u.mSpeedBins[i];
+            if (speedBin != null) {
                 out.writeInt(1);
-                u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                speedBin.writeSummaryFromParcelLocked(out);
             } else {
                 out.writeInt(0);
             }
-            if (u.mFlashlightTurnedOnTimer != null) {
+        }
+
+        final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
+        int NW = wakeStats.size();
+        out.writeInt(NW);
+        for (int iw=0; iw<NW; iw++) {
+            out.writeString(wakeStats.keyAt(iw));
+            Uid.Wakelock wl = wakeStats.valueAt(iw);
+            if (wl.mTimerFull != null) {
                 out.writeInt(1);
-                u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mCameraTurnedOnTimer != null) {
+            if (wl.mTimerPartial != null) {
                 out.writeInt(1);
-                u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mForegroundActivityTimer != null) {
+            if (wl.mTimerWindow != null) {
                 out.writeInt(1);
-                u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (u.mProcessStateTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mVibratorOnTimer != null) {
+            if (wl.mTimerDraw != null) {
                 out.writeInt(1);
-                u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            if (u.mUserActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-            }
-
-            if (u.mNetworkByteActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-                u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
-                u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
-            }
-
-            u.mUserCpuTime.writeSummaryFromParcelLocked(out);
-            u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
-            u.mCpuPower.writeSummaryFromParcelLocked(out);
-
-            out.writeInt(u.mSpeedBins.length);
-            for (int i = 0; i < u.mSpeedBins.length; i++) {
-                LongSamplingCounter speedBin = u.mSpeedBins[i];
-                if (speedBin != null) {
-                    out.writeInt(1);
-                    speedBin.writeSummaryFromParcelLocked(out);
-                } else {
-                    out.writeInt(0);
-                }
-            }
+        final ArrayMap<String, StopwatchTimer> syncStats = u.mSyncStats.getMap();
+        int NS = syncStats.size();
+        out.writeInt(NS);
+        for (int is=0; is<NS; is++) {
+            out.writeString(syncStats.keyAt(is));
+            syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
-            int NW = wakeStats.size();
-            out.writeInt(NW);
-            for (int iw=0; iw<NW; iw++) {
-                out.writeString(wakeStats.keyAt(iw));
-                Uid.Wakelock wl = wakeStats.valueAt(iw);
-                if (wl.mTimerFull != null) {
-                    out.writeInt(1);
-                    wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerPartial != null) {
-                    out.writeInt(1);
-                    wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerWindow != null) {
-                    out.writeInt(1);
-                    wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerDraw != null) {
-                    out.writeInt(1);
-                    wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
+        final ArrayMap<String, StopwatchTimer> jobStats = u.mJobStats.getMap();
+        int NJ = jobStats.size();
+        out.writeInt(NJ);
+        for (int ij=0; ij<NJ; ij++) {
+            out.writeString(jobStats.keyAt(ij));
+            jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            final ArrayMap<String, StopwatchTimer> syncStats = u.mSyncStats.getMap();
-            int NS = syncStats.size();
-            out.writeInt(NS);
-            for (int is=0; is<NS; is++) {
-                out.writeString(syncStats.keyAt(is));
-                syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        int NSE = u.mSensorStats.size();
+        out.writeInt(NSE);
+        for (int ise=0; ise<NSE; ise++) {
+            out.writeInt(u.mSensorStats.keyAt(ise));
+            Uid.Sensor se = u.mSensorStats.valueAt(ise);
+            if (se.mTimer != null) {
+                out.writeInt(1);
+                se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+            } else {
+                out.writeInt(0);
             }
+        }
 
-            final ArrayMap<String, StopwatchTimer> jobStats = u.mJobStats.getMap();
-            int NJ = jobStats.size();
-            out.writeInt(NJ);
-            for (int ij=0; ij<NJ; ij++) {
-                out.writeString(jobStats.keyAt(ij));
-                jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
+        int NP = u.mProcessStats.size();
+        out.writeInt(NP);
+        for (int ip=0; ip<NP; ip++) {
+            out.writeString(u.mProcessStats.keyAt(ip));
+            Uid.Proc ps = u.mProcessStats.valueAt(ip);
+            out.writeLong(ps.mUserTime);
+            out.writeLong(ps.mSystemTime);
+            out.writeLong(ps.mForegroundTime);
+            out.writeInt(ps.mStarts);
+            out.writeInt(ps.mNumCrashes);
+            out.writeInt(ps.mNumAnrs);
+            ps.writeExcessivePowerToParcelLocked(out);
+        }
 
-            int NSE = u.mSensorStats.size();
-            out.writeInt(NSE);
-            for (int ise=0; ise<NSE; ise++) {
-                out.writeInt(u.mSensorStats.keyAt(ise));
-                Uid.Sensor se = u.mSensorStats.valueAt(ise);
-                if (se.mTimer != null) {
-                    out.writeInt(1);
-                    se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
+        NP = u.mPackageStats.size();
+        out.writeInt(NP);
+        if (NP > 0) {
+            for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
+                : u.mPackageStats.entrySet()) {
+                out.writeString(ent.getKey());
+                Uid.Pkg ps = ent.getValue();
+                final int NWA = ps.mWakeupAlarms.size();
+                out.writeInt(NWA);
+                for (int iwa=0; iwa<NWA; iwa++) {
+                    out.writeString(ps.mWakeupAlarms.keyAt(iwa));
+                    ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
                 }
-            }
-
-            int NP = u.mProcessStats.size();
-            out.writeInt(NP);
-            for (int ip=0; ip<NP; ip++) {
-                out.writeString(u.mProcessStats.keyAt(ip));
-                Uid.Proc ps = u.mProcessStats.valueAt(ip);
-                out.writeLong(ps.mUserTime);
-                out.writeLong(ps.mSystemTime);
-                out.writeLong(ps.mForegroundTime);
-                out.writeInt(ps.mStarts);
-                out.writeInt(ps.mNumCrashes);
-                out.writeInt(ps.mNumAnrs);
-                ps.writeExcessivePowerToParcelLocked(out);
-            }
-
-            NP = u.mPackageStats.size();
-            out.writeInt(NP);
-            if (NP > 0) {
-                for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
-                    : u.mPackageStats.entrySet()) {
-                    out.writeString(ent.getKey());
-                    Uid.Pkg ps = ent.getValue();
-                    final int NWA = ps.mWakeupAlarms.size();
-                    out.writeInt(NWA);
-                    for (int iwa=0; iwa<NWA; iwa++) {
-                        out.writeString(ps.mWakeupAlarms.keyAt(iwa));
-                        ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
-                    }
-                    NS = ps.mServiceStats.size();
-                    out.writeInt(NS);
-                    for (int is=0; is<NS; is++) {
-                        out.writeString(ps.mServiceStats.keyAt(is));
-                        BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
-                        long time = ss.getStartTimeToNowLocked(
-                                mOnBatteryTimeBase.getUptime(NOW_SYS));
-                        out.writeLong(time);
-                        out.writeInt(ss.mStarts);
-                        out.writeInt(ss.mLaunches);
-                    }
+                NS = ps.mServiceStats.size();
+                out.writeInt(NS);
+                for (int is=0; is<NS; is++) {
+                    out.writeString(ps.mServiceStats.keyAt(is));
+                    BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
+                    long time = ss.getStartTimeToNowLocked(
+                            mOnBatteryTimeBase.getUptime(NOW_SYS));
+                    out.writeLong(time);
+                    out.writeInt(ss.mStarts);
+                    out.writeInt(ss.mLaunches);
                 }
             }
         }
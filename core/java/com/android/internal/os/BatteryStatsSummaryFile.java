@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.util.JournaledFile;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * The battery stats summary on disk: a snapshot in batterystats.bin and a log of what
+ * changed since in batterystats-delta.bin, so that a periodic write costs the uids that
+ * changed instead of every uid.
+ *
+ * <p>The summary written by {@link BatteryStatsImpl#writeSummaryToParcel} is kept as
+ * sections: the history tag pool and buffer, the global stats, and one section per uid.
+ * Each write is a record holding the global section, the history added since the last
+ * write (after cutting the buffer back to the part that is unchanged), the uid sections
+ * that changed and the uids that went away.  A full record holds every section and
+ * replaces what came before it.  A record's contents, written by BatteryStatsImpl, are:
+ *
+ * <pre>
+ *   int flags, long historyBaseTime, int historyKept,
+ *   int tagCount, int tagsLength, tags,
+ *   int historyLength, history,
+ *   int globalLength, global,
+ *   int uidCount, (int uid, int length, uid section) * uidCount,
+ *   int removedCount, int uid * removedCount
+ * </pre>
+ *
+ * <p>Both files start with a magic number, followed by records of length, CRC32, summary
+ * version, snapshot generation and contents.  The snapshot is one full record.  The log is
+ * read up to its first damaged record, and records of an older snapshot, which a crash
+ * while compacting can leave behind, are skipped.  Once the log grows past half the
+ * snapshot it is compacted: the sections are merged into a new snapshot without going
+ * through BatteryStatsImpl, on the thread that writes.
+ *
+ * <p>Files are memory-mapped to read; sections, including the history buffer, are sliced
+ * out of the mapping and only copied once, into the assembled summary or snapshot.
+ * Snapshots written by older releases are a bare summary parcel and are read as one.
+ *
+ * <p>Everything is in native byte order, as in a Parcel.  Not thread safe; the caller
+ * serializes writes.
+ */
+public final class BatteryStatsSummaryFile {
+    private static final String TAG = "BatteryStatsSummaryFile";
+
+    /** The record holds every section. */
+    public static final int FLAG_FULL = 1 << 0;
+
+    private static final int SNAPSHOT_MAGIC = 0x42535353; // 'B' 'S' 'S' 'S'
+    private static final int DELTA_MAGIC = 0x4253444c; // 'B' 'S' 'D' 'L'
+
+    private static final int FILE_HEADER_SIZE = 4;
+    // length and CRC32
+    private static final int RECORD_OVERHEAD = 8;
+    // summary version and generation
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /** The log isn't compacted until it is at least this long. */
+    private static final int MIN_COMPACT_LENGTH = 64 * 1024;
+
+    private final JournaledFile mSnapshot;
+    private final File mDeltaFile;
+
+    private long mGeneration;
+    private long mSnapshotLength;
+    // Length of the log up to the end of its last intact record.
+    private long mDeltaLength;
+    private volatile boolean mNeedsFullWrite;
+
+    public BatteryStatsSummaryFile(File file, File tmpFile, File deltaFile) {
+        mSnapshot = new JournaledFile(file, tmpFile);
+        mDeltaFile = deltaFile;
+    }
+
+    /**
+     * Whether the next write must be full, because the file doesn't hold what earlier
+     * records were based on.
+     */
+    public boolean needsFullWrite() {
+        return mNeedsFullWrite;
+    }
+
+    /**
+     * Reads the summary in the format of {@link BatteryStatsImpl#writeSummaryToParcel}.
+     * Returns null if there is none; the caller recycles the parcel.
+     */
+    public Parcel read() throws IOException {
+        final File file = mSnapshot.chooseForRead();
+        if (!file.exists()) {
+            return null;
+        }
+        final ByteBuffer snapshot = map(file);
+        if (snapshot.remaining() < FILE_HEADER_SIZE || snapshot.getInt(0) != SNAPSHOT_MAGIC) {
+            // Written by an older release.
+            final byte[] raw = new byte[snapshot.remaining()];
+            snapshot.get(raw);
+            return unmarshall(raw);
+        }
+        final Summary summary = load(snapshot);
+        final byte[] raw = new byte[summary.getSummarySize()];
+        summary.writeSummary(ByteBuffer.wrap(raw).order(ByteOrder.nativeOrder()));
+        return unmarshall(raw);
+    }
+
+    /**
+     * Writes a record built by BatteryStatsImpl, and compacts the log if it has grown long
+     * enough.  Records that aren't full are dropped while {@link #needsFullWrite}.
+     */
+    public void write(int version, Parcel record) throws IOException {
+        final byte[] contents = record.marshall();
+        final boolean full = (ByteBuffer.wrap(contents).order(ByteOrder.nativeOrder())
+                .getInt(0) & FLAG_FULL) != 0;
+        if (full) {
+            writeSnapshot(version, contents);
+            return;
+        }
+        if (mNeedsFullWrite || mGeneration == 0) {
+            mNeedsFullWrite = true;
+            return;
+        }
+
+        if (mDeltaFile.length() != mDeltaLength) {
+            // Drop whatever a crash left behind the last intact record.
+            final RandomAccessFile raf = new RandomAccessFile(mDeltaFile, "rw");
+            try {
+                raf.setLength(mDeltaLength);
+            } finally {
+                raf.close();
+            }
+        }
+        final byte[] header = recordHeader(mDeltaLength == 0 ? DELTA_MAGIC : 0, version,
+                mGeneration, contents);
+        final FileOutputStream fos = new FileOutputStream(mDeltaFile, true);
+        try {
+            if (mDeltaLength == 0) {
+                fos.write(header);
+            } else {
+                fos.write(header, FILE_HEADER_SIZE, header.length - FILE_HEADER_SIZE);
+            }
+            fos.write(contents);
+            FileUtils.sync(fos);
+            mDeltaLength = mDeltaFile.length();
+        } catch (IOException e) {
+            // Unknown how much made it, and later records would build on it.
+            mNeedsFullWrite = true;
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+
+        if (mDeltaLength >= Math.max(MIN_COMPACT_LENGTH, mSnapshotLength / 2)) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The log is still good; try again after the next write.
+                Slog.w(TAG, "Error compacting battery statistics", e);
+            }
+        }
+    }
+
+    /** Merges the log into a new snapshot. */
+    void compact() throws IOException {
+        final File file = mSnapshot.chooseForRead();
+        final ByteBuffer snapshot = map(file);
+        if (snapshot.remaining() < FILE_HEADER_SIZE || snapshot.getInt(0) != SNAPSHOT_MAGIC) {
+            throw new IOException("No snapshot to compact into");
+        }
+        final Summary summary = load(snapshot);
+        final byte[] contents = new byte[summary.getFullRecordSize()];
+        summary.writeFullRecord(ByteBuffer.wrap(contents).order(ByteOrder.nativeOrder()));
+        writeSnapshot(summary.mVersion, contents);
+    }
+
+    private void writeSnapshot(int version, byte[] contents) throws IOException {
+        final long generation = mGeneration != 0 ? mGeneration + 1 : System.currentTimeMillis();
+        final byte[] header = recordHeader(SNAPSHOT_MAGIC, version, generation, contents);
+        final File tmp = mSnapshot.chooseForWrite();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            fos.write(header);
+            fos.write(contents);
+            FileUtils.sync(fos);
+            fos.close();
+            fos = null;
+            mSnapshot.commit();
+        } catch (IOException e) {
+            IoUtils.closeQuietly(fos);
+            mSnapshot.rollback();
+            mNeedsFullWrite = true;
+            throw e;
+        }
+        mGeneration = generation;
+        mSnapshotLength = header.length + contents.length;
+        mDeltaFile.delete();
+        mDeltaLength = 0;
+        mNeedsFullWrite = false;
+    }
+
+    /**
+     * Returns the file header, if {@code magic} isn't 0, followed by the record overhead
+     * and header for {@code contents}.
+     */
+    private static byte[] recordHeader(int magic, int version, long generation,
+            byte[] contents) {
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE + RECORD_OVERHEAD
+                + RECORD_HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putInt(magic);
+        header.putInt(RECORD_HEADER_SIZE + contents.length);
+        header.putInt(0);
+        header.putInt(version);
+        header.putLong(generation);
+        final CRC32 crc = new CRC32();
+        crc.update(header.array(), FILE_HEADER_SIZE + RECORD_OVERHEAD, RECORD_HEADER_SIZE);
+        crc.update(contents);
+        header.putInt(FILE_HEADER_SIZE + 4, (int) crc.getValue());
+        return header.array();
+    }
+
+    /** Reads the snapshot and applies the log to it. */
+    private Summary load(ByteBuffer snapshot) throws IOException {
+        final Summary summary = new Summary();
+        final byte[] scratch = new byte[8192];
+        final CRC32 crc = new CRC32();
+        snapshot.position(FILE_HEADER_SIZE);
+        final ByteBuffer first = nextRecord(snapshot, scratch, crc);
+        if (first == null) {
+            throw new IOException("Damaged battery stats snapshot");
+        }
+        summary.mVersion = first.getInt();
+        summary.mGeneration = first.getLong();
+        summary.apply(first);
+        mGeneration = summary.mGeneration;
+        mSnapshotLength = snapshot.position();
+
+        ByteBuffer log;
+        try {
+            log = map(mDeltaFile);
+        } catch (FileNotFoundException e) {
+            log = ByteBuffer.allocate(0);
+        }
+        mDeltaLength = 0;
+        if (log.remaining() < FILE_HEADER_SIZE || log.getInt(0) != DELTA_MAGIC) {
+            return summary;
+        }
+        log.position(FILE_HEADER_SIZE);
+        mDeltaLength = FILE_HEADER_SIZE;
+        ByteBuffer record;
+        while ((record = nextRecord(log, scratch, crc)) != null) {
+            mDeltaLength = log.position();
+            if (record.getInt() != summary.mVersion || record.getLong() != summary.mGeneration) {
+                // Left over from before the snapshot was last compacted.
+                continue;
+            }
+            summary.apply(record);
+        }
+        if (log.hasRemaining()) {
+            Slog.w(TAG, "Ignoring damaged end of " + mDeltaFile);
+        }
+        return summary;
+    }
+
+    /**
+     * Returns the contents of the next record, positioned at its header, or null at the end
+     * of the file or at a damaged record.
+     */
+    private static ByteBuffer nextRecord(ByteBuffer file, byte[] scratch, CRC32 crc) {
+        if (file.remaining() < RECORD_OVERHEAD + RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final int start = file.position();
+        final int length = file.getInt();
+        final int checksum = file.getInt();
+        if (length < RECORD_HEADER_SIZE || length > file.remaining()) {
+            file.position(start);
+            return null;
+        }
+        final ByteBuffer record = slice(file, length);
+        final ByteBuffer check = record.duplicate();
+        crc.reset();
+        while (check.hasRemaining()) {
+            final int n = Math.min(scratch.length, check.remaining());
+            check.get(scratch, 0, n);
+            crc.update(scratch, 0, n);
+        }
+        if ((int) crc.getValue() != checksum) {
+            file.position(start);
+            return null;
+        }
+        return record;
+    }
+
+    /** Returns the next {@code length} bytes of {@code buf}, and skips them. */
+    private static ByteBuffer slice(ByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final ByteBuffer slice = buf.slice().order(ByteOrder.nativeOrder());
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return slice;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size == 0) {
+                return ByteBuffer.allocate(0);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    .order(ByteOrder.nativeOrder());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Parcel unmarshall(byte[] raw) {
+        final Parcel in = Parcel.obtain();
+        in.unmarshall(raw, 0, raw.length);
+        in.setDataPosition(0);
+        return in;
+    }
+
+    /** The sections of a summary, as slices of the files they were read from. */
+    private static final class Summary {
+        int mVersion;
+        long mGeneration;
+        long mHistoryBaseTime;
+        int mTagCount;
+        int mTagsLength;
+        final ArrayList<ByteBuffer> mTags = new ArrayList<>();
+        int mHistoryLength;
+        final ArrayList<ByteBuffer> mHistory = new ArrayList<>();
+        ByteBuffer mGlobal;
+        final SparseArray<ByteBuffer> mUids = new SparseArray<>();
+
+        void apply(ByteBuffer record) throws IOException {
+            try {
+                final int flags = record.getInt();
+                if ((flags & FLAG_FULL) != 0) {
+                    mTagCount = 0;
+                    mTagsLength = 0;
+                    mTags.clear();
+                    mHistoryLength = 0;
+                    mHistory.clear();
+                    mUids.clear();
+                }
+                mHistoryBaseTime = record.getLong();
+                truncateHistory(record.getInt());
+
+                mTagCount += record.getInt();
+                final ByteBuffer tags = slice(record, record.getInt());
+                mTagsLength += tags.remaining();
+                mTags.add(tags);
+                final ByteBuffer history = slice(record, record.getInt());
+                mHistoryLength += history.remaining();
+                mHistory.add(history);
+                mGlobal = slice(record, record.getInt());
+
+                final int uidCount = record.getInt();
+                for (int i = 0; i < uidCount; i++) {
+                    final int uid = record.getInt();
+                    mUids.put(uid, slice(record, record.getInt()));
+                }
+                final int removedCount = record.getInt();
+                for (int i = 0; i < removedCount; i++) {
+                    mUids.remove(record.getInt());
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated battery stats record", e);
+            }
+        }
+
+        private void truncateHistory(int kept) throws IOException {
+            if (kept < 0 || kept > mHistoryLength) {
+                throw new IOException("Bad history length " + kept + " of " + mHistoryLength);
+            }
+            int remaining = kept;
+            for (int i = 0; i < mHistory.size(); i++) {
+                final ByteBuffer chunk = mHistory.get(i);
+                if (remaining < chunk.remaining()) {
+                    final ByteBuffer cut = chunk.duplicate();
+                    cut.limit(cut.position() + remaining);
+                    mHistory.set(i, cut);
+                    for (int j = mHistory.size() - 1; j > i; j--) {
+                        mHistory.remove(j);
+                    }
+                    break;
+                }
+                remaining -= chunk.remaining();
+            }
+            mHistoryLength = kept;
+        }
+
+        private int getUidsLength() {
+            int length = 0;
+            for (int i = 0; i < mUids.size(); i++) {
+                length += 4 + mUids.valueAt(i).remaining();
+            }
+            return length;
+        }
+
+        /** Size of the summary parcel, see {@link #writeSummary}. */
+        int getSummarySize() {
+            return 4 + 8 + 4 + mTagsLength + 4 + mHistoryLength + mGlobal.remaining()
+                    + 4 + getUidsLength();
+        }
+
+        /**
+         * Writes the sections in the order of BatteryStatsImpl#writeSummaryToParcel:
+         * the version, the history, the global stats and the uids.
+         */
+        void writeSummary(ByteBuffer out) {
+            out.putInt(mVersion);
+            out.putLong(mHistoryBaseTime);
+            out.putInt(mTagCount);
+            putAll(out, mTags);
+            out.putInt(mHistoryLength);
+            putAll(out, mHistory);
+            out.put(mGlobal.duplicate());
+            out.putInt(mUids.size());
+            for (int i = 0; i < mUids.size(); i++) {
+                out.putInt(mUids.keyAt(i));
+                out.put(mUids.valueAt(i).duplicate());
+            }
+        }
+
+        /** Size of the record contents, see {@link #writeFullRecord}. */
+        int getFullRecordSize() {
+            return 4 + 8 + 4 + 4 + 4 + mTagsLength + 4 + mHistoryLength
+                    + 4 + mGlobal.remaining() + 4 + getUidsLength() + 4 * mUids.size() + 4;
+        }
+
+        /** Writes the contents of a full record holding every section. */
+        void writeFullRecord(ByteBuffer out) {
+            out.putInt(FLAG_FULL);
+            out.putLong(mHistoryBaseTime);
+            out.putInt(0);
+            out.putInt(mTagCount);
+            out.putInt(mTagsLength);
+            putAll(out, mTags);
+            out.putInt(mHistoryLength);
+            putAll(out, mHistory);
+            out.putInt(mGlobal.remaining());
+            out.put(mGlobal.duplicate());
+            out.putInt(mUids.size());
+            for (int i = 0; i < mUids.size(); i++) {
+                final ByteBuffer section = mUids.valueAt(i);
+                out.putInt(mUids.keyAt(i));
+                out.putInt(section.remaining());
+                out.put(section.duplicate());
+            }
+            out.putInt(0);
+        }
+
+        private static void putAll(ByteBuffer out, ArrayList<ByteBuffer> chunks) {
+            for (int i = 0; i < chunks.size(); i++) {
+                out.put(chunks.get(i).duplicate());
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.Parcel;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per interface and transaction code accounting of binder calls: count,
+ * latency distribution, parcel sizes and calling uids.
+ *
+ * <p>Collection is off by default.  {@link Binder} and the proxy class check
+ * {@link #sIncoming} and {@link #sOutgoing} once per transaction, so the
+ * disabled cost is one volatile load and a null check.  When enabled, counters
+ * are spread over several cache-line padded stripes picked by thread id, so
+ * concurrent binder threads do not contend on the same words, and all
+ * updates are lock-free.
+ *
+ * @hide
+ */
+public final class BinderCallStats {
+    /** Stats for transactions handled by local binders, or null if disabled. */
+    public static volatile BinderCallStats sIncoming;
+
+    /** Stats for transactions sent through proxies, or null if disabled. */
+    public static volatile BinderCallStats sOutgoing;
+
+    /** Transaction codes below this are looked up in an array. */
+    private static final int DIRECT_CODES = 256;
+
+    private static final int STRIPES = 4;
+
+    private static final int F_COUNT = 0;
+    private static final int F_LATENCY_TOTAL = 1;
+    private static final int F_LATENCY_MAX = 2;
+    private static final int F_BYTES_TOTAL = 3;
+    private static final int F_BYTES_MAX = 4;
+    private static final int F_EXCEPTIONS = 5;
+    private static final int F_BUCKETS = 6;
+
+    /** Latency buckets are powers of two in microseconds: <2us ... >=2^23us (~8s). */
+    private static final int BUCKETS = 24;
+
+    /** Longs per stripe, rounded up to a multiple of a 64 byte cache line. */
+    private static final int STRIDE = ((F_BUCKETS + BUCKETS + 7) / 8) * 8;
+
+    /** Distinct calling uids tracked per method; the rest are counted as other. */
+    private static final int MAX_UIDS = 16;
+
+    /** Distinct descriptors tracked; calls on any others are counted as unknown. */
+    private static final int MAX_INTERFACES = 512;
+
+    private static final String UNKNOWN_DESCRIPTOR = "<unknown>";
+
+    private final ConcurrentHashMap<String, InterfaceStats> mInterfaces =
+            new ConcurrentHashMap<>();
+    private volatile long mStartTime = System.currentTimeMillis();
+
+    private static final class InterfaceStats {
+        final String mDescriptor;
+        final AtomicReferenceArray<MethodStats> mDirect =
+                new AtomicReferenceArray<>(DIRECT_CODES);
+        final ConcurrentHashMap<Integer, MethodStats> mOther = new ConcurrentHashMap<>();
+
+        InterfaceStats(String descriptor) {
+            mDescriptor = descriptor;
+        }
+
+        MethodStats get(int code) {
+            if (code >= 0 && code < DIRECT_CODES) {
+                MethodStats ms = mDirect.get(code);
+                if (ms == null) {
+                    mDirect.compareAndSet(code, null, new MethodStats(code));
+                    ms = mDirect.get(code);
+                }
+                return ms;
+            }
+            MethodStats ms = mOther.get(code);
+            if (ms == null) {
+                final MethodStats created = new MethodStats(code);
+                ms = mOther.putIfAbsent(code, created);
+                if (ms == null) {
+                    ms = created;
+                }
+            }
+            return ms;
+        }
+
+        void collect(ArrayList<MethodStats> out) {
+            for (int i = 0; i < DIRECT_CODES; i++) {
+                final MethodStats ms = mDirect.get(i);
+                if (ms != null) {
+                    out.add(ms);
+                }
+            }
+            out.addAll(mOther.values());
+        }
+    }
+
+    private static final class MethodStats {
+        final int mCode;
+        final AtomicLongArray mCounters = new AtomicLongArray(STRIPES * STRIDE);
+        // Open addressed uid table; slot holds uid + 1, 0 means empty.
+        final AtomicIntegerArray mUids = new AtomicIntegerArray(MAX_UIDS);
+        final AtomicLongArray mUidCounts = new AtomicLongArray(MAX_UIDS + 1);
+        String mOwner;
+
+        MethodStats(int code) {
+            mCode = code;
+        }
+
+        void add(long latencyMicros, long bytes, int uid, boolean exception) {
+            final int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+            final AtomicLongArray c = mCounters;
+            c.incrementAndGet(base + F_COUNT);
+            c.addAndGet(base + F_LATENCY_TOTAL, latencyMicros);
+            updateMax(c, base + F_LATENCY_MAX, latencyMicros);
+            c.addAndGet(base + F_BYTES_TOTAL, bytes);
+            updateMax(c, base + F_BYTES_MAX, bytes);
+            if (exception) {
+                c.incrementAndGet(base + F_EXCEPTIONS);
+            }
+            c.incrementAndGet(base + F_BUCKETS + bucketFor(latencyMicros));
+            mUidCounts.incrementAndGet(uidSlot(uid));
+        }
+
+        private int uidSlot(int uid) {
+            final int key = uid + 1;
+            int slot = (key * 0x9E3779B1 >>> 28) & (MAX_UIDS - 1);
+            for (int i = 0; i < MAX_UIDS; i++) {
+                final int cur = mUids.get(slot);
+                if (cur == key) {
+                    return slot;
+                }
+                if (cur == 0 && mUids.compareAndSet(slot, 0, key)) {
+                    return slot;
+                }
+                if (mUids.get(slot) == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & (MAX_UIDS - 1);
+            }
+            return MAX_UIDS;
+        }
+
+        long sum(int field) {
+            long total = 0;
+            for (int s = 0; s < STRIPES; s++) {
+                total += mCounters.get(s * STRIDE + field);
+            }
+            return total;
+        }
+
+        long max(int field) {
+            long max = 0;
+            for (int s = 0; s < STRIPES; s++) {
+                max = Math.max(max, mCounters.get(s * STRIDE + field));
+            }
+            return max;
+        }
+
+        long percentileMicros(long count, int percent) {
+            final long target = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += sum(F_BUCKETS + b);
+                if (seen >= target) {
+                    // Report the upper bound of the bucket.
+                    return 1L << (b + 1);
+                }
+            }
+            return 1L << BUCKETS;
+        }
+    }
+
+    private static void updateMax(AtomicLongArray array, int index, long value) {
+        long cur;
+        while (value > (cur = array.get(index))) {
+            if (array.compareAndSet(index, cur, value)) {
+                return;
+            }
+        }
+    }
+
+    private static int bucketFor(long micros) {
+        if (micros < 2) {
+            return 0;
+        }
+        final int bucket = 63 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    /**
+     * Starts or stops collecting incoming and outgoing call stats in this
+     * process.  Enabling discards anything collected before.
+     */
+    public static void setEnabled(boolean enabled) {
+        sIncoming = enabled ? new BinderCallStats() : null;
+        sOutgoing = enabled ? new BinderCallStats() : null;
+    }
+
+    /**
+     * Discards the stats collected so far without changing whether collection
+     * is enabled.  Calls being recorded at the same time may be lost.
+     */
+    public static void reset() {
+        final BinderCallStats incoming = sIncoming;
+        if (incoming != null) {
+            incoming.clear();
+        }
+        final BinderCallStats outgoing = sOutgoing;
+        if (outgoing != null) {
+            outgoing.clear();
+        }
+    }
+
+    private void clear() {
+        mInterfaces.clear();
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns a timestamp to pass to {@link #noteCall}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records one transaction.
+     *
+     * @param owner class implementing the interface, used to label calls
+     *            whose descriptor is unknown; may be null.
+     */
+    public void noteCall(String descriptor, Object owner, int code, long startNanos,
+            Parcel data, Parcel reply, int callingUid, boolean exception) {
+        final long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+        long bytes = data != null ? data.dataSize() : 0;
+        if (reply != null) {
+            bytes += reply.dataSize();
+        }
+        String key = descriptor != null && descriptor.length() > 0
+                ? descriptor : UNKNOWN_DESCRIPTOR;
+        InterfaceStats is = mInterfaces.get(key);
+        if (is == null && mInterfaces.size() >= MAX_INTERFACES) {
+            // Keep a misbehaving caller from growing the map without bound.
+            key = UNKNOWN_DESCRIPTOR;
+            is = mInterfaces.get(key);
+        }
+        if (is == null) {
+            final InterfaceStats created = new InterfaceStats(key);
+            is = mInterfaces.putIfAbsent(key, created);
+            if (is == null) {
+                is = created;
+            }
+        }
+        final MethodStats ms = is.get(code);
+        if (ms.mOwner == null && owner != null && key == UNKNOWN_DESCRIPTOR) {
+            ms.mOwner = owner.getClass().getName();
+        }
+        ms.add(latencyMicros, bytes, callingUid, exception);
+    }
+
+    /**
+     * Returns the interface descriptor a transaction was sent with, by
+     * reading the token written by {@link Parcel#writeInterfaceToken}.  The
+     * parcel position is left unchanged.
+     */
+    public static String readInterfaceToken(Parcel data) {
+        final int pos = data.dataPosition();
+        try {
+            data.setDataPosition(0);
+            if (data.dataAvail() < 8) {
+                return null;
+            }
+            data.readInt();
+            return data.readString();
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            data.setDataPosition(pos);
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix, boolean byUid) {
+        final ArrayList<MethodStats> methods = new ArrayList<>();
+        final ArrayList<String> descriptors = new ArrayList<>();
+        for (Map.Entry<String, InterfaceStats> e : mInterfaces.entrySet()) {
+            final int before = methods.size();
+            e.getValue().collect(methods);
+            for (int i = before; i < methods.size(); i++) {
+                descriptors.add(e.getKey());
+            }
+        }
+        final Integer[] order = new Integer[methods.size()];
+        final long[] totals = new long[methods.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            totals[i] = methods.get(i).sum(F_LATENCY_TOTAL);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.compare(totals[rhs], totals[lhs]);
+            }
+        });
+
+        pw.print(prefix); pw.print("Collecting since ");
+        pw.print(new Date(mStartTime)); pw.println(", sorted by total time:");
+        for (Integer idx : order) {
+            final MethodStats ms = methods.get(idx);
+            final long count = ms.sum(F_COUNT);
+            if (count == 0) {
+                continue;
+            }
+            pw.print(prefix); pw.print("  "); pw.print(descriptors.get(idx));
+            if (ms.mOwner != null) {
+                pw.print(" ("); pw.print(ms.mOwner); pw.print(")");
+            }
+            pw.print(" #"); pw.print(ms.mCode);
+            pw.print(": calls="); pw.print(count);
+            pw.print(" total="); pw.print(totals[idx] / 1000); pw.print("ms");
+            pw.print(" p50<="); pw.print(ms.percentileMicros(count, 50)); pw.print("us");
+            pw.print(" p90<="); pw.print(ms.percentileMicros(count, 90)); pw.print("us");
+            pw.print(" p99<="); pw.print(ms.percentileMicros(count, 99)); pw.print("us");
+            pw.print(" max="); pw.print(ms.max(F_LATENCY_MAX)); pw.print("us");
+            pw.print(" avgBytes="); pw.print(ms.sum(F_BYTES_TOTAL) / count);
+            pw.print(" maxBytes="); pw.print(ms.max(F_BYTES_MAX));
+            final long exceptions = ms.sum(F_EXCEPTIONS);
+            if (exceptions > 0) {
+                pw.print(" exceptions="); pw.print(exceptions);
+            }
+            pw.println();
+            if (byUid) {
+                pw.print(prefix); pw.print("    uids:");
+                for (int i = 0; i < MAX_UIDS; i++) {
+                    final int key = ms.mUids.get(i);
+                    if (key != 0) {
+                        pw.print(" "); pw.print(key - 1); pw.print("=");
+                        pw.print(ms.mUidCounts.get(i));
+                    }
+                }
+                final long other = ms.mUidCounts.get(MAX_UIDS);
+                if (other > 0) {
+                    pw.print(" other="); pw.print(other);
+                }
+                pw.println();
+            }
+        }
+    }
+}
@@ -17,15 +17,17 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.Slog;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Reads /proc/uid_cputime/show_uid_stat which has the line format:
@@ -36,6 +38,10 @@ import java.io.IOException;
  * The file contains a monotonically increasing count of time for a single boot. This class
  * maintains the previous results of a call to {@link #readDelta} in order to provide a proper
  * delta.
+ *
+ * <p>The file is read into a buffer that is kept between reads and parsed in place, and UIDs
+ * whose times have not changed are skipped, so a read allocates nothing once it has seen
+ * every UID.
  */
 public class KernelUidCpuTimeReader {
     private static final String TAG = "KernelUidCpuTimeReader";
@@ -55,11 +61,27 @@ public class KernelUidCpuTimeReader {
         void onUidCpuTime(int uid, long userTimeUs, long systemTimeUs, long powerMaUs);
     }
 
+    private final String mProcFile;
+    private final String mRemoveUidProcFile;
+    private byte[] mBuffer = new byte[8 * 1024];
+    // The value parsed by the last parseLong.
+    private long mParsedValue;
+
     private SparseLongArray mLastUserTimeUs = new SparseLongArray();
     private SparseLongArray mLastSystemTimeUs = new SparseLongArray();
     private SparseLongArray mLastPowerMaUs = new SparseLongArray();
     private long mLastTimeReadUs = 0;
 
+    public KernelUidCpuTimeReader() {
+        this(sProcFile, sRemoveUidProcFile);
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuTimeReader(String procFile, String removeUidProcFile) {
+        mProcFile = procFile;
+        mRemoveUidProcFile = removeUidProcFile;
+    }
+
     /**
      * Reads the proc file, calling into the callback with a delta of time for each UID.
      * @param callback The callback to invoke for each line of the proc file. If null,
@@ -68,80 +90,160 @@ public class KernelUidCpuTimeReader {
      */
     public void readDelta(@Nullable Callback callback) {
         long nowUs = SystemClock.elapsedRealtime() * 1000;
-        try (BufferedReader reader = new BufferedReader(new FileReader(sProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
-            while ((line = reader.readLine()) != null) {
-                splitter.setString(line);
-                final String uidStr = splitter.next();
-                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
-                final long userTimeUs = Long.parseLong(splitter.next(), 10);
-                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
-                final long powerMaUs;
-                if (splitter.hasNext()) {
-                    powerMaUs = Long.parseLong(splitter.next(), 10) / 1000;
-                } else {
-                    powerMaUs = 0;
-                }
+        final int len;
+        try {
+            len = readFile();
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read uid_cputime", e);
+            mLastTimeReadUs = nowUs;
+            return;
+        }
 
-                if (callback != null) {
-                    long userTimeDeltaUs = userTimeUs;
-                    long systemTimeDeltaUs = systemTimeUs;
-                    long powerDeltaMaUs = powerMaUs;
-                    int index = mLastUserTimeUs.indexOfKey(uid);
-                    if (index >= 0) {
-                        userTimeDeltaUs -= mLastUserTimeUs.valueAt(index);
-                        systemTimeDeltaUs -= mLastSystemTimeUs.valueAt(index);
-                        powerDeltaMaUs -= mLastPowerMaUs.valueAt(index);
-
-                        final long timeDiffUs = nowUs - mLastTimeReadUs;
-                        if (userTimeDeltaUs < 0 || systemTimeDeltaUs < 0 || powerDeltaMaUs < 0) {
-                            StringBuilder sb = new StringBuilder("Malformed cpu data for UID=");
-                            sb.append(uid).append("!\n");
-                            sb.append("Time between reads: ");
-                            TimeUtils.formatDuration(timeDiffUs / 1000, sb);
-                            sb.append("\n");
-                            sb.append("Previous times: u=");
-                            TimeUtils.formatDuration(mLastUserTimeUs.valueAt(index) / 1000, sb);
-                            sb.append(" s=");
-                            TimeUtils.formatDuration(mLastSystemTimeUs.valueAt(index) / 1000, sb);
-                            sb.append(" p=").append(mLastPowerMaUs.valueAt(index) / 1000);
-                            sb.append("mAms\n");
-
-                            sb.append("Current times: u=");
-                            TimeUtils.formatDuration(userTimeUs / 1000, sb);
-                            sb.append(" s=");
-                            TimeUtils.formatDuration(systemTimeUs / 1000, sb);
-                            sb.append(" p=").append(powerMaUs / 1000);
-                            sb.append("mAms\n");
-                            sb.append("Delta: u=");
-                            TimeUtils.formatDuration(userTimeDeltaUs / 1000, sb);
-                            sb.append(" s=");
-                            TimeUtils.formatDuration(systemTimeDeltaUs / 1000, sb);
-                            sb.append(" p=").append(powerDeltaMaUs / 1000).append("mAms");
-                            Slog.wtf(TAG, sb.toString());
-
-                            userTimeDeltaUs = 0;
-                            systemTimeDeltaUs = 0;
-                            powerDeltaMaUs = 0;
-                        }
-                    }
+        final byte[] buf = mBuffer;
+        int start = 0;
+        while (start < len) {
+            int end = start;
+            while (end < len && buf[end] != '\n') {
+                end++;
+            }
+            final int lineStart = start;
+            final int lineEnd = end;
+            start = end + 1;
+            if (lineEnd == lineStart) {
+                continue;
+            }
+
+            // uid: user_time system_time [power]
+            int i = lineStart;
+            int uid = 0;
+            while (i < lineEnd && buf[i] >= '0' && buf[i] <= '9') {
+                uid = uid * 10 + (buf[i++] - '0');
+            }
+            if (i == lineStart || i >= lineEnd || buf[i] != ':') {
+                Slog.wtf(TAG, "Malformed line: " + new String(buf, lineStart,
+                        lineEnd - lineStart, StandardCharsets.US_ASCII));
+                continue;
+            }
+            i = skipSpaces(buf, i + 1, lineEnd);
+            int fieldStart = i;
+            i = parseLong(buf, i, lineEnd);
+            final long userTimeUs = mParsedValue;
+            boolean parsed = i > fieldStart;
+            i = skipSpaces(buf, i, lineEnd);
+            fieldStart = i;
+            i = parseLong(buf, i, lineEnd);
+            final long systemTimeUs = mParsedValue;
+            parsed &= i > fieldStart;
+            i = skipSpaces(buf, i, lineEnd);
+            final long powerMaUs;
+            if (i < lineEnd) {
+                fieldStart = i;
+                i = parseLong(buf, i, lineEnd);
+                powerMaUs = mParsedValue / 1000;
+                parsed &= i > fieldStart;
+            } else {
+                powerMaUs = 0;
+            }
+            if (!parsed) {
+                Slog.wtf(TAG, "Malformed line: " + new String(buf, lineStart,
+                        lineEnd - lineStart, StandardCharsets.US_ASCII));
+                continue;
+            }
 
-                    if (userTimeDeltaUs != 0 || systemTimeDeltaUs != 0 || powerDeltaMaUs != 0) {
-                        callback.onUidCpuTime(uid, userTimeDeltaUs, systemTimeDeltaUs,
-                                powerDeltaMaUs);
+            final int lastIndex = mLastUserTimeUs.indexOfKey(uid);
+            if (lastIndex >= 0 && mLastUserTimeUs.valueAt(lastIndex) == userTimeUs
+                    && mLastSystemTimeUs.valueAt(lastIndex) == systemTimeUs
+                    && mLastPowerMaUs.valueAt(lastIndex) == powerMaUs) {
+                // Nothing to report, and nothing to remember.
+                continue;
+            }
+
+            if (callback != null) {
+                long userTimeDeltaUs = userTimeUs;
+                long systemTimeDeltaUs = systemTimeUs;
+                long powerDeltaMaUs = powerMaUs;
+                if (lastIndex >= 0) {
+                    userTimeDeltaUs -= mLastUserTimeUs.valueAt(lastIndex);
+                    systemTimeDeltaUs -= mLastSystemTimeUs.valueAt(lastIndex);
+                    powerDeltaMaUs -= mLastPowerMaUs.valueAt(lastIndex);
+
+                    final long timeDiffUs = nowUs - mLastTimeReadUs;
+                    if (userTimeDeltaUs < 0 || systemTimeDeltaUs < 0 || powerDeltaMaUs < 0) {
+                        StringBuilder sb = new StringBuilder("Malformed cpu data for UID=");
+                        sb.append(uid).append("!\n");
+                        sb.append("Time between reads: ");
+                        TimeUtils.formatDuration(timeDiffUs / 1000, sb);
+                        sb.append("\n");
+                        sb.append("Previous times: u=");
+                        TimeUtils.formatDuration(mLastUserTimeUs.valueAt(lastIndex) / 1000, sb);
+                        sb.append(" s=");
+                        TimeUtils.formatDuration(mLastSystemTimeUs.valueAt(lastIndex) / 1000, sb);
+                        sb.append(" p=").append(mLastPowerMaUs.valueAt(lastIndex) / 1000);
+                        sb.append("mAms\n");
+
+                        sb.append("Current times: u=");
+                        TimeUtils.formatDuration(userTimeUs / 1000, sb);
+                        sb.append(" s=");
+                        TimeUtils.formatDuration(systemTimeUs / 1000, sb);
+                        sb.append(" p=").append(powerMaUs / 1000);
+                        sb.append("mAms\n");
+                        sb.append("Delta: u=");
+                        TimeUtils.formatDuration(userTimeDeltaUs / 1000, sb);
+                        sb.append(" s=");
+                        TimeUtils.formatDuration(systemTimeDeltaUs / 1000, sb);
+                        sb.append(" p=").append(powerDeltaMaUs / 1000).append("mAms");
+                        Slog.wtf(TAG, sb.toString());
+
+                        userTimeDeltaUs = 0;
+                        systemTimeDeltaUs = 0;
+                        powerDeltaMaUs = 0;
                     }
                 }
-                mLastUserTimeUs.put(uid, userTimeUs);
-                mLastSystemTimeUs.put(uid, systemTimeUs);
-                mLastPowerMaUs.put(uid, powerMaUs);
+
+                if (userTimeDeltaUs != 0 || systemTimeDeltaUs != 0 || powerDeltaMaUs != 0) {
+                    callback.onUidCpuTime(uid, userTimeDeltaUs, systemTimeDeltaUs,
+                            powerDeltaMaUs);
+                }
             }
-        } catch (IOException e) {
-            Slog.e(TAG, "Failed to read uid_cputime", e);
+            mLastUserTimeUs.put(uid, userTimeUs);
+            mLastSystemTimeUs.put(uid, systemTimeUs);
+            mLastPowerMaUs.put(uid, powerMaUs);
         }
         mLastTimeReadUs = nowUs;
     }
 
+    /** Reads the proc file into mBuffer, growing it as needed, and returns its length. */
+    private int readFile() throws IOException {
+        try (FileInputStream is = new FileInputStream(mProcFile)) {
+            int len = 0;
+            int read;
+            while ((read = is.read(mBuffer, len, mBuffer.length - len)) > 0) {
+                len += read;
+                if (len == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+            }
+            return len;
+        }
+    }
+
+    private static int skipSpaces(byte[] buf, int i, int end) {
+        while (i < end && buf[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /** Parses the digits at i into mParsedValue, returning the index after them. */
+    private int parseLong(byte[] buf, int i, int end) {
+        long value = 0;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+            value = value * 10 + (buf[i++] - '0');
+        }
+        mParsedValue = value;
+        return i;
+    }
+
     /**
      * Removes the UID from the kernel module and from internal accounting data.
      * @param uid The UID to remove.
@@ -154,7 +256,7 @@ public class KernelUidCpuTimeReader {
             mLastPowerMaUs.removeAt(index);
         }
 
-        try (FileWriter writer = new FileWriter(sRemoveUidProcFile)) {
+        try (FileWriter writer = new FileWriter(mRemoveUidProcFile)) {
             writer.write(Integer.toString(uid) + "-" + Integer.toString(uid));
             writer.flush();
         } catch (IOException e) {
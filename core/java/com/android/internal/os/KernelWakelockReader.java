@@ -15,14 +15,23 @@
  */
 package com.android.internal.os;
 
-import android.os.Process;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Reads and parses wakelock stats from the kernel (/proc/wakelocks).
+ *
+ * <p>The file is read into a buffer that is kept, and each line is compared with the same
+ * line of the previous read: a line that has not changed reuses the entry and values parsed
+ * from it last time.  Other lines are parsed in place and their entries found by name
+ * without making a String, so a read only allocates for wakelocks it has not seen before.
  */
 public class KernelWakelockReader {
     private static final String TAG = "KernelWakelockReader";
@@ -30,74 +39,96 @@ public class KernelWakelockReader {
     private static final String sWakelockFile = "/proc/wakelocks";
     private static final String sWakeupSourceFile = "/d/wakeup_sources";
 
-    private static final int[] PROC_WAKELOCKS_FORMAT = new int[] {
-        Process.PROC_TAB_TERM|Process.PROC_OUT_STRING|                // 0: name
-                              Process.PROC_QUOTES,
-        Process.PROC_TAB_TERM|Process.PROC_OUT_LONG,                  // 1: count
-        Process.PROC_TAB_TERM,
-        Process.PROC_TAB_TERM,
-        Process.PROC_TAB_TERM,
-        Process.PROC_TAB_TERM|Process.PROC_OUT_LONG,                  // 5: totalTime
-    };
-
-    private static final int[] WAKEUP_SOURCES_FORMAT = new int[] {
-        Process.PROC_TAB_TERM|Process.PROC_OUT_STRING,                // 0: name
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE|
-                              Process.PROC_OUT_LONG,                  // 1: count
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
-        Process.PROC_TAB_TERM|Process.PROC_COMBINE
-                             |Process.PROC_OUT_LONG,                  // 6: totalTime
-    };
-
-    private final String[] mProcWakelocksName = new String[3];
-    private final long[] mProcWakelocksData = new long[3];
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // The field holding the total time: "name count expire_count wake_count active_since
+    // total_time ..." in /proc/wakelocks, and "name active_count event_count wakeup_count
+    // expire_count active_since total_time ..." in wakeup_sources.
+    private static final int PROC_WAKELOCKS_TIME_FIELD = 5;
+    private static final int WAKEUP_SOURCES_TIME_FIELD = 6;
+
+    private final String mWakelockFile;
+    private final String mWakeupSourceFile;
+
+    // The file as read this time and last time.
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private byte[] mLastBuffer = new byte[BUFFER_SIZE];
+
+    // The lines of the last read, and of this one while it is parsed: where each line is in
+    // its buffer, and the entry and values it gave, or a null entry if it didn't parse.
+    private Lines mLines = new Lines();
+    private Lines mLastLines = new Lines();
+    private KernelWakelockStats mLastStats;
+    private boolean mLastWakeupSources;
+
+    // The entries of mLastStats by name, as an open addressing table keyed by String hash,
+    // so that a line can be looked up straight from its bytes.
+    private String[] mNames = new String[64];
+    private KernelWakelockStats.Entry[] mNameEntries = new KernelWakelockStats.Entry[64];
+    private int mNameCount;
+
+    public KernelWakelockReader() {
+        this(sWakelockFile, sWakeupSourceFile);
+    }
+
+    @VisibleForTesting
+    public KernelWakelockReader(String wakelockFile, String wakeupSourceFile) {
+        mWakelockFile = wakelockFile;
+        mWakeupSourceFile = wakeupSourceFile;
+    }
 
     /**
      * Reads kernel wakelock stats and updates the staleStats with the new information.
-     * @param staleStats Existing object to update.
+     * @param staleStats Existing object to update.  Only this reader should change it.
      * @return the updated data.
      */
     public final KernelWakelockStats readKernelWakelockStats(KernelWakelockStats staleStats) {
-        byte[] buffer = new byte[32*1024];
-        int len;
+        final byte[] buffer = mBuffer;
+        int len = 0;
         boolean wakeup_sources;
 
         try {
             FileInputStream is;
             try {
-                is = new FileInputStream(sWakelockFile);
+                is = new FileInputStream(mWakelockFile);
                 wakeup_sources = false;
             } catch (java.io.FileNotFoundException e) {
                 try {
-                    is = new FileInputStream(sWakeupSourceFile);
+                    is = new FileInputStream(mWakeupSourceFile);
                     wakeup_sources = true;
                 } catch (java.io.FileNotFoundException e2) {
-                    Slog.wtf(TAG, "neither " + sWakelockFile + " nor " +
-                            sWakeupSourceFile + " exists");
+                    Slog.wtf(TAG, "neither " + mWakelockFile + " nor " +
+                            mWakeupSourceFile + " exists");
                     return null;
                 }
             }
 
-            len = is.read(buffer);
-            is.close();
+            try {
+                int read;
+                while (len < buffer.length
+                        && (read = is.read(buffer, len, buffer.length - len)) > 0) {
+                    len += read;
+                }
+            } finally {
+                is.close();
+            }
         } catch (java.io.IOException e) {
             Slog.wtf(TAG, "failed to read kernel wakelocks", e);
             return null;
         }
 
-        if (len > 0) {
-            if (len >= buffer.length) {
-                Slog.wtf(TAG, "Kernel wake locks exceeded buffer size " + buffer.length);
+        if (len >= buffer.length) {
+            Slog.wtf(TAG, "Kernel wake locks exceeded buffer size " + buffer.length);
+        }
+        for (int i = 0; i < len; i++) {
+            if (buffer[i] == '\0') {
+                len = i;
+                break;
             }
-            int i;
-            for (i=0; i<len; i++) {
-                if (buffer[i] == '\0') {
-                    len = i;
-                    break;
-                }
+            // Stomp out any bad characters since this is from a circular buffer
+            // A corruption is seen sometimes that results in garbage names
+            if ((buffer[i] & 0x80) != 0) {
+                buffer[i] = (byte) '?';
             }
         }
         return parseProcWakelocks(buffer, len, wakeup_sources, staleStats);
@@ -108,81 +139,88 @@ public class KernelWakelockReader {
      */
     private KernelWakelockStats parseProcWakelocks(byte[] wlBuffer, int len, boolean wakeup_sources,
                                                    final KernelWakelockStats staleStats) {
-        String name;
-        int count;
-        long totalTime;
-        int startIndex;
-        int endIndex;
         int numUpdatedWlNames = 0;
 
+        // What was parsed last time can only be reused for the same stats.
+        final boolean reuse = staleStats == mLastStats && wakeup_sources == mLastWakeupSources;
+        if (!reuse) {
+            mLastLines.mCount = 0;
+            rebuildNames(staleStats);
+        }
+        final Lines lines = mLines;
+        final Lines lastLines = mLastLines;
+        lines.mCount = 0;
+
         // Advance past the first line.
-        int i;
-        for (i = 0; i < len && wlBuffer[i] != '\n' && wlBuffer[i] != '\0'; i++);
-        startIndex = endIndex = i + 1;
+        int startIndex = 0;
+        while (startIndex < len && wlBuffer[startIndex] != '\n') {
+            startIndex++;
+        }
+        startIndex++;
 
         synchronized(this) {
             sKernelWakelockUpdateVersion++;
-            while (endIndex < len) {
-                for (endIndex=startIndex;
-                        endIndex < len && wlBuffer[endIndex] != '\n' && wlBuffer[endIndex] != '\0';
-                        endIndex++);
-                endIndex++; // endIndex is an exclusive upper bound.
-                // Don't go over the end of the buffer, Process.parseProcLine might
-                // write to wlBuffer[endIndex]
-                if (endIndex >= (len - 1) ) {
-                    return staleStats;
-                }
-
-                String[] nameStringArray = mProcWakelocksName;
-                long[] wlData = mProcWakelocksData;
-                // Stomp out any bad characters since this is from a circular buffer
-                // A corruption is seen sometimes that results in the vm crashing
-                // This should prevent crashes and the line will probably fail to parse
-                for (int j = startIndex; j < endIndex; j++) {
-                    if ((wlBuffer[j] & 0x80) != 0) wlBuffer[j] = (byte) '?';
+            while (startIndex < len) {
+                int endIndex = startIndex;
+                while (endIndex < len && wlBuffer[endIndex] != '\n') {
+                    endIndex++;
                 }
-                boolean parsed = Process.parseProcLine(wlBuffer, startIndex, endIndex,
-                        wakeup_sources ? WAKEUP_SOURCES_FORMAT :
-                                         PROC_WAKELOCKS_FORMAT,
-                        nameStringArray, wlData, null);
 
-                name = nameStringArray[0];
-                count = (int) wlData[1];
-
-                if (wakeup_sources) {
+                final int line = lines.mCount;
+                lines.add(startIndex, endIndex);
+                KernelWakelockStats.Entry entry = null;
+                boolean added = false;
+                int count = 0;
+                long totalTime = 0;
+                if (line < lastLines.mCount && lastLines.mEntries[line] != null
+                        && lastLines.matches(line, mLastBuffer, wlBuffer, startIndex, endIndex)) {
+                    // Same as last time.
+                    entry = lastLines.mEntries[line];
+                    count = lastLines.mWakelockCounts[line];
+                    totalTime = lastLines.mTotalTimes[line];
+                } else if (parseLine(wlBuffer, startIndex, Math.min(endIndex + 1, len),
+                        wakeup_sources, lines)) {
+                    count = (int) lines.mParsedCount;
+                    if (wakeup_sources) {
                         // convert milliseconds to microseconds
-                        totalTime = wlData[2] * 1000;
-                } else {
-                        // convert nanoseconds to microseconds with rounding.
-                        totalTime = (wlData[2] + 500) / 1000;
-                }
-
-                if (parsed && name.length() > 0) {
-                    if (!staleStats.containsKey(name)) {
-                        staleStats.put(name, new KernelWakelockStats.Entry(count, totalTime,
-                                sKernelWakelockUpdateVersion));
-                        numUpdatedWlNames++;
+                        totalTime = lines.mParsedTime * 1000;
                     } else {
-                        KernelWakelockStats.Entry kwlStats = staleStats.get(name);
-                        if (kwlStats.mVersion == sKernelWakelockUpdateVersion) {
-                            kwlStats.mCount += count;
-                            kwlStats.mTotalTime += totalTime;
-                        } else {
-                            kwlStats.mCount = count;
-                            kwlStats.mTotalTime = totalTime;
-                            kwlStats.mVersion = sKernelWakelockUpdateVersion;
+                        // convert nanoseconds to microseconds with rounding.
+                        totalTime = (lines.mParsedTime + 500) / 1000;
+                    }
+                    final int nameStart = lines.mParsedNameStart;
+                    final int nameEnd = lines.mParsedNameEnd;
+                    if (nameEnd > nameStart) {
+                        entry = findName(wlBuffer, nameStart, nameEnd);
+                        if (entry == null) {
+                            final String name = new String(wlBuffer, nameStart,
+                                    nameEnd - nameStart, StandardCharsets.US_ASCII);
+                            entry = new KernelWakelockStats.Entry(count, totalTime,
+                                    sKernelWakelockUpdateVersion);
+                            staleStats.put(name, entry);
+                            addName(name, entry);
                             numUpdatedWlNames++;
+                            added = true;
                         }
                     }
-                } else if (!parsed) {
-                    try {
-                        Slog.wtf(TAG, "Failed to parse proc line: " +
-                                new String(wlBuffer, startIndex, endIndex - startIndex));
-                    } catch (Exception e) {
-                        Slog.wtf(TAG, "Failed to parse proc line!");
+                } else {
+                    Slog.wtf(TAG, "Failed to parse proc line: " + new String(wlBuffer,
+                            startIndex, endIndex - startIndex, StandardCharsets.US_ASCII));
+                }
+
+                if (entry != null && !added) {
+                    if (entry.mVersion == sKernelWakelockUpdateVersion) {
+                        entry.mCount += count;
+                        entry.mTotalTime += totalTime;
+                    } else {
+                        entry.mCount = count;
+                        entry.mTotalTime = totalTime;
+                        entry.mVersion = sKernelWakelockUpdateVersion;
+                        numUpdatedWlNames++;
                     }
                 }
-                startIndex = endIndex;
+                lines.set(line, entry, count, totalTime);
+                startIndex = endIndex + 1;
             }
 
             if (staleStats.size() != numUpdatedWlNames) {
@@ -193,10 +231,209 @@ public class KernelWakelockReader {
                         itr.remove();
                     }
                 }
+                rebuildNames(staleStats);
             }
 
             staleStats.kernelWakelockVersion = sKernelWakelockUpdateVersion;
-            return staleStats;
+        }
+
+        // Keep this read to compare the next one against.
+        mBuffer = mLastBuffer;
+        mLastBuffer = wlBuffer;
+        mLines = lastLines;
+        mLastLines = lines;
+        mLastStats = staleStats;
+        mLastWakeupSources = wakeup_sources;
+        return staleStats;
+    }
+
+    /**
+     * Parses the name, count and total time of a line into {@code out}, the way
+     * Process.parseProcLine did with the old formats: fields end at a tab, the
+     * /proc/wakelocks name may be quoted, and runs of tabs after a wakeup_sources value
+     * (but not after its name) count as one.
+     */
+    private static boolean parseLine(byte[] buf, int start, int end, boolean wakeup_sources,
+            Lines out) {
+        final int timeField = wakeup_sources ? WAKEUP_SOURCES_TIME_FIELD
+                : PROC_WAKELOCKS_TIME_FIELD;
+        int i = start;
+        for (int field = 0; field <= timeField; field++) {
+            final boolean quoted = field == 0 && !wakeup_sources && i < end && buf[i] == '"';
+            if (quoted) {
+                i++;
+            }
+            if (i >= end) {
+                return false;
+            }
+            final int fieldStart = i;
+            int fieldEnd = -1;
+            if (quoted) {
+                while (i < end && buf[i] != '"') {
+                    i++;
+                }
+                fieldEnd = i;
+                i++;
+            }
+            while (i < end && buf[i] != '\t') {
+                i++;
+            }
+            if (fieldEnd < 0) {
+                fieldEnd = i;
+            }
+            if (i < end) {
+                i++;
+                if (wakeup_sources && field > 0) {
+                    while (i < end && buf[i] == '\t') {
+                        i++;
+                    }
+                }
+            }
+
+            if (field == 0) {
+                out.mParsedNameStart = fieldStart;
+                out.mParsedNameEnd = fieldEnd;
+            } else if (field == 1) {
+                out.mParsedCount = parseLong(buf, fieldStart, fieldEnd);
+            } else if (field == timeField) {
+                out.mParsedTime = parseLong(buf, fieldStart, fieldEnd);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal number the way strtoll does: leading white space is skipped, parsing
+     * stops at the first non-digit, and a value out of range is clamped.
+     */
+    private static long parseLong(byte[] buf, int i, int end) {
+        while (i < end && (buf[i] == ' ' || (buf[i] >= '\t' && buf[i] <= '\r'))) {
+            i++;
+        }
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long value = 0;
+        boolean overflow = false;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+            final int digit = buf[i] - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                overflow = true;
+            } else {
+                value = value * 10 + digit;
+            }
+            i++;
+        }
+        if (overflow) {
+            return negative ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return negative ? -value : value;
+    }
+
+    private KernelWakelockStats.Entry findName(byte[] buf, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        final int mask = mNames.length - 1;
+        for (int slot = mix(hash) & mask; mNames[slot] != null; slot = (slot + 1) & mask) {
+            final String name = mNames[slot];
+            if (name.length() == end - start && name.hashCode() == hash) {
+                int i = 0;
+                while (i < name.length() && name.charAt(i) == buf[start + i]) {
+                    i++;
+                }
+                if (i == name.length()) {
+                    return mNameEntries[slot];
+                }
+            }
+        }
+        return null;
+    }
+
+    private void addName(String name, KernelWakelockStats.Entry entry) {
+        if ((mNameCount + 1) * 2 > mNames.length) {
+            final String[] names = mNames;
+            final KernelWakelockStats.Entry[] entries = mNameEntries;
+            mNames = new String[names.length * 2];
+            mNameEntries = new KernelWakelockStats.Entry[names.length * 2];
+            mNameCount = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null) {
+                    addName(names[i], entries[i]);
+                }
+            }
+        }
+        final int mask = mNames.length - 1;
+        int slot = mix(name.hashCode()) & mask;
+        while (mNames[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        mNames[slot] = name;
+        mNameEntries[slot] = entry;
+        mNameCount++;
+    }
+
+    private void rebuildNames(KernelWakelockStats stats) {
+        Arrays.fill(mNames, null);
+        Arrays.fill(mNameEntries, null);
+        mNameCount = 0;
+        for (Map.Entry<String, KernelWakelockStats.Entry> ent : stats.entrySet()) {
+            addName(ent.getKey(), ent.getValue());
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /** The lines of one read, and scratch space for parsing one. */
+    private static final class Lines {
+        int mCount;
+        int[] mStarts = new int[128];
+        int[] mEnds = new int[128];
+        KernelWakelockStats.Entry[] mEntries = new KernelWakelockStats.Entry[128];
+        int[] mWakelockCounts = new int[128];
+        long[] mTotalTimes = new long[128];
+
+        int mParsedNameStart;
+        int mParsedNameEnd;
+        long mParsedCount;
+        long mParsedTime;
+
+        void add(int start, int end) {
+            if (mCount == mStarts.length) {
+                final int size = mCount * 2;
+                mStarts = Arrays.copyOf(mStarts, size);
+                mEnds = Arrays.copyOf(mEnds, size);
+                mEntries = Arrays.copyOf(mEntries, size);
+                mWakelockCounts = Arrays.copyOf(mWakelockCounts, size);
+                mTotalTimes = Arrays.copyOf(mTotalTimes, size);
+            }
+            mStarts[mCount] = start;
+            mEnds[mCount] = end;
+            mCount++;
+        }
+
+        void set(int line, KernelWakelockStats.Entry entry, int count, long totalTime) {
+            mEntries[line] = entry;
+            mWakelockCounts[line] = count;
+            mTotalTimes[line] = totalTime;
+        }
+
+        boolean matches(int line, byte[] lineBuffer, byte[] buf, int start, int end) {
+            final int lineStart = mStarts[line];
+            if (mEnds[line] - lineStart != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (buf[i] != lineBuffer[lineStart + i - start]) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
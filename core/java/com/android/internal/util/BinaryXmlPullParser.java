@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.POOL_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_POOLED;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * {@link XmlPullParser} for documents written by {@link BinaryXmlSerializer}.
+ *
+ * <p>Pooled strings are decoded once and the same {@link String} instance is
+ * handed out for every later reference, so reading a large settings file
+ * does not rebuild the same tag, attribute and package names over and over.
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataInputStream mIn;
+    private final ArrayList<String> mPool = new ArrayList<>();
+    private byte[] mStringBuffer = new byte[256];
+
+    private int mEventType = START_DOCUMENT;
+    private int mDepth;
+    private boolean mPendingEndTag;
+    private int mPeekedToken = -1;
+
+    private String mName;
+    private String mText;
+    private String[] mTagNames = new String[8];
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private String[] mAttributeValues = new String[8];
+
+    /**
+     * Returns a parser for {@code in}, which may hold either binary XML or
+     * regular text XML; the format is detected from the first bytes.
+     */
+    public static XmlPullParser newPullParser(InputStream in)
+            throws IOException, XmlPullParserException {
+        final BufferedInputStream bin = new BufferedInputStream(in, BUFFER_SIZE);
+        final byte[] header = new byte[MAGIC.length];
+        bin.mark(header.length);
+        int read = 0;
+        while (read < header.length) {
+            final int n = bin.read(header, read, header.length - read);
+            if (n < 0) break;
+            read += n;
+        }
+        bin.reset();
+
+        final XmlPullParser parser;
+        if (BinaryXmlSerializer.isBinaryXml(header, read)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(bin, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    @Override
+    public void setInput(InputStream is, String inputEncoding) throws XmlPullParserException {
+        mIn = new DataInputStream(is instanceof BufferedInputStream
+                ? is : new BufferedInputStream(is, BUFFER_SIZE));
+        mPool.clear();
+        mEventType = START_DOCUMENT;
+        mDepth = 0;
+        mPendingEndTag = false;
+        mPeekedToken = -1;
+        mAttributeCount = 0;
+        try {
+            final byte[] header = new byte[MAGIC.length];
+            mIn.readFully(header);
+            if (!BinaryXmlSerializer.isBinaryXml(header, header.length)) {
+                throw new XmlPullParserException("Not a binary XML document");
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read header", this, e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new UnsupportedOperationException("Binary XML requires an InputStream");
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mPendingEndTag) {
+            mPendingEndTag = false;
+            mDepth--;
+        }
+        mAttributeCount = 0;
+        mName = null;
+        mText = null;
+
+        while (true) {
+            final int token = nextToken0();
+            final int event = token & 0x0f;
+            switch (event) {
+                case START_DOCUMENT:
+                    // The start event is reported implicitly before the first next().
+                    continue;
+                case END_DOCUMENT:
+                    mEventType = END_DOCUMENT;
+                    return mEventType;
+                case START_TAG:
+                    mName = readPooled();
+                    if (mDepth == mTagNames.length) {
+                        mTagNames = Arrays.copyOf(mTagNames, mDepth * 2);
+                    }
+                    mTagNames[mDepth++] = mName;
+                    readAttributes();
+                    mEventType = START_TAG;
+                    return mEventType;
+                case END_TAG:
+                    mName = readPooled();
+                    mPendingEndTag = true;
+                    mEventType = END_TAG;
+                    return mEventType;
+                case TEXT:
+                    mText = readString();
+                    mEventType = TEXT;
+                    return mEventType;
+                default:
+                    throw new XmlPullParserException("Unexpected token " + token, this, null);
+            }
+        }
+    }
+
+    private void readAttributes() throws IOException, XmlPullParserException {
+        while (true) {
+            final int token = nextToken0();
+            if ((token & 0x0f) != ATTRIBUTE) {
+                mPeekedToken = token;
+                return;
+            }
+            if (mAttributeCount == mAttributeNames.length) {
+                mAttributeNames = Arrays.copyOf(mAttributeNames, mAttributeCount * 2);
+                mAttributeValues = Arrays.copyOf(mAttributeValues, mAttributeCount * 2);
+            }
+            mAttributeNames[mAttributeCount] = readPooled();
+            switch (token & 0xf0) {
+                case TYPE_STRING_POOLED:
+                    mAttributeValues[mAttributeCount] = readPooled();
+                    break;
+                case TYPE_STRING:
+                    mAttributeValues[mAttributeCount] = readString();
+                    break;
+                default:
+                    throw new XmlPullParserException("Unexpected attribute type " + token,
+                            this, null);
+            }
+            mAttributeCount++;
+        }
+    }
+
+    private int nextToken0() throws IOException {
+        if (mPeekedToken != -1) {
+            final int token = mPeekedToken;
+            mPeekedToken = -1;
+            return token;
+        }
+        final int token = mIn.read();
+        if (token < 0) {
+            throw new EOFException("Unexpected end of binary XML");
+        }
+        return token;
+    }
+
+    private String readPooled() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index == POOL_NEW) {
+            final String s = readString();
+            mPool.add(s);
+            return s;
+        }
+        if (index >= mPool.size()) {
+            throw new IOException("Invalid string pool reference " + index);
+        }
+        return mPool.get(index);
+    }
+
+    private String readString() throws IOException {
+        int length = mIn.readUnsignedShort();
+        if (length == 0xFFFF) {
+            length = mIn.readInt();
+        }
+        if (length > mStringBuffer.length) {
+            mStringBuffer = new byte[Math.max(length, mStringBuffer.length * 2)];
+        }
+        mIn.readFully(mStringBuffer, 0, length);
+        return new String(mStringBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mText.length();
+        return mText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT) {
+            throw new XmlPullParserException("Not a TEXT event", this, null);
+        }
+        for (int i = 0; i < mText.length(); i++) {
+            if (!Character.isWhitespace(mText.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        return false;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributeValues[index];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            // Pooled names are usually the very same literal the caller passes.
+            final String attrName = mAttributeNames[i];
+            if (attrName == name || attrName.equals(name)) {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Attribute index " + index);
+        }
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException, IOException {
+        if (type != mEventType
+                || (namespace != null && !namespace.equals(getNamespace()))
+                || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("expected " + TYPES[type] + getPositionDescription());
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("precondition: START_TAG", this, null);
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = getText();
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("TEXT must be immediately followed by END_TAG",
+                        this, null);
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("parser must be on START_TAG or TEXT to read text",
+                    this, null);
+        }
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("expected START_TAG or END_TAG", this, null);
+        }
+        return eventType;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        final StringBuilder sb = new StringBuilder("binary xml");
+        for (int i = 0; i < mDepth; i++) {
+            sb.append('/').append(mTagNames[i]);
+        }
+        sb.append(" event ").append(TYPES[mEventType]);
+        return sb.toString();
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        throw new XmlPullParserException("Binary XML does not support entity replacement text");
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        // Namespaces and validation are never processed.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Binary XML does not support property " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Streaming {@link XmlSerializer} that writes a compact binary encoding of
+ * the XML event stream, readable with {@link BinaryXmlPullParser}.
+ *
+ * <p>Every event is a single token byte whose low nibble is the
+ * {@link XmlPullParser} event type and whose high nibble describes the
+ * payload. Tag and attribute names, and short attribute values, are written
+ * to a string pool on first use and referenced by index afterwards, so the
+ * repeated package and permission names in settings files are stored once.
+ * Nothing is escaped and no whitespace is emitted.
+ *
+ * <p>Only the features needed by the system settings files are supported:
+ * namespaces, entity references and processing instructions are not.
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /** Magic header; the last byte is the format version. */
+    static final byte[] MAGIC = new byte[] { 'A', 'B', 'X', 1 };
+
+    static final int ATTRIBUTE = 15;
+
+    static final int TYPE_NULL = 1 << 4;
+    static final int TYPE_STRING = 2 << 4;
+    static final int TYPE_STRING_POOLED = 3 << 4;
+
+    /** Pool reference marking a string that is being added to the pool. */
+    static final int POOL_NEW = 0xFFFF;
+    static final int MAX_POOL_SIZE = POOL_NEW;
+
+    /** Values longer than this are written inline rather than pooled. */
+    static final int MAX_POOLED_VALUE_LENGTH = 128;
+
+    /** Pool entries that may be taken by attribute values; the rest is kept for names. */
+    static final int MAX_POOLED_VALUES = MAX_POOL_SIZE / 2;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataOutputStream mOut;
+    private final HashMap<String, Integer> mPool = new HashMap<>();
+
+    private String[] mTagNames = new String[8];
+    private int mDepth;
+
+    /**
+     * Returns true if {@code header} starts with the binary XML magic.
+     */
+    public static boolean isBinaryXml(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Only UTF-8 is supported");
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        mPool.clear();
+        mDepth = 0;
+    }
+
+    @Override
+    public void setOutput(Writer writer) throws IOException {
+        throw new UnsupportedOperationException("Binary XML requires an OutputStream");
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.write(MAGIC);
+        mOut.writeByte(XmlPullParser.START_DOCUMENT | TYPE_NULL);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        mOut.writeByte(XmlPullParser.END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        if (namespace != null && namespace.length() > 0) {
+            throw new UnsupportedOperationException("Namespaces are not supported");
+        }
+        if (mDepth == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, mDepth * 2);
+        }
+        mTagNames[mDepth++] = name;
+        mOut.writeByte(XmlPullParser.START_TAG | TYPE_STRING_POOLED);
+        writePooled(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && namespace.length() > 0) {
+            throw new UnsupportedOperationException("Namespaces are not supported");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Attribute " + name + " has null value");
+        }
+        if (value.length() <= MAX_POOLED_VALUE_LENGTH
+                && (mPool.size() < MAX_POOLED_VALUES || mPool.containsKey(value))) {
+            mOut.writeByte(ATTRIBUTE | TYPE_STRING_POOLED);
+            writePooled(name);
+            writePooled(value);
+        } else {
+            mOut.writeByte(ATTRIBUTE | TYPE_STRING);
+            writePooled(name);
+            writeString(value);
+        }
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        mDepth--;
+        mOut.writeByte(XmlPullParser.END_TAG | TYPE_STRING_POOLED);
+        writePooled(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(XmlPullParser.TEXT | TYPE_STRING);
+        writeString(text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) throws IOException {
+        // Whitespace carries no information in this format.
+    }
+
+    @Override
+    public void comment(String text) throws IOException {
+        // Comments are dropped.
+    }
+
+    @Override
+    public void entityRef(String text) throws IOException {
+        throw new IllegalStateException("Binary XML does not support entity references");
+    }
+
+    @Override
+    public void processingInstruction(String text) throws IOException {
+        throw new IllegalStateException("Binary XML does not support processing instructions");
+    }
+
+    @Override
+    public void docdecl(String text) throws IOException {
+        throw new IllegalStateException("Binary XML does not support document type declarations");
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mDepth > 0 ? mTagNames[mDepth - 1] : null;
+    }
+
+    @Override
+    public String getNamespace() {
+        return null;
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new IllegalStateException("Binary XML does not support namespace prefixes");
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) throws IOException {
+        throw new IllegalStateException("Binary XML does not support namespace prefixes");
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Formatting features such as indent-output have no meaning here.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new IllegalStateException("Binary XML does not support property " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    private void writePooled(String s) throws IOException {
+        final Integer index = mPool.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+        } else if (mPool.size() < MAX_POOL_SIZE) {
+            mPool.put(s, mPool.size());
+            mOut.writeShort(POOL_NEW);
+            writeString(s);
+        } else {
+            throw new IOException("String pool exhausted");
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 0xFFFF) {
+            mOut.writeShort(bytes.length);
+        } else {
+            mOut.writeShort(0xFFFF);
+            mOut.writeInt(bytes.length);
+        }
+        mOut.write(bytes);
+    }
+}
@@ -27,6 +27,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -284,18 +285,28 @@ public class FileRotator {
      */
     public void readMatching(Reader reader, long matchStartMillis, long matchEndMillis)
             throws IOException {
+        for (File file : listMatching(matchStartMillis, matchEndMillis)) {
+            if (LOGD) Slog.d(TAG, "reading matching " + file.getName());
+            readFile(file, reader);
+        }
+    }
+
+    /**
+     * Return any rotated files that overlap the requested time range, for
+     * users that read them in place instead of through a {@link Reader}.
+     */
+    public ArrayList<File> listMatching(long matchStartMillis, long matchEndMillis) {
+        final ArrayList<File> files = new ArrayList<>();
         final FileInfo info = new FileInfo(mPrefix);
         for (String name : mBasePath.list()) {
             if (!info.parse(name)) continue;
 
-            // read file when it overlaps
+            // include file when it overlaps
             if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
-                if (LOGD) Slog.d(TAG, "reading matching " + name);
-
-                final File file = new File(mBasePath, name);
-                readFile(file, reader);
+                files.add(new File(mBasePath, name));
             }
         }
+        return files;
     }
 
     /**
@@ -1108,6 +1108,7 @@ static jboolean Bitmap_writeToParcel(JNIEnv* env, jobject,
             doThrowRE(env, "Could not write bitmap blob file descriptor.");
             return JNI_FALSE;
         }
+        android::noteParcelBlobWritten(bitmap.getSize(), true);
         return JNI_TRUE;
     }
 
@@ -1127,6 +1128,7 @@ static jboolean Bitmap_writeToParcel(JNIEnv* env, jobject,
         doThrowRE(env, "Could not copy bitmap to parcel blob.");
         return JNI_FALSE;
     }
+    android::noteParcelBlobWritten(size, blob.fd() >= 0);
 
     bitmap.lockPixels();
     const void* pSrc =  bitmap.getPixels();
@@ -689,9 +689,17 @@ static CopyRowResult copyRow(JNIEnv* env, CursorWindow* window,
     return result;
 }
 
+/*
+ * Fills the window starting at startPos.  If resumePos is not negative, the statement was
+ * left on row resumePos by a previous call with keepPosition set, that row has not been
+ * copied yet, and startPos equals resumePos.  If keepPosition is set and the window fills
+ * up before the results run out, the statement is not reset and stays on the first row
+ * that did not fit, so that the caller can resume from there.
+ */
 static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
         jlong connectionPtr, jlong statementPtr, jlong windowPtr,
-        jint startPos, jint requiredPos, jboolean countAllRows) {
+        jint startPos, jint requiredPos, jboolean countAllRows,
+        jint resumePos, jboolean keepPosition) {
     SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
     sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
     CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
@@ -715,12 +723,14 @@ static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
     }
 
     int retryCount = 0;
-    int totalRows = 0;
+    int totalRows = resumePos >= 0 ? resumePos : 0;
     int addedRows = 0;
     bool windowFull = false;
     bool gotException = false;
+    bool resume = resumePos >= 0;
     while (!gotException && (!windowFull || countAllRows)) {
-        int err = sqlite3_step(statement);
+        int err = resume ? SQLITE_ROW : sqlite3_step(statement);
+        resume = false;
         if (err == SQLITE_ROW) {
             LOG_WINDOW("Stepped statement %p to row %d", statement, totalRows);
             retryCount = 0;
@@ -772,10 +782,15 @@ static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
         }
     }
 
-    LOG_WINDOW("Resetting statement %p after fetching %d rows and adding %d rows"
-            "to the window in %d bytes",
-            statement, totalRows, addedRows, window->size() - window->freeSpace());
-    sqlite3_reset(statement);
+    if (keepPosition && windowFull && !gotException && !countAllRows) {
+        LOG_WINDOW("Keeping statement %p on row %d after adding %d rows",
+                statement, totalRows - 1, addedRows);
+    } else {
+        LOG_WINDOW("Resetting statement %p after fetching %d rows and adding %d rows"
+                "to the window in %d bytes",
+                statement, totalRows, addedRows, window->size() - window->freeSpace());
+        sqlite3_reset(statement);
+    }
 
     // Report the total number of rows on request.
     if (startPos > totalRows) {
@@ -860,7 +875,7 @@ static JNINativeMethod sMethods[] =
             (void*)nativeExecuteForChangedRowCount },
     { "nativeExecuteForLastInsertedRowId", "(JJ)J",
             (void*)nativeExecuteForLastInsertedRowId },
-    { "nativeExecuteForCursorWindow", "(JJJIIZ)J",
+    { "nativeExecuteForCursorWindow", "(JJJIIZIZ)J",
             (void*)nativeExecuteForCursorWindow },
     { "nativeGetDbLookaside", "(J)I",
             (void*)nativeGetDbLookaside },
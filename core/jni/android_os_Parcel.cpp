@@ -216,6 +216,7 @@ static void android_os_Parcel_writeBlob(JNIEnv* env, jclass clazz, jlong nativeP
         signalExceptionForError(env, clazz, err2);
         return;
     }
+    noteParcelBlobWritten(length, blob.fd() >= 0);
 
     jbyte* ar = (jbyte*)env->GetPrimitiveArrayCritical((jarray)data, 0);
     if (ar == NULL) {
@@ -715,6 +716,37 @@ static jlong android_os_Parcel_getBlobAshmemSize(JNIEnv* env, jclass clazz, jlon
     return 0;
 }
 
+// Blobs written by this process, from Java and from native writers such as Bitmap.
+static Mutex gBlobStatsLock;
+static jlong gBlobsWritten;
+static jlong gBlobBytesWritten;
+static jlong gBlobsInAshmem;
+static jlong gBlobBytesInAshmem;
+
+void noteParcelBlobWritten(size_t size, bool inAshmem)
+{
+    AutoMutex _l(gBlobStatsLock);
+    gBlobsWritten++;
+    gBlobBytesWritten += size;
+    if (inAshmem) {
+        gBlobsInAshmem++;
+        gBlobBytesInAshmem += size;
+    }
+}
+
+static void android_os_Parcel_getBlobStats(JNIEnv* env, jclass clazz, jlongArray stats)
+{
+    jlong values[4];
+    {
+        AutoMutex _l(gBlobStatsLock);
+        values[0] = gBlobsWritten;
+        values[1] = gBlobBytesWritten;
+        values[2] = gBlobsInAshmem;
+        values[3] = gBlobBytesInAshmem;
+    }
+    env->SetLongArrayRegion(stats, 0, 4, values);
+}
+
 // ----------------------------------------------------------------------------
 
 static const JNINativeMethod gParcelMethods[] = {
@@ -769,6 +801,7 @@ static const JNINativeMethod gParcelMethods[] = {
     {"getGlobalAllocCount",       "()J", (void*)android_os_Parcel_getGlobalAllocCount},
 
     {"nativeGetBlobAshmemSize",       "(J)J", (void*)android_os_Parcel_getBlobAshmemSize},
+    {"nativeGetBlobStats",        "([J)V", (void*)android_os_Parcel_getBlobStats},
 };
 
 const char* const kParcelPathName = "android/os/Parcel";
@@ -26,4 +26,9 @@ extern Parcel* parcelForJavaObject(JNIEnv* env, jobject obj);
 extern jobject createJavaParcelObject(JNIEnv* env);
 extern void recycleJavaParcelObject(JNIEnv* env, jobject object);
 
+// Counts a blob written to a Parcel by this process, for Parcel.getBlobStats().
+// Call after every successful Parcel::writeBlob() or blob file descriptor write.
+// inAshmem is true when the blob's contents went to ashmem instead of the parcel.
+extern void noteParcelBlobWritten(size_t size, bool inAshmem);
+
 }
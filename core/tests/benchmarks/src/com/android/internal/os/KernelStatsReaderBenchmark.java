@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Times the kernel wakelock and uid cpu time readers on fixtures made from sample
+ * /d/wakeup_sources and /proc/uid_cputime/show_uid_stat lines, repeated up to the given
+ * number of rows.  The warm runs read the same reader again, as battery stats does; the cold
+ * runs start from a new reader each time.
+ */
+public class KernelStatsReaderBenchmark extends SimpleBenchmark {
+    private static final String WAKEUP_SOURCES_HEADER = "name\t\tactive_count\tevent_count"
+            + "\twakeup_count\texpire_count\tactive_since\ttotal_time\tmax_time"
+            + "\tlast_change\tprevent_suspend_time\n";
+
+    // Lines as the kernel prints them, with names and values seen on devices.
+    private static final String[] WAKEUP_SOURCES = {
+        "PowerManagerService.WakeLocks\t4211\t\t4211\t\t0\t\t0\t\t0\t\t2315620\t\t48210"
+                + "\t\t3580112\t\t0\n",
+        "PowerManagerService.Display\t12\t\t12\t\t0\t\t0\t\t0\t\t1820311\t\t901245"
+                + "\t\t3577000\t\t0\n",
+        "alarmtimer  \t37\t\t37\t\t37\t\t0\t\t0\t\t12\t\t1\t\t3560021\t\t0\n",
+        "eventpoll   \t98121\t\t98123\t\t0\t\t0\t\t0\t\t30211\t\t211\t\t3580390\t\t0\n",
+        "mtk_charger_wakelock\t310\t\t310\t\t0\t\t0\t\t0\t\t42011\t\t2010\t\t3570001\t\t0\n",
+        "KeyEvents   \t1187\t\t1187\t\t0\t\t0\t\t0\t\t398\t\t5\t\t3571122\t\t0\n",
+        "wlan_rx_wakelock\t2201\t\t2201\t\t0\t\t2201\t\t0\t\t1100500\t\t500"
+                + "\t\t3579988\t\t0\n",
+        "radio-interface\t802\t\t802\t\t0\t\t0\t\t0\t\t10230\t\t88\t\t3575530\t\t0\n",
+    };
+
+    // "uid: user_us system_us power", as /proc/uid_cputime prints them.
+    private static final int[] UID_CPUTIME_UIDS = {
+        0, 1000, 1001, 1013, 10008, 10021, 10032, 10054,
+    };
+    private static final String[] UID_CPUTIME_TIMES = {
+        "412330000 981200000 0\n",
+        "2210043000 1399021000 0\n",
+        "122310000 98800000 0\n",
+        "3310000 1203000 0\n",
+        "98812000 22310000 0\n",
+        "1210000 880000 0\n",
+        "712300000 210040000 0\n",
+        "4421000 1030000 0\n",
+    };
+
+    @Param({"50", "200"})
+    int rows;
+
+    private File mDir;
+    private File mWakeupSources;
+    private File mUidCputime;
+    private KernelWakelockReader mWakelockReader;
+    private KernelWakelockStats mWakelockStats;
+    private KernelUidCpuTimeReader mUidCpuTimeReader;
+    private final KernelUidCpuTimeReader.Callback mCallback =
+            new KernelUidCpuTimeReader.Callback() {
+                @Override
+                public void onUidCpuTime(int uid, long userTimeUs, long systemTimeUs,
+                        long powerMaUs) {
+                }
+            };
+
+    @Override
+    protected void setUp() throws IOException {
+        mDir = File.createTempFile("kernelstats", null);
+        mDir.delete();
+        mDir.mkdirs();
+
+        final StringBuilder wakeupSources = new StringBuilder(WAKEUP_SOURCES_HEADER);
+        for (int i = 0; i < rows; i++) {
+            // Make every row a wakeup source of its own.
+            final String row = WAKEUP_SOURCES[i % WAKEUP_SOURCES.length];
+            wakeupSources.append(i).append('_').append(row);
+        }
+        mWakeupSources = writeFixture("wakeup_sources", wakeupSources.toString());
+
+        final StringBuilder uidCputime = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            // Repeat the uids for further users.
+            final int n = UID_CPUTIME_UIDS.length;
+            uidCputime.append(i / n * 100000 + UID_CPUTIME_UIDS[i % n]).append(": ")
+                    .append(UID_CPUTIME_TIMES[i % n]);
+        }
+        mUidCputime = writeFixture("show_uid_stat", uidCputime.toString());
+
+        mWakelockReader = newWakelockReader();
+        mWakelockStats = new KernelWakelockStats();
+        mWakelockReader.readKernelWakelockStats(mWakelockStats);
+        mUidCpuTimeReader = newUidCpuTimeReader();
+        mUidCpuTimeReader.readDelta(null);
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    private File writeFixture(String name, String contents) throws IOException {
+        final File file = new File(mDir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private KernelWakelockReader newWakelockReader() {
+        return new KernelWakelockReader(new File(mDir, "wakelocks").getPath(),
+                mWakeupSources.getPath());
+    }
+
+    private KernelUidCpuTimeReader newUidCpuTimeReader() {
+        return new KernelUidCpuTimeReader(mUidCputime.getPath(),
+                new File(mDir, "remove_uid_range").getPath());
+    }
+
+    public void timeReadKernelWakelocksWarm(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mWakelockReader.readKernelWakelockStats(mWakelockStats);
+        }
+    }
+
+    public void timeReadKernelWakelocksCold(int reps) {
+        for (int i = 0; i < reps; i++) {
+            newWakelockReader().readKernelWakelockStats(new KernelWakelockStats());
+        }
+    }
+
+    public void timeReadUidCpuTimeWarm(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mUidCpuTimeReader.readDelta(mCallback);
+        }
+    }
+
+    public void timeReadUidCpuTimeCold(int reps) {
+        for (int i = 0; i < reps; i++) {
+            newUidCpuTimeReader().readDelta(mCallback);
+        }
+    }
+}
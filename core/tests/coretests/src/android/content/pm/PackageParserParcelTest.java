@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+public class PackageParserParcelTest extends AndroidTestCase {
+
+    private PackageParser.Package parseSelf() throws Exception {
+        final PackageParser pp = new PackageParser();
+        return pp.parsePackage(new File(getContext().getPackageCodePath()), 0);
+    }
+
+    private static PackageParser.Package roundTrip(PackageParser.Package pkg) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            pkg.writeToParcel(parcel);
+            final byte[] bytes = parcel.marshall();
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            final PackageParser.Package restored = new PackageParser.Package(parcel);
+            assertEquals(0, parcel.dataAvail());
+            return restored;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testRoundTripPackage() throws Exception {
+        final PackageParser.Package pkg = parseSelf();
+        final PackageParser.Package restored = roundTrip(pkg);
+
+        assertEquals(pkg.packageName, restored.packageName);
+        assertEquals(pkg.codePath, restored.codePath);
+        assertEquals(pkg.baseCodePath, restored.baseCodePath);
+        assertEquals(pkg.mVersionCode, restored.mVersionCode);
+        assertEquals(pkg.mVersionName, restored.mVersionName);
+        assertEquals(pkg.requestedPermissions, restored.requestedPermissions);
+        assertEquals(pkg.applicationInfo.flags, restored.applicationInfo.flags);
+        assertEquals(pkg.applicationInfo.targetSdkVersion,
+                restored.applicationInfo.targetSdkVersion);
+        assertEquals(pkg.permissions.size(), restored.permissions.size());
+        assertEquals(pkg.receivers.size(), restored.receivers.size());
+        assertEquals(pkg.providers.size(), restored.providers.size());
+        assertEquals(pkg.services.size(), restored.services.size());
+        assertEquals(pkg.instrumentation.size(), restored.instrumentation.size());
+    }
+
+    public void testRoundTripComponents() throws Exception {
+        final PackageParser.Package pkg = parseSelf();
+        final PackageParser.Package restored = roundTrip(pkg);
+
+        assertEquals(pkg.activities.size(), restored.activities.size());
+        for (int i = 0; i < pkg.activities.size(); i++) {
+            final PackageParser.Activity a = pkg.activities.get(i);
+            final PackageParser.Activity b = restored.activities.get(i);
+            assertEquals(a.className, b.className);
+            assertEquals(a.getComponentName(), b.getComponentName());
+            assertSame(restored, b.owner);
+            assertSame(restored.applicationInfo, b.info.applicationInfo);
+            assertEquals(a.info.launchMode, b.info.launchMode);
+            assertEquals(a.intents.size(), b.intents.size());
+            for (int j = 0; j < a.intents.size(); j++) {
+                final PackageParser.ActivityIntentInfo fa = a.intents.get(j);
+                final PackageParser.ActivityIntentInfo fb = b.intents.get(j);
+                assertSame(b, fb.activity);
+                assertEquals(fa.countActions(), fb.countActions());
+                assertEquals(fa.countCategories(), fb.countCategories());
+                assertEquals(fa.countDataSchemes(), fb.countDataSchemes());
+                assertEquals(fa.getPriority(), fb.getPriority());
+                assertEquals(fa.hasDefault, fb.hasDefault);
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.LargeTest;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -47,6 +48,7 @@ public class SQLiteCursorTest extends AndroidTestCase {
 
     @Override
     protected void tearDown() throws Exception {
+        SQLiteGlobal.setCursorStreamingEnabledForTest(null);
         mDatabase.close();
         mDatabaseFile.delete();
         super.tearDown();
@@ -149,4 +151,203 @@ public class SQLiteCursorTest extends AndroidTestCase {
         }
         c.close();
     }
+
+    /**
+     * Fills a table with rows of about 500 bytes, numbered by col1, so that reading it
+     * takes many streaming windows.
+     */
+    private void populateLargeTable(String table, int count) {
+        mDatabase.execSQL("CREATE TABLE " + table + " (col1 int, desc text not null);");
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            buff.append(i % 10 + "");
+        }
+        ContentValues values = new ContentValues();
+        values.put("desc", buff.toString());
+        mDatabase.beginTransaction();
+        for (int j = 0; j < count; j++) {
+            values.put("col1", j);
+            mDatabase.insert(table, null, values);
+        }
+        mDatabase.setTransactionSuccessful();
+        mDatabase.endTransaction();
+    }
+
+    private void checkStreamingForwardScan() {
+        SQLiteGlobal.setCursorStreamingEnabledForTest(true);
+        final String testTable = "testStream";
+        final int N = 5000;
+        populateLargeTable(testTable, N);
+
+        Cursor c = mDatabase.query(testTable, new String[]{"col1", "desc"},
+                null, null, null, null, "col1");
+        try {
+            assertEquals(N, c.getCount());
+            int expected = 0;
+            while (c.moveToNext()) {
+                // Every row exactly once and in order, across each window boundary.
+                assertEquals(expected, c.getPosition());
+                assertEquals(expected, c.getInt(0));
+                expected++;
+            }
+            assertEquals(N, expected);
+
+            // Going back re-executes the query, and the scan can then stream again.
+            assertTrue(c.moveToFirst());
+            assertEquals(0, c.getInt(0));
+            expected = 1;
+            while (c.moveToNext()) {
+                assertEquals(expected++, c.getInt(0));
+            }
+            assertEquals(N, expected);
+        } finally {
+            c.close();
+        }
+    }
+
+    @LargeTest
+    public void testStreamingForwardScan() {
+        checkStreamingForwardScan();
+    }
+
+    @LargeTest
+    public void testStreamingForwardScanWithPrefetch() {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        checkStreamingForwardScan();
+    }
+
+    /**
+     * Streams a table with one row of about 200KB at <code>largePos</code>, bigger than the
+     * first streaming window but well within the default window size.
+     */
+    private void checkStreamingLargeRow(int largePos) {
+        SQLiteGlobal.setCursorStreamingEnabledForTest(true);
+        final String testTable = "testLargeRow";
+        final int N = 2000;
+        populateLargeTable(testTable, N);
+        final byte[] large = new byte[200 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        ContentValues values = new ContentValues();
+        values.put("desc", large);
+        mDatabase.update(testTable, values, "col1 = ?", new String[]{ largePos + "" });
+
+        Cursor c = mDatabase.query(testTable, new String[]{"col1", "desc"},
+                null, null, null, null, "col1");
+        try {
+            assertEquals(N, c.getCount());
+            int expected = 0;
+            while (c.moveToNext()) {
+                assertEquals(expected, c.getInt(0));
+                if (expected == largePos) {
+                    assertTrue(Arrays.equals(large, c.getBlob(1)));
+                }
+                expected++;
+            }
+            assertEquals(N, expected);
+        } finally {
+            c.close();
+        }
+    }
+
+    @LargeTest
+    public void testStreamingLargeFirstRow() {
+        checkStreamingLargeRow(0);
+    }
+
+    @LargeTest
+    public void testStreamingLargeRowAfterFirstWindow() {
+        checkStreamingLargeRow(1000);
+    }
+
+    @LargeTest
+    public void testStreamingLargeRowWithPrefetch() {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        checkStreamingLargeRow(1000);
+    }
+
+    /**
+     * Returns whether a passive checkpoint through <code>db</code> copies the whole
+     * write-ahead log into the database, which it cannot while another connection
+     * holds a read transaction on an older snapshot.
+     */
+    private static boolean checkpointCompletes(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(1) == c.getInt(2);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Starts a streaming scan on a WAL database and reads across the first window
+     * boundary, so that a statement is left positioned part way through the results.
+     * Then changes the database through <code>other</code>, so that the positioned
+     * statement keeps a checkpoint from completing.
+     */
+    private Cursor startParkedScan(SQLiteDatabase other) {
+        final String testTable = "testParked";
+        final int N = 5000;
+        populateLargeTable(testTable, N);
+        assertTrue(checkpointCompletes(other));
+
+        Cursor c = mDatabase.query(testTable, new String[]{"col1", "desc"},
+                null, null, null, null, "col1");
+        assertEquals(N, c.getCount());
+        int windowEnd = ((SQLiteCursor) c).getWindow().getNumRows();
+        assertTrue(windowEnd < N);
+        assertTrue(c.moveToPosition(windowEnd - 1));
+        assertTrue(c.moveToNext());
+        assertEquals(windowEnd, c.getInt(0));
+
+        ContentValues values = new ContentValues();
+        values.put("col1", N);
+        values.put("desc", "");
+        other.insert(testTable, null, values);
+        assertFalse("No read transaction was left open by the scan.",
+                checkpointCompletes(other));
+        return c;
+    }
+
+    private SQLiteDatabase openSecondConnection() {
+        return SQLiteDatabase.openDatabase(mDatabaseFile.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+    }
+
+    @LargeTest
+    public void testCloseWhileParkedEndsReadTransaction() {
+        SQLiteGlobal.setCursorStreamingEnabledForTest(true);
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        SQLiteDatabase other = openSecondConnection();
+        try {
+            Cursor c = startParkedScan(other);
+            c.close();
+            assertTrue("Closed cursor still holds a read transaction.",
+                    checkpointCompletes(other));
+        } finally {
+            other.close();
+        }
+    }
+
+    @LargeTest
+    public void testRequeryWhileParkedEndsReadTransaction() {
+        SQLiteGlobal.setCursorStreamingEnabledForTest(true);
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        SQLiteDatabase other = openSecondConnection();
+        try {
+            Cursor c = startParkedScan(other);
+            try {
+                assertTrue(c.requery());
+                assertTrue("Requeried cursor still holds a read transaction.",
+                        checkpointCompletes(other));
+            } finally {
+                c.close();
+            }
+        } finally {
+            other.close();
+        }
+    }
 }
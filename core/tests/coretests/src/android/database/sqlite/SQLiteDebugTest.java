@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
+import android.database.sqlite.SQLiteDebug.DbStats;
+import android.database.sqlite.SQLiteDebug.PagerStats;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Tests for the connection pool and statement cache statistics reported by {@link SQLiteDebug}.
+ */
+public class SQLiteDebugTest extends AndroidTestCase {
+    private SQLiteDatabase mDatabase;
+    private File mDatabaseFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dbDir = getContext().getDir(getClass().getName(), Context.MODE_PRIVATE);
+        mDatabaseFile = new File(dbDir, "sqlitedebug_test.db");
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile.getPath(), null);
+        mDatabase.enableWriteAheadLogging();
+        mDatabase.execSQL("CREATE TABLE t (i INTEGER);");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        super.tearDown();
+    }
+
+    private ConnectionPoolStats findPoolStats(PagerStats stats) {
+        for (ConnectionPoolStats poolStats : stats.poolStats) {
+            if (mDatabaseFile.getPath().equals(poolStats.dbName)) {
+                return poolStats;
+            }
+        }
+        fail("No pool stats for " + mDatabaseFile);
+        return null;
+    }
+
+    @SmallTest
+    public void testAcquisitionsAreCounted() {
+        final long before = findPoolStats(SQLiteDebug.getDatabaseInfo()).acquisitions;
+        for (int i = 0; i < 10; i++) {
+            mDatabase.execSQL("INSERT INTO t VALUES (?);", new Object[] { i });
+        }
+        final ConnectionPoolStats after = findPoolStats(SQLiteDebug.getDatabaseInfo());
+        assertTrue(after.acquisitions >= before + 10);
+        assertEquals(0, after.waits);
+        assertTrue(after.maxConnections >= after.configuredMaxConnections);
+    }
+
+    @SmallTest
+    public void testStatementCacheSize() {
+        mDatabase.setMaxSqlCacheSize(10);
+        mDatabase.execSQL("INSERT INTO t VALUES (1);");
+        boolean found = false;
+        for (DbStats dbStats : SQLiteDebug.getDatabaseInfo().dbStats) {
+            if (dbStats.dbName.startsWith(mDatabaseFile.getPath())) {
+                assertTrue(dbStats.cacheMaxSize >= 10);
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+}
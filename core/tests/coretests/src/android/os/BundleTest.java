@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.ComponentName;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for lazy unparcelling of {@link Bundle}.
+ */
+@SmallTest
+public class BundleTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BaseBundle.setLazyUnparcel(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BaseBundle.setLazyUnparcel(false);
+        super.tearDown();
+    }
+
+    private static Bundle createBundle() {
+        final Bundle b = new Bundle();
+        b.putString("string", "value");
+        b.putString("nullString", null);
+        b.putInt("int", 42);
+        b.putLong("long", 1L << 40);
+        b.putBoolean("boolean", true);
+        b.putIntArray("intArray", new int[] { 1, 2, 3 });
+        b.putByteArray("byteArray", new byte[] { 1, 2, 3, 4, 5 });
+        b.putStringArray("stringArray", new String[] { "a", null, "ccc" });
+        b.putParcelable("component", new ComponentName("com.example", "com.example.Foo"));
+        final Bundle inner = new Bundle();
+        inner.putString("innerString", "inner");
+        b.putBundle("bundle", inner);
+        final ArrayList<String> list = new ArrayList<>();
+        list.add("x");
+        b.putStringArrayList("list", list);
+        b.putDouble("double", 1.5);
+        return b;
+    }
+
+    private static Bundle roundTrip(Bundle in) {
+        final Parcel p = Parcel.obtain();
+        try {
+            in.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            final Bundle out = p.readBundle();
+            out.setClassLoader(BundleTest.class.getClassLoader());
+            return out;
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static byte[] marshall(Bundle b) {
+        final Parcel p = Parcel.obtain();
+        try {
+            b.writeToParcel(p, 0);
+            return p.marshall();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    public void testSingleLookupsMatchFullUnparcel() {
+        final Bundle lazy = roundTrip(createBundle());
+        assertTrue(lazy.isParcelled());
+
+        // Look keys up out of order so both the scan and the offset index are used.
+        assertEquals(1.5, lazy.getDouble("double"));
+        assertEquals("value", lazy.getString("string"));
+        assertTrue(lazy.containsKey("nullString"));
+        assertNull(lazy.getString("nullString"));
+        assertFalse(lazy.containsKey("missing"));
+        assertEquals(42, lazy.getInt("int"));
+        assertEquals(1L << 40, lazy.getLong("long"));
+        assertTrue(lazy.getBoolean("boolean"));
+        assertEquals(7, lazy.getInt("missing", 7));
+        assertEquals("ccc", lazy.getStringArray("stringArray")[2]);
+        assertEquals(new ComponentName("com.example", "com.example.Foo"),
+                lazy.getParcelable("component"));
+        assertEquals("inner", lazy.getBundle("bundle").getString("innerString"));
+        assertEquals(Arrays.asList("x"), lazy.getStringArrayList("list"));
+        MoreAsserts.assertEquals(new int[] { 1, 2, 3 }, lazy.getIntArray("intArray"));
+        MoreAsserts.assertEquals(new byte[] { 1, 2, 3, 4, 5 }, lazy.getByteArray("byteArray"));
+        assertTrue(lazy.isParcelled());
+
+        // A full unparcel afterwards still sees everything.
+        assertEquals(createBundle().size(), lazy.size());
+        assertFalse(lazy.isParcelled());
+        assertEquals("value", lazy.getString("string"));
+    }
+
+    public void testUnchangedBundleIsCopiedRaw() {
+        final Bundle lazy = roundTrip(createBundle());
+        final byte[] before = marshall(lazy);
+        assertEquals("value", lazy.getString("string"));
+        assertEquals(42, lazy.getInt("int"));
+        final byte[] after = marshall(lazy);
+        assertTrue(lazy.isParcelled());
+        MoreAsserts.assertEquals(before, after);
+    }
+
+    public void testModifiedValueIsWritten() {
+        final Bundle lazy = roundTrip(createBundle());
+        lazy.getIntArray("intArray")[0] = 100;
+        final Bundle copy = roundTrip(lazy);
+        assertFalse(lazy.isParcelled());
+        assertEquals(100, copy.getIntArray("intArray")[0]);
+        assertEquals("value", copy.getString("string"));
+    }
+
+    public void testCopyConstructorKeepsModifiedValue() {
+        final Bundle lazy = roundTrip(createBundle());
+        lazy.getBundle("bundle").putString("innerString", "changed");
+        final Bundle copy = new Bundle(lazy);
+        assertEquals("changed", copy.getBundle("bundle").getString("innerString"));
+    }
+
+    public void testPutAfterLookup() {
+        final Bundle lazy = roundTrip(createBundle());
+        assertEquals(42, lazy.getInt("int"));
+        lazy.putInt("int", 43);
+        assertFalse(lazy.isParcelled());
+        assertEquals(43, lazy.getInt("int"));
+        assertEquals(43, roundTrip(lazy).getInt("int"));
+    }
+}
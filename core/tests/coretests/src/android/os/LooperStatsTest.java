@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class LooperStatsTest extends TestCase {
+    private static final int TEST_WHAT = 42;
+
+    private HandlerThread mThread;
+
+    private static class TestHandler extends Handler {
+        final CountDownLatch mLatch;
+
+        TestHandler(Looper looper, int count) {
+            super(looper);
+            mLatch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.arg1 > 0) {
+                SystemClock.sleep(msg.arg1);
+            }
+            mLatch.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("LooperStatsTest");
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private String dump(LooperStats stats) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw, "");
+        pw.flush();
+        return sw.toString();
+    }
+
+    @MediumTest
+    public void testDisabledByDefault() {
+        assertNull(mThread.getLooper().getStats());
+    }
+
+    @MediumTest
+    public void testRecordsDispatchesAndSlowMessages() throws Exception {
+        final Looper looper = mThread.getLooper();
+        looper.setStatsEnabled(true);
+        final LooperStats stats = looper.getStats();
+        assertNotNull(stats);
+        stats.setSlowDispatchThresholdMs(50);
+
+        final TestHandler handler = new TestHandler(looper, 11);
+        for (int i = 0; i < 10; i++) {
+            handler.sendEmptyMessage(TEST_WHAT);
+        }
+        handler.sendMessage(handler.obtainMessage(TEST_WHAT + 1, 100, 0));
+        assertTrue(handler.mLatch.await(5, TimeUnit.SECONDS));
+        // The latch is released from inside the last dispatch; let it finish.
+        SystemClock.sleep(50);
+
+        final String dump = dump(stats);
+        assertTrue(dump, dump.contains("Dispatched 11 messages"));
+        assertTrue(dump, dump.contains(TestHandler.class.getName() + " what=" + TEST_WHAT
+                + ": count=10"));
+        assertTrue(dump, dump.contains("Slow messages:"));
+        assertTrue(dump, dump.contains(" what=" + (TEST_WHAT + 1) + " dispatch="));
+        assertNull(stats.describeCurrentDispatch());
+
+        stats.reset();
+        assertTrue(dump(stats).contains("Dispatched 0 messages"));
+
+        looper.setStatsEnabled(false);
+        assertNull(looper.getStats());
+    }
+}
@@ -104,6 +104,88 @@ public class MessageQueueTest extends TestCase {
         tester.doTest(1000);
     }
 
+    @MediumTest
+    public void testIndexedMessageOrder() throws Exception {
+        TestHandlerThread tester = new BaseTestHandler() {
+            public void go() {
+                super.go();
+                Looper.myQueue().enableIndexing();
+                long now = SystemClock.uptimeMillis() + 200;
+                mLastMessage = 5;
+                mCount = 0;
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(3), now + 1);
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(4), now + 2);
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(5), now + 2);
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(1), now + 0);
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(2), now + 0);
+                mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(0));
+            }
+        };
+
+        tester.doTest(1000);
+    }
+
+    @MediumTest
+    public void testIndexedUrgentFirst() throws Exception {
+        TestHandlerThread tester = new BaseTestHandler() {
+            public void go() {
+                super.go();
+                Looper.myQueue().enableIndexing();
+                long now = SystemClock.uptimeMillis() + 200;
+                mLastMessage = 3;
+                mCount = 0;
+                // The earlier messages are held up by a barrier until the urgent ones are due.
+                final int token = Looper.myQueue().postSyncBarrier();
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(2), now);
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(3), now + 1);
+                Message urgent = mHandler.obtainMessage(0);
+                urgent.setUrgent(true);
+                mHandler.sendMessageAtTime(urgent, now + 2);
+                urgent = mHandler.obtainMessage(1);
+                urgent.setUrgent(true);
+                mHandler.sendMessageAtTime(urgent, now + 3);
+                Message release = Message.obtain(mHandler, new Runnable() {
+                    public void run() {
+                        Looper.myQueue().removeSyncBarrier(token);
+                    }
+                });
+                release.setAsynchronous(true);
+                mHandler.sendMessageAtTime(release, now + 10);
+            }
+        };
+
+        tester.doTest(1000);
+    }
+
+    @MediumTest
+    public void testIndexedRemoveMessages() throws Exception {
+        TestHandlerThread tester = new BaseTestHandler() {
+            public void go() {
+                super.go();
+                Looper.myQueue().enableIndexing();
+                long now = SystemClock.uptimeMillis() + 100;
+                mLastMessage = 1;
+                mCount = 0;
+                for (int i = 0; i < 100; i++) {
+                    mHandler.sendMessageAtTime(mHandler.obtainMessage(10 + i % 5), now + i);
+                }
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(0), now + 50);
+                mHandler.sendMessageAtTime(mHandler.obtainMessage(1), now + 200);
+                for (int i = 0; i < 5; i++) {
+                    mHandler.removeMessages(10 + i);
+                    if (mHandler.hasMessages(10 + i)) {
+                        failure(new RuntimeException("Message " + (10 + i) + " not removed"));
+                    }
+                }
+                if (!mHandler.hasMessages(0) || !mHandler.hasMessages(1)) {
+                    failure(new RuntimeException("Removed too many messages"));
+                }
+            }
+        };
+
+        tester.doTest(1000);
+    }
+
     private static class TestFieldIntegrityHandler extends TestHandlerThread {
         Handler mHandler;
         int mLastMessage;
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.graphics.Bitmap;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+public class ParcelTest extends TestCase {
+
+    private static byte[] randomBytes(int size) {
+        final byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    public void testObtainRecycleBurst() {
+        // More outstanding parcels than the initial pool holds.
+        final ArrayList<Parcel> parcels = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 32; i++) {
+                final Parcel p = Parcel.obtain();
+                assertEquals(0, p.dataSize());
+                p.writeInt(i);
+                parcels.add(p);
+            }
+            for (Parcel p : parcels) {
+                p.recycle();
+            }
+            parcels.clear();
+        }
+    }
+
+    public void testLargeBlobSpillsToAshmem() {
+        final byte[] data = randomBytes(256 * 1024);
+        final long[] before = Parcel.getBlobStats();
+
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeBlob(data);
+            assertTrue(p.dataSize() < data.length);
+            p.setDataPosition(0);
+            MoreAsserts.assertEquals(data, p.readBlob());
+        } finally {
+            p.recycle();
+        }
+
+        final long[] after = Parcel.getBlobStats();
+        assertEquals(before[0] + 1, after[0]);
+        assertEquals(before[1] + data.length, after[1]);
+        assertEquals(before[2] + 1, after[2]);
+        assertEquals(before[3] + data.length, after[3]);
+    }
+
+    public void testSmallBlobStaysInPlace() {
+        final byte[] data = randomBytes(1024);
+        final long[] before = Parcel.getBlobStats();
+
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeBlob(data);
+            assertTrue(p.dataSize() >= data.length);
+            p.setDataPosition(0);
+            MoreAsserts.assertEquals(data, p.readBlob());
+        } finally {
+            p.recycle();
+        }
+
+        final long[] after = Parcel.getBlobStats();
+        assertEquals(before[0] + 1, after[0]);
+        assertEquals(before[2], after[2]);
+    }
+
+    public void testBitmapBlobIsCounted() {
+        // Bitmaps write their pixels with the native Parcel::writeBlob.
+        final Bitmap bitmap = Bitmap.createBitmap(128, 128, Bitmap.Config.ARGB_8888);
+        final long[] before = Parcel.getBlobStats();
+
+        final Parcel p = Parcel.obtain();
+        try {
+            bitmap.writeToParcel(p, 0);
+        } finally {
+            p.recycle();
+        }
+
+        final long[] after = Parcel.getBlobStats();
+        assertEquals(before[0] + 1, after[0]);
+        assertEquals(before[1] + bitmap.getByteCount(), after[1]);
+    }
+
+    public void testLargeByteArrayValueInBundle() {
+        final byte[] data = randomBytes(512 * 1024);
+        final Bundle in = new Bundle();
+        in.putByteArray("data", data);
+        in.putString("name", "value");
+
+        final Parcel p = Parcel.obtain();
+        try {
+            in.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            final Bundle out = p.readBundle();
+            MoreAsserts.assertEquals(data, out.getByteArray("data"));
+            assertEquals("value", out.getString("name"));
+        } finally {
+            p.recycle();
+        }
+    }
+}
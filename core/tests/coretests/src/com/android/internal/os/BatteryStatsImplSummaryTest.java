@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.BatteryStats;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Checks that changes made through the objects a uid hands out, rather than through
+ * {@link BatteryStatsImpl#getUidStatsLocked}, still reach the delta records of the summary.
+ */
+@SmallTest
+public class BatteryStatsImplSummaryTest extends TestCase {
+    private static final int UID = 10123;
+    private static final int OTHER_UID = 10124;
+    private static final int WHICH = BatteryStats.STATS_SINCE_CHARGED;
+
+    private File mDir;
+    private File mDeltaFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("batterystats", null);
+        mDir.delete();
+        mDir.mkdirs();
+        mDeltaFile = new File(mDir, "batterystats-delta.bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private BatteryStatsImpl newStats() {
+        return new BatteryStatsImpl(mDir, new Handler(Looper.getMainLooper()), null);
+    }
+
+    private BatteryStatsImpl readBack() {
+        final BatteryStatsImpl stats = newStats();
+        synchronized (stats) {
+            stats.readLocked();
+        }
+        return stats;
+    }
+
+    private static BatteryStats.Uid.Proc getProc(BatteryStatsImpl stats, int uid,
+            String name) {
+        final BatteryStats.Uid u = stats.getUidStats().get(uid);
+        assertNotNull(u);
+        final BatteryStats.Uid.Proc proc = u.getProcessStats().get(name);
+        assertNotNull(proc);
+        return proc;
+    }
+
+    private static int getWakeupAlarms(BatteryStatsImpl stats, int uid, String pkg,
+            String tag) {
+        final BatteryStats.Uid u = stats.getUidStats().get(uid);
+        assertNotNull(u);
+        final BatteryStats.Uid.Pkg p = u.getPackageStats().get(pkg);
+        assertNotNull(p);
+        final BatteryStats.Counter counter = p.getWakeupAlarmStats().get(tag);
+        assertNotNull(counter);
+        return counter.getCountLocked(WHICH);
+    }
+
+    public void testProcChangeReachesDeltaRecord() {
+        final BatteryStatsImpl stats = newStats();
+        final BatteryStatsImpl.Uid.Proc proc;
+        final BatteryStatsImpl.Uid.Proc otherProc;
+        synchronized (stats) {
+            proc = stats.getProcessStatsLocked(UID, "proc");
+            proc.incStartsLocked();
+            otherProc = stats.getProcessStatsLocked(OTHER_UID, "other");
+            otherProc.incStartsLocked();
+            otherProc.incNumCrashesLocked();
+            stats.writeSyncLocked();
+        }
+        final long deltaLength = mDeltaFile.length();
+
+        // Only through the Proc this time, which getUidStatsLocked does not see.
+        synchronized (stats) {
+            proc.incStartsLocked();
+            proc.incStartsLocked();
+            proc.incNumCrashesLocked();
+            stats.writeSyncLocked();
+        }
+        assertTrue("The second write was not a delta record.",
+                mDeltaFile.length() > deltaLength);
+
+        final BatteryStatsImpl read = readBack();
+        synchronized (read) {
+            assertEquals(3, getProc(read, UID, "proc").getStarts(WHICH));
+            assertEquals(1, getProc(read, UID, "proc").getNumCrashes(WHICH));
+            // A uid that did not change keeps what the snapshot has.
+            assertEquals(1, getProc(read, OTHER_UID, "other").getStarts(WHICH));
+            assertEquals(1, getProc(read, OTHER_UID, "other").getNumCrashes(WHICH));
+        }
+    }
+
+    public void testPkgChangeReachesDeltaRecord() {
+        final BatteryStatsImpl stats = newStats();
+        final BatteryStatsImpl.Uid.Pkg pkg;
+        synchronized (stats) {
+            pkg = stats.getPackageStatsLocked(UID, "com.example");
+            pkg.noteWakeupAlarmLocked("alarm");
+            stats.writeSyncLocked();
+        }
+        final long deltaLength = mDeltaFile.length();
+
+        synchronized (stats) {
+            pkg.noteWakeupAlarmLocked("alarm");
+            pkg.noteWakeupAlarmLocked("other");
+            stats.writeSyncLocked();
+        }
+        assertTrue("The second write was not a delta record.",
+                mDeltaFile.length() > deltaLength);
+
+        final BatteryStatsImpl read = readBack();
+        synchronized (read) {
+            assertEquals(2, getWakeupAlarms(read, UID, "com.example", "alarm"));
+            assertEquals(1, getWakeupAlarms(read, UID, "com.example", "other"));
+        }
+    }
+
+    public void testRepeatedDeltaRecords() {
+        final BatteryStatsImpl stats = newStats();
+        final BatteryStatsImpl.Uid.Proc proc;
+        synchronized (stats) {
+            proc = stats.getProcessStatsLocked(UID, "proc");
+            stats.writeSyncLocked();
+        }
+        for (int i = 1; i <= 3; i++) {
+            synchronized (stats) {
+                proc.incStartsLocked();
+                stats.writeSyncLocked();
+                // Nothing changed, so this record has no uids.
+                stats.writeSyncLocked();
+            }
+            final BatteryStatsImpl read = readBack();
+            synchronized (read) {
+                assertEquals(i, getProc(read, UID, "proc").getStarts(WHICH));
+            }
+        }
+    }
+}
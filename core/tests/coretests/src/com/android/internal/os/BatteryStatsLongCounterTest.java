@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.os.BatteryStatsImpl.LongCounterPool;
+import com.android.internal.os.BatteryStatsImpl.LongSamplingCounter;
+import com.android.internal.os.BatteryStatsImpl.TimeBase;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link LongSamplingCounter}s kept in a {@link LongCounterPool} count the way
+ * they did as observers of their time base.
+ */
+@SmallTest
+public class BatteryStatsLongCounterTest extends TestCase {
+    private static final int[] WHICH = new int[] {
+        BatteryStats.STATS_SINCE_CHARGED,
+        BatteryStats.STATS_CURRENT,
+        BatteryStats.STATS_SINCE_UNPLUGGED,
+    };
+
+    /** The counter as it was before it moved into the pool, driven by hand. */
+    private static class ObserverCounter {
+        long mCount;
+        long mLoadedCount;
+        long mUnpluggedCount;
+        long mPluggedCount;
+
+        void onTimeStarted() {
+            mUnpluggedCount = mPluggedCount;
+            mCount = mPluggedCount;
+        }
+
+        void onTimeStopped() {
+            mPluggedCount = mCount;
+        }
+
+        long getCountLocked(int which) {
+            long val = mCount;
+            if (which == BatteryStats.STATS_SINCE_UNPLUGGED) {
+                val -= mUnpluggedCount;
+            } else if (which != BatteryStats.STATS_SINCE_CHARGED) {
+                val -= mLoadedCount;
+            }
+            return val;
+        }
+
+        void addCountLocked(long count) {
+            mCount += count;
+        }
+
+        void reset() {
+            mCount = mLoadedCount = mPluggedCount = mUnpluggedCount = 0;
+        }
+
+        void readSummary(long loadedCount) {
+            mLoadedCount = loadedCount;
+            mCount = loadedCount;
+            mUnpluggedCount = mPluggedCount = loadedCount;
+        }
+    }
+
+    private TimeBase mTimeBase;
+    private long mTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTimeBase = new TimeBase();
+        mTimeBase.init(0, 0);
+    }
+
+    private void setRunning(boolean running) {
+        mTime += 1000;
+        mTimeBase.setRunning(running, mTime, mTime);
+    }
+
+    private static void assertCounts(String msg, long since, long current, long unplugged,
+            LongSamplingCounter counter) {
+        assertEquals(msg, since, counter.getCountLocked(BatteryStats.STATS_SINCE_CHARGED));
+        assertEquals(msg, current, counter.getCountLocked(BatteryStats.STATS_CURRENT));
+        assertEquals(msg, unplugged,
+                counter.getCountLocked(BatteryStats.STATS_SINCE_UNPLUGGED));
+    }
+
+    private static void assertMatches(String msg, ObserverCounter expected,
+            LongSamplingCounter counter) {
+        for (int which : WHICH) {
+            assertEquals(msg + " which=" + which, expected.getCountLocked(which),
+                    counter.getCountLocked(which));
+        }
+    }
+
+    private static void readSummary(LongSamplingCounter counter, long loadedCount) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeLong(loadedCount);
+            parcel.setDataPosition(0);
+            counter.readSummaryFromParcelLocked(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testFreedSlotReusedWithoutOldCounts() {
+        final LongSamplingCounter first = new LongSamplingCounter(mTimeBase);
+        readSummary(first, 7);
+        setRunning(true);
+        first.addCountLocked(5);
+        setRunning(false);
+        final int slot = first.mSlot;
+        first.detach();
+
+        final LongSamplingCounter second = new LongSamplingCounter(mTimeBase);
+        assertEquals(slot, second.mSlot);
+        assertCounts("new counter", 0, 0, 0, second);
+        // Starting the time base copies the plugged count, which must be gone as well.
+        setRunning(true);
+        assertCounts("after start", 0, 0, 0, second);
+        second.addCountLocked(2);
+        setRunning(false);
+        assertCounts("after stop", 2, 2, 2, second);
+    }
+
+    public void testDetachKeepsValues() {
+        final LongSamplingCounter counter = new LongSamplingCounter(mTimeBase);
+        readSummary(counter, 10);
+        setRunning(true);
+        counter.addCountLocked(4);
+        counter.detach();
+        assertSame(mTimeBase.mDetachedLongCounters, counter.mPool);
+        assertTrue(counter.mSlot != LongCounterPool.SHARED_ZERO_SLOT);
+        assertCounts("detached", 14, 4, 4, counter);
+
+        // A detached counter no longer follows its time base.
+        setRunning(false);
+        setRunning(true);
+        assertCounts("after restart", 14, 4, 4, counter);
+        counter.addCountLocked(1);
+        assertCounts("after add", 15, 5, 5, counter);
+    }
+
+    public void testDetachClearCounterSharesZeroSlot() {
+        final LongSamplingCounter a = new LongSamplingCounter(mTimeBase);
+        final LongSamplingCounter b = new LongSamplingCounter(mTimeBase);
+        a.reset(true);
+        b.reset(true);
+        assertEquals(LongCounterPool.SHARED_ZERO_SLOT, a.mSlot);
+        assertEquals(LongCounterPool.SHARED_ZERO_SLOT, b.mSlot);
+
+        // Writing moves the counter to a slot of its own, and the shared slot stays zero.
+        a.addCountLocked(3);
+        assertTrue(a.mSlot != LongCounterPool.SHARED_ZERO_SLOT);
+        assertCounts("written", 3, 3, 3, a);
+        assertCounts("still shared", 0, 0, 0, b);
+        assertTrue(mTimeBase.mDetachedLongCounters.isClear(LongCounterPool.SHARED_ZERO_SLOT));
+    }
+
+    public void testResetDetachedReturnsToZeroSlot() {
+        final LongSamplingCounter counter = new LongSamplingCounter(mTimeBase);
+        counter.addCountLocked(8);
+        counter.detach();
+        final int slot = counter.mSlot;
+        assertTrue(slot != LongCounterPool.SHARED_ZERO_SLOT);
+
+        counter.reset(false);
+        assertEquals(LongCounterPool.SHARED_ZERO_SLOT, counter.mSlot);
+        assertCounts("reset", 0, 0, 0, counter);
+
+        // The freed slot is cleared and handed to the next counter that needs one.
+        final LongSamplingCounter other = new LongSamplingCounter(mTimeBase);
+        other.addCountLocked(1);
+        other.detach();
+        assertEquals(slot, other.mSlot);
+        assertCounts("reused", 1, 1, 1, other);
+    }
+
+    public void testStartStopMatchesObserver() {
+        final LongSamplingCounter[] counters = new LongSamplingCounter[20];
+        final ObserverCounter[] expected = new ObserverCounter[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongSamplingCounter(mTimeBase);
+            expected[i] = new ObserverCounter();
+        }
+        for (int i = 0; i < counters.length; i += 3) {
+            readSummary(counters[i], 100 + i);
+            expected[i].readSummary(100 + i);
+        }
+
+        boolean running = false;
+        for (int step = 0; step < 40; step++) {
+            for (int i = 0; i < counters.length; i++) {
+                if ((i + step) % 4 == 0) {
+                    counters[i].addCountLocked(i + step);
+                    expected[i].addCountLocked(i + step);
+                }
+            }
+            if (step % 5 == 4) {
+                running = !running;
+                setRunning(running);
+                for (ObserverCounter e : expected) {
+                    if (running) {
+                        e.onTimeStarted();
+                    } else {
+                        e.onTimeStopped();
+                    }
+                }
+            }
+            if (step == 17) {
+                counters[5].reset(false);
+                expected[5].reset();
+            }
+            for (int i = 0; i < counters.length; i++) {
+                assertMatches("step " + step + " counter " + i, expected[i], counters[i]);
+            }
+        }
+    }
+}
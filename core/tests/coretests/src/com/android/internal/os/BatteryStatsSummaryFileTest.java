@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+@SmallTest
+public class BatteryStatsSummaryFileTest extends TestCase {
+    private static final int VERSION = 130;
+
+    private File mDir;
+    private File mFile;
+    private File mTmpFile;
+    private File mDeltaFile;
+
+    // The summary being saved, and what the file has of it.
+    private long mHistoryBaseTime;
+    private final Parcel mHistory = Parcel.obtain();
+    private final TreeMap<Integer, String> mTags = new TreeMap<>();
+    private String mGlobal = "global";
+    private final TreeMap<Integer, String> mUids = new TreeMap<>();
+    private int mSavedHistory;
+    private int mSavedTags;
+    private final TreeMap<Integer, String> mSavedUids = new TreeMap<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("batterystats", null);
+        mDir.delete();
+        mDir.mkdirs();
+        mFile = new File(mDir, "batterystats.bin");
+        mTmpFile = new File(mDir, "batterystats.bin.tmp");
+        mDeltaFile = new File(mDir, "batterystats-delta.bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        mHistory.recycle();
+        super.tearDown();
+    }
+
+    private BatteryStatsSummaryFile newFile() {
+        return new BatteryStatsSummaryFile(mFile, mTmpFile, mDeltaFile);
+    }
+
+    private static void writeSection(Parcel out, String contents) {
+        final Parcel section = Parcel.obtain();
+        section.writeString(contents);
+        out.writeInt(section.dataSize());
+        out.appendFrom(section, 0, section.dataSize());
+        section.recycle();
+    }
+
+    /** Writes a record the way BatteryStatsImpl does. */
+    private void write(BatteryStatsSummaryFile file, boolean full) throws Exception {
+        if (full) {
+            mSavedHistory = 0;
+            mSavedTags = 0;
+            mSavedUids.clear();
+        }
+        final Parcel out = Parcel.obtain();
+        out.writeInt(full ? BatteryStatsSummaryFile.FLAG_FULL : 0);
+        out.writeLong(mHistoryBaseTime);
+        out.writeInt(mSavedHistory);
+        final Parcel tags = Parcel.obtain();
+        int newTags = 0;
+        for (Map.Entry<Integer, String> tag : mTags.entrySet()) {
+            if (tag.getKey() >= mSavedTags) {
+                tags.writeInt(tag.getKey());
+                tags.writeString(tag.getValue());
+                tags.writeInt(1000);
+                newTags++;
+            }
+        }
+        out.writeInt(newTags);
+        out.writeInt(tags.dataSize());
+        out.appendFrom(tags, 0, tags.dataSize());
+        tags.recycle();
+        out.writeInt(mHistory.dataSize() - mSavedHistory);
+        out.appendFrom(mHistory, mSavedHistory, mHistory.dataSize() - mSavedHistory);
+        mSavedHistory = mHistory.dataSize();
+        mSavedTags = mTags.size();
+        writeSection(out, mGlobal);
+
+        int changed = 0;
+        for (Map.Entry<Integer, String> uid : mUids.entrySet()) {
+            if (!uid.getValue().equals(mSavedUids.get(uid.getKey()))) {
+                changed++;
+            }
+        }
+        out.writeInt(changed);
+        for (Map.Entry<Integer, String> uid : mUids.entrySet()) {
+            if (!uid.getValue().equals(mSavedUids.get(uid.getKey()))) {
+                out.writeInt(uid.getKey());
+                writeSection(out, uid.getValue());
+                mSavedUids.put(uid.getKey(), uid.getValue());
+            }
+        }
+        final TreeMap<Integer, String> removed = new TreeMap<>(mSavedUids);
+        removed.keySet().removeAll(mUids.keySet());
+        out.writeInt(removed.size());
+        for (int uid : removed.keySet()) {
+            out.writeInt(uid);
+            mSavedUids.remove(uid);
+        }
+
+        file.write(VERSION, out);
+        out.recycle();
+    }
+
+    /** Checks that the file reads back as BatteryStatsImpl#writeSummaryToParcel would. */
+    private void assertReadsBack() throws Exception {
+        final Parcel expected = Parcel.obtain();
+        expected.writeInt(VERSION);
+        expected.writeLong(mHistoryBaseTime);
+        expected.writeInt(mTags.size());
+        for (Map.Entry<Integer, String> tag : mTags.entrySet()) {
+            expected.writeInt(tag.getKey());
+            expected.writeString(tag.getValue());
+            expected.writeInt(1000);
+        }
+        expected.writeInt(mHistory.dataSize());
+        expected.appendFrom(mHistory, 0, mHistory.dataSize());
+        expected.writeString(mGlobal);
+        expected.writeInt(mUids.size());
+        for (Map.Entry<Integer, String> uid : mUids.entrySet()) {
+            expected.writeInt(uid.getKey());
+            expected.writeString(uid.getValue());
+        }
+
+        final Parcel actual = newFile().read();
+        assertNotNull(actual);
+        assertTrue(Arrays.equals(expected.marshall(), actual.marshall()));
+        expected.recycle();
+        actual.recycle();
+    }
+
+    private void appendHistory(int value) {
+        mHistory.setDataPosition(mHistory.dataSize());
+        mHistory.writeInt(value);
+    }
+
+    public void testNoFile() throws Exception {
+        assertNull(newFile().read());
+    }
+
+    public void testOldSnapshot() throws Exception {
+        final Parcel old = Parcel.obtain();
+        old.writeInt(VERSION);
+        old.writeLong(42);
+        final byte[] raw = old.marshall();
+        old.recycle();
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(raw);
+        out.close();
+
+        final BatteryStatsSummaryFile file = newFile();
+        final Parcel in = file.read();
+        assertTrue(Arrays.equals(raw, in.marshall()));
+        in.recycle();
+
+        // There is nothing for a delta to build on.
+        write(file, false);
+        assertTrue(file.needsFullWrite());
+        write(file, true);
+        assertFalse(file.needsFullWrite());
+        assertReadsBack();
+    }
+
+    public void testDeltas() throws Exception {
+        final BatteryStatsSummaryFile file = newFile();
+        mTags.put(0, "wake");
+        appendHistory(1);
+        appendHistory(2);
+        mUids.put(1000, "system");
+        mUids.put(10001, "app one");
+        mUids.put(10002, "app two");
+        write(file, true);
+        assertReadsBack();
+        final long snapshotLength = mFile.length();
+
+        // The last history entry is rewritten, a tag and an entry are added, one uid
+        // changes and one goes away.
+        mHistoryBaseTime = 5;
+        mHistory.setDataSize(4);
+        mSavedHistory = 4;
+        appendHistory(3);
+        appendHistory(4);
+        mTags.put(1, "alarm");
+        mGlobal = "global 2";
+        mUids.put(10001, "app one, later");
+        mUids.remove(10002);
+        write(file, false);
+        assertEquals(snapshotLength, mFile.length());
+        assertTrue(mDeltaFile.length() > 0);
+        assertReadsBack();
+
+        mUids.put(10003, "app three");
+        write(file, false);
+        assertReadsBack();
+    }
+
+    public void testDamagedDeltaIsIgnored() throws Exception {
+        BatteryStatsSummaryFile file = newFile();
+        mUids.put(10001, "app");
+        write(file, true);
+        mUids.put(10001, "app 2");
+        write(file, false);
+
+        final FileOutputStream out = new FileOutputStream(mDeltaFile, true);
+        out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+                19, 20, 21, 22, 23, 24 });
+        out.close();
+        assertReadsBack();
+
+        // The next write replaces the damaged record.
+        file = newFile();
+        file.read();
+        mUids.put(10001, "app 3");
+        write(file, false);
+        assertReadsBack();
+    }
+
+    public void testCompaction() throws Exception {
+        final BatteryStatsSummaryFile file = newFile();
+        final char[] big = new char[4096];
+        Arrays.fill(big, 'x');
+        for (int uid = 10000; uid < 10010; uid++) {
+            mUids.put(uid, new String(big));
+        }
+        write(file, true);
+        final long snapshotLength = mFile.length();
+
+        boolean compacted = false;
+        for (int i = 0; i < 100 && !compacted; i++) {
+            big[0] = (char) ('a' + i % 26);
+            mUids.put(10000 + i % 10, new String(big) + i);
+            appendHistory(i);
+            write(file, false);
+            compacted = mFile.length() != snapshotLength;
+        }
+        assertTrue(compacted);
+        assertFalse(mDeltaFile.exists());
+        assertReadsBack();
+
+        mUids.put(10000, "small");
+        write(file, false);
+        assertReadsBack();
+    }
+}
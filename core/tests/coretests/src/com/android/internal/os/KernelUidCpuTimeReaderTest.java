@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+import android.util.SparseLongArray;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks {@link KernelUidCpuTimeReader#readDelta} against the String based parsing it used
+ * before it parsed the file in place.  The deltas it reports must be the same, except that a
+ * malformed line is now skipped where the old reader threw.
+ */
+@SmallTest
+public class KernelUidCpuTimeReaderTest extends TestCase {
+    private File mDir;
+    private File mProcFile;
+
+    /** The old readDelta, reading from a String and recording what it reported. */
+    private static class StringReader {
+        final SparseLongArray mLastUserTimeUs = new SparseLongArray();
+        final SparseLongArray mLastSystemTimeUs = new SparseLongArray();
+        final SparseLongArray mLastPowerMaUs = new SparseLongArray();
+
+        List<String> readDelta(String contents) {
+            final List<String> result = new ArrayList<>();
+            final TextUtils.SimpleStringSplitter splitter =
+                    new TextUtils.SimpleStringSplitter(' ');
+            for (String line : contents.split("\n")) {
+                splitter.setString(line);
+                final String uidStr = splitter.next();
+                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
+                final long userTimeUs = Long.parseLong(splitter.next(), 10);
+                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
+                final long powerMaUs;
+                if (splitter.hasNext()) {
+                    powerMaUs = Long.parseLong(splitter.next(), 10) / 1000;
+                } else {
+                    powerMaUs = 0;
+                }
+
+                long userTimeDeltaUs = userTimeUs;
+                long systemTimeDeltaUs = systemTimeUs;
+                long powerDeltaMaUs = powerMaUs;
+                final int index = mLastUserTimeUs.indexOfKey(uid);
+                if (index >= 0) {
+                    userTimeDeltaUs -= mLastUserTimeUs.valueAt(index);
+                    systemTimeDeltaUs -= mLastSystemTimeUs.valueAt(index);
+                    powerDeltaMaUs -= mLastPowerMaUs.valueAt(index);
+                    if (userTimeDeltaUs < 0 || systemTimeDeltaUs < 0 || powerDeltaMaUs < 0) {
+                        userTimeDeltaUs = 0;
+                        systemTimeDeltaUs = 0;
+                        powerDeltaMaUs = 0;
+                    }
+                }
+                if (userTimeDeltaUs != 0 || systemTimeDeltaUs != 0 || powerDeltaMaUs != 0) {
+                    result.add(format(uid, userTimeDeltaUs, systemTimeDeltaUs, powerDeltaMaUs));
+                }
+                mLastUserTimeUs.put(uid, userTimeUs);
+                mLastSystemTimeUs.put(uid, systemTimeUs);
+                mLastPowerMaUs.put(uid, powerMaUs);
+            }
+            return result;
+        }
+    }
+
+    private static class RecordingCallback implements KernelUidCpuTimeReader.Callback {
+        final List<String> mReported = new ArrayList<>();
+
+        @Override
+        public void onUidCpuTime(int uid, long userTimeUs, long systemTimeUs, long powerMaUs) {
+            mReported.add(format(uid, userTimeUs, systemTimeUs, powerMaUs));
+        }
+    }
+
+    private static String format(int uid, long userTimeUs, long systemTimeUs, long powerMaUs) {
+        return uid + ": u=" + userTimeUs + " s=" + systemTimeUs + " p=" + powerMaUs;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("uid_cputime", null);
+        mDir.delete();
+        mDir.mkdirs();
+        mProcFile = new File(mDir, "show_uid_stat");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private KernelUidCpuTimeReader newReader() {
+        return new KernelUidCpuTimeReader(mProcFile.getPath(),
+                new File(mDir, "remove_uid_range").getPath());
+    }
+
+    private void write(String contents) throws Exception {
+        final FileOutputStream out = new FileOutputStream(mProcFile);
+        try {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    private List<String> readDelta(KernelUidCpuTimeReader reader, String contents)
+            throws Exception {
+        write(contents);
+        final RecordingCallback callback = new RecordingCallback();
+        reader.readDelta(callback);
+        return callback.mReported;
+    }
+
+    /** Reads each of {@code contents} in turn, checking every read against the old parsing. */
+    private void checkReads(String... contents) throws Exception {
+        final KernelUidCpuTimeReader reader = newReader();
+        final StringReader expected = new StringReader();
+        for (String content : contents) {
+            assertEquals(content, expected.readDelta(content), readDelta(reader, content));
+        }
+    }
+
+    public void testPowerColumn() throws Exception {
+        checkReads(
+                "0: 1000 2000 3000000\n"
+                + "1000: 40000 50000 60999\n"
+                + "10001: 7 8 999\n",
+                "0: 1500 2000 3000000\n"
+                + "1000: 40000 50001 61000\n"
+                + "10001: 7 8 1999\n");
+    }
+
+    public void testNoPowerColumn() throws Exception {
+        checkReads(
+                "0: 1000 2000\n"
+                + "1000: 40000 50000\n",
+                "0: 1000 2500\n"
+                + "1000: 40000 50000 2000\n"
+                + "10001: 3 4\n");
+    }
+
+    public void testUnchangedUidsSkipped() throws Exception {
+        final String first = "0: 1000 2000 3000\n"
+                + "1000: 4000 5000 6000\n"
+                + "10001: 7000 8000 9000\n";
+        final String second = "0: 1000 2000 3000\n"
+                + "1000: 4001 5000 6000\n"
+                + "10001: 7000 8000 9000\n";
+        checkReads(first, first, second, second);
+
+        final KernelUidCpuTimeReader reader = newReader();
+        assertEquals(3, readDelta(reader, first).size());
+        assertTrue(readDelta(reader, first).isEmpty());
+        final List<String> reported = readDelta(reader, second);
+        assertEquals(1, reported.size());
+        assertEquals(format(1000, 1, 0, 0), reported.get(0));
+    }
+
+    public void testTimesGoingBackwards() throws Exception {
+        checkReads(
+                "1000: 4000 5000 6000\n",
+                "1000: 3000 6000 6000\n",
+                "1000: 3500 6000 6000\n");
+    }
+
+    public void testNullCallbackConsumesData() throws Exception {
+        final KernelUidCpuTimeReader reader = newReader();
+        write("1000: 4000 5000 6000\n");
+        reader.readDelta(null);
+        final List<String> reported = readDelta(reader, "1000: 4500 5000 6000\n");
+        assertEquals(1, reported.size());
+        assertEquals(format(1000, 500, 0, 0), reported.get(0));
+    }
+
+    public void testMalformedLinesSkipped() throws Exception {
+        final String before = "0: 1000 2000 3000\n";
+        final String after = "10001: 7000 8000 9000\n";
+        final String[] malformed = new String[] {
+            "1000: 4000 abc 6000\n",
+            "1000: 4000\n",
+            "1000:\n",
+            ":4000 5000\n",
+        };
+        for (String line : malformed) {
+            final String contents = before + line + after;
+            try {
+                new StringReader().readDelta(contents);
+                fail("The old parsing accepted " + line);
+            } catch (RuntimeException expected) {
+                // It gave up on the whole read, where readDelta now skips the line.
+            }
+            assertEquals(line, new StringReader().readDelta(before + after),
+                    readDelta(newReader(), contents));
+        }
+    }
+
+    public void testLargeFile() throws Exception {
+        // More than the initial buffer holds, so the buffer grows.
+        final StringBuilder first = new StringBuilder();
+        final StringBuilder second = new StringBuilder();
+        for (int uid = 10000; uid < 11000; uid++) {
+            first.append(uid).append(": ").append(uid * 3).append(' ').append(uid * 5)
+                    .append(' ').append(uid * 7000L).append('\n');
+            second.append(uid).append(": ").append(uid * 3 + uid % 2).append(' ')
+                    .append(uid * 5).append(' ').append(uid * 7000L).append('\n');
+        }
+        checkReads(first.toString(), second.toString());
+    }
+
+    public void testNoTrailingNewline() throws Exception {
+        checkReads(
+                "0: 1000 2000 3000\n1000: 4000 5000 6000",
+                "0: 1000 2000 3000\n1000: 4000 5001 6000");
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Process;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks {@link KernelWakelockReader} against Process.parseProcLine with the formats it used
+ * before it parsed lines itself.  Unlike the old reader it also keeps the last line and drops
+ * wakelocks that are gone, so the expected stats are built from every line.
+ */
+@SmallTest
+public class KernelWakelockReaderTest extends TestCase {
+    private static final int[] PROC_WAKELOCKS_FORMAT = new int[] {
+        Process.PROC_TAB_TERM|Process.PROC_OUT_STRING|                // 0: name
+                              Process.PROC_QUOTES,
+        Process.PROC_TAB_TERM|Process.PROC_OUT_LONG,                  // 1: count
+        Process.PROC_TAB_TERM,
+        Process.PROC_TAB_TERM,
+        Process.PROC_TAB_TERM,
+        Process.PROC_TAB_TERM|Process.PROC_OUT_LONG,                  // 5: totalTime
+    };
+
+    private static final int[] WAKEUP_SOURCES_FORMAT = new int[] {
+        Process.PROC_TAB_TERM|Process.PROC_OUT_STRING,                // 0: name
+        Process.PROC_TAB_TERM|Process.PROC_COMBINE|
+                              Process.PROC_OUT_LONG,                  // 1: count
+        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
+        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
+        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
+        Process.PROC_TAB_TERM|Process.PROC_COMBINE,
+        Process.PROC_TAB_TERM|Process.PROC_COMBINE
+                             |Process.PROC_OUT_LONG,                  // 6: totalTime
+    };
+
+    private static final String WAKELOCKS_HEADER =
+            "name\tcount\texpire_count\twake_count\tactive_since\ttotal_time\tsleep_time"
+            + "\tmax_time\tlast_change\n";
+    private static final String WAKEUP_SOURCES_HEADER =
+            "name\t\tactive_count\tevent_count\twakeup_count\texpire_count\tactive_since"
+            + "\ttotal_time\tmax_time\tlast_change\tprevent_suspend_time\n";
+
+    private File mDir;
+    private File mWakelockFile;
+    private File mWakeupSourceFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("wakelocks", null);
+        mDir.delete();
+        mDir.mkdirs();
+        mWakelockFile = new File(mDir, "wakelocks");
+        mWakeupSourceFile = new File(mDir, "wakeup_sources");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private KernelWakelockReader newReader() {
+        return new KernelWakelockReader(mWakelockFile.getPath(), mWakeupSourceFile.getPath());
+    }
+
+    private static void write(File file, String contents) throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Parses the file the way the old reader did, as "count/totalTime" by name. */
+    private static TreeMap<String, String> parseWithProcess(String contents,
+            boolean wakeupSources) {
+        final byte[] bytes = contents.getBytes(StandardCharsets.US_ASCII);
+        final int len = bytes.length;
+        // parseProcLine may write to buffer[endIndex], so leave room past the last line.
+        final byte[] buffer = Arrays.copyOf(bytes, len + 1);
+        final String[] names = new String[3];
+        final long[] data = new long[3];
+        final TreeMap<String, long[]> totals = new TreeMap<>();
+
+        int startIndex = contents.indexOf('\n') + 1;
+        while (startIndex > 0 && startIndex < len) {
+            int endIndex = startIndex;
+            while (endIndex < len && buffer[endIndex] != '\n') {
+                endIndex++;
+            }
+            endIndex = Math.min(endIndex + 1, len);
+            names[0] = null;
+            data[1] = data[2] = 0;
+            final boolean parsed = Process.parseProcLine(buffer, startIndex, endIndex,
+                    wakeupSources ? WAKEUP_SOURCES_FORMAT : PROC_WAKELOCKS_FORMAT,
+                    names, data, null);
+            if (parsed && names[0].length() > 0) {
+                final long totalTime = wakeupSources ? data[2] * 1000 : (data[2] + 500) / 1000;
+                long[] total = totals.get(names[0]);
+                if (total == null) {
+                    total = new long[2];
+                    totals.put(names[0], total);
+                }
+                total[0] += (int) data[1];
+                total[1] += totalTime;
+            }
+            startIndex = endIndex;
+        }
+
+        final TreeMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, long[]> ent : totals.entrySet()) {
+            result.put(ent.getKey(), ent.getValue()[0] + "/" + ent.getValue()[1]);
+        }
+        return result;
+    }
+
+    private static TreeMap<String, String> toMap(KernelWakelockStats stats) {
+        final TreeMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, KernelWakelockStats.Entry> ent : stats.entrySet()) {
+            result.put(ent.getKey(), ent.getValue().mCount + "/" + ent.getValue().mTotalTime);
+        }
+        return result;
+    }
+
+    /** Reads each of {@code contents} in turn into the same stats, checking every read. */
+    private void checkReads(boolean wakeupSources, String... contents) throws Exception {
+        final File file = wakeupSources ? mWakeupSourceFile : mWakelockFile;
+        // The reader only falls back to wakeup_sources when there are no wakelocks.
+        mWakelockFile.delete();
+        final KernelWakelockReader reader = newReader();
+        final KernelWakelockStats stats = new KernelWakelockStats();
+        for (String content : contents) {
+            write(file, content);
+            final TreeMap<String, String> expected = parseWithProcess(content, wakeupSources);
+            assertEquals(content, expected, toMap(reader.readKernelWakelockStats(stats)));
+            // A fresh reader, which has nothing to reuse, agrees as well.
+            assertEquals(content, expected,
+                    toMap(newReader().readKernelWakelockStats(new KernelWakelockStats())));
+        }
+    }
+
+    public void testProcWakelocks() throws Exception {
+        checkReads(false,
+                WAKELOCKS_HEADER
+                + "\"PowerManagerService\"\t12\t0\t0\t0\t123456789\t0\t0\t0\n"
+                + "\"radio-interface\"\t3\t0\t0\t0\t2500\t0\t0\t0\n"
+                + "\"alarm\"\t7\t0\t0\t0\t499\t0\t0\t0\n");
+    }
+
+    public void testQuotedNames() throws Exception {
+        checkReads(false,
+                WAKELOCKS_HEADER
+                + "\"with space\"\t1\t0\t0\t0\t1000\t0\t0\t0\n"
+                + "\"with\ttab\"\t2\t0\t0\t0\t2000\t0\t0\t0\n"
+                + "unquoted\t3\t0\t0\t0\t3000\t0\t0\t0\n"
+                + "\"\"\t4\t0\t0\t0\t4000\t0\t0\t0\n"
+                + "\"unterminated\t5\t0\t0\t0\t5000\t0\t0\t0\n");
+    }
+
+    public void testWakeupSources() throws Exception {
+        checkReads(true,
+                WAKEUP_SOURCES_HEADER
+                + "ipc000000b0_sensors.qcom\t0\t0\t0\t0\t0\t0\t0\t14486\t0\n"
+                + "eventpoll\t\t1542\t\t1542\t\t0\t\t0\t\t0\t\t317\t\t13\t\t14486\t0\n"
+                + "qcom_rx_wakelock\t12\t\t\t\t13\t0\t0\t0\t\t\t\t\t9876\t0\t14486\t0\n");
+    }
+
+    public void testTabRuns() throws Exception {
+        // Tabs after a wakeup_sources value count as one; tabs after the name do not.
+        checkReads(true,
+                WAKEUP_SOURCES_HEADER
+                + "a\t\t\t1\t2\t3\t4\t5\t6\t7\n"
+                + "b\t1\t\t\t\t\t\t2\t\t3\t4\t5\t6\n"
+                + "c \t 4\t0\t0\t0\t0\t 70\t0\n");
+        checkReads(false,
+                WAKELOCKS_HEADER
+                + "\"a\"\t\t1\t0\t0\t0\t1000\t0\n"
+                + "b\t1\t\t\t\t\t2000\t0\n");
+    }
+
+    public void testDuplicateNames() throws Exception {
+        checkReads(false,
+                WAKELOCKS_HEADER
+                + "\"dup\"\t1\t0\t0\t0\t1000\t0\t0\t0\n"
+                + "\"other\"\t2\t0\t0\t0\t2000\t0\t0\t0\n"
+                + "\"dup\"\t3\t0\t0\t0\t3000\t0\t0\t0\n"
+                + "dup\t4\t0\t0\t0\t4000\t0\t0\t0\n");
+        checkReads(true,
+                WAKEUP_SOURCES_HEADER
+                + "dup\t1\t0\t0\t0\t0\t10\t0\n"
+                + "dup\t2\t0\t0\t0\t0\t20\t0\n");
+    }
+
+    public void testTruncatedFinalLine() throws Exception {
+        // The last line has all the fields that are used, but no newline.
+        checkReads(false,
+                WAKELOCKS_HEADER
+                + "\"first\"\t1\t0\t0\t0\t1000\t0\t0\t0\n"
+                + "\"last\"\t2\t0\t0\t0\t2000");
+        // The last line stops before the total time.
+        checkReads(false,
+                WAKELOCKS_HEADER
+                + "\"first\"\t1\t0\t0\t0\t1000\t0\t0\t0\n"
+                + "\"last\"\t2\t0\t0");
+        checkReads(true,
+                WAKEUP_SOURCES_HEADER
+                + "first\t1\t0\t0\t0\t0\t10\t0\n"
+                + "last\t2\t0\t0\t0\t0\t2");
+        checkReads(true,
+                WAKEUP_SOURCES_HEADER
+                + "first\t1\t0\t0\t0\t0\t10\t0\n"
+                + "last\t2\t0");
+        checkReads(false, WAKELOCKS_HEADER.substring(0, 10));
+    }
+
+    public void testRepeatedReads() throws Exception {
+        final String a = "\"a\"\t1\t0\t0\t0\t1000\t0\t0\t0\n";
+        final String b = "\"b\"\t2\t0\t0\t0\t2000\t0\t0\t0\n";
+        final String b2 = "\"b\"\t3\t0\t0\t0\t2500\t0\t0\t0\n";
+        final String c = "\"c\"\t4\t0\t0\t0\t4000\t0\t0\t0\n";
+        checkReads(false,
+                WAKELOCKS_HEADER + a + b,
+                // Unchanged lines are reused.
+                WAKELOCKS_HEADER + a + b,
+                WAKELOCKS_HEADER + a + b2,
+                // Lines that moved, a new wakelock and one that is gone.
+                WAKELOCKS_HEADER + c + a,
+                WAKELOCKS_HEADER + c + a + a,
+                WAKELOCKS_HEADER + c + a + a,
+                WAKELOCKS_HEADER);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests for {@link BinaryXmlSerializer} and {@link BinaryXmlPullParser}.
+ */
+public class BinaryXmlTest extends TestCase {
+
+    private static void writeDocument(XmlSerializer out) throws Exception {
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            out.startTag(null, "package");
+            out.attribute(null, "name", "com.example.app" + i);
+            out.attribute(null, "flags", "0");
+            out.startTag(null, "perms");
+            out.startTag(null, "item");
+            out.attribute(null, "name", "android.permission.INTERNET");
+            out.attribute(null, "granted", "true");
+            out.endTag(null, "item");
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.startTag(null, "text");
+        out.text("hello <world> & é");
+        out.endTag(null, "text");
+        out.endTag(null, "packages");
+        out.endDocument();
+    }
+
+    private static void readDocument(XmlPullParser in) throws Exception {
+        assertEquals(XmlPullParser.START_TAG, in.nextTag());
+        assertEquals("packages", in.getName());
+        assertEquals(1, in.getDepth());
+        final int outerDepth = in.getDepth();
+
+        int packages = 0;
+        int type;
+        while ((type = in.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || in.getDepth() > outerDepth)) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            if ("package".equals(in.getName())) {
+                assertEquals(2, in.getDepth());
+                assertEquals("com.example.app" + packages, in.getAttributeValue(null, "name"));
+                assertEquals("0", in.getAttributeValue(null, "flags"));
+                assertNull(in.getAttributeValue(null, "missing"));
+                packages++;
+            } else if ("item".equals(in.getName())) {
+                assertEquals(4, in.getDepth());
+                assertEquals("android.permission.INTERNET", in.getAttributeValue(null, "name"));
+                assertEquals("true", in.getAttributeValue(null, "granted"));
+            } else if ("text".equals(in.getName())) {
+                assertEquals("hello <world> & é", in.nextText());
+            }
+        }
+        assertEquals(3, packages);
+        assertEquals("packages", in.getName());
+    }
+
+    public void testRoundTrip() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, "utf-8");
+        writeDocument(out);
+
+        final XmlPullParser in = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertTrue(in instanceof BinaryXmlPullParser);
+        readDocument(in);
+    }
+
+    public void testReadsTextXml() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(os, "utf-8");
+        writeDocument(out);
+
+        final XmlPullParser in = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertFalse(in instanceof BinaryXmlPullParser);
+        readDocument(in);
+    }
+
+    public void testSmallerThanText() throws Exception {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(binary, "utf-8");
+        writeDocument(out);
+
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        out = new FastXmlSerializer();
+        out.setOutput(text, "utf-8");
+        writeDocument(out);
+
+        assertTrue(binary.size() < text.size());
+    }
+
+    public void testPooledStringsAreShared() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, "utf-8");
+        writeDocument(out);
+
+        final XmlPullParser in = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        String first = null;
+        int type;
+        while ((type = in.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG && "item".equals(in.getName())) {
+                final String value = in.getAttributeValue(null, "name");
+                if (first == null) {
+                    first = value;
+                } else {
+                    assertSame(first, value);
+                }
+            }
+        }
+        assertNotNull(first);
+    }
+}
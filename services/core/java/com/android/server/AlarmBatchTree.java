@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Alarm batches ordered by start time, for {@link AlarmManagerService}.  The batches are
+ * kept in a treap whose nodes also record the latest end time and the number of batches
+ * below them, which makes it an interval tree: finding the first batch that can hold an
+ * alarm's delivery window, adding or removing a batch and getting the n-th batch are all
+ * O(log n) expected.  Batches with the same start stay in the order they were added.
+ *
+ * <p>A batch's start and end must not change while it is in the tree; remove it, change
+ * it, and add it back.
+ *
+ * <p>Not thread safe; guarded by the AlarmManagerService lock.
+ */
+class AlarmBatchTree<B extends AlarmBatchTree.Node> implements Iterable<B> {
+    static class Node {
+        long start;     // These endpoints are always in ELAPSED
+        long end;
+
+        // Tree links and subtree summary, only valid while in a tree.
+        Node left;
+        Node right;
+        int priority;
+        int count;
+        long maxEnd;
+        long seq;
+        boolean inTree;
+    }
+
+    private Node mRoot;
+    private long mNextSeq;
+    private int mRandom = 0x2545f491;
+
+    int size() {
+        return mRoot != null ? mRoot.count : 0;
+    }
+
+    void clear() {
+        // Unlink everything so that stale links don't keep old batches alive.
+        final ArrayList<B> all = new ArrayList<B>(size());
+        toList(all);
+        for (int i = 0; i < all.size(); i++) {
+            final Node n = all.get(i);
+            n.left = n.right = null;
+            n.inTree = false;
+        }
+        mRoot = null;
+    }
+
+    /** Returns the batch that starts first, or null if there are none. */
+    @SuppressWarnings("unchecked")
+    B first() {
+        Node n = mRoot;
+        if (n == null) {
+            return null;
+        }
+        while (n.left != null) {
+            n = n.left;
+        }
+        return (B) n;
+    }
+
+    @SuppressWarnings("unchecked")
+    B get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + size());
+        }
+        Node n = mRoot;
+        while (true) {
+            final int leftCount = n.left != null ? n.left.count : 0;
+            if (index < leftCount) {
+                n = n.left;
+            } else if (index == leftCount) {
+                return (B) n;
+            } else {
+                index -= leftCount + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * Returns the first batch, in start order, whose window overlaps
+     * [{@code whenElapsed}, {@code maxWhen}], or null if none does.
+     */
+    @SuppressWarnings("unchecked")
+    B findFirstCanHold(long whenElapsed, long maxWhen) {
+        // Find the first batch that ends at or after whenElapsed.  Every batch after it starts
+        // no earlier, so if it starts after maxWhen none of them can hold the alarm.
+        Node n = mRoot;
+        if (n == null || n.maxEnd < whenElapsed) {
+            return null;
+        }
+        while (true) {
+            if (n.left != null && n.left.maxEnd >= whenElapsed) {
+                n = n.left;
+            } else if (n.end >= whenElapsed) {
+                return n.start <= maxWhen ? (B) n : null;
+            } else {
+                n = n.right;
+            }
+        }
+    }
+
+    void add(B batch) {
+        if (batch.inTree) {
+            throw new IllegalStateException("Batch is already scheduled: " + batch);
+        }
+        batch.left = batch.right = null;
+        batch.seq = mNextSeq++;
+        // xorshift; only needs to be unpredictable to the order alarms arrive in.
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 17;
+        mRandom ^= mRandom << 5;
+        batch.priority = mRandom;
+        batch.inTree = true;
+        update(batch);
+        mRoot = insert(mRoot, batch);
+    }
+
+    boolean remove(B batch) {
+        if (!batch.inTree) {
+            return false;
+        }
+        mRoot = delete(mRoot, batch);
+        batch.left = batch.right = null;
+        batch.inTree = false;
+        return true;
+    }
+
+    /** Adds every batch to {@code out}, in start order. */
+    @SuppressWarnings("unchecked")
+    void toList(ArrayList<B> out) {
+        final ArrayList<Node> stack = new ArrayList<Node>();
+        Node n = mRoot;
+        while (n != null || !stack.isEmpty()) {
+            while (n != null) {
+                stack.add(n);
+                n = n.left;
+            }
+            n = stack.remove(stack.size() - 1);
+            out.add((B) n);
+            n = n.right;
+        }
+    }
+
+    @Override
+    public Iterator<B> iterator() {
+        return new Iterator<B>() {
+            private final ArrayList<Node> mStack = new ArrayList<Node>();
+            {
+                pushLeft(mRoot);
+            }
+
+            private void pushLeft(Node n) {
+                while (n != null) {
+                    mStack.add(n);
+                    n = n.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !mStack.isEmpty();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public B next() {
+                if (mStack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                final Node n = mStack.remove(mStack.size() - 1);
+                pushLeft(n.right);
+                return (B) n;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static int compare(Node a, Node b) {
+        if (a.start != b.start) {
+            return a.start < b.start ? -1 : 1;
+        }
+        return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+    }
+
+    private static void update(Node n) {
+        long maxEnd = n.end;
+        int count = 1;
+        if (n.left != null) {
+            maxEnd = Math.max(maxEnd, n.left.maxEnd);
+            count += n.left.count;
+        }
+        if (n.right != null) {
+            maxEnd = Math.max(maxEnd, n.right.maxEnd);
+            count += n.right.count;
+        }
+        n.maxEnd = maxEnd;
+        n.count = count;
+    }
+
+    private static Node insert(Node root, Node n) {
+        if (root == null) {
+            return n;
+        }
+        if (compare(n, root) < 0) {
+            root.left = insert(root.left, n);
+            if (root.left.priority > root.priority) {
+                root = rotateRight(root);
+            }
+        } else {
+            root.right = insert(root.right, n);
+            if (root.right.priority > root.priority) {
+                root = rotateLeft(root);
+            }
+        }
+        update(root);
+        return root;
+    }
+
+    private static Node delete(Node root, Node n) {
+        if (root == null) {
+            throw new IllegalStateException("Batch not found; was it changed while scheduled?");
+        }
+        if (root == n) {
+            return merge(n.left, n.right);
+        }
+        if (compare(n, root) < 0) {
+            root.left = delete(root.left, n);
+        } else {
+            root.right = delete(root.right, n);
+        }
+        update(root);
+        return root;
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static Node rotateRight(Node n) {
+        final Node l = n.left;
+        n.left = l.right;
+        l.right = n;
+        update(n);
+        return l;
+    }
+
+    private static Node rotateLeft(Node n) {
+        final Node r = n.right;
+        n.right = r.left;
+        r.left = n;
+        update(n);
+        return r;
+    }
+}
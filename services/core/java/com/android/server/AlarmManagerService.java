@@ -371,9 +371,7 @@ class AlarmManagerService extends SystemService {
     final LinkedList<WakeupEvent> mRecentWakeups = new LinkedList<WakeupEvent>();
     final long RECENT_WAKEUP_PERIOD = 1000L * 60 * 60 * 24; // one day
 
-    final class Batch {
-        long start;     // These endpoints are always in ELAPSED
-        long end;
+    final class Batch extends AlarmBatchTree.Node {
         int flags;      // Flags for alarms, such as FLAG_STANDALONE.
 
         final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
@@ -389,6 +387,7 @@ class AlarmManagerService extends SystemService {
             end = seed.maxWhenElapsed;
             flags = seed.flags;
             alarms.add(seed);
+            indexAlarmLocked(seed, this);
         }
 
         int size() {
@@ -411,6 +410,7 @@ class AlarmManagerService extends SystemService {
                 index = 0 - index - 1;
             }
             alarms.add(index, alarm);
+            indexAlarmLocked(alarm, this);
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "Adding " + alarm + " to " + this);
             }
@@ -438,6 +438,7 @@ class AlarmManagerService extends SystemService {
                 Alarm alarm = alarms.get(i);
                 if (alarm.operation.equals(operation)) {
                     alarms.remove(i);
+                    unindexAlarmLocked(alarm);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -469,8 +470,9 @@ class AlarmManagerService extends SystemService {
             int newFlags = 0;
             for (int i = 0; i < alarms.size(); ) {
                 Alarm alarm = alarms.get(i);
-                if (alarm.operation.getTargetPackage().equals(packageName)) {
+                if (alarm.packageName.equals(packageName)) {
                     alarms.remove(i);
+                    unindexAlarmLocked(alarm);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -503,6 +505,7 @@ class AlarmManagerService extends SystemService {
                 Alarm alarm = alarms.get(i);
                 if (UserHandle.getUserId(alarm.operation.getCreatorUid()) == userHandle) {
                     alarms.remove(i);
+                    unindexAlarmLocked(alarm);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -529,7 +532,7 @@ class AlarmManagerService extends SystemService {
             final int N = alarms.size();
             for (int i = 0; i < N; i++) {
                 Alarm a = alarms.get(i);
-                if (a.operation.getTargetPackage().equals(packageName)) {
+                if (a.packageName.equals(packageName)) {
                     return true;
                 }
             }
@@ -564,20 +567,6 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 - when2 > 0) {
-                return 1;
-            }
-            if (when1 - when2 < 0) {
-                return -1;
-            }
-            return 0;
-        }
-    }
-
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -639,8 +628,16 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final AlarmBatchTree<Batch> mAlarmBatches = new AlarmBatchTree<>();
+    private final ArrayList<Batch> mTmpBatches = new ArrayList<>();
+
+    // The alarms in mAlarmBatches by operation, and how many there are per package, so that
+    // removing an operation's alarm doesn't have to look through every batch.  An operation
+    // normally has at most one scheduled alarm; if it ever has more, removal goes back to
+    // looking through every batch until the index is empty.
+    final ArrayMap<PendingIntent, Alarm> mAlarmsByOperation = new ArrayMap<>();
+    final ArrayMap<String, Integer> mAlarmCountByPackage = new ArrayMap<>();
+    boolean mAlarmsByOperationExact = true;
 
     // set to null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -677,28 +674,67 @@ class AlarmManagerService extends SystemService {
         return triggerAtTime + (long)(.75 * futurity);
     }
 
-    // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
+    // Return the first batch that can hold the alarm, or null if none found.
+    Batch attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+        //M don't check b.flags for FLAG_STANDALONE
+        return mAlarmBatches.findFirstCanHold(whenElapsed, maxWhen);
+    }
+
+    void indexAlarmLocked(Alarm a, Batch batch) {
+        if (a.batch != null) {
+            unindexAlarmLocked(a);
         }
-        list.add(index, newBatch);
-        return (index == 0);
+        a.batch = batch;
+        final Alarm old = mAlarmsByOperation.put(a.operation, a);
+        if (old != null && old != a && old.batch != null) {
+            mAlarmsByOperationExact = false;
+        }
+        final Integer count = mAlarmCountByPackage.get(a.packageName);
+        mAlarmCountByPackage.put(a.packageName, count != null ? count + 1 : 1);
     }
 
-    // Return the index of the matching batch, or -1 if none found.
-    int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            //if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-            //M mark b.flags for check condition
-            if (b.canHold(whenElapsed, maxWhen)) {
-                return i;
+    void unindexAlarmLocked(Alarm a) {
+        if (a.batch == null) {
+            return;
+        }
+        a.batch = null;
+        if (mAlarmsByOperation.get(a.operation) == a) {
+            mAlarmsByOperation.remove(a.operation);
+        }
+        final Integer count = mAlarmCountByPackage.get(a.packageName);
+        if (count == null || count <= 1) {
+            mAlarmCountByPackage.remove(a.packageName);
+            if (mAlarmCountByPackage.isEmpty()) {
+                // Nothing is scheduled, so no operation can have more than one alarm.
+                mAlarmsByOperationExact = true;
             }
+        } else {
+            mAlarmCountByPackage.put(a.packageName, count - 1);
         }
-        return -2;
+    }
+
+    void clearAlarmBatchesLocked() {
+        mTmpBatches.clear();
+        mAlarmBatches.toList(mTmpBatches);
+        mAlarmBatches.clear();
+        for (int i = 0; i < mTmpBatches.size(); i++) {
+            final Batch batch = mTmpBatches.get(i);
+            for (int j = 0; j < batch.size(); j++) {
+                unindexAlarmLocked(batch.get(j));
+            }
+        }
+        mTmpBatches.clear();
+    }
+
+    // A batch's bounds may change when alarms are removed from it, so it has to come out of
+    // the tree while they are; empty batches are dropped.
+    private boolean removeFromBatchLocked(Batch b, PendingIntent operation) {
+        final boolean scheduled = mAlarmBatches.remove(b);
+        final boolean didRemove = b.remove(operation);
+        if (scheduled && b.size() > 0) {
+            mAlarmBatches.add(b);
+        }
+        return didRemove;
     }
 
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
@@ -709,8 +745,9 @@ class AlarmManagerService extends SystemService {
     }
 
     void rebatchAllAlarmsLocked(boolean doValidate) {
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
-        mAlarmBatches.clear();
+        ArrayList<Batch> oldSet = new ArrayList<>(mAlarmBatches.size());
+        mAlarmBatches.toList(oldSet);
+        clearAlarmBatchesLocked();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -1253,20 +1290,22 @@ class AlarmManagerService extends SystemService {
         // int whichBatch = ( (a.flags&AlarmManager.FLAG_STANDALONE) != 0)
         //      ? -1 : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
         // M using a.needGrouping for check condition
-        int whichBatch = (a.needGrouping == false)
-                ? -1 : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
-        Slog.d(TAG, " whichBatch = " + whichBatch);
-        if (whichBatch < 0) {
-            Batch batch = new Batch(a);
-            addBatchLocked(mAlarmBatches, batch);
+        Batch batch = (a.needGrouping == false)
+                ? null : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
+        Slog.d(TAG, " whichBatch = " + batch);
+        if (batch == null) {
+            batch = new Batch(a);
+            mAlarmBatches.add(batch);
         } else {
-            Batch batch = mAlarmBatches.get(whichBatch);
             Slog.d(TAG, " alarm = " + a + " add to " + batch);
-            if (batch.add(a)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
+            if (a.whenElapsed > batch.start || a.maxWhenElapsed < batch.end) {
+                // The bounds of this batch narrow, so it has to be moved to where it
+                // now belongs.
+                mAlarmBatches.remove(batch);
+                batch.add(a);
+                mAlarmBatches.add(batch);
+            } else {
+                batch.add(a);
             }
         }
 
@@ -1804,10 +1843,9 @@ class AlarmManagerService extends SystemService {
         PrintWriter pw = new PrintWriter(bs);
         final long nowRTC = System.currentTimeMillis();
         final long nowELAPSED = SystemClock.elapsedRealtime();
-        final int NZ = mAlarmBatches.size();
-        for (int iz = 0; iz < NZ; iz++) {
-            Batch bz = mAlarmBatches.get(iz);
-            pw.append("Batch "); pw.print(iz); pw.append(": "); pw.println(bz);
+        int iz = 0;
+        for (Batch bz : mAlarmBatches) {
+            pw.append("Batch "); pw.print(iz++); pw.append(": "); pw.println(bz);
             dumpAlarmList(pw, bz.alarms, "  ", nowELAPSED, nowRTC, sdf);
             pw.flush();
             Slog.v(TAG, bs.toString());
@@ -1818,9 +1856,8 @@ class AlarmManagerService extends SystemService {
     private boolean validateConsistencyLocked() {
         if (DEBUG_VALIDATE) {
             long lastTime = Long.MIN_VALUE;
-            final int N = mAlarmBatches.size();
-            for (int i = 0; i < N; i++) {
-                Batch b = mAlarmBatches.get(i);
+            int i = 0;
+            for (Batch b : mAlarmBatches) {
                 if (b.start >= lastTime) {
                     // duplicate start times are okay because of standalone batches
                     lastTime = b.start;
@@ -1830,15 +1867,14 @@ class AlarmManagerService extends SystemService {
                     logBatchesLocked(sdf);
                     return false;
                 }
+                i++;
             }
         }
         return true;
     }
 
     private Batch findFirstWakeupBatchLocked() {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
+        for (Batch b : mAlarmBatches) {
             if (b.hasWakeups()) {
                 return b;
             }
@@ -1872,9 +1908,8 @@ class AlarmManagerService extends SystemService {
         SparseArray<AlarmManager.AlarmClockInfo> nextForUser = mTmpSparseAlarmClockArray;
         nextForUser.clear();
 
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            ArrayList<Alarm> alarms = mAlarmBatches.get(i).alarms;
+        for (Batch b : mAlarmBatches) {
+            ArrayList<Alarm> alarms = b.alarms;
             final int M = alarms.size();
 
             for (int j = 0; j < M; j++) {
@@ -1999,7 +2034,7 @@ class AlarmManagerService extends SystemService {
         long nextNonWakeup = 0;
         if (mAlarmBatches.size() > 0) {
             final Batch firstWakeup = findFirstWakeupBatchLocked();
-            final Batch firstBatch = mAlarmBatches.get(0);
+            final Batch firstBatch = mAlarmBatches.first();
             // always update the kernel alarms, as a backstop against missed wakeups
             if (firstWakeup != null && mNextWakeup != firstWakeup.start) {
                 mNextWakeup = firstWakeup.start;
@@ -2022,14 +2057,7 @@ class AlarmManagerService extends SystemService {
     }
 
     private void removeLocked(PendingIntent operation) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        boolean didRemove = removeOperationLocked(operation);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).operation.equals(operation)) {
                 // Don't set didRemove, since this doesn't impact the scheduled alarms.
@@ -2065,12 +2093,20 @@ class AlarmManagerService extends SystemService {
 
     void removeLocked(String packageName) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(packageName);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+        if (mAlarmCountByPackage.containsKey(packageName)) {
+            mTmpBatches.clear();
+            mAlarmBatches.toList(mTmpBatches);
+            for (int i = 0; i < mTmpBatches.size(); i++) {
+                Batch b = mTmpBatches.get(i);
+                if (b.hasPackage(packageName)) {
+                    mAlarmBatches.remove(b);
+                    didRemove |= b.remove(packageName);
+                    if (b.size() > 0) {
+                        mAlarmBatches.add(b);
+                    }
+                }
             }
+            mTmpBatches.clear();
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).operation.getTargetPackage().equals(packageName)) {
@@ -2090,26 +2126,38 @@ class AlarmManagerService extends SystemService {
     }
 
     boolean removeInvalidAlarmLocked(PendingIntent operation) {
+        return removeOperationLocked(operation);
+    }
+
+    // Removes the scheduled alarms for an operation from their batches.
+    private boolean removeOperationLocked(PendingIntent operation) {
+        if (mAlarmsByOperationExact) {
+            final Alarm a = mAlarmsByOperation.get(operation);
+            return a != null && removeFromBatchLocked(a.batch, operation);
+        }
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+        mTmpBatches.clear();
+        mAlarmBatches.toList(mTmpBatches);
+        for (int i = 0; i < mTmpBatches.size(); i++) {
+            didRemove |= removeFromBatchLocked(mTmpBatches.get(i), operation);
         }
+        mTmpBatches.clear();
         return didRemove;
     }
 
     void removeUserLocked(int userHandle) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
+        mTmpBatches.clear();
+        mAlarmBatches.toList(mTmpBatches);
+        for (int i = 0; i < mTmpBatches.size(); i++) {
+            Batch b = mTmpBatches.get(i);
+            mAlarmBatches.remove(b);
             didRemove |= b.remove(userHandle);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+            if (b.size() > 0) {
+                mAlarmBatches.add(b);
             }
         }
+        mTmpBatches.clear();
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).operation.getCreatorUid())
                     == userHandle) {
@@ -2160,11 +2208,8 @@ class AlarmManagerService extends SystemService {
     }
 
     boolean lookForPackageLocked(String packageName) {
-        for (int i = 0; i < mAlarmBatches.size(); i++) {
-            Batch b = mAlarmBatches.get(i);
-            if (b.hasPackage(packageName)) {
-                return true;
-            }
+        if (mAlarmCountByPackage.containsKey(packageName)) {
+            return true;
         }
         for (int i = 0; i < mPendingWhileIdleAlarms.size(); i++) {
             if (mPendingWhileIdleAlarms.get(i).operation.getTargetPackage().equals(packageName)) {
@@ -2250,14 +2295,17 @@ class AlarmManagerService extends SystemService {
         // start of the list until we either empty it or hit a batch
         // that is not yet deliverable
         while (mAlarmBatches.size() > 0) {
-            Batch batch = mAlarmBatches.get(0);
+            Batch batch = mAlarmBatches.first();
             if (batch.start > nowELAPSED) {
                 // Everything else is scheduled for the future
                 break;
             }
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
-            mAlarmBatches.remove(0);
+            mAlarmBatches.remove(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                unindexAlarmLocked(batch.get(i));
+            }
 
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
@@ -2388,6 +2436,8 @@ class AlarmManagerService extends SystemService {
         public long repeatInterval;
         public PriorityClass priorityClass;
         public boolean needGrouping;
+        public final String packageName;
+        public Batch batch;         // The scheduled batch holding this alarm, if any
 
         public Alarm(int _type, long _when, long _whenElapsed, long _windowLength, long _maxWhen,
                 long _interval, PendingIntent _op, WorkSource _ws, int _flags,
@@ -2403,6 +2453,7 @@ class AlarmManagerService extends SystemService {
             repeatInterval = _interval;
             operation = _op;
             tag = makeTag(_op, _type);
+            packageName = _op.getTargetPackage();
             workSource = _ws;
             flags = _flags;
             alarmClock = _info;
@@ -2457,10 +2508,8 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
-        final int numBatches = batches.size();
-        for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
-            Batch b = batches.get(nextBatch);
+    void recordWakeupAlarms(AlarmBatchTree<Batch> batches, long nowELAPSED, long nowRTC) {
+        for (Batch b : batches) {
             if (b.start > nowELAPSED) {
                 break;
             }
@@ -2704,7 +2753,7 @@ class AlarmManagerService extends SystemService {
                         try {
                             if (mNativeData != -1) {
                                 synchronized (mLock) {
-                                    mAlarmBatches.clear();
+                                    clearAlarmBatchesLocked();
                                 }
                             }
                             synchronized (mWaitThreadlock) {
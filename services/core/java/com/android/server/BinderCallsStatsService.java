@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.SystemProperties;
+
+import com.android.internal.os.BinderCallStats;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * This service exists only as a "dumpsys" target which reports, and turns
+ * on and off, per method binder call stats for the system server.
+ *
+ * <pre>
+ * dumpsys binder_calls_stats [--uids]
+ * dumpsys binder_calls_stats enable|disable|reset
+ * </pre>
+ */
+public class BinderCallsStatsService extends Binder {
+    private static final String TAG = "BinderCallsStatsService";
+
+    /** Set to start collecting as soon as the system server comes up. */
+    private static final String PROPERTY_ENABLED = "persist.sys.binder_calls_stats";
+
+    private final Context mContext;
+
+    public BinderCallsStatsService(Context context) {
+        mContext = context;
+        if (SystemProperties.getBoolean(PROPERTY_ENABLED, false)) {
+            BinderCallStats.setEnabled(true);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+        boolean byUid = false;
+        if (args != null) {
+            for (String arg : args) {
+                if ("enable".equals(arg)) {
+                    BinderCallStats.setEnabled(true);
+                    pw.println("Binder call stats enabled.");
+                    return;
+                } else if ("reset".equals(arg)) {
+                    BinderCallStats.reset();
+                    pw.println("Binder call stats reset.");
+                    return;
+                } else if ("disable".equals(arg)) {
+                    BinderCallStats.setEnabled(false);
+                    pw.println("Binder call stats disabled.");
+                    return;
+                } else if ("--uids".equals(arg)) {
+                    byUid = true;
+                } else if ("-h".equals(arg)) {
+                    pw.println("Binder call stats dump options:");
+                    pw.println("  [--uids]: include calling uids per method");
+                    pw.println("  enable: start collecting, discarding previous stats");
+                    pw.println("  reset: discard the stats collected so far");
+                    pw.println("  disable: stop collecting");
+                    return;
+                }
+            }
+        }
+
+        pw.println("Parcels:");
+        Parcel.dumpStats(pw, "  ");
+        pw.println();
+
+        final BinderCallStats incoming = BinderCallStats.sIncoming;
+        final BinderCallStats outgoing = BinderCallStats.sOutgoing;
+        if (incoming == null && outgoing == null) {
+            pw.println("Binder call stats are disabled; run with 'enable' to collect.");
+            return;
+        }
+        if (incoming != null) {
+            pw.println("Incoming calls:");
+            incoming.dump(pw, "  ", byUid);
+        }
+        if (outgoing != null) {
+            pw.println();
+            pw.println("Outgoing calls:");
+            outgoing.dump(pw, "  ", false);
+        }
+    }
+}
@@ -59,6 +59,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         mFilters.add(f);
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        register_action_index(f, f.schemesIterator(), mSchemeActionToFilter);
         int numT = register_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             register_intent_filter(f, f.actionsIterator(),
@@ -202,6 +203,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        unregister_action_index(f, f.schemesIterator(), mSchemeActionToFilter);
         int numT = unregister_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             unregister_intent_filter(f, f.actionsIterator(),
@@ -371,6 +373,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly,
             int userId) {
         String scheme = intent.getScheme();
+        final String action = intent.getAction();
 
         ArrayList<R> finalList = new ArrayList<R>();
 
@@ -397,28 +400,33 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                             || resolvedType.charAt(slashpos+1) != '*') {
                         // Not a wild card, so we can just look for all filters that
                         // completely match or wildcards whose base type matches.
-                        firstTypeCut = mTypeToFilter.get(resolvedType);
+                        firstTypeCut = getCut(mTypeToFilter, mTypeActionToFilter,
+                                resolvedType, action);
                         if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
-                        secondTypeCut = mWildTypeToFilter.get(baseType);
+                        secondTypeCut = getCut(mWildTypeToFilter, mWildTypeActionToFilter,
+                                baseType, action);
                         if (debug) Slog.v(TAG, "Second type cut: "
                                 + Arrays.toString(secondTypeCut));
                     } else {
                         // We can match anything with our base type.
-                        firstTypeCut = mBaseTypeToFilter.get(baseType);
+                        firstTypeCut = getCut(mBaseTypeToFilter, mBaseTypeActionToFilter,
+                                baseType, action);
                         if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
-                        secondTypeCut = mWildTypeToFilter.get(baseType);
+                        secondTypeCut = getCut(mWildTypeToFilter, mWildTypeActionToFilter,
+                                baseType, action);
                         if (debug) Slog.v(TAG, "Second type cut: "
                                 + Arrays.toString(secondTypeCut));
                     }
                     // Any */* types always apply, but we only need to do this
                     // if the intent type was not already */*.
-                    thirdTypeCut = mWildTypeToFilter.get("*");
+                    thirdTypeCut = getCut(mWildTypeToFilter, mWildTypeActionToFilter,
+                            "*", action);
                     if (debug) Slog.v(TAG, "Third type cut: " + Arrays.toString(thirdTypeCut));
-                } else if (intent.getAction() != null) {
+                } else if (action != null) {
                     // The intent specified any type ({@literal *}/*).  This
                     // can be a whole heck of a lot of things, so as a first
                     // cut let's use the action instead.
-                    firstTypeCut = mTypedActionToFilter.get(intent.getAction());
+                    firstTypeCut = mTypedActionToFilter.get(action);
                     if (debug) Slog.v(TAG, "Typed Action list: " + Arrays.toString(firstTypeCut));
                 }
             }
@@ -428,15 +436,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            schemeCut = getCut(mSchemeToFilter, mSchemeActionToFilter, scheme, action);
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
         // If the intent does not specify any data -- either a MIME type or
         // a URI -- then we will only be looking for matches against empty
         // data.
-        if (resolvedType == null && scheme == null && intent.getAction() != null) {
-            firstTypeCut = mActionToFilter.get(intent.getAction());
+        if (resolvedType == null && scheme == null && action != null) {
+            firstTypeCut = mActionToFilter.get(action);
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
@@ -533,6 +541,85 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         out.print(prefix); out.print(label); out.print(": "); out.println(count);
     }
 
+    /**
+     * Returns the candidate filters registered under {@code name}. When the
+     * intent has an action, only filters declaring that action are returned,
+     * since {@link IntentFilter#match} would reject every other one anyway.
+     */
+    private F[] getCut(ArrayMap<String, F[]> map, ArrayMap<String, ArrayMap<String, F[]>> actionMap,
+            String name, String action) {
+        if (action == null) {
+            return map.get(name);
+        }
+        final ArrayMap<String, F[]> byAction = actionMap.get(name);
+        return byAction != null ? byAction.get(action) : null;
+    }
+
+    private final void addActionFilter(ArrayMap<String, ArrayMap<String, F[]>> map,
+            String name, F filter) {
+        final int N = filter.countActions();
+        if (N == 0) {
+            // Can only match intents without an action, which use the flat map.
+            return;
+        }
+        ArrayMap<String, F[]> byAction = map.get(name);
+        if (byAction == null) {
+            byAction = new ArrayMap<String, F[]>();
+            map.put(name, byAction);
+        }
+        for (int i=0; i<N; i++) {
+            final String action = filter.getAction(i);
+            if (!isFirstAction(filter, action, i)) {
+                continue;
+            }
+            addFilter(byAction, action, filter);
+        }
+    }
+
+    private final void removeActionFilter(ArrayMap<String, ArrayMap<String, F[]>> map,
+            String name, F filter) {
+        final ArrayMap<String, F[]> byAction = map.get(name);
+        if (byAction == null) {
+            return;
+        }
+        final int N = filter.countActions();
+        for (int i=0; i<N; i++) {
+            remove_all_objects(byAction, filter.getAction(i), filter);
+        }
+        if (byAction.isEmpty()) {
+            map.remove(name);
+        }
+    }
+
+    private static boolean isFirstAction(IntentFilter filter, String action, int index) {
+        for (int j=0; j<index; j++) {
+            if (action.equals(filter.getAction(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final void register_action_index(F filter, Iterator<String> i,
+            ArrayMap<String, ArrayMap<String, F[]>> dest) {
+        if (i == null) {
+            return;
+        }
+        while (i.hasNext()) {
+            addActionFilter(dest, i.next(), filter);
+        }
+    }
+
+    private final void unregister_action_index(F filter, Iterator<String> i,
+            ArrayMap<String, ArrayMap<String, F[]>> dest) {
+        if (i == null) {
+            return;
+        }
+        while (i.hasNext()) {
+            removeActionFilter(dest, i.next(), filter);
+        }
+    }
+
     private final void addFilter(ArrayMap<String, F[]> map, String name, F filter) {
         F[] array = map.get(name);
         if (array == null) {
@@ -576,11 +663,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             }
 
             addFilter(mTypeToFilter, name, filter);
+            addActionFilter(mTypeActionToFilter, name, filter);
 
             if (slashpos > 0) {
                 addFilter(mBaseTypeToFilter, baseName, filter);
+                addActionFilter(mBaseTypeActionToFilter, baseName, filter);
             } else {
                 addFilter(mWildTypeToFilter, baseName, filter);
+                addActionFilter(mWildTypeActionToFilter, baseName, filter);
             }
         }
 
@@ -607,11 +697,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             }
 
             remove_all_objects(mTypeToFilter, name, filter);
+            removeActionFilter(mTypeActionToFilter, name, filter);
 
             if (slashpos > 0) {
                 remove_all_objects(mBaseTypeToFilter, baseName, filter);
+                removeActionFilter(mBaseTypeActionToFilter, baseName, filter);
             } else {
                 remove_all_objects(mWildTypeToFilter, baseName, filter);
+                removeActionFilter(mWildTypeActionToFilter, baseName, filter);
             }
         }
         return num;
@@ -677,12 +770,34 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
-    private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
+    /**
+     * Returns the intent's categories as a set that is cheap to iterate from
+     * {@link IntentFilter#match}.  For the common small category counts the
+     * returned set and its backing array are per-resolver scratch that is
+     * overwritten by the next query, so the result must not be retained past
+     * the query.  This relies on callers serializing queries on a resolver
+     * under their own lock (the package manager's package lock, or the
+     * activity manager lock), as they already do for the filter maps.
+     */
+    private FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
         final Set<String> categories = intent.getCategories();
         if (categories == null) {
             return null;
         }
-        return new FastImmutableArraySet<String>(categories.toArray(new String[categories.size()]));
+        final int N = categories.size();
+        if (N >= mCategoryScratch.length) {
+            return new FastImmutableArraySet<String>(categories.toArray(new String[N]));
+        }
+        String[] contents = mCategoryScratch[N];
+        FastImmutableArraySet<String> set = mCategorySetScratch[N];
+        if (set == null) {
+            contents = new String[N];
+            set = new FastImmutableArraySet<String>(contents);
+            mCategoryScratch[N] = contents;
+            mCategorySetScratch[N] = set;
+        }
+        categories.toArray(contents);
+        return set;
     }
 
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
@@ -840,4 +955,30 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /*
+     * The maps below hold the same filters as the MIME type and scheme maps
+     * above, further split by each action the filter declares.  Intents that
+     * carry an action are matched against these narrower candidate arrays;
+     * filters without any action are left out since they can never match.
+     */
+    private final ArrayMap<String, ArrayMap<String, F[]>> mTypeActionToFilter
+            = new ArrayMap<String, ArrayMap<String, F[]>>();
+    private final ArrayMap<String, ArrayMap<String, F[]>> mBaseTypeActionToFilter
+            = new ArrayMap<String, ArrayMap<String, F[]>>();
+    private final ArrayMap<String, ArrayMap<String, F[]>> mWildTypeActionToFilter
+            = new ArrayMap<String, ArrayMap<String, F[]>>();
+    private final ArrayMap<String, ArrayMap<String, F[]>> mSchemeActionToFilter
+            = new ArrayMap<String, ArrayMap<String, F[]>>();
+
+    /*
+     * Scratch for getFastIntentCategories(), indexed by category count.  The
+     * result lists built by the query methods are handed to the caller and so
+     * are still allocated per query.
+     */
+    private static final int MAX_SCRATCH_CATEGORIES = 4;
+    private final String[][] mCategoryScratch = new String[MAX_SCRATCH_CATEGORIES + 1][];
+    @SuppressWarnings("unchecked")
+    private final FastImmutableArraySet<String>[] mCategorySetScratch
+            = new FastImmutableArraySet[MAX_SCRATCH_CATEGORIES + 1];
 }
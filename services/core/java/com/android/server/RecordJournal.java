@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of opaque records, used to persist individual changes
+ * between rewrites of a full state file, such as the job scheduler's jobs.xml
+ * and the sync manager's status.bin.
+ *
+ * <p>The file starts with a magic number and each record is written as its
+ * length, the CRC32 of its contents, and the contents.  A crash can leave a
+ * partially written record at the end; {@link #read} stops at the first
+ * record that is truncated or fails its checksum, and the next
+ * {@link #append} cuts the file back to the last intact record before
+ * writing.  Every call to {@link #append} ends with a single fsync.
+ *
+ * <p>Not thread safe; callers must serialize access.
+ */
+public final class RecordJournal {
+    private static final String TAG = "RecordJournal";
+
+    private static final int MAGIC = 0x4a4f424a; // 'J' 'O' 'B' 'J'
+
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_OVERHEAD = 8;
+
+    /** Records larger than this are treated as corruption. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final File mFile;
+
+    /** Length of the file up to the end of the last intact record, or -1 if not read yet. */
+    private long mValidLength = -1;
+    private int mRecordCount;
+
+    public RecordJournal(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Number of intact records in the journal. */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Bytes used by intact records. */
+    public long getSize() {
+        return Math.max(mValidLength, 0);
+    }
+
+    /**
+     * Reads every intact record, in the order they were appended.
+     *
+     * @param out receives the records; may be null to only validate the file.
+     * @return false if the journal ended in a damaged or partial record,
+     *         which was skipped.
+     */
+    public boolean read(List<byte[]> out) {
+        mValidLength = 0;
+        mRecordCount = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            final long fileLength = mFile.length();
+            if (fileLength == 0) {
+                return true;
+            }
+            if (fileLength < HEADER_SIZE || in.readInt() != MAGIC) {
+                Slog.w(TAG, "Bad header in " + mFile);
+                return false;
+            }
+            long pos = HEADER_SIZE;
+            mValidLength = pos;
+            final CRC32 crc = new CRC32();
+            while (pos < fileLength) {
+                if (fileLength - pos < RECORD_OVERHEAD) {
+                    return false;
+                }
+                final int length = in.readInt();
+                final int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE
+                        || length > fileLength - pos - RECORD_OVERHEAD) {
+                    return false;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    return false;
+                }
+                pos += RECORD_OVERHEAD + length;
+                mValidLength = pos;
+                mRecordCount++;
+                if (out != null) {
+                    out.add(record);
+                }
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading " + mFile, e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Appends the records and waits for them to reach the disk.
+     */
+    public void append(List<byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        if (mValidLength < 0) {
+            read(null);
+        }
+        if (mFile.length() != mValidLength) {
+            // Drop whatever a crash left behind the last intact record.
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(mValidLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        final FileOutputStream fos = new FileOutputStream(mFile, true);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            long length = mValidLength;
+            if (length == 0) {
+                out.writeInt(MAGIC);
+                length = HEADER_SIZE;
+            }
+            final CRC32 crc = new CRC32();
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                crc.reset();
+                crc.update(record);
+                out.writeInt(record.length);
+                out.writeInt((int) crc.getValue());
+                out.write(record);
+                length += RECORD_OVERHEAD + record.length;
+            }
+            out.flush();
+            FileUtils.sync(fos);
+            mValidLength = length;
+            mRecordCount += records.size();
+        } catch (IOException e) {
+            // Unknown how much made it; re-validate before the next append.
+            mValidLength = -1;
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Discards all records, once their contents have been written elsewhere.
+     */
+    public void reset() {
+        mFile.delete();
+        mValidLength = 0;
+        mRecordCount = 0;
+    }
+}
@@ -17,8 +17,10 @@
 package com.android.server;
 
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 import android.util.Slog;
 
 /**
@@ -27,6 +29,20 @@ import android.util.Slog;
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    /**
+     * Records message dispatch latency on every service looper; see
+     * {@link android.os.LooperStats} and {@code dumpsys activity looper-stats}.
+     */
+    private static final boolean LOOPER_STATS =
+            SystemProperties.getBoolean("persist.sys.looper_stats", false);
+
+    /**
+     * Indexes the message queues of service loopers; see
+     * {@link android.os.MessageQueue#enableIndexing}.
+     */
+    private static final boolean INDEXED_QUEUES =
+            SystemProperties.getBoolean("persist.sys.looper_indexed", false);
+
     private final boolean mAllowIo;
 
     public ServiceThread(String name, int priority, boolean allowIo) {
@@ -45,4 +61,14 @@ public class ServiceThread extends HandlerThread {
 
         super.run();
     }
+
+    @Override
+    protected void onLooperPrepared() {
+        if (LOOPER_STATS) {
+            Looper.myLooper().setStatsEnabled(true);
+        }
+        if (INDEXED_QUEUES) {
+            Looper.myQueue().enableIndexing();
+        }
+    }
 }
\ No newline at end of file
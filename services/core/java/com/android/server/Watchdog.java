@@ -35,6 +35,7 @@ import android.os.Debug;
 import android.os.Handler;
 import android.os.IPowerManager;
 import android.os.Looper;
+import android.os.LooperStats;
 import android.os.Process;
 import android.os.ServiceManager;
 import android.os.SystemClock;
@@ -46,6 +47,8 @@ import android.util.Slog;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 
 import com.mediatek.aee.ExceptionLog;
@@ -77,6 +80,10 @@ public class Watchdog extends Thread {
         "/system/bin/surfaceflinger"
     };
 
+    // Time between lock contention samples, or 0 to not sample.
+    static final long LOCK_SAMPLE_INTERVAL =
+            SystemProperties.getLong("persist.sys.watchdog_sample_ms", 0);
+
     static Watchdog sWatchdog;
     ExceptionLog exceptionHWT;
 
@@ -85,6 +92,7 @@ public class Watchdog extends Thread {
     final HandlerChecker mMonitorChecker;
     ContentResolver mResolver;
     ActivityManagerService mActivity;
+    final WatchdogLockSampler mLockSampler;
 
     int mPhonePid;
     IActivityController mController;
@@ -183,7 +191,10 @@ public class Watchdog extends Thread {
 
         public String describeBlockedStateLocked() {
             if (mCurrentMonitor == null) {
-                return "Blocked in handler on " + mName + " (" + getThread().getName() + ")";
+                final LooperStats stats = mHandler.getLooper().getStats();
+                final String dispatch = stats != null ? stats.describeCurrentDispatch() : null;
+                return "Blocked in handler on " + mName + " (" + getThread().getName() + ")"
+                        + (dispatch != null ? " " + dispatch : "");
             } else {
                 return "Blocked in monitor " + mCurrentMonitor.getClass().getName()
                         + " on " + mName + " (" + getThread().getName() + ")";
@@ -268,6 +279,8 @@ public class Watchdog extends Thread {
         if (SystemProperties.get("ro.have_aee_feature").equals("1")) {
             exceptionHWT = new ExceptionLog();
         }
+        mLockSampler = LOCK_SAMPLE_INTERVAL > 0
+                ? new WatchdogLockSampler(LOCK_SAMPLE_INTERVAL) : null;
     }
 
     public void init(Context context, ActivityManagerService activity) {
@@ -308,6 +321,18 @@ public class Watchdog extends Thread {
         }
     }
 
+    /**
+     * Prints the recent lock contention seen by the monitor sampler, if it is enabled.
+     */
+    public void dumpLockContention(PrintWriter pw, String prefix) {
+        if (mLockSampler != null) {
+            mLockSampler.dump(pw, prefix);
+        } else {
+            pw.print(prefix);
+            pw.println("Lock sampling disabled; set persist.sys.watchdog_sample_ms to enable.");
+        }
+    }
+
     public void addThread(Handler thread) {
         addThread(thread, DEFAULT_TIMEOUT);
     }
@@ -354,6 +379,33 @@ public class Watchdog extends Thread {
         return checkers;
     }
 
+    /**
+     * Returns the recent slow messages of the blocked handler threads that record
+     * {@link LooperStats}, or null if none do.
+     */
+    private static String describeLooperStats(ArrayList<HandlerChecker> checkers) {
+        StringWriter sw = null;
+        PrintWriter pw = null;
+        for (int i = 0; i < checkers.size(); i++) {
+            final Looper looper = checkers.get(i).mHandler.getLooper();
+            final LooperStats stats = looper.getStats();
+            if (stats == null) {
+                continue;
+            }
+            if (pw == null) {
+                sw = new StringWriter();
+                pw = new PrintWriter(sw);
+            }
+            pw.print(looper.getThread().getName()); pw.println(":");
+            stats.dumpSlow(pw, "  ");
+        }
+        if (pw == null) {
+            return null;
+        }
+        pw.flush();
+        return sw.toString();
+    }
+
     private String describeCheckersLocked(ArrayList<HandlerChecker> checkers) {
         StringBuilder builder = new StringBuilder(128);
         for (int i=0; i<checkers.size(); i++) {
@@ -381,6 +433,10 @@ public class Watchdog extends Thread {
 */
     @Override
     public void run() {
+        if (mLockSampler != null) {
+            // Monitors can't be added once we are running.
+            mLockSampler.start(mMonitorChecker.mMonitors);
+        }
         boolean waitedHalf = false;
         boolean mNeedDump = false;
         boolean mSFHang = false;
@@ -533,7 +589,12 @@ public class Watchdog extends Thread {
             } catch (InterruptedException ignored) {}
             */
             Slog.v(TAG, "** save all info before killnig system server **");
-            mActivity.addErrorToDropBox("watchdog", null, "system_server", null, null, subject, null, null, null);
+            String report = describeLooperStats(blockedCheckers);
+            if (mLockSampler != null) {
+                report = mLockSampler.describe() + (report != null ? report : "");
+            }
+            mActivity.addErrorToDropBox("watchdog", null, "system_server", null, null, subject,
+                    report, null, null);
 
             IActivityController controller;
             synchronized (this) {
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Periodically calls each {@link Watchdog.Monitor} on its own thread to measure how long it
+ * waits for the lock the monitor takes, so that a watchdog report can say which locks were
+ * contended before a hang and who held them.
+ *
+ * <p>A probe that is still waiting after {@link #CONTENDED_MS} is attributed to a likely
+ * holder: Java cannot ask who owns a monitor of another thread, so the holder is taken to be
+ * a thread with the monitor's class on its stack that is not blocked, preferring one that is
+ * runnable.  Its first frame in that class is recorded as the call site.  Contended probes
+ * are kept in a ring buffer and summarized over the last {@link #WINDOW_MS}.
+ *
+ * <p>Enabled by {@code persist.sys.watchdog_sample_ms}, the time between rounds of probes.
+ */
+final class WatchdogLockSampler implements Runnable {
+    /** Probes that wait at least this long are recorded, with their likely holder. */
+    static final long CONTENDED_MS = 100;
+    /** The report summarizes contention over this much recent time. */
+    static final long WINDOW_MS = 10 * 60 * 1000;
+    private static final int HISTORY_SIZE = 128;
+    private static final int TOP_LOCKS = 5;
+    private static final int TOP_SITES = 3;
+
+    private final long mIntervalMs;
+    private final ArrayList<Watchdog.Monitor> mMonitors = new ArrayList<Watchdog.Monitor>();
+    private Handler mHolderHandler;
+
+    // The probe in flight, read by the holder capture.
+    private volatile Watchdog.Monitor mProbeMonitor;
+    private volatile long mProbeStart;
+    private Thread mProbeThread;
+    private String mProbeHolder;
+    private String mProbeSite;
+
+    // Contended probes, oldest overwritten first.  Guarded by this.
+    private final String[] mEventLocks = new String[HISTORY_SIZE];
+    private final long[] mEventTimes = new long[HISTORY_SIZE];
+    private final long[] mEventWaits = new long[HISTORY_SIZE];
+    private final String[] mEventHolders = new String[HISTORY_SIZE];
+    private final String[] mEventSites = new String[HISTORY_SIZE];
+    private int mEventNext;
+    private long mProbes;
+    private long mContended;
+
+    private final Runnable mCaptureHolder = new Runnable() {
+        @Override
+        public void run() {
+            captureHolder();
+        }
+    };
+
+    WatchdogLockSampler(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    /** Starts sampling the given monitors, which must not change afterwards. */
+    void start(ArrayList<Watchdog.Monitor> monitors) {
+        mMonitors.addAll(monitors);
+        final HandlerThread holderThread = new HandlerThread("watchdog.holders",
+                Process.THREAD_PRIORITY_FOREGROUND);
+        holderThread.start();
+        mHolderHandler = new Handler(holderThread.getLooper());
+        final Thread probeThread = new Thread(this, "watchdog.sampler");
+        probeThread.setDaemon(true);
+        mProbeThread = probeThread;
+        probeThread.start();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        while (true) {
+            SystemClock.sleep(mIntervalMs);
+            for (int i = 0; i < mMonitors.size(); i++) {
+                probe(mMonitors.get(i));
+            }
+        }
+    }
+
+    private void probe(Watchdog.Monitor monitor) {
+        synchronized (this) {
+            mProbeHolder = null;
+            mProbeSite = null;
+        }
+        final long start = SystemClock.uptimeMillis();
+        mProbeStart = start;
+        mProbeMonitor = monitor;
+        mHolderHandler.postDelayed(mCaptureHolder, CONTENDED_MS);
+        monitor.monitor();
+        mProbeMonitor = null;
+        mHolderHandler.removeCallbacks(mCaptureHolder);
+        final long wait = SystemClock.uptimeMillis() - start;
+
+        synchronized (this) {
+            mProbes++;
+            if (wait < CONTENDED_MS) {
+                return;
+            }
+            mContended++;
+            final int i = mEventNext;
+            mEventLocks[i] = monitor.getClass().getName();
+            mEventTimes[i] = start;
+            mEventWaits[i] = wait;
+            mEventHolders[i] = mProbeHolder;
+            mEventSites[i] = mProbeSite;
+            mEventNext = (i + 1) % HISTORY_SIZE;
+        }
+    }
+
+    /** Runs on the holder thread while a probe has been waiting for {@link #CONTENDED_MS}. */
+    private void captureHolder() {
+        final Watchdog.Monitor monitor = mProbeMonitor;
+        if (monitor == null) {
+            return;
+        }
+        final String lockClass = monitor.getClass().getName();
+        Thread holder = null;
+        Thread.State holderState = null;
+        StackTraceElement holderSite = null;
+        for (Map.Entry<Thread, StackTraceElement[]> entry
+                : Thread.getAllStackTraces().entrySet()) {
+            final Thread thread = entry.getKey();
+            final StackTraceElement[] stack = entry.getValue();
+            if (thread == mProbeThread || thread == Thread.currentThread()
+                    || stack.length == 0) {
+                continue;
+            }
+            final Thread.State state = thread.getState();
+            if (state == Thread.State.BLOCKED) {
+                // Waiting for a lock, likely this one, even if it got there through
+                // another class.
+                continue;
+            }
+            if (holder != null && (holderState == Thread.State.RUNNABLE
+                    || state != Thread.State.RUNNABLE)) {
+                continue;
+            }
+            for (StackTraceElement frame : stack) {
+                if (lockClass.equals(frame.getClassName())) {
+                    holder = thread;
+                    holderState = state;
+                    holderSite = frame;
+                    break;
+                }
+            }
+        }
+        if (holder != null) {
+            synchronized (this) {
+                if (mProbeMonitor == monitor) {
+                    mProbeHolder = holder.getName();
+                    mProbeSite = holderSite.toString();
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints the locks that waited longest over the last {@link #WINDOW_MS}, with their
+     * most frequent holder call sites, and the probe in flight, if any.
+     */
+    void dump(PrintWriter pw, String prefix) {
+        final long now = SystemClock.uptimeMillis();
+        final ArrayMap<String, LockSummary> locks = new ArrayMap<String, LockSummary>();
+        synchronized (this) {
+            pw.print(prefix); pw.print("Lock sampling every "); pw.print(mIntervalMs);
+            pw.print("ms: probes="); pw.print(mProbes);
+            pw.print(" contended="); pw.println(mContended);
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                if (mEventLocks[i] == null || now - mEventTimes[i] > WINDOW_MS) {
+                    continue;
+                }
+                LockSummary summary = locks.get(mEventLocks[i]);
+                if (summary == null) {
+                    summary = new LockSummary(mEventLocks[i]);
+                    locks.put(mEventLocks[i], summary);
+                }
+                summary.add(mEventWaits[i], mEventHolders[i], mEventSites[i]);
+            }
+            final Watchdog.Monitor inFlight = mProbeMonitor;
+            if (inFlight != null && now - mProbeStart >= CONTENDED_MS) {
+                pw.print(prefix); pw.print("Waiting now: ");
+                pw.print(inFlight.getClass().getName()); pw.print(" for ");
+                pw.print(now - mProbeStart); pw.print("ms");
+                if (mProbeHolder != null) {
+                    pw.print(", held by "); pw.print(mProbeHolder);
+                    pw.print(" at "); pw.print(mProbeSite);
+                }
+                pw.println();
+            }
+        }
+
+        final ArrayList<LockSummary> sorted = new ArrayList<LockSummary>(locks.values());
+        Collections.sort(sorted, new Comparator<LockSummary>() {
+            @Override
+            public int compare(LockSummary a, LockSummary b) {
+                return Long.compare(b.mTotalWait, a.mTotalWait);
+            }
+        });
+        pw.print(prefix); pw.print("Most contended in the last ");
+        TimeUtils.formatDuration(WINDOW_MS, pw);
+        pw.println(sorted.isEmpty() ? ": none" : ":");
+        for (int i = 0; i < sorted.size() && i < TOP_LOCKS; i++) {
+            sorted.get(i).dump(pw, prefix + "  ");
+        }
+    }
+
+    /** Returns {@link #dump} as a string, for the watchdog's dropbox entry. */
+    String describe() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        dump(pw, "");
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static final class LockSummary {
+        final String mLock;
+        int mCount;
+        long mTotalWait;
+        long mMaxWait;
+        final ArrayMap<String, Integer> mSites = new ArrayMap<String, Integer>();
+
+        LockSummary(String lock) {
+            mLock = lock;
+        }
+
+        void add(long wait, String holder, String site) {
+            mCount++;
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            final String key = holder != null ? holder + " at " + site : "(holder unknown)";
+            final Integer count = mSites.get(key);
+            mSites.put(key, count != null ? count + 1 : 1);
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            pw.print(prefix); pw.print(mLock); pw.print(": contended="); pw.print(mCount);
+            pw.print(" totalWait="); pw.print(mTotalWait);
+            pw.print("ms maxWait="); pw.print(mMaxWait); pw.println("ms");
+            final ArrayList<String> sites = new ArrayList<String>(mSites.keySet());
+            Collections.sort(sites, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return mSites.get(b) - mSites.get(a);
+                }
+            });
+            for (int i = 0; i < sites.size() && i < TOP_SITES; i++) {
+                pw.print(prefix); pw.print("  "); pw.print(mSites.get(sites.get(i)));
+                pw.print("x "); pw.println(sites.get(i));
+            }
+        }
+    }
+}
@@ -101,11 +101,15 @@ import com.android.internal.util.Preconditions;
 import com.android.server.AppOpsService;
 import com.android.server.AttributeCache;
 import com.android.server.DeviceIdleController;
+import com.android.server.DisplayThread;
+import com.android.server.FgThread;
 import com.android.server.IntentResolver;
+import com.android.server.IoThread;
 import com.android.server.LocalServices;
 import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 import com.android.server.SystemServiceManager;
+import com.android.server.UiThread;
 import com.android.server.Watchdog;
 import com.android.server.am.ActivityStack.ActivityState;
 import com.android.server.firewall.IntentFirewall;
@@ -211,6 +215,7 @@ import android.os.IProcessInfoService;
 import android.os.IRemoteCallback;
 import android.os.IUserManager;
 import android.os.Looper;
+import android.os.LooperStats;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
@@ -390,6 +395,15 @@ public final class ActivityManagerService extends ActivityManagerNative
     static final int BROADCAST_FG_TIMEOUT = 10*1000;
     static final int BROADCAST_BG_TIMEOUT = 60*1000;
 
+    // Number of dispatch lanes each broadcast queue shards ordered broadcasts
+    // to a single receiving process into.  Zero keeps the classic behavior of
+    // one ordered broadcast at a time per queue.  With lanes, a process can
+    // see ordered broadcasts out of send order when some reach it through
+    // its lane and others through the queue itself; see BroadcastQueue.mLanes.
+    static final int MAX_BROADCAST_LANES = 8;
+    static final int BROADCAST_LANES = Math.max(0, Math.min(MAX_BROADCAST_LANES,
+            SystemProperties.getInt("persist.am.broadcast_lanes", 0)));
+
     // How long we wait until we timeout on key dispatching.
     /// M: 2012-02-14 @{
     // Extend KeyDispatchingTimeout for time needed to perform a call stack pre-dump at 5 second.
@@ -468,8 +482,9 @@ public final class ActivityManagerService extends ActivityManagerNative
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
     // Convenient for easy iteration over the queues. Foreground is first
-    // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    // so that dispatch of foreground broadcasts gets precedence; any lanes
+    // follow the queue they belong to.
+    final BroadcastQueue[] mBroadcastQueues;
 
     /// M: PerfBoost include @ {
     IPerfServiceWrapper mPerfService = null;
@@ -629,6 +644,29 @@ public final class ActivityManagerService extends ActivityManagerNative
      */
     final ProcessMap<BadProcessInfo> mBadProcesses = new ProcessMap<BadProcessInfo>();
 
+    /**
+     * Lock ordering.  The activity manager lock ({@code this}) is the
+     * outermost lock; the locks below may be taken while holding it, never
+     * the other way around, and none of them may be held across a call back
+     * into activity manager.  Among themselves they are taken in this order,
+     * as {@link #updateCpuStatsNow} and the PSS collection in {@link #mBgHandler}
+     * do, and a lock must not be taken while holding one below it:
+     * <ol>
+     * <li>{@link #mProcessCpuTracker}
+     * <li>the battery stats lock, the {@link BatteryStatsImpl} returned by
+     * {@code mBatteryStatsService.getActiveStatistics()}
+     * <li>{@link #mPidsSelfLocked}, {@link #mUserProfileGroupIdsSelfLocked}
+     * <li>the lmkd socket lock inside {@link ProcessList}
+     * </ol>
+     * {@link #mProviderMap}, {@link #mServices} and the process bookkeeping in
+     * {@link ProcessList} have no locks of their own: they are guarded by the
+     * activity manager lock, because their *Locked methods also update
+     * ProcessRecord state read by the oom adjustment pass.  Wait time for the
+     * activity manager lock at the busiest binder entry points is recorded in
+     * {@link #mLockStats}, to show which of them is worth splitting out.
+     */
+    final LockContentionStats mLockStats = new LockContentionStats();
+
     /**
      * All of the processes we currently have running organized by pid.
      * The keys are the pid running the application.
@@ -1150,6 +1188,47 @@ public final class ActivityManagerService extends ActivityManagerNative
      */
     int mLruSeq = 0;
 
+    /**
+     * When set, changes to a process's activities, services, bindings and
+     * provider connections mark it dirty, and updateOomAdjDirtyLocked()
+     * recomputes the dirty processes together with every process they are
+     * clients of, through service bindings and provider connections, in one
+     * pass.  Full updates are still done whenever a process moves in or out of
+     * the cached range, since that reshuffles the LRU based cached adjustments.
+     */
+    static final boolean INCREMENTAL_OOM_ADJ =
+            SystemProperties.getBoolean("persist.am.incremental_oom_adj", false);
+
+    /**
+     * Debug mode for INCREMENTAL_OOM_ADJ: follow every incremental update with
+     * a full update and report processes whose state it changed.
+     */
+    static final boolean VERIFY_INCREMENTAL_OOM_ADJ =
+            SystemProperties.getBoolean("debug.am.verify_oom_adj", false);
+
+    /**
+     * Current sequence id for incremental oom_adj closure walks.
+     */
+    int mAdjClosureSeq = 0;
+
+    /**
+     * Processes whose oom_adj inputs changed since the last incremental or
+     * full update.  Only filled in when INCREMENTAL_OOM_ADJ is set.
+     */
+    final ArraySet<ProcessRecord> mOomAdjDirtyProcs = new ArraySet<>();
+
+    /**
+     * Processes reached by the current incremental oom_adj update; only used
+     * while computing it.
+     */
+    final ArrayList<ProcessRecord> mTmpOomAdjClosure = new ArrayList<>();
+
+    // Counters for incremental oom_adj updates, reported in dumpsys.
+    long mNumIncrementalOomAdj;
+    long mNumIncrementalOomAdjProcs;
+    long mNumIncrementalOomAdjFallbacks;
+    long mNumIncrementalOomAdjMismatches;
+
     /**
      * Keep track of the non-cached/empty process we last found, to help
      * determine how to distribute cached/empty processes next time.
@@ -2520,8 +2599,15 @@ public final class ActivityManagerService extends ActivityManagerNative
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
+        mBroadcastQueues = new BroadcastQueue[2 * (BROADCAST_LANES + 1)];
         mBroadcastQueues[0] = mFgBroadcastQueue;
-        mBroadcastQueues[1] = mBgBroadcastQueue;
+        mBroadcastQueues[BROADCAST_LANES + 1] = mBgBroadcastQueue;
+        if (BROADCAST_LANES > 0) {
+            System.arraycopy(mFgBroadcastQueue.createLanes(mHandler, BROADCAST_LANES), 0,
+                    mBroadcastQueues, 1, BROADCAST_LANES);
+            System.arraycopy(mBgBroadcastQueue.createLanes(mHandler, BROADCAST_LANES), 0,
+                    mBroadcastQueues, BROADCAST_LANES + 2, BROADCAST_LANES);
+        }
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -3077,6 +3163,9 @@ public final class ActivityManagerService extends ActivityManagerNative
 
     final void updateLruProcessLocked(ProcessRecord app, boolean activityChange,
             ProcessRecord client) {
+        if (activityChange) {
+            markOomAdjDirtyLocked(app);
+        }
         final boolean hasActivity = app.activities.size() > 0 || app.hasClientActivities
                 || app.treatLikeActivity;
         final boolean hasService = false; // not impl yet. app.services.size() > 0;
@@ -7468,7 +7557,9 @@ public final class ActivityManagerService extends ActivityManagerNative
         if (!IS_USER_BUILD)
            Slog.d(TAG, "ACT-attachApplication pid " + Binder.getCallingPid() + " to thread " + thread);
         /// @}
+        final long lockStart = mLockStats.beforeLock();
         synchronized (this) {
+            mLockStats.afterLock(LockContentionStats.SITE_ATTACH_APPLICATION, lockStart);
             int callingPid = Binder.getCallingPid();
             final long origId = Binder.clearCallingIdentity();
             attachApplicationLocked(thread, callingPid);
@@ -10909,10 +11000,12 @@ public final class ActivityManagerService extends ActivityManagerNative
             }
             cpr.connections.add(conn);
             r.conProviders.add(conn);
+            markOomAdjDirtyLocked(cpr.proc);
             startAssociationLocked(r.uid, r.processName, cpr.uid, cpr.name, cpr.info.processName);
             return conn;
         }
         cpr.addExternalProcessHandleLocked(externalProcessToken);
+        markOomAdjDirtyLocked(cpr.proc);
         return null;
     }
 
@@ -10933,12 +11026,14 @@ public final class ActivityManagerService extends ActivityManagerNative
             if (conn.stableCount == 0 && conn.unstableCount == 0) {
                 cpr.connections.remove(conn);
                 conn.client.conProviders.remove(conn);
+                markOomAdjDirtyLocked(cpr.proc);
                 stopAssociationLocked(conn.client.uid, conn.client.processName, cpr.uid, cpr.name);
                 return true;
             }
             return false;
         }
         cpr.removeExternalProcessHandleLocked(externalProcessToken);
+        markOomAdjDirtyLocked(cpr.proc);
         return false;
     }
 
@@ -10956,7 +11051,9 @@ public final class ActivityManagerService extends ActivityManagerNative
         ContentProviderConnection conn = null;
         ProviderInfo cpi = null;
 
+        final long lockStart = mLockStats.beforeLock();
         synchronized(this) {
+            mLockStats.afterLock(LockContentionStats.SITE_GET_CONTENT_PROVIDER, lockStart);
             long startTime = SystemClock.elapsedRealtime();
 
             ProcessRecord r = null;
@@ -11052,7 +11149,7 @@ public final class ActivityManagerService extends ActivityManagerNative
                         }
                     }
                     checkTime(startTime, "getContentProviderImpl: before updateOomAdj");
-                    boolean success = updateOomAdjLocked(cpr.proc);
+                    boolean success = updateOomAdjDirtyLocked(cpr.proc);
                     maybeUpdateProviderUsageStatsLocked(r, cpr.info.packageName, name);
                     checkTime(startTime, "getContentProviderImpl: after updateOomAdj");
                     if (DEBUG_PROVIDER) Slog.i(TAG_PROVIDER, "Adjust success: " + success);
@@ -11376,7 +11473,9 @@ public final class ActivityManagerService extends ActivityManagerNative
         enforceNotIsolatedCaller("removeContentProvider");
         long ident = Binder.clearCallingIdentity();
         try {
+            final long lockStart = mLockStats.beforeLock();
             synchronized (this) {
+                mLockStats.afterLock(LockContentionStats.SITE_REMOVE_CONTENT_PROVIDER, lockStart);
                 ContentProviderConnection conn;
                 try {
                     conn = (ContentProviderConnection)connection;
@@ -11390,7 +11489,7 @@ public final class ActivityManagerService extends ActivityManagerNative
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjDirtyLocked(null);
                 }
             }
         } finally {
@@ -11424,7 +11523,8 @@ public final class ActivityManagerService extends ActivityManagerNative
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    markOomAdjDirtyLocked(localCpr.proc);
+                    updateOomAdjDirtyLocked(null);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -11448,7 +11548,9 @@ public final class ActivityManagerService extends ActivityManagerNative
         }
 
         enforceNotIsolatedCaller("publishContentProviders");
+        final long lockStart = mLockStats.beforeLock();
         synchronized (this) {
+            mLockStats.afterLock(LockContentionStats.SITE_PUBLISH_CONTENT_PROVIDERS, lockStart);
             final ProcessRecord r = getRecordForAppLocked(caller);
             if (DEBUG_MU) Slog.v(TAG_MU, "ProcessRecord uid = " + r.uid);
             if (r == null) {
@@ -14581,6 +14683,8 @@ public final class ActivityManagerService extends ActivityManagerNative
                 pw.println("    provider [COMP_SPEC]: provider client-side state");
                 pw.println("    s[ervices] [COMP_SPEC ...]: service state");
                 pw.println("    as[sociations]: tracked app associations");
+                pw.println("    lock-stats [reset]: activity manager lock contention");
+                pw.println("    looper-stats [reset]: system thread message dispatch latency");
                 pw.println("    service [COMP_SPEC]: service client-side state");
                 pw.println("    package [PACKAGE_NAME]: all state related to given package");
                 pw.println("    all: dump all activities");
@@ -14725,6 +14829,18 @@ public final class ActivityManagerService extends ActivityManagerNative
                 synchronized (this) {
                     dumpOomLocked(fd, pw, args, opti, true);
                 }
+            } else if ("lock-stats".equals(cmd)) {
+                synchronized (this) {
+                    if (opti < args.length && "reset".equals(args[opti])) {
+                        mLockStats.reset();
+                        pw.println("Lock contention stats reset.");
+                    } else {
+                        mLockStats.dump(pw);
+                        Watchdog.getInstance().dumpLockContention(pw, "  ");
+                    }
+                }
+            } else if ("looper-stats".equals(cmd)) {
+                dumpLooperStats(pw, opti < args.length && "reset".equals(args[opti]));
             } else if ("permissions".equals(cmd) || "perm".equals(cmd)) {
                 synchronized (this) {
                     dumpPermissionsLocked(fd, pw, args, opti, true, null);
@@ -15013,6 +15129,34 @@ public final class ActivityManagerService extends ActivityManagerNative
         }
     }
 
+    void dumpLooperStats(PrintWriter pw, boolean reset) {
+        pw.println("SYSTEM THREAD LOOPER STATS (dumpsys activity looper-stats)");
+        final Looper[] loopers = new Looper[] {
+                FgThread.get().getLooper(), IoThread.get().getLooper(),
+                DisplayThread.get().getLooper(), UiThread.get().getLooper(),
+                mHandlerThread.getLooper(),
+        };
+        boolean enabled = false;
+        for (Looper looper : loopers) {
+            final LooperStats stats = looper.getStats();
+            if (stats == null) {
+                continue;
+            }
+            enabled = true;
+            if (reset) {
+                stats.reset();
+                continue;
+            }
+            pw.print("  "); pw.print(looper.getThread().getName()); pw.println(":");
+            stats.dump(pw, "    ");
+        }
+        if (!enabled) {
+            pw.println("  Disabled; set persist.sys.looper_stats=true and restart to enable.");
+        } else if (reset) {
+            pw.println("Looper stats reset.");
+        }
+    }
+
     void dumpAssociationsLocked(FileDescriptor fd, PrintWriter pw, String[] args,
             int opti, boolean dumpAll, boolean dumpClient, String dumpPackage) {
         pw.println("ACTIVITY MANAGER ASSOCIATIONS (dumpsys activity associations)");
@@ -15522,6 +15666,13 @@ public final class ActivityManagerService extends ActivityManagerNative
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                if (INCREMENTAL_OOM_ADJ) {
+                    pw.println("  mNumIncrementalOomAdj=" + mNumIncrementalOomAdj
+                            + " procs=" + mNumIncrementalOomAdjProcs
+                            + " fallbacks=" + mNumIncrementalOomAdjFallbacks
+                            + (VERIFY_INCREMENTAL_OOM_ADJ
+                                    ? " mismatches=" + mNumIncrementalOomAdjMismatches : ""));
+                }
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -17573,7 +17724,9 @@ public final class ActivityManagerService extends ActivityManagerNative
 
         if (DEBUG_SERVICE) Slog.v(TAG_SERVICE,
                 "startService: " + service + " type=" + resolvedType);
+        final long lockStart = mLockStats.beforeLock();
         synchronized(this) {
+            mLockStats.afterLock(LockContentionStats.SITE_START_SERVICE, lockStart);
             final int callingPid = Binder.getCallingPid();
             final int callingUid = Binder.getCallingUid();
             final long origId = Binder.clearCallingIdentity();
@@ -17811,14 +17964,18 @@ public final class ActivityManagerService extends ActivityManagerNative
             throw new IllegalArgumentException("callingPackage cannot be null");
         }
 
+        final long lockStart = mLockStats.beforeLock();
         synchronized(this) {
+            mLockStats.afterLock(LockContentionStats.SITE_BIND_SERVICE, lockStart);
             return mServices.bindServiceLocked(caller, token, service,
                     resolvedType, connection, flags, callingPackage, userId);
         }
     }
 
     public boolean unbindService(IServiceConnection connection) {
+        final long lockStart = mLockStats.beforeLock();
         synchronized (this) {
+            mLockStats.afterLock(LockContentionStats.SITE_UNBIND_SERVICE, lockStart);
             return mServices.unbindServiceLocked(connection);
         }
     }
@@ -17829,7 +17986,9 @@ public final class ActivityManagerService extends ActivityManagerNative
             throw new IllegalArgumentException("File descriptors passed in Intent");
         }
 
+        final long lockStart = mLockStats.beforeLock();
         synchronized(this) {
+            mLockStats.afterLock(LockContentionStats.SITE_PUBLISH_SERVICE, lockStart);
             if (!(token instanceof ServiceRecord)) {
                 throw new IllegalArgumentException("Invalid service token");
             }
@@ -18031,8 +18190,12 @@ public final class ActivityManagerService extends ActivityManagerNative
     // =========================================================
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -18848,7 +19011,8 @@ public final class ActivityManagerService extends ActivityManagerNative
 
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
-            BroadcastQueue queue = broadcastQueueForIntent(intent);
+            BroadcastQueue queue = broadcastQueueForIntent(intent)
+                    .laneForOrderedBroadcastLocked(intent, receivers);
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -18906,7 +19070,9 @@ public final class ActivityManagerService extends ActivityManagerNative
             String[] requiredPermissions, int appOp, Bundle options,
             boolean serialized, boolean sticky, int userId) {
         enforceNotIsolatedCaller("broadcastIntent");
+        final long lockStart = mLockStats.beforeLock();
         synchronized(this) {
+            mLockStats.afterLock(LockContentionStats.SITE_BROADCAST_INTENT, lockStart);
             intent = verifyBroadcastLocked(intent);
 
             final ProcessRecord callerApp = getRecordForAppLocked(caller);
@@ -19019,10 +19185,20 @@ public final class ActivityManagerService extends ActivityManagerNative
             boolean doNext = false;
             BroadcastRecord r;
 
+            final long lockStart = mLockStats.beforeLock();
             synchronized(this) {
+                mLockStats.afterLock(LockContentionStats.SITE_FINISH_RECEIVER, lockStart);
                 BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
                         ? mFgBroadcastQueue : mBgBroadcastQueue;
                 r = queue.getMatchingOrderedReceiver(who);
+                if (r == null && queue.mLanes != null) {
+                    for (BroadcastQueue lane : queue.mLanes) {
+                        r = lane.getMatchingOrderedReceiver(who);
+                        if (r != null) {
+                            break;
+                        }
+                    }
+                }
                 if (r != null) {
                     /// M: broadcast log enhancement @{
                     if (!IS_USER_BUILD) {
@@ -19711,7 +19887,7 @@ public final class ActivityManagerService extends ActivityManagerNative
             // It's placed in a sched group based on the nature of the
             // broadcast as reflected by which queue it's active in.
             adj = ProcessList.FOREGROUND_APP_ADJ;
-            schedGroup = (queue == mFgBroadcastQueue)
+            schedGroup = (queue.getOwnerQueue() == mFgBroadcastQueue)
                     ? Process.THREAD_GROUP_DEFAULT : Process.THREAD_GROUP_BG_NONINTERACTIVE;
             app.adjType = "broadcast";
             procState = ActivityManager.PROCESS_STATE_RECEIVER;
@@ -21103,7 +21279,156 @@ public final class ActivityManagerService extends ActivityManagerNative
         return success;
     }
 
+    /**
+     * Notes that something {@code app}'s adjustment depends on has changed:
+     * its activities, its services, or a binding or provider connection to it.
+     * Only tracked when INCREMENTAL_OOM_ADJ is set.
+     */
+    final void markOomAdjDirtyLocked(ProcessRecord app) {
+        if (INCREMENTAL_OOM_ADJ && app != null) {
+            mOomAdjDirtyProcs.add(app);
+        }
+    }
+
+    /**
+     * Brings the adjustments of the dirty processes, and of every process they
+     * reach, up to date in one pass.  Without INCREMENTAL_OOM_ADJ this does
+     * what callers did before dirty tracking: an update of just {@code app},
+     * or a full update when it is null.
+     *
+     * @param app The process the caller changed, which is also marked dirty,
+     * or null if the caller already marked what it changed.
+     * @return Whether {@code app} is still alive; true if it is null.
+     */
+    final boolean updateOomAdjDirtyLocked(ProcessRecord app) {
+        if (!INCREMENTAL_OOM_ADJ) {
+            if (app != null) {
+                return updateOomAdjLocked(app);
+            }
+            updateOomAdjLocked();
+            return true;
+        }
+        markOomAdjDirtyLocked(app);
+        if (mOomAdjDirtyProcs.isEmpty()) {
+            return true;
+        }
+
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+        final ArrayList<ProcessRecord> closure = mTmpOomAdjClosure;
+        collectOomAdjClosureLocked(mOomAdjDirtyProcs, closure);
+        final int dirtyCount = mOomAdjDirtyProcs.size();
+        mOomAdjDirtyProcs.clear();
+
+        mAdjSeq++;
+        mNumIncrementalOomAdj++;
+        boolean success = true;
+        boolean needFullUpdate = false;
+        final int N = closure.size();
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = closure.get(i);
+            if (proc.killedByAm || proc.thread == null) {
+                if (proc == app) {
+                    success = false;
+                }
+                continue;
+            }
+            final boolean wasCached = proc.cached;
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            final boolean procSuccess = updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (proc == app) {
+                success = procSuccess;
+            }
+            mNumIncrementalOomAdjProcs++;
+            if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                // Changed to/from cached state, so apps after it in the LRU
+                // list may also be changed.
+                needFullUpdate = true;
+                break;
+            }
+        }
+        closure.clear();
+
+        if (needFullUpdate) {
+            mNumIncrementalOomAdjFallbacks++;
+            updateOomAdjLocked();
+        } else if (VERIFY_INCREMENTAL_OOM_ADJ) {
+            verifyIncrementalOomAdjLocked(dirtyCount);
+        }
+        return success;
+    }
+
+    /**
+     * Collects the {@code dirty} processes and, breadth first, every process
+     * hosting a service or provider one of them is connected to.  Their
+     * adjustments may depend on the dirty processes, while processes not
+     * reached cannot.
+     */
+    private void collectOomAdjClosureLocked(ArraySet<ProcessRecord> dirty,
+            ArrayList<ProcessRecord> closure) {
+        final int seq = ++mAdjClosureSeq;
+        for (int i = dirty.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = dirty.valueAt(i);
+            if (app.adjClosureSeq != seq) {
+                app.adjClosureSeq = seq;
+                closure.add(app);
+            }
+        }
+        for (int i = 0; i < closure.size(); i++) {
+            final ProcessRecord proc = closure.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.connections.valueAt(j).binding.service.app;
+                if (host != null && host.adjClosureSeq != seq) {
+                    host.adjClosureSeq = seq;
+                    closure.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && host.adjClosureSeq != seq) {
+                    host.adjClosureSeq = seq;
+                    closure.add(host);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a full update after an incremental one and reports any process
+     * whose non-cached adjustment or process state it had to change.
+     */
+    private void verifyIncrementalOomAdjLocked(int dirtyCount) {
+        final int N = mLruProcesses.size();
+        final int[] adj = new int[N];
+        final int[] procState = new int[N];
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = mLruProcesses.get(i);
+            adj[i] = proc.curRawAdj;
+            procState[i] = proc.curProcState;
+        }
+        updateOomAdjLocked();
+        for (int i = 0; i < N && i < mLruProcesses.size(); i++) {
+            final ProcessRecord proc = mLruProcesses.get(i);
+            if (proc.killedByAm || proc.thread == null) {
+                continue;
+            }
+            final boolean adjDiffers = adj[i] != proc.curRawAdj
+                    && (adj[i] < ProcessList.CACHED_APP_MIN_ADJ
+                            || proc.curRawAdj < ProcessList.CACHED_APP_MIN_ADJ);
+            if (adjDiffers || procState[i] != proc.curProcState) {
+                mNumIncrementalOomAdjMismatches++;
+                Slog.w(TAG_OOM_ADJ, "Incremental oom adj from " + dirtyCount
+                        + " dirty processes missed " + proc + ": adj " + adj[i] + " -> " + proc.curRawAdj
+                        + ", procState " + procState[i] + " -> " + proc.curProcState);
+            }
+        }
+    }
+
     final void updateOomAdjLocked() {
+        // Everything is recomputed, so nothing is left dirty.
+        mOomAdjDirtyProcs.clear();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
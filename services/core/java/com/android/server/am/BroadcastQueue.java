@@ -26,6 +26,7 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import android.app.ActivityManager;
@@ -94,6 +95,30 @@ public final class BroadcastQueue {
      */
     final boolean mDelayBehindServices;
 
+    /**
+     * The queue this one is a dispatch lane of, or null if this is one of
+     * the top level foreground/background queues.
+     */
+    final BroadcastQueue mLaneOwner;
+
+    /**
+     * Dispatch lanes that ordered broadcasts to a single receiving process
+     * may be moved to, so that one slow receiver does not hold up unrelated
+     * broadcasts.  Null unless lanes are enabled for this queue.
+     *
+     * <p>Lanes only keep order among the broadcasts they carry.  A process
+     * also reached by broadcasts that stay on this queue, because they have
+     * receivers in other processes, can get an ordered broadcast from its
+     * lane before one sent earlier through this queue, or the other way
+     * around.
+     */
+    BroadcastQueue[] mLanes;
+
+    /**
+     * Queue depth and receiver latency histograms.
+     */
+    final BroadcastStats mStats = new BroadcastStats();
+
     /**
      * Lists of all active broadcasts that are to be executed immediately
      * (without waiting for another broadcast to finish).  Currently this only
@@ -232,24 +257,100 @@ public final class BroadcastQueue {
 
     BroadcastQueue(ActivityManagerService service, Handler handler,
             String name, long timeoutPeriod, boolean allowDelayBehindServices) {
+        this(service, handler, name, timeoutPeriod, allowDelayBehindServices, null);
+    }
+
+    private BroadcastQueue(ActivityManagerService service, Handler handler,
+            String name, long timeoutPeriod, boolean allowDelayBehindServices,
+            BroadcastQueue laneOwner) {
         mService = service;
         mHandler = new BroadcastHandler(handler.getLooper());
         mQueueName = name;
         mTimeoutPeriod = timeoutPeriod;
         mDelayBehindServices = allowDelayBehindServices;
+        mLaneOwner = laneOwner;
         mAnrBroadcastQueue = new AnrBroadcastQueue();       /// M: ANR Debug Mechanism
     }
 
+    /**
+     * Creates {@code count} dispatch lanes for this queue.  Each lane is a
+     * full queue of its own, sharing this queue's timeout and handler thread,
+     * and is returned so the caller can add it to the set of queues it
+     * iterates over.
+     */
+    BroadcastQueue[] createLanes(Handler handler, int count) {
+        mLanes = new BroadcastQueue[count];
+        for (int i = 0; i < count; i++) {
+            mLanes[i] = new BroadcastQueue(mService, handler, mQueueName + "-lane" + i,
+                    mTimeoutPeriod, mDelayBehindServices, this);
+        }
+        return mLanes;
+    }
+
+    /**
+     * Returns the top level queue this queue belongs to: itself, or the
+     * queue it is a lane of.
+     */
+    BroadcastQueue getOwnerQueue() {
+        return mLaneOwner != null ? mLaneOwner : this;
+    }
+
+    /**
+     * Picks the queue an ordered broadcast with the given receivers should be
+     * enqueued on.  Broadcasts whose receivers all live in one process go to
+     * the lane chosen by that process, so successive broadcasts to the same
+     * process alone are still delivered in order; everything else, including
+     * broadcasts that must run during boot, stays on this queue.  There is no
+     * ordering between the lane and this queue: see {@link #mLanes}.
+     */
+    BroadcastQueue laneForOrderedBroadcastLocked(Intent intent, List receivers) {
+        if (mLanes == null || receivers == null || receivers.isEmpty()
+                || (intent.getFlags() & Intent.FLAG_RECEIVER_BOOT_UPGRADE) != 0
+                || !mService.mProcessesReady) {
+            return this;
+        }
+        String processName = null;
+        int uid = -1;
+        for (int i = receivers.size() - 1; i >= 0; i--) {
+            final Object target = receivers.get(i);
+            final String targetProcess;
+            final int targetUid;
+            if (target instanceof BroadcastFilter) {
+                final ReceiverList rl = ((BroadcastFilter) target).receiverList;
+                if (rl.app == null) {
+                    // Direct calls from system code; nothing to keep in order with.
+                    return this;
+                }
+                targetProcess = rl.app.processName;
+                targetUid = rl.uid;
+            } else {
+                final ActivityInfo ai = ((ResolveInfo) target).activityInfo;
+                targetProcess = ai.processName;
+                targetUid = ai.applicationInfo.uid;
+            }
+            if (processName == null) {
+                processName = targetProcess;
+                uid = targetUid;
+            } else if (uid != targetUid || !processName.equals(targetProcess)) {
+                return this;
+            }
+        }
+        final int hash = 31 * processName.hashCode() + uid;
+        return mLanes[(hash & Integer.MAX_VALUE) % mLanes.length];
+    }
+
     public boolean isPendingBroadcastProcessLocked(int pid) {
         return mPendingBroadcast != null && mPendingBroadcast.curApp.pid == pid;
     }
 
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
+        mStats.noteEnqueueParallel(mParallelBroadcasts.size());
         mParallelBroadcasts.add(r);
         r.enqueueClockTime = System.currentTimeMillis();
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
+        mStats.noteEnqueueOrdered(mOrderedBroadcasts.size());
         mOrderedBroadcasts.add(r);
         r.enqueueClockTime = System.currentTimeMillis();
     }
@@ -421,6 +522,10 @@ public final class BroadcastQueue {
         r.state = BroadcastRecord.IDLE;
         if (state == BroadcastRecord.IDLE) {
             Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
+        } else if (state != BroadcastRecord.WAITING_SERVICES && r.receiverTime > 0) {
+            mStats.noteReceiverFinished(r.curComponent != null ? r.curComponent
+                    : r.curFilter != null ? r.curFilter.packageName : null,
+                    SystemClock.uptimeMillis() - r.receiverTime);
         }
         r.receiver = null;
         r.intent.setComponent(null);
@@ -715,7 +820,10 @@ public final class BroadcastQueue {
     }
 
     final void processNextBroadcast(boolean fromMsg) {
+        final long lockStart = mService.mLockStats.beforeLock();
         synchronized(mService) {
+            mService.mLockStats.afterLock(LockContentionStats.SITE_PROCESS_NEXT_BROADCAST,
+                    lockStart);
             BroadcastRecord r;
 
             if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "processNextBroadcast ["
@@ -1497,6 +1605,15 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            pw.println("  Broadcast stats [" + mQueueName + "]:");
+            mStats.dump(pw, "    ", dumpAll);
+            needSep = true;
+        }
+
         int i;
         boolean printed = false;
 
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.ComponentName;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Queue depth and receiver latency histograms for a single
+ * {@link BroadcastQueue}, reported by {@code dumpsys activity broadcasts}.
+ * All methods must be called with the activity manager lock held.
+ */
+final class BroadcastStats {
+    /** Upper bounds of the latency buckets, in milliseconds. */
+    static final long[] LATENCY_BUCKETS = { 10, 50, 100, 500, 1000, 5000, 10000, 60000 };
+
+    /** Upper bounds of the queue depth buckets. */
+    static final long[] DEPTH_BUCKETS = { 0, 1, 2, 4, 8, 16, 32, 64 };
+
+    /** Maximum number of receivers tracked individually. */
+    static final int MAX_RECEIVERS = 100;
+
+    /** Number of receivers printed when not dumping everything. */
+    static final int DUMP_RECEIVERS = 10;
+
+    static final class Histogram {
+        final long[] mBuckets;
+        final int[] mCounts;
+        int mSamples;
+        long mTotal;
+        long mMax;
+
+        Histogram(long[] buckets) {
+            mBuckets = buckets;
+            mCounts = new int[buckets.length + 1];
+        }
+
+        void add(long value) {
+            int i = 0;
+            while (i < mBuckets.length && value > mBuckets[i]) {
+                i++;
+            }
+            mCounts[i]++;
+            mSamples++;
+            mTotal += value;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        void dump(PrintWriter pw, String unit) {
+            for (int i = 0; i < mCounts.length; i++) {
+                if (i > 0) {
+                    pw.print(" ");
+                }
+                if (i < mBuckets.length) {
+                    pw.print("<="); pw.print(mBuckets[i]);
+                } else {
+                    pw.print(">"); pw.print(mBuckets[i - 1]);
+                }
+                pw.print(unit); pw.print("="); pw.print(mCounts[i]);
+            }
+            pw.print(" (n="); pw.print(mSamples);
+            if (mSamples > 0) {
+                pw.print(" avg="); pw.print(mTotal / mSamples); pw.print(unit);
+                pw.print(" max="); pw.print(mMax); pw.print(unit);
+            }
+            pw.println(")");
+        }
+    }
+
+    /** Ordered broadcasts already waiting when a new one was enqueued. */
+    final Histogram mOrderedDepth = new Histogram(DEPTH_BUCKETS);
+
+    /** Parallel broadcasts already waiting when a new one was enqueued. */
+    final Histogram mParallelDepth = new Histogram(DEPTH_BUCKETS);
+
+    /** Time each ordered receiver took from dispatch to finish. */
+    final Histogram mReceiverLatency = new Histogram(LATENCY_BUCKETS);
+
+    /**
+     * Latency per receiver, keyed by {@link ComponentName} for manifest
+     * receivers and by package name for registered receivers.
+     */
+    final ArrayMap<Object, Histogram> mReceivers = new ArrayMap<>();
+
+    /** Samples not attributed to a receiver because the table was full. */
+    int mDroppedReceivers;
+
+    void noteEnqueueOrdered(int depth) {
+        mOrderedDepth.add(depth);
+    }
+
+    void noteEnqueueParallel(int depth) {
+        mParallelDepth.add(depth);
+    }
+
+    void noteReceiverFinished(Object receiver, long latency) {
+        mReceiverLatency.add(latency);
+        if (receiver == null) {
+            return;
+        }
+        Histogram h = mReceivers.get(receiver);
+        if (h == null) {
+            if (mReceivers.size() >= MAX_RECEIVERS) {
+                mDroppedReceivers++;
+                return;
+            }
+            h = new Histogram(LATENCY_BUCKETS);
+            mReceivers.put(receiver, h);
+        }
+        h.add(latency);
+    }
+
+    void dump(PrintWriter pw, String prefix, boolean dumpAll) {
+        pw.print(prefix); pw.print("Ordered queue depth: "); mOrderedDepth.dump(pw, "");
+        pw.print(prefix); pw.print("Parallel queue depth: "); mParallelDepth.dump(pw, "");
+        pw.print(prefix); pw.print("Receiver latency: "); mReceiverLatency.dump(pw, "ms");
+        if (mReceivers.size() == 0) {
+            return;
+        }
+
+        final ArrayList<Object> receivers = new ArrayList<>(mReceivers.keySet());
+        Collections.sort(receivers, new Comparator<Object>() {
+            @Override
+            public int compare(Object lhs, Object rhs) {
+                return Long.compare(mReceivers.get(rhs).mMax, mReceivers.get(lhs).mMax);
+            }
+        });
+        final int N = dumpAll ? receivers.size() : Math.min(DUMP_RECEIVERS, receivers.size());
+        pw.print(prefix); pw.print("Slowest receivers");
+        if (N < receivers.size()) {
+            pw.print(" (top "); pw.print(N); pw.print(" of "); pw.print(receivers.size());
+            pw.print(")");
+        }
+        pw.println(":");
+        for (int i = 0; i < N; i++) {
+            final Object receiver = receivers.get(i);
+            pw.print(prefix); pw.print("  ");
+            pw.println(receiver instanceof ComponentName
+                    ? ((ComponentName) receiver).flattenToShortString() : receiver);
+            pw.print(prefix); pw.print("    ");
+            mReceivers.get(receiver).dump(pw, "ms");
+        }
+        if (mDroppedReceivers > 0) {
+            pw.print(prefix); pw.print("  (untracked samples: ");
+            pw.print(mDroppedReceivers); pw.println(")");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Records how long callers wait to enter the {@link ActivityManagerService}
+ * monitor, broken down by call site.  Enabled with
+ * {@code persist.am.lock_stats}; when disabled every call is a single
+ * branch on a constant.
+ *
+ * <p>Usage at an instrumented call site:
+ * <pre>
+ * final long lockStart = mLockStats.beforeLock();
+ * synchronized (this) {
+ *     mLockStats.afterLock(LockContentionStats.SITE_BIND_SERVICE, lockStart);
+ *     ...
+ * </pre>
+ * {@link #afterLock} must be called with the monitor held, which is what
+ * guards the counters below.
+ *
+ * <p>This only measures contention; every site still takes the one
+ * activity manager lock.
+ */
+final class LockContentionStats {
+    static final boolean ENABLED = SystemProperties.getBoolean("persist.am.lock_stats", false);
+
+    /** Waits longer than this are counted as contended. */
+    static final long CONTENDED_NANOS = 1000 * 1000;
+
+    static final int SITE_GET_CONTENT_PROVIDER = 0;
+    static final int SITE_REMOVE_CONTENT_PROVIDER = 1;
+    static final int SITE_PUBLISH_CONTENT_PROVIDERS = 2;
+    static final int SITE_START_SERVICE = 3;
+    static final int SITE_BIND_SERVICE = 4;
+    static final int SITE_UNBIND_SERVICE = 5;
+    static final int SITE_PUBLISH_SERVICE = 6;
+    static final int SITE_BROADCAST_INTENT = 7;
+    static final int SITE_FINISH_RECEIVER = 8;
+    static final int SITE_PROCESS_NEXT_BROADCAST = 9;
+    static final int SITE_ATTACH_APPLICATION = 10;
+    static final int SITE_COUNT = 11;
+
+    private static final String[] SITE_NAMES = {
+            "getContentProvider",
+            "removeContentProvider",
+            "publishContentProviders",
+            "startService",
+            "bindService",
+            "unbindService",
+            "publishService",
+            "broadcastIntent",
+            "finishReceiver",
+            "processNextBroadcast",
+            "attachApplication",
+    };
+
+    private final long[] mAcquired = new long[SITE_COUNT];
+    private final long[] mContended = new long[SITE_COUNT];
+    private final long[] mTotalWaitNanos = new long[SITE_COUNT];
+    private final long[] mMaxWaitNanos = new long[SITE_COUNT];
+    private long mStartTime = SystemClock.elapsedRealtime();
+
+    /**
+     * Returns the timestamp to pass to {@link #afterLock}, or 0 when
+     * instrumentation is disabled.
+     */
+    long beforeLock() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    void afterLock(int site, long startNanos) {
+        if (ENABLED) {
+            final long wait = System.nanoTime() - startNanos;
+            mAcquired[site]++;
+            mTotalWaitNanos[site] += wait;
+            if (wait > CONTENDED_NANOS) {
+                mContended[site]++;
+            }
+            if (wait > mMaxWaitNanos[site]) {
+                mMaxWaitNanos[site] = wait;
+            }
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < SITE_COUNT; i++) {
+            mAcquired[i] = 0;
+            mContended[i] = 0;
+            mTotalWaitNanos[i] = 0;
+            mMaxWaitNanos[i] = 0;
+        }
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("ACTIVITY MANAGER LOCK CONTENTION (dumpsys activity lock-stats)");
+        if (!ENABLED) {
+            pw.println("  Disabled; set persist.am.lock_stats=true and restart to enable.");
+            return;
+        }
+        pw.print("  Collected over ");
+        TimeUtils.formatDuration(SystemClock.elapsedRealtime() - mStartTime, pw);
+        pw.println(":");
+        for (int i = 0; i < SITE_COUNT; i++) {
+            if (mAcquired[i] == 0) {
+                continue;
+            }
+            pw.print("  "); pw.print(SITE_NAMES[i]); pw.print(": acquired=");
+            pw.print(mAcquired[i]);
+            pw.print(" contended="); pw.print(mContended[i]);
+            pw.print(" totalWait="); pw.print(mTotalWaitNanos[i] / 1000000); pw.print("ms");
+            pw.print(" avgWait="); pw.print(mTotalWaitNanos[i] / mAcquired[i] / 1000);
+            pw.print("us");
+            pw.print(" maxWait="); pw.print(mMaxWaitNanos[i] / 1000000); pw.println("ms");
+        }
+    }
+}
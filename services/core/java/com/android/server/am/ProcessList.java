@@ -196,6 +196,10 @@ final class ProcessList {
 
     private boolean mHaveDisplaySize;
 
+    // The lmkd connection has its own lock rather than relying on the
+    // activity manager lock, so writes may come from any thread.  Nothing
+    // else may be acquired while holding it.
+    private static final Object sLmkdLock = new Object();
     private static LocalSocket sLmkdSocket;
     private static OutputStream sLmkdOutputStream;
 
@@ -777,6 +781,12 @@ final class ProcessList {
     }
 
     private static void writeLmkd(ByteBuffer buf) {
+        synchronized (sLmkdLock) {
+            writeLmkdLocked(buf);
+        }
+    }
+
+    private static void writeLmkdLocked(ByteBuffer buf) {
 
         for (int i = 0; i < 3; i++) {
             if (sLmkdSocket == null) {
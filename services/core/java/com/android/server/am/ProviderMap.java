@@ -36,6 +36,7 @@ import java.util.Set;
 /**
  * Keeps track of content providers by authority (name) and class. It separates the mapping by
  * user and ones that are not user-specific (system providers).
+ * Not synchronized; all access is under the {@link ActivityManagerService} lock.
  */
 public final class ProviderMap {
 
@@ -44,6 +44,7 @@ import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
@@ -51,16 +52,20 @@ import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Slog;
 import android.util.SparseIntArray;
+import com.android.internal.os.BackgroundThread;
 import com.android.server.LocalServices;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 /**
@@ -68,9 +73,24 @@ import java.util.List;
  */
 public final class ContentService extends IContentService.Stub {
     private static final String TAG = "ContentService";
+
+    /**
+     * How long, in milliseconds, to hold change notifications so that the ones for the
+     * same observer can be delivered in a single call; 0 delivers each one immediately.
+     */
+    private static final long COALESCE_WINDOW_MS =
+            SystemProperties.getLong("persist.sys.content_coalesce_ms", 0);
+
+    /** Most Uris delivered in one batch call, to stay well under the binder buffer size. */
+    private static final int MAX_BATCH_URIS = 128;
+
     private Context mContext;
     private boolean mFactoryTest;
     private final ObserverNode mRootNode = new ObserverNode("");
+
+    /** Notifications waiting for the coalescing window to close, guarded by mRootNode. */
+    private final ChangeCoalescer mCoalescer =
+            new ChangeCoalescer(mRootNode, COALESCE_WINDOW_MS, null);
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -137,6 +157,9 @@ public final class ContentService extends IContentService.Stub {
                 pw.println();
                 pw.print(" Total number of nodes: "); pw.println(counts[0]);
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
+                pw.print(" Coalescing window: "); pw.print(COALESCE_WINDOW_MS);
+                        pw.println("ms");
+                pw.print(" Pending batches: "); pw.println(mCoalescer.getPendingCountLocked());
             }
         } finally {
             restoreCallingIdentity(identityToken);
@@ -271,6 +294,14 @@ public final class ContentService extends IContentService.Stub {
             synchronized (mRootNode) {
                 mRootNode.collectObserversLocked(uri, 0, observer, observerWantsSelfNotifications,
                         userHandle, calls);
+                if (COALESCE_WINDOW_MS > 0) {
+                    mCoalescer.queueLocked(calls, uri, userHandle);
+                    calls.clear();
+                } else {
+                    for (int i=0; i<calls.size(); i++) {
+                        calls.get(i).mEntry.callCount++;
+                    }
+                }
             }
             final int numCalls = calls.size();
             for (int i=0; i<numCalls; i++) {
@@ -281,21 +312,7 @@ public final class ContentService extends IContentService.Stub {
                         Log.v(TAG, "Notified " + oc.mObserver + " of " + "update at " + uri);
                     }
                 } catch (RemoteException ex) {
-                    synchronized (mRootNode) {
-                        Log.w(TAG, "Found dead observer, removing");
-                        IBinder binder = oc.mObserver.asBinder();
-                        final ArrayList<ObserverNode.ObserverEntry> list
-                                = oc.mNode.mObservers;
-                        int numList = list.size();
-                        for (int j=0; j<numList; j++) {
-                            ObserverNode.ObserverEntry oe = list.get(j);
-                            if (oe.observer.asBinder() == binder) {
-                                list.remove(j);
-                                j--;
-                                numList--;
-                            }
-                        }
-                    }
+                    removeDeadObserver(oc.mNode, oc.mObserver);
                 }
             }
             if (syncToNetwork) {
@@ -310,6 +327,159 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    private void removeDeadObserver(ObserverNode node, IContentObserver observer) {
+        synchronized (mRootNode) {
+            node.removeDeadObserverLocked(observer);
+        }
+    }
+
+    /**
+     * Holds change notifications for a short window so that the ones for the same observer
+     * are delivered in a single call.  The queue is guarded by the lock given at
+     * construction, which is the root {@link ObserverNode}.
+     */
+    static final class ChangeCoalescer {
+        private final Object mLock;
+        private final long mWindowMs;
+        private final ArrayMap<ObserverNode.ObserverEntry, PendingBatch> mPendingBatches =
+                new ArrayMap<ObserverNode.ObserverEntry, PendingBatch>();
+        private boolean mFlushScheduled;
+        private Handler mHandler;
+        private final Runnable mFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        /**
+         * @param handler where the flush is posted; null to use the background thread.
+         */
+        ChangeCoalescer(Object lock, long windowMs, Handler handler) {
+            mLock = lock;
+            mWindowMs = windowMs;
+            mHandler = handler;
+        }
+
+        int getPendingCountLocked() {
+            return mPendingBatches.size();
+        }
+
+        /**
+         * Adds the change to the pending batch of each observer, to be delivered when the
+         * coalescing window closes.
+         */
+        void queueLocked(ArrayList<ObserverCall> calls, Uri uri, int userHandle) {
+            boolean flushNow = false;
+            for (int i=0; i<calls.size(); i++) {
+                final ObserverCall oc = calls.get(i);
+                PendingBatch batch = mPendingBatches.get(oc.mEntry);
+                if (batch == null) {
+                    batch = new PendingBatch(oc, userHandle);
+                    mPendingBatches.put(oc.mEntry, batch);
+                }
+                // Changes with a different self flag or user can't share a call.
+                while (batch.mSelfChange != oc.mSelfChange || batch.mUserHandle != userHandle) {
+                    if (batch.mNext == null) {
+                        batch.mNext = new PendingBatch(oc, userHandle);
+                    }
+                    batch = batch.mNext;
+                }
+                // Ask for an immediate flush once, when the batch fills up.
+                if (batch.mUris.add(uri) && batch.mUris.size() == MAX_BATCH_URIS) {
+                    flushNow = true;
+                }
+            }
+            if (mHandler == null) {
+                mHandler = new Handler(BackgroundThread.get().getLooper());
+            }
+            if (flushNow) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled && !mPendingBatches.isEmpty()) {
+                mHandler.postDelayed(mFlushRunnable, mWindowMs);
+                mFlushScheduled = true;
+            }
+        }
+
+        /**
+         * Delivers every pending batch, a single Uri through the regular onChange() and
+         * several through one onBatchChange() call.
+         */
+        void flush() {
+            final ArrayList<PendingBatch> batches = new ArrayList<PendingBatch>();
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                for (int i=0; i<mPendingBatches.size(); i++) {
+                    final ObserverNode.ObserverEntry entry = mPendingBatches.keyAt(i);
+                    if (entry.removed) {
+                        continue;
+                    }
+                    for (PendingBatch batch = mPendingBatches.valueAt(i); batch != null;
+                            batch = batch.mNext) {
+                        final int size = batch.mUris.size();
+                        entry.callCount += (size + MAX_BATCH_URIS - 1) / MAX_BATCH_URIS;
+                        if (size > 1) {
+                            entry.batchCount++;
+                        }
+                        batches.add(batch);
+                    }
+                }
+                mPendingBatches.clear();
+            }
+
+            final long identityToken = Binder.clearCallingIdentity();
+            try {
+                for (int i=0; i<batches.size(); i++) {
+                    final PendingBatch batch = batches.get(i);
+                    final Uri[] uris = batch.mUris.toArray(new Uri[batch.mUris.size()]);
+                    try {
+                        if (uris.length == 1) {
+                            batch.mObserver.onChange(batch.mSelfChange, uris[0],
+                                    batch.mUserHandle);
+                        } else {
+                            for (int start=0; start<uris.length; start+=MAX_BATCH_URIS) {
+                                final int end = Math.min(start + MAX_BATCH_URIS, uris.length);
+                                batch.mObserver.onBatchChange(batch.mSelfChange,
+                                        start == 0 && end == uris.length
+                                                ? uris : Arrays.copyOfRange(uris, start, end),
+                                        batch.mUserHandle);
+                            }
+                        }
+                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                            Log.v(TAG, "Notified " + batch.mObserver + " of " + uris.length
+                                    + " updates");
+                        }
+                    } catch (RemoteException ex) {
+                        synchronized (mLock) {
+                            batch.mNode.removeDeadObserverLocked(batch.mObserver);
+                        }
+                    }
+                }
+            } finally {
+                Binder.restoreCallingIdentity(identityToken);
+            }
+        }
+    }
+
+    private static final class PendingBatch {
+        final ObserverNode mNode;
+        final IContentObserver mObserver;
+        final boolean mSelfChange;
+        final int mUserHandle;
+        /** Changed Uris in the order first notified; repeats collapse into one. */
+        final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+        PendingBatch mNext;
+
+        PendingBatch(ObserverCall oc, int userHandle) {
+            mNode = oc.mNode;
+            mObserver = oc.mObserver;
+            mSelfChange = oc.mSelfChange;
+            mUserHandle = userHandle;
+        }
+    }
+
     private int checkUriPermission(Uri uri, int pid, int uid, int modeFlags, int userHandle) {
         try {
             return ActivityManagerNative.getDefault().checkUriPermission(
@@ -333,12 +503,14 @@ public final class ContentService extends IContentService.Stub {
      */
     public static final class ObserverCall {
         final ObserverNode mNode;
+        final ObserverNode.ObserverEntry mEntry;
         final IContentObserver mObserver;
         final boolean mSelfChange;
 
-        ObserverCall(ObserverNode node, IContentObserver observer, boolean selfChange) {
+        ObserverCall(ObserverNode node, ObserverNode.ObserverEntry entry, boolean selfChange) {
             mNode = node;
-            mObserver = observer;
+            mEntry = entry;
+            mObserver = entry.observer;
             mSelfChange = selfChange;
         }
     }
@@ -976,6 +1148,16 @@ public final class ContentService extends IContentService.Stub {
             private final int userHandle;
             private final Object observersLock;
 
+            // Delivery counts, guarded by observersLock.
+            /** Changes this observer was notified of. */
+            int changeCount;
+            /** Binder calls made to deliver them. */
+            int callCount;
+            /** Calls that carried more than one change. */
+            int batchCount;
+            /** Set once unregistered, so pending batches are dropped. */
+            boolean removed;
+
             public ObserverEntry(IContentObserver o, boolean n, Object observersLock,
                     int _uid, int _pid, int _userHandle) {
                 this.observersLock = observersLock;
@@ -1004,8 +1186,11 @@ public final class ContentService extends IContentService.Stub {
                         pw.print(pid); pw.print(" uid=");
                         pw.print(uid); pw.print(" user=");
                         pw.print(userHandle); pw.print(" target=");
-                        pw.println(Integer.toHexString(System.identityHashCode(
+                        pw.print(Integer.toHexString(System.identityHashCode(
                                 observer != null ? observer.asBinder() : null)));
+                        pw.print(" changes="); pw.print(changeCount);
+                        pw.print(" calls="); pw.print(callCount);
+                        pw.print(" batches="); pw.println(batchCount);
             }
         }
 
@@ -1111,6 +1296,24 @@ public final class ContentService extends IContentService.Stub {
                     observersLock, uid, pid, userHandle);
         }
 
+        /**
+         * Removes a dead observer from this node only, as found when a call to it failed.
+         */
+        void removeDeadObserverLocked(IContentObserver observer) {
+            Log.w(TAG, "Found dead observer, removing");
+            IBinder binder = observer.asBinder();
+            int numList = mObservers.size();
+            for (int j=0; j<numList; j++) {
+                ObserverEntry oe = mObservers.get(j);
+                if (oe.observer.asBinder() == binder) {
+                    oe.removed = true;
+                    mObservers.remove(j);
+                    j--;
+                    numList--;
+                }
+            }
+        }
+
         public boolean removeObserverLocked(IContentObserver observer) {
             int size = mChildren.size();
             for (int i = 0; i < size; i++) {
@@ -1127,6 +1330,7 @@ public final class ContentService extends IContentService.Stub {
             for (int i = 0; i < size; i++) {
                 ObserverEntry entry = mObservers.get(i);
                 if (entry.observer.asBinder() == observerBinder) {
+                    entry.removed = true;
                     mObservers.remove(i);
                     // We no longer need to listen for death notifications. Remove it.
                     observerBinder.unlinkToDeath(entry, 0);
@@ -1161,7 +1365,8 @@ public final class ContentService extends IContentService.Stub {
                         || targetUserHandle == entry.userHandle) {
                     // Make sure the observer is interested in the notification
                     if (leaf || (!leaf && entry.notifyForDescendants)) {
-                        calls.add(new ObserverCall(this, entry.observer, selfChange));
+                        entry.changeCount++;
+                        calls.add(new ObserverCall(this, entry, selfChange));
                     }
                 }
             }
@@ -81,6 +81,7 @@ import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.text.TextUtils;
 import android.util.EventLog;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 
@@ -136,6 +137,9 @@ public class SyncManager {
                 SystemProperties.getInt("sync.max_init_syncs", defaultMaxInitSyncs);
         MAX_SIMULTANEOUS_REGULAR_SYNCS =
                 SystemProperties.getInt("sync.max_regular_syncs", defaultMaxRegularSyncs);
+        MAX_SIMULTANEOUS_REGULAR_SYNCS_PER_LANE =
+                SystemProperties.getInt("sync.max_regular_syncs_per_lane",
+                        Math.max(1, MAX_SIMULTANEOUS_REGULAR_SYNCS - 1));
         LOCAL_SYNC_DELAY =
                 SystemProperties.getLong("sync.local_sync_delay", 30 * 1000 /* 30 seconds */);
         MAX_TIME_PER_SYNC =
@@ -204,6 +208,13 @@ public class SyncManager {
     private static final int MAX_SIMULTANEOUS_REGULAR_SYNCS;
     private static final int MAX_SIMULTANEOUS_INITIALIZATION_SYNCS;
 
+    /**
+     * Regular syncs of one lane, an account type or sync service package, that are started
+     * ahead of the ready syncs of other lanes.  Syncs over this limit still run when no other
+     * lane can use the slot, and expedited syncs are never held back.
+     */
+    private static final int MAX_SIMULTANEOUS_REGULAR_SYNCS_PER_LANE;
+
     private Context mContext;
 
     private static final AccountAndUser[] INITIAL_ACCOUNTS_ARRAY = new AccountAndUser[0];
@@ -2605,21 +2616,21 @@ public class SyncManager {
             // will be set to the next time that a sync should be considered for running
             long nextReadyToRunTime = Long.MAX_VALUE;
 
-            // order the sync queue, dropping syncs that are not allowed
+            // take the operations that are due, dropping syncs that are not allowed
             ArrayList<SyncOperation> operations = new ArrayList<SyncOperation>();
             synchronized (mSyncQueue) {
+                final ArrayList<SyncOperation> ready = new ArrayList<SyncOperation>();
+                mSyncQueue.getReadyOperations(now, ready);
                 if (isLoggable) {
-                    Log.v(TAG, "build the operation array, syncQueue size is "
-                        + mSyncQueue.getOperations().size());
+                    Log.v(TAG, "build the operation array, " + ready.size() + " of "
+                        + mSyncQueue.getOperations().size() + " operations are ready");
                 }
-                final Iterator<SyncOperation> operationIterator =
-                        mSyncQueue.getOperations().iterator();
 
                 final ActivityManager activityManager
                         = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
                 final Set<Integer> removedUsers = Sets.newHashSet();
-                while (operationIterator.hasNext()) {
-                    final SyncOperation op = operationIterator.next();
+                for (int i = 0, N = ready.size(); i < N; i++) {
+                    final SyncOperation op = ready.get(i);
 
                     // If the user is not running, skip the request.
                     if (!activityManager.isUserRunning(op.target.userId)) {
@@ -2634,21 +2645,7 @@ public class SyncManager {
                         continue;
                     }
                     if (!isOperationValidLocked(op)) {
-                        operationIterator.remove();
-                        mSyncStorageEngine.deleteFromPending(op.pendingOperation);
-                        continue;
-                    }
-                    // If the next run time is in the future, even given the flexible scheduling,
-                    // return the time.
-                    if (op.effectiveRunTime - op.flexTime > now) {
-                        if (nextReadyToRunTime > op.effectiveRunTime) {
-                            nextReadyToRunTime = op.effectiveRunTime;
-                        }
-                        if (isLoggable) {
-                            Log.v(TAG, "    Not running sync operation: Sync too far in future."
-                                    + "effective: " + op.effectiveRunTime + " flex: " + op.flexTime
-                                    + " now: " + now);
-                        }
+                        mSyncQueue.remove(op);
                         continue;
                     }
                     String packageName = getPackageName(op.target);
@@ -2677,6 +2674,10 @@ public class SyncManager {
                     operations.add(op);
                 }
 
+                // The operations that are not due yet, including any just backed off, decide
+                // when to look again.
+                nextReadyToRunTime = mSyncQueue.getNextRunTime(now);
+
                 for (Integer user : removedUsers) {
                     // if it's still removed
                     if (mUserManager.getUserInfo(user) == null) {
@@ -2690,15 +2691,20 @@ public class SyncManager {
             // until the quotas are filled.
             // once the quotas are filled iterate once more to find when the next one would be
             // (also considering pre-emption reasons).
+            // regular syncs of a lane that is at its limit are moved to the end, so that they
+            // only get the room the other lanes leave.
             if (isLoggable) Log.v(TAG, "sort the candidate operations, size " + operations.size());
             Collections.sort(operations);
             if (isLoggable) Log.v(TAG, "dispatch all ready sync operations");
-            for (int i = 0, N = operations.size(); i < N; i++) {
+            final ArraySet<SyncOperation> deferred = new ArraySet<SyncOperation>();
+            for (int i = 0; i < operations.size(); i++) {
                 final SyncOperation candidate = operations.get(i);
                 final boolean candidateIsInitialization = candidate.isInitialization();
+                final String candidateLane = getLane(candidate.target);
 
                 int numInit = 0;
                 int numRegular = 0;
+                int numRegularInLane = 0;
                 ActiveSyncContext conflict = null;
                 ActiveSyncContext longRunning = null;
                 ActiveSyncContext toReschedule = null;
@@ -2710,6 +2716,9 @@ public class SyncManager {
                         numInit++;
                     } else {
                         numRegular++;
+                        if (candidateLane.equals(getLane(activeOp.target))) {
+                            numRegularInLane++;
+                        }
                         if (!activeOp.isExpedited()) {
                             if (oldestNonExpeditedRegular == null
                                 || (oldestNonExpeditedRegular.mStartTime
@@ -2731,13 +2740,22 @@ public class SyncManager {
                 }
 
                 if (isLoggable) {
-                    Log.v(TAG, "candidate " + (i + 1) + " of " + N + ": " + candidate);
+                    Log.v(TAG, "candidate " + (i + 1) + " of " + operations.size() + ": "
+                            + candidate);
                     Log.v(TAG, "  numActiveInit=" + numInit + ", numActiveRegular=" + numRegular);
                     Log.v(TAG, "  longRunning: " + longRunning);
                     Log.v(TAG, "  conflict: " + conflict);
                     Log.v(TAG, "  oldestNonExpeditedRegular: " + oldestNonExpeditedRegular);
                 }
 
+                if (!candidateIsInitialization && !candidate.isExpedited()
+                        && numRegularInLane >= MAX_SIMULTANEOUS_REGULAR_SYNCS_PER_LANE
+                        && deferred.add(candidate)) {
+                    if (isLoggable) Log.v(TAG, "  lane " + candidateLane + " is full, deferring");
+                    operations.add(candidate);
+                    continue;
+                }
+
                 final boolean roomAvailable = candidateIsInitialization
                         ? numInit < MAX_SIMULTANEOUS_INITIALIZATION_SYNCS
                         : numRegular < MAX_SIMULTANEOUS_REGULAR_SYNCS;
@@ -2802,6 +2820,17 @@ public class SyncManager {
             return nextReadyToRunTime;
         }
 
+        /**
+         * Returns the lane of a sync for {@link #MAX_SIMULTANEOUS_REGULAR_SYNCS_PER_LANE}: its
+         * account type, or the package of its sync service.
+         */
+        private String getLane(SyncStorageEngine.EndPoint target) {
+            if (target.target_provider) {
+                return target.account.type;
+            }
+            return target.service.getPackageName();
+        }
+
         private boolean isSyncNotUsingNetworkH(ActiveSyncContext activeSyncContext) {
             final long bytesTransferredCurrent =
                     getTotalBytesTransferredByUid(activeSyncContext.mSyncAdapterUid);
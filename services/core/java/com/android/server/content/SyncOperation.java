@@ -98,6 +98,10 @@ public class SyncOperation implements Comparable {
     /** Whether this sync op was recently skipped due to the app being idle */
     public boolean appIdle;
 
+    /** Positions in the {@link SyncSchedule} heaps, or -1 when not queued. */
+    int intervalStartHeapIndex = -1;
+    int runTimeHeapIndex = -1;
+
     public SyncOperation(Account account, int userId, int reason, int source, String provider,
             Bundle extras, long runTimeFromNow, long flexTime, long backoff,
             long delayUntil, boolean allowParallelSyncs) {
@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -49,6 +50,8 @@ public class SyncQueue {
     // A Map of SyncOperations operationKey -> SyncOperation that is designed for
     // quick lookup of an enqueued SyncOperation.
     private final HashMap<String, SyncOperation> mOperationsMap = Maps.newHashMap();
+    // The same operations ordered by when they can run.
+    private final SyncSchedule mSchedule = new SyncSchedule();
 
     public SyncQueue(PackageManager packageManager, SyncStorageEngine syncStorageEngine,
             final SyncAdaptersCache syncAdapters) {
@@ -133,6 +136,7 @@ public class SyncQueue {
                 existingOperation.latestRunTime = newRunTime;
                 // Take newer flextime.
                 existingOperation.flexTime = operation.flexTime;
+                mSchedule.update(existingOperation);
                 changed = true;
             }
             return changed;
@@ -151,6 +155,7 @@ public class SyncQueue {
         }
 
         mOperationsMap.put(operationKey, operation);
+        mSchedule.add(operation);
         return true;
     }
 
@@ -182,6 +187,7 @@ public class SyncQueue {
             }
             return;
         }
+        mSchedule.remove(operationToRemove);
         if (!mSyncStorageEngine.deleteFromPending(operationToRemove.pendingOperation)) {
             final String errorMessage = "unable to find pending row for " + operationToRemove;
             Log.e(TAG, errorMessage, new IllegalStateException(errorMessage));
@@ -193,6 +199,7 @@ public class SyncQueue {
         for (SyncOperation op : mOperationsMap.values()) {
             op.backoff = 0L;
             op.updateEffectiveRunTime();
+            mSchedule.update(op);
         }
     }
 
@@ -203,6 +210,7 @@ public class SyncQueue {
             if (op.target.matchesSpec(target)) {
                 op.backoff = backoff;
                 op.updateEffectiveRunTime();
+                mSchedule.update(op);
             }
         }
     }
@@ -213,6 +221,7 @@ public class SyncQueue {
             if (op.target.matchesSpec(target)) {
                 op.delayUntil = delayUntil;
                 op.updateEffectiveRunTime();
+                mSchedule.update(op);
             }
         }
     }
@@ -243,6 +252,7 @@ public class SyncQueue {
                 continue;
             }
             entries.remove();
+            mSchedule.remove(syncOperation);
             if (!mSyncStorageEngine.deleteFromPending(syncOperation.pendingOperation)) {
                 final String errorMessage = "unable to find pending row for " + syncOperation;
                 Log.e(TAG, errorMessage, new IllegalStateException(errorMessage));
@@ -250,10 +260,30 @@ public class SyncQueue {
         }
     }
 
+    /**
+     * Returns every queued operation.  Use {@link #remove(SyncOperation)} rather than the
+     * collection to remove one, so that it also leaves the schedule.
+     */
     public Collection<SyncOperation> getOperations() {
         return mOperationsMap.values();
     }
 
+    /**
+     * Adds the operations whose run interval has started by {@code now} to {@code out}, in no
+     * particular order, without looking at the operations that are not due yet.
+     */
+    public void getReadyOperations(long now, List<SyncOperation> out) {
+        mSchedule.getReadyOperations(now, out);
+    }
+
+    /**
+     * Returns the earliest effective run time, which includes backoff and delays, of the
+     * operations that are not ready at {@code now}, or {@link Long#MAX_VALUE} if none.
+     */
+    public long getNextRunTime(long now) {
+        return mSchedule.getNextRunTime(now);
+    }
+
     public void dump(StringBuilder sb) {
         final long now = SystemClock.elapsedRealtime();
         sb.append("SyncQueue: ").append(mOperationsMap.size()).append(" operation(s)\n");
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time index of the operations in the {@link SyncQueue}, so that the SyncManager can find the
+ * operations that are ready to run, and when the next one will be, without looking at every
+ * pending operation.
+ *
+ * <p>Operations are kept in two binary min-heaps: one ordered by the start of their run
+ * interval ({@code effectiveRunTime - flexTime}) and one by {@code effectiveRunTime}.  Each
+ * operation records its position in both, so a change to its backoff, delay or run time
+ * moves it in O(log n); callers must call {@link #update} after changing any of those.
+ *
+ * <p>Not thread safe; guarded by the SyncQueue lock.
+ */
+final class SyncSchedule {
+    private final Heap mByIntervalStart = new Heap() {
+        @Override
+        long key(SyncOperation op) {
+            return op.effectiveRunTime - op.flexTime;
+        }
+
+        @Override
+        int getIndex(SyncOperation op) {
+            return op.intervalStartHeapIndex;
+        }
+
+        @Override
+        void setIndex(SyncOperation op, int index) {
+            op.intervalStartHeapIndex = index;
+        }
+    };
+
+    private final Heap mByRunTime = new Heap() {
+        @Override
+        long key(SyncOperation op) {
+            return op.effectiveRunTime;
+        }
+
+        @Override
+        int getIndex(SyncOperation op) {
+            return op.runTimeHeapIndex;
+        }
+
+        @Override
+        void setIndex(SyncOperation op, int index) {
+            op.runTimeHeapIndex = index;
+        }
+    };
+
+    void add(SyncOperation op) {
+        mByIntervalStart.add(op);
+        mByRunTime.add(op);
+    }
+
+    void remove(SyncOperation op) {
+        mByIntervalStart.remove(op);
+        mByRunTime.remove(op);
+    }
+
+    /** Repositions an operation whose run time, backoff, delay or flex time changed. */
+    void update(SyncOperation op) {
+        mByIntervalStart.update(op);
+        mByRunTime.update(op);
+    }
+
+    int size() {
+        return mByIntervalStart.mSize;
+    }
+
+    /**
+     * Adds to {@code out}, in no particular order, the operations whose run interval has
+     * started by {@code now}.  Only those operations and their heap children are visited.
+     */
+    void getReadyOperations(long now, List<SyncOperation> out) {
+        collectReady(0, now, out);
+    }
+
+    private void collectReady(int i, long now, List<SyncOperation> out) {
+        final Heap heap = mByIntervalStart;
+        if (i >= heap.mSize) {
+            return;
+        }
+        final SyncOperation op = heap.mOps[i];
+        if (heap.key(op) > now) {
+            // Nothing below this one has started either.
+            return;
+        }
+        out.add(op);
+        collectReady(2 * i + 1, now, out);
+        collectReady(2 * i + 2, now, out);
+    }
+
+    /**
+     * Returns the earliest effective run time of the operations that are not ready at
+     * {@code now}, which is when the SyncManager next needs to look at the queue, or
+     * {@link Long#MAX_VALUE} if there are none.  Ready operations are not counted; they are
+     * looked at again when a running sync finishes.
+     */
+    long getNextRunTime(long now) {
+        return nextRunTime(0, now);
+    }
+
+    private long nextRunTime(int i, long now) {
+        final Heap heap = mByRunTime;
+        if (i >= heap.mSize) {
+            return Long.MAX_VALUE;
+        }
+        final SyncOperation op = heap.mOps[i];
+        if (op.effectiveRunTime - op.flexTime > now) {
+            // Not ready, and nothing below it runs earlier.
+            return op.effectiveRunTime;
+        }
+        return Math.min(nextRunTime(2 * i + 1, now), nextRunTime(2 * i + 2, now));
+    }
+
+    private abstract static class Heap {
+        SyncOperation[] mOps = new SyncOperation[16];
+        int mSize;
+
+        abstract long key(SyncOperation op);
+        abstract int getIndex(SyncOperation op);
+        abstract void setIndex(SyncOperation op, int index);
+
+        void add(SyncOperation op) {
+            if (getIndex(op) >= 0) {
+                update(op);
+                return;
+            }
+            if (mSize == mOps.length) {
+                mOps = Arrays.copyOf(mOps, mSize * 2);
+            }
+            set(mSize, op);
+            mSize++;
+            siftUp(mSize - 1);
+        }
+
+        void remove(SyncOperation op) {
+            final int i = getIndex(op);
+            if (i < 0) {
+                return;
+            }
+            setIndex(op, -1);
+            mSize--;
+            if (i == mSize) {
+                mOps[i] = null;
+                return;
+            }
+            set(i, mOps[mSize]);
+            mOps[mSize] = null;
+            if (!siftUp(i)) {
+                siftDown(i);
+            }
+        }
+
+        void update(SyncOperation op) {
+            final int i = getIndex(op);
+            if (i >= 0 && !siftUp(i)) {
+                siftDown(i);
+            }
+        }
+
+        private void set(int i, SyncOperation op) {
+            mOps[i] = op;
+            setIndex(op, i);
+        }
+
+        private boolean siftUp(int i) {
+            final SyncOperation op = mOps[i];
+            final long key = key(op);
+            final int start = i;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (key(mOps[parent]) <= key) {
+                    break;
+                }
+                set(i, mOps[parent]);
+                i = parent;
+            }
+            set(i, op);
+            return i != start;
+        }
+
+        private void siftDown(int i) {
+            final SyncOperation op = mOps[i];
+            final long key = key(op);
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize && key(mOps[child + 1]) < key(mOps[child])) {
+                    child++;
+                }
+                if (key <= key(mOps[child])) {
+                    break;
+                }
+                set(i, mOps[child]);
+                i = child;
+            }
+            set(i, op);
+        }
+    }
+}
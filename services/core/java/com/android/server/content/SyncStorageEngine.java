@@ -43,11 +43,13 @@ import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.ArrayMap;
 import android.util.Xml;
 import android.util.EventLog;
@@ -55,6 +57,7 @@ import android.util.EventLog;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.server.RecordJournal;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -153,8 +156,17 @@ public class SyncStorageEngine extends Handler {
     private static final int MSG_WRITE_STATUS = 1;
     private static final long WRITE_STATUS_DELAY = 1000*60*10; // 10 minutes
 
-    private static final int MSG_WRITE_STATISTICS = 2;
-    private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
+    private static final int MSG_WRITE_ACCOUNTS = 2;
+
+    /**
+     * How long writes that used to happen right away are held back, so that a burst of
+     * changes shares a single write.
+     */
+    private static final long WRITE_GROUP_DELAY = 1000*2; // 2 seconds
+
+    /** Status journal size after which status.bin and stats.bin are rewritten. */
+    private static final int MAX_STATUS_JOURNAL_RECORDS = 256;
+    private static final long MAX_STATUS_JOURNAL_BYTES = 64 * 1024;
 
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
@@ -499,6 +511,21 @@ public class SyncStorageEngine extends Handler {
      */
     private final AtomicFile mStatisticsFile;
 
+    /**
+     * Changes to the sync status and statistics since status.bin and stats.bin were
+     * last written, one record per changed {@link SyncStatusInfo} or {@link DayStats}.
+     * It is replayed on top of those files when they are read, and folded into them
+     * once it grows too large.  Losing it only loses recent status, as before.
+     */
+    private final RecordJournal mStatusJournal;
+
+    /** Authorities whose status has not been journaled yet: true if changed, false if removed. */
+    private final SparseBooleanArray mDirtyStatus = new SparseBooleanArray();
+    /** Day statistics that have not been journaled yet, oldest first. */
+    private final ArrayList<DayStats> mDirtyDayStats = new ArrayList<DayStats>();
+    /** Uptime at which the pending status write is due, or 0 if none is scheduled. */
+    private long mStatusWriteTime;
+
     /**
      * This file contains the pending sync operations.  It is a binary file,
      * which must be updated every time an operation is added or removed,
@@ -533,16 +560,17 @@ public class SyncStorageEngine extends Handler {
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"));
         mPendingFile = new AtomicFile(new File(syncDir, "pending.xml"));
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"));
+        mStatusJournal = new RecordJournal(new File(syncDir, "status.journal"));
 
         readAccountInfoLocked();
         readStatusLocked();
         readPendingOperationsLocked();
         readStatisticsLocked();
+        readStatusJournalLocked();
         readAndDeleteLegacyAccountInfoLocked();
         writeAccountInfoLocked();
-        writeStatusLocked();
+        writeStatusFilesLocked();
         writePendingOperationsLocked();
-        writeStatisticsLocked();
 
         /// M: for CMCC, set the auto sync false
         mSyncManagerExt = MPlugin.createInstance(ISyncManagerExt.class.getName(), mContext);
@@ -580,9 +608,9 @@ public class SyncStorageEngine extends Handler {
             synchronized (mAuthorities) {
                 writeStatusLocked();
             }
-        } else if (msg.what == MSG_WRITE_STATISTICS) {
+        } else if (msg.what == MSG_WRITE_ACCOUNTS) {
             synchronized (mAuthorities) {
-                writeStatisticsLocked();
+                writeAccountInfoLocked();
             }
         }
     }
@@ -707,7 +735,7 @@ public class SyncStorageEngine extends Handler {
                 authority.syncable = AuthorityInfo.NOT_INITIALIZED;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
 
         if (sync) {
@@ -790,7 +818,7 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             aInfo.syncable = syncable;
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         if (syncable == AuthorityInfo.SYNCABLE) {
             requestSync(aInfo, SyncOperation.REASON_IS_SYNCABLE, new Bundle());
@@ -998,10 +1026,11 @@ public class SyncStorageEngine extends Handler {
                     status.setPeriodicSyncTime(
                             authority.periodicSyncs.size() - 1,
                             System.currentTimeMillis());
+                    markStatusDirtyLocked(authority.ident);
                 }
             } finally {
-                writeAccountInfoLocked();
-                writeStatusLocked();
+                scheduleWriteAccountInfoLocked();
+                scheduleWriteStatusLocked(WRITE_GROUP_DELAY);
             }
         }
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS);
@@ -1028,6 +1057,7 @@ public class SyncStorageEngine extends Handler {
                         // remove the corresponding entry from the status
                         if (status != null) {
                             status.removePeriodicSyncTime(i);
+                            markStatusDirtyLocked(authority.ident);
                         } else {
                             Log.e(TAG, "Tried removing sync status on remove periodic sync but"
                                     + " did not find it.");
@@ -1040,8 +1070,8 @@ public class SyncStorageEngine extends Handler {
                     return;
                 }
             } finally {
-                writeAccountInfoLocked();
-                writeStatusLocked();
+                scheduleWriteAccountInfoLocked();
+                scheduleWriteStatusLocked(WRITE_GROUP_DELAY);
             }
         }
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS);
@@ -1072,7 +1102,7 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         if (flag) {
             requestSync(null, userId, SyncOperation.REASON_MASTER_SYNC_AUTO, null,
@@ -1257,6 +1287,7 @@ public class SyncStorageEngine extends Handler {
                         j--;
                         if (mSyncStatus.keyAt(j) == ident) {
                             mSyncStatus.remove(mSyncStatus.keyAt(j));
+                            mDirtyStatus.put(ident, false);
                         }
                     }
                     j = mSyncHistory.size();
@@ -1270,7 +1301,6 @@ public class SyncStorageEngine extends Handler {
                 writeAccountInfoLocked();
                 writeStatusLocked();
                 writePendingOperationsLocked();
-                writeStatisticsLocked();
             }
         }
     }
@@ -1391,6 +1421,7 @@ public class SyncStorageEngine extends Handler {
             item.upstreamActivity = upstreamActivity;
 
             SyncStatusInfo status = getOrCreateSyncStatusLocked(item.authorityId);
+            markStatusDirtyLocked(item.authorityId);
 
             status.numSyncs++;
             status.totalElapsedTime += elapsedTime;
@@ -1423,6 +1454,9 @@ public class SyncStorageEngine extends Handler {
             } else if (mDayStats[0] == null) {
             }
             final DayStats ds = mDayStats[0];
+            if (!mDirtyDayStats.contains(ds)) {
+                mDirtyDayStats.add(ds);
+            }
 
             final long lastSyncTime = (item.eventTime + elapsedTime);
             boolean writeStatusNow = false;
@@ -1453,17 +1487,10 @@ public class SyncStorageEngine extends Handler {
                 ds.failureTime += elapsedTime;
             }
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!hasMessages(MSG_WRITE_STATUS)) {
-                sendMessageDelayed(obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
-            if (writeStatisticsNow) {
-                writeStatisticsLocked();
-            } else if (!hasMessages(MSG_WRITE_STATISTICS)) {
-                sendMessageDelayed(obtainMessage(MSG_WRITE_STATISTICS),
-                        WRITE_STATISTICS_DELAY);
+            if (writeStatusNow || writeStatisticsNow) {
+                scheduleWriteStatusLocked(WRITE_GROUP_DELAY);
+            } else {
+                scheduleWriteStatusLocked(WRITE_STATUS_DELAY);
             }
         }
 
@@ -1749,7 +1776,7 @@ public class SyncStorageEngine extends Handler {
         authority = new AuthorityInfo(info, ident);
         mAuthorities.put(ident, authority);
         if (doWrite) {
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         return authority;
     }
@@ -1765,7 +1792,7 @@ public class SyncStorageEngine extends Handler {
                     if (authorityInfo != null) {
                         mAuthorities.remove(authorityInfo.ident);
                         aInfos.delete(info.userId);
-                        writeAccountInfoLocked();
+                        scheduleWriteAccountInfoLocked();
                     }
                 }
 
@@ -1785,7 +1812,7 @@ public class SyncStorageEngine extends Handler {
             if (authorityInfo != null) {
                 mAuthorities.remove(authorityInfo.ident);
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    scheduleWriteAccountInfoLocked();
                 }
             }
         }
@@ -1804,6 +1831,7 @@ public class SyncStorageEngine extends Handler {
                 PeriodicSync periodicSync = authorityInfo.periodicSyncs.get(i);
                 if (targetPeriodicSync.equals(periodicSync)) {
                     mSyncStatus.get(authorityId).setPeriodicSyncTime(i, when);
+                    markStatusDirtyLocked(authorityId);
                     found = true;
                     break;
                 }
@@ -1824,18 +1852,42 @@ public class SyncStorageEngine extends Handler {
         return status;
     }
 
+    private void markStatusDirtyLocked(int authorityId) {
+        mDirtyStatus.put(authorityId, true);
+    }
+
+    /**
+     * Schedules the status journal to be written within {@code delay}, keeping an earlier
+     * write if one is already scheduled.
+     */
+    private void scheduleWriteStatusLocked(long delay) {
+        final long when = SystemClock.uptimeMillis() + delay;
+        if (mStatusWriteTime == 0 || when < mStatusWriteTime) {
+            removeMessages(MSG_WRITE_STATUS);
+            sendMessageAtTime(obtainMessage(MSG_WRITE_STATUS), when);
+            mStatusWriteTime = when;
+        }
+    }
+
+    private void scheduleWriteAccountInfoLocked() {
+        if (!hasMessages(MSG_WRITE_ACCOUNTS)) {
+            sendMessageDelayed(obtainMessage(MSG_WRITE_ACCOUNTS), WRITE_GROUP_DELAY);
+        }
+    }
+
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
+            if (hasMessages(MSG_WRITE_ACCOUNTS)) {
+                writeAccountInfoLocked();
+            }
 
             if (mNumPendingFinished > 0) {
                 // Only write these if they are out of date.
                 writePendingOperationsLocked();
             }
 
-            // Just always write these...  they are likely out of date.
+            // Only the changes are written, so this is cheap when nothing changed.
             writeStatusLocked();
-            writeStatisticsLocked();
         }
     }
 
@@ -1850,16 +1902,20 @@ public class SyncStorageEngine extends Handler {
             mPendingOperations.clear();
             mSyncStatus.clear();
             mSyncHistory.clear();
+            // Whatever was not written yet is lost, as after a crash.
+            removeMessages(MSG_WRITE_ACCOUNTS);
+            mDirtyStatus.clear();
+            mDirtyDayStats.clear();
 
             readAccountInfoLocked();
             readStatusLocked();
             readPendingOperationsLocked();
             readStatisticsLocked();
+            readStatusJournalLocked();
             readAndDeleteLegacyAccountInfoLocked();
             writeAccountInfoLocked();
-            writeStatusLocked();
+            writeStatusFilesLocked();
             writePendingOperationsLocked();
-            writeStatisticsLocked();
         }
     }
 
@@ -2222,6 +2278,7 @@ public class SyncStorageEngine extends Handler {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Log.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
+        removeMessages(MSG_WRITE_ACCOUNTS);
         FileOutputStream fos = null;
 
         try {
@@ -2427,6 +2484,8 @@ public class SyncStorageEngine extends Handler {
 
     public static final int STATUS_FILE_END = 0;
     public static final int STATUS_FILE_ITEM = 100;
+    /** Status journal record for an authority whose status was removed. */
+    public static final int STATUS_JOURNAL_REMOVED = 102;
 
     /**
      * Read all sync status back in to the initial engine state.
@@ -2463,16 +2522,140 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Write all sync status to the sync status file.
+     * Applies the status and statistics changes recorded in the status journal since
+     * status.bin and stats.bin were written.  Records are full values, so replaying one
+     * that is already in those files is harmless.
      */
-    private void writeStatusLocked() {
+    private void readStatusJournalLocked() {
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        if (!mStatusJournal.read(records)) {
+            Log.w(TAG, "Ignoring damaged end of status journal after " + records.size()
+                    + " records");
+        }
+        final Parcel in = Parcel.obtain();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                in.unmarshall(record, 0, record.length);
+                in.setDataPosition(0);
+                final int token = in.readInt();
+                if (token == STATUS_FILE_ITEM) {
+                    SyncStatusInfo status = new SyncStatusInfo(in);
+                    if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+                        status.pending = false;
+                        mSyncStatus.put(status.authorityId, status);
+                    }
+                } else if (token == STATUS_JOURNAL_REMOVED) {
+                    mSyncStatus.remove(in.readInt());
+                } else if (token == STATISTICS_FILE_ITEM) {
+                    applyDayStatsLocked(readDayStats(in));
+                } else {
+                    Log.w(TAG, "Unknown status journal token: " + token);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error replaying status journal", e);
+        } finally {
+            in.recycle();
+        }
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Log.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
+            Log.v(TAG_FILE, "Replayed " + records.size() + " status journal records");
         }
+    }
 
-        // The file is being written, so we don't need to have a scheduled
+    /** Puts replayed day statistics in place, replacing the entry for the same day. */
+    private void applyDayStatsLocked(DayStats ds) {
+        if (mDayStats[0] == null || ds.day > mDayStats[0].day) {
+            System.arraycopy(mDayStats, 0, mDayStats, 1, mDayStats.length-1);
+            mDayStats[0] = ds;
+            return;
+        }
+        for (int i = 0; i < mDayStats.length && mDayStats[i] != null; i++) {
+            if (mDayStats[i].day == ds.day) {
+                mDayStats[i] = ds;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends the sync status and statistics changed since the last write to the status
+     * journal with a single fsync, then rewrites status.bin and stats.bin if the journal
+     * has grown too large.
+     */
+    private void writeStatusLocked() {
+        // The changes are being written, so we don't need to have a scheduled
         // write until the next change.
         removeMessages(MSG_WRITE_STATUS);
+        mStatusWriteTime = 0;
+
+        if (mDirtyStatus.size() == 0 && mDirtyDayStats.isEmpty()) {
+            return;
+        }
+        final ArrayList<byte[]> records =
+                new ArrayList<byte[]>(mDirtyStatus.size() + mDirtyDayStats.size());
+        final Parcel out = Parcel.obtain();
+        for (int i = 0; i < mDirtyStatus.size(); i++) {
+            final int authorityId = mDirtyStatus.keyAt(i);
+            final SyncStatusInfo status =
+                    mDirtyStatus.valueAt(i) ? mSyncStatus.get(authorityId) : null;
+            out.setDataSize(0);
+            if (status != null) {
+                out.writeInt(STATUS_FILE_ITEM);
+                status.writeToParcel(out, 0);
+            } else {
+                out.writeInt(STATUS_JOURNAL_REMOVED);
+                out.writeInt(authorityId);
+            }
+            records.add(out.marshall());
+        }
+        for (int i = 0; i < mDirtyDayStats.size(); i++) {
+            out.setDataSize(0);
+            writeDayStats(out, mDirtyDayStats.get(i));
+            records.add(out.marshall());
+        }
+        out.recycle();
+        mDirtyStatus.clear();
+        mDirtyDayStats.clear();
+
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Log.v(TAG_FILE, "Appending " + records.size() + " records to "
+                    + mStatusJournal.getFile());
+        }
+        try {
+            mStatusJournal.append(records);
+        } catch (IOException e) {
+            Log.w(TAG, "Error appending to status journal, rewriting status", e);
+            writeStatusFilesLocked();
+            return;
+        }
+        if (mStatusJournal.getRecordCount() >= MAX_STATUS_JOURNAL_RECORDS
+                || mStatusJournal.getSize() >= MAX_STATUS_JOURNAL_BYTES) {
+            writeStatusFilesLocked();
+        }
+    }
+
+    /**
+     * Rewrites status.bin and stats.bin in full and discards the status journal.  The
+     * file formats are unchanged, so state written by older releases is read as is.
+     */
+    private void writeStatusFilesLocked() {
+        removeMessages(MSG_WRITE_STATUS);
+        mStatusWriteTime = 0;
+        mDirtyStatus.clear();
+        mDirtyDayStats.clear();
+        if (writeStatusFileLocked() & writeStatisticsFileLocked()) {
+            mStatusJournal.reset();
+        }
+    }
+
+    /**
+     * Write all sync status to the sync status file.
+     */
+    private boolean writeStatusFileLocked() {
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Log.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
+        }
 
         FileOutputStream fos = null;
         try {
@@ -2489,11 +2672,13 @@ public class SyncStorageEngine extends Handler {
             out.recycle();
 
             mStatusFile.finishWrite(fos);
+            return true;
         } catch (java.io.IOException e1) {
             Log.w(TAG, "Error writing status", e1);
             if (fos != null) {
                 mStatusFile.failWrite(fos);
             }
+            return false;
         }
     }
 
@@ -2810,11 +2995,7 @@ public class SyncStorageEngine extends Handler {
                     if (token == STATISTICS_FILE_ITEM_OLD) {
                         day = day - 2009 + 14245;  // Magic!
                     }
-                    DayStats ds = new DayStats(day);
-                    ds.successCount = in.readInt();
-                    ds.successTime = in.readLong();
-                    ds.failureCount = in.readInt();
-                    ds.failureTime = in.readLong();
+                    DayStats ds = readDayStatsBody(in, day);
                     if (index < mDayStats.length) {
                         mDayStats[index] = ds;
                         index++;
@@ -2830,18 +3011,37 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    private static DayStats readDayStats(Parcel in) {
+        return readDayStatsBody(in, in.readInt());
+    }
+
+    private static DayStats readDayStatsBody(Parcel in, int day) {
+        DayStats ds = new DayStats(day);
+        ds.successCount = in.readInt();
+        ds.successTime = in.readLong();
+        ds.failureCount = in.readInt();
+        ds.failureTime = in.readLong();
+        return ds;
+    }
+
+    /** Writes one day of statistics, as an item of stats.bin or a status journal record. */
+    private static void writeDayStats(Parcel out, DayStats ds) {
+        out.writeInt(STATISTICS_FILE_ITEM);
+        out.writeInt(ds.day);
+        out.writeInt(ds.successCount);
+        out.writeLong(ds.successTime);
+        out.writeInt(ds.failureCount);
+        out.writeLong(ds.failureTime);
+    }
+
     /**
      * Write all sync statistics to the sync status file.
      */
-    private void writeStatisticsLocked() {
+    private boolean writeStatisticsFileLocked() {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Log.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
         }
 
-        // The file is being written, so we don't need to have a scheduled
-        // write until the next change.
-        removeMessages(MSG_WRITE_STATISTICS);
-
         FileOutputStream fos = null;
         try {
             fos = mStatisticsFile.startWrite();
@@ -2852,23 +3052,20 @@ public class SyncStorageEngine extends Handler {
                 if (ds == null) {
                     break;
                 }
-                out.writeInt(STATISTICS_FILE_ITEM);
-                out.writeInt(ds.day);
-                out.writeInt(ds.successCount);
-                out.writeLong(ds.successTime);
-                out.writeInt(ds.failureCount);
-                out.writeLong(ds.failureTime);
+                writeDayStats(out, ds);
             }
             out.writeInt(STATISTICS_FILE_END);
             fos.write(out.marshall());
             out.recycle();
 
             mStatisticsFile.finishWrite(fos);
+            return true;
         } catch (java.io.IOException e1) {
             Log.w(TAG, "Error writing stats", e1);
             if (fos != null) {
                 mStatisticsFile.failWrite(fos);
             }
+            return false;
         }
     }
 
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.TimeUtils;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Index of tracked jobs by the constraints they wait on, used by
+ * {@link JobSchedulerService} so that a controller state change only re-evaluates
+ * the jobs that depend on it instead of every tracked job.
+ *
+ * <p>A job is in one bucket per {@link JobStatus}{@code .CONSTRAINT_*} bit it has.
+ * Controllers report changed constraint bits; {@link #evaluate} re-checks
+ * {@link JobStatus#isReady()} for the jobs in those buckets plus any job added
+ * since the last evaluation, and keeps the set of jobs found ready.  A job's
+ * readiness can only change through one of its own constraints, so the ready set
+ * stays accurate between evaluations.
+ *
+ * <p>Not thread safe; guarded by the JobStore lock.
+ */
+final class JobConstraintIndex {
+    private static final int NUM_CONSTRAINTS = Integer.bitCount(JobStatus.CONSTRAINT_ALL);
+
+    private final ArraySet<JobStatus> mJobs = new ArraySet<JobStatus>();
+    @SuppressWarnings("unchecked")
+    private final ArraySet<JobStatus>[] mBuckets = new ArraySet[NUM_CONSTRAINTS];
+    /** Jobs added since the last evaluation, or reported individually. */
+    private final ArraySet<JobStatus> mDirtyJobs = new ArraySet<JobStatus>();
+    /** Jobs that were ready at the last evaluation. */
+    private final ArraySet<JobStatus> mReadyJobs = new ArraySet<JobStatus>();
+    private int mDirtyConstraints;
+
+    // Evaluation cost, for dumpsys.
+    private long mEvaluations;
+    private long mFullEvaluations;
+    private long mJobsEvaluated;
+    private long mEvaluationNanos;
+    private long mMaxEvaluationNanos;
+
+    JobConstraintIndex() {
+        for (int i = 0; i < NUM_CONSTRAINTS; i++) {
+            mBuckets[i] = new ArraySet<JobStatus>();
+        }
+    }
+
+    void add(JobStatus job) {
+        mJobs.add(job);
+        final int constraints = job.getConstraints();
+        for (int i = 0; i < NUM_CONSTRAINTS; i++) {
+            if ((constraints & (1 << i)) != 0) {
+                mBuckets[i].add(job);
+            }
+        }
+        mDirtyJobs.add(job);
+    }
+
+    void remove(JobStatus job) {
+        if (!mJobs.remove(job)) {
+            return;
+        }
+        final int constraints = job.getConstraints();
+        for (int i = 0; i < NUM_CONSTRAINTS; i++) {
+            if ((constraints & (1 << i)) != 0) {
+                mBuckets[i].remove(job);
+            }
+        }
+        mDirtyJobs.remove(job);
+        mReadyJobs.remove(job);
+    }
+
+    /** Re-evaluate every job on the next call to {@link #evaluate}. */
+    void markAllDirty() {
+        mDirtyConstraints = JobStatus.CONSTRAINT_ALL;
+    }
+
+    void markConstraintsDirty(int constraints) {
+        mDirtyConstraints |= constraints & JobStatus.CONSTRAINT_ALL;
+    }
+
+    void markJobDirty(JobStatus job) {
+        if (mJobs.contains(job)) {
+            mDirtyJobs.add(job);
+        }
+    }
+
+    /**
+     * Re-checks the readiness of the dirty jobs.
+     *
+     * @param outNotReady receives the dirty jobs that are not ready, which the caller
+     *        may need to stop.
+     * @return the jobs that are ready; owned by the index.
+     */
+    ArraySet<JobStatus> evaluate(List<JobStatus> outNotReady) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final int dirty = mDirtyConstraints;
+        mDirtyConstraints = 0;
+        int evaluated = 0;
+        if ((dirty & JobStatus.CONSTRAINT_APP_NOT_IDLE) != 0) {
+            // Every job is in this bucket; skip the others.
+            for (int i = 0; i < mJobs.size(); i++) {
+                evaluateJob(mJobs.valueAt(i), outNotReady);
+            }
+            evaluated = mJobs.size();
+            mFullEvaluations++;
+        } else {
+            for (int i = 0; i < NUM_CONSTRAINTS; i++) {
+                if ((dirty & (1 << i)) == 0) {
+                    continue;
+                }
+                final ArraySet<JobStatus> bucket = mBuckets[i];
+                for (int j = 0; j < bucket.size(); j++) {
+                    final JobStatus job = bucket.valueAt(j);
+                    // A job in several dirty buckets only needs one look.
+                    if ((job.getConstraints() & dirty & ((1 << i) - 1)) == 0) {
+                        evaluateJob(job, outNotReady);
+                        evaluated++;
+                    }
+                }
+            }
+            for (int i = 0; i < mDirtyJobs.size(); i++) {
+                final JobStatus job = mDirtyJobs.valueAt(i);
+                if ((job.getConstraints() & dirty) == 0) {
+                    evaluateJob(job, outNotReady);
+                    evaluated++;
+                }
+            }
+        }
+        mDirtyJobs.clear();
+
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        mEvaluations++;
+        mJobsEvaluated += evaluated;
+        mEvaluationNanos += elapsed;
+        if (elapsed > mMaxEvaluationNanos) {
+            mMaxEvaluationNanos = elapsed;
+        }
+        return mReadyJobs;
+    }
+
+    private void evaluateJob(JobStatus job, List<JobStatus> outNotReady) {
+        if (job.isReady()) {
+            mReadyJobs.add(job);
+        } else {
+            mReadyJobs.remove(job);
+            if (outNotReady != null) {
+                outNotReady.add(job);
+            }
+        }
+    }
+
+    int size() {
+        return mJobs.size();
+    }
+
+    long getJobsEvaluated() {
+        return mJobsEvaluated;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Tracked: "); pw.print(mJobs.size());
+        pw.print(" ready: "); pw.println(mReadyJobs.size());
+        pw.print(prefix); pw.print("Buckets:");
+        pw.print(" charging="); pw.print(bucketSize(JobStatus.CONSTRAINT_CHARGING));
+        pw.print(" delay="); pw.print(bucketSize(JobStatus.CONSTRAINT_TIMING_DELAY));
+        pw.print(" deadline="); pw.print(bucketSize(JobStatus.CONSTRAINT_DEADLINE));
+        pw.print(" idle="); pw.print(bucketSize(JobStatus.CONSTRAINT_IDLE));
+        pw.print(" connectivity="); pw.println(bucketSize(JobStatus.CONSTRAINT_CONNECTIVITY));
+        pw.print(prefix); pw.print("Evaluations: "); pw.print(mEvaluations);
+        pw.print(" (full: "); pw.print(mFullEvaluations);
+        pw.print(") jobs evaluated: "); pw.print(mJobsEvaluated);
+        if (mEvaluations > 0) {
+            pw.print(" avg: "); pw.print(mJobsEvaluated / mEvaluations);
+        }
+        pw.println();
+        pw.print(prefix); pw.print("Evaluation time: ");
+        TimeUtils.formatDuration(mEvaluationNanos / 1000000, pw);
+        pw.print(" max: "); pw.print(mMaxEvaluationNanos / 1000); pw.println("us");
+    }
+
+    private int bucketSize(int constraint) {
+        return mBuckets[Integer.numberOfTrailingZeros(constraint)].size();
+    }
+}
@@ -21,6 +21,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.ActivityManager;
 import android.app.AppGlobals;
@@ -122,6 +123,19 @@ public class JobSchedulerService extends com.android.server.SystemService
      * when ready to execute them.
      */
     final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
+    /**
+     * Tracked jobs indexed by the constraints they wait on, so a controller state change only
+     * re-evaluates the jobs it can affect.
+     */
+    final JobConstraintIndex mConstraintIndex = new JobConstraintIndex();
+    /**
+     * {@link JobStatus}{@code .CONSTRAINT_*} bits reported by controllers and not yet handed
+     * to {@link #mConstraintIndex}.  Controllers call in holding their own locks, so this is
+     * kept outside of the {@link #mJobs} lock.
+     */
+    final AtomicInteger mChangedConstraints = new AtomicInteger();
+    /** Scratch list for {@link JobConstraintIndex#evaluate}. */
+    private final ArrayList<JobStatus> mNotReadyJobs = new ArrayList<>();
 
     final ArrayList<Integer> mStartedUsers = new ArrayList<>();
 
@@ -366,6 +380,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                         mControllers.get(controller).deviceIdleModeChanged(mDeviceIdleMode);
                         mControllers.get(controller).maybeStartTrackingJob(job);
                     }
+                    mConstraintIndex.add(job);
                 }
                 // GO GO GO!
                 mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
@@ -393,6 +408,15 @@ public class JobSchedulerService extends com.android.server.SystemService
                 }
                 controller.maybeStartTrackingJob(jobStatus);
             }
+            synchronized (mJobs) {
+                // Index only once the controllers have set the constraint state.
+                if (mJobs.containsJob(jobStatus)) {
+                    if (update) {
+                        mConstraintIndex.remove(jobStatus);
+                    }
+                    mConstraintIndex.add(jobStatus);
+                }
+            }
         }
     }
 
@@ -406,6 +430,7 @@ public class JobSchedulerService extends com.android.server.SystemService
         synchronized (mJobs) {
             // Remove from store as well as controllers.
             removed = mJobs.remove(jobStatus);
+            mConstraintIndex.remove(jobStatus);
             rocking = mReadyToRock;
         }
         if (removed && rocking) {
@@ -546,6 +571,19 @@ public class JobSchedulerService extends com.android.server.SystemService
      */
     @Override
     public void onControllerStateChanged() {
+        onControllerStateChanged(JobStatus.CONSTRAINT_ALL);
+    }
+
+    /**
+     * Like {@link #onControllerStateChanged()}, but only the jobs waiting on one of
+     * {@code changedConstraints} are looked at again.
+     */
+    @Override
+    public void onControllerStateChanged(int changedConstraints) {
+        int current;
+        do {
+            current = mChangedConstraints.get();
+        } while (!mChangedConstraints.compareAndSet(current, current | changedConstraints));
         mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
     }
 
@@ -576,6 +614,8 @@ public class JobSchedulerService extends com.android.server.SystemService
                         if (runNow != null && !mPendingJobs.contains(runNow)
                                 && mJobs.containsJob(runNow)) {
                             mPendingJobs.add(runNow);
+                            // Its deadline may have just passed.
+                            mConstraintIndex.markJobDirty(runNow);
                         }
                         queueReadyJobsForExecutionLockedH();
                     }
@@ -597,7 +637,7 @@ public class JobSchedulerService extends com.android.server.SystemService
          * as many as we can.
          */
         private void queueReadyJobsForExecutionLockedH() {
-            ArraySet<JobStatus> jobs = mJobs.getJobs();
+            ArraySet<JobStatus> jobs = evaluateChangedJobsLockedH();
             if (DEBUG) {
                 Slog.d(TAG, "queuing all ready jobs for execution:");
             }
@@ -608,8 +648,6 @@ public class JobSchedulerService extends com.android.server.SystemService
                         Slog.d(TAG, "    queued " + job.toShortString());
                     }
                     mPendingJobs.add(job);
-                } else if (isReadyToBeCancelledLocked(job)) {
-                    stopJobOnServiceContextLocked(job);
                 }
             }
             if (DEBUG) {
@@ -637,7 +675,7 @@ public class JobSchedulerService extends com.android.server.SystemService
             int backoffCount = 0;
             int connectivityCount = 0;
             List<JobStatus> runnableJobs = new ArrayList<JobStatus>();
-            ArraySet<JobStatus> jobs = mJobs.getJobs();
+            ArraySet<JobStatus> jobs = evaluateChangedJobsLockedH();
             for (int i=0; i<jobs.size(); i++) {
                 JobStatus job = jobs.valueAt(i);
                 if (isReadyToBeExecutedLocked(job)) {
@@ -654,8 +692,6 @@ public class JobSchedulerService extends com.android.server.SystemService
                         chargingCount++;
                     }
                     runnableJobs.add(job);
-                } else if (isReadyToBeCancelledLocked(job)) {
-                    stopJobOnServiceContextLocked(job);
                 }
             }
             if (backoffCount > 0 ||
@@ -681,6 +717,24 @@ public class JobSchedulerService extends com.android.server.SystemService
             }
         }
 
+        /**
+         * Re-checks the jobs waiting on constraints that controllers reported as changed, and
+         * stops any of them that are running but no longer ready.
+         * @return Every tracked job that is ready to run, pending or active or not.
+         */
+        private ArraySet<JobStatus> evaluateChangedJobsLockedH() {
+            mConstraintIndex.markConstraintsDirty(mChangedConstraints.getAndSet(0));
+            final ArraySet<JobStatus> ready = mConstraintIndex.evaluate(mNotReadyJobs);
+            for (int i=0; i<mNotReadyJobs.size(); i++) {
+                JobStatus job = mNotReadyJobs.get(i);
+                if (isReadyToBeCancelledLocked(job)) {
+                    stopJobOnServiceContextLocked(job);
+                }
+            }
+            mNotReadyJobs.clear();
+            return ready;
+        }
+
         /**
          * Criteria for moving a job into the pending queue:
          *      - It's ready.
@@ -751,6 +805,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                                 Slog.d(TAG, "Error executing " + nextPending);
                             }
                             mJobs.remove(nextPending);
+                            mConstraintIndex.remove(nextPending);
                         }
                         it.remove();
                     }
@@ -913,6 +968,9 @@ public class JobSchedulerService extends com.android.server.SystemService
                 mControllers.get(i).dumpControllerState(pw);
             }
             pw.println();
+            pw.println("Constraint index:");
+            mConstraintIndex.dump(pw, "  ");
+            pw.println();
             pw.println("Pending:");
             for (int i=0; i<mPendingJobs.size(); i++) {
                 pw.println(mPendingJobs.get(i).hashCode());
@@ -33,9 +33,13 @@ import android.util.Xml;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
+import com.android.server.RecordJournal;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -55,9 +59,18 @@ import org.xmlpull.v1.XmlSerializer;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs live in jobs.xml plus a {@link RecordJournal}, jobs.journal. Adding or removing
+ * a persisted job appends one record to the journal; appends made close together share a
+ * single fsync. Once the journal grows past {@link #MAX_JOURNAL_RECORDS} records or
+ * {@link #MAX_JOURNAL_BYTES} bytes, jobs.xml is rewritten from the in-memory set and the
+ * journal is discarded. At boot the journal is replayed on top of jobs.xml. Every record carries
+ * a sequence number, and jobs.xml notes the last one it covers; replay skips records at or below
+ * it, so a crash between rewriting jobs.xml and discarding the journal cannot bring back a job
+ * that the newer jobs.xml no longer has.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
- *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
+ *      This is important b/c {@link #mFlushRunnable}
  *      and {@link com.android.server.job.JobStore.ReadJobMapFromDiskRunnable} lock on that
  *      object.
  */
@@ -65,15 +78,33 @@ public class JobStore {
     private static final String TAG = "JobStore";
     private static final boolean DEBUG = JobSchedulerService.DEBUG;
 
-    /** Threshold to adjust how often we want to write to the db. */
-    private static final int MAX_OPS_BEFORE_WRITE = 1;
+    /** Journal records accumulated before jobs.xml is rewritten. */
+    @VisibleForTesting
+    static final int MAX_JOURNAL_RECORDS = 128;
+    /** Journal size at which jobs.xml is rewritten. */
+    private static final long MAX_JOURNAL_BYTES = 64 * 1024;
+    /** How long journal appends are held back, so that bursts of changes share one fsync. */
+    private static final long JOURNAL_FLUSH_DELAY_MS = 100;
+
+    @VisibleForTesting
+    static final int JOURNAL_OP_ADD = 1;
+    @VisibleForTesting
+    static final int JOURNAL_OP_REMOVE = 2;
+
     final ArraySet<JobStatus> mJobSet;
     final Context mContext;
 
-    private int mDirtyOperations;
-
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final RecordJournal mJournal;
+
+    /** Changes not yet appended to the journal; guarded by this. */
+    private final ArrayList<JournalOp> mPendingOps = new ArrayList<JournalOp>();
+    /** Sequence number of the last change to a persisted job; guarded by this. */
+    private long mJournalSeq;
+    /** Set when jobs.xml must be rewritten on the next flush; guarded by this. */
+    private boolean mRewriteRequested;
+    private boolean mFlushScheduled;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -104,12 +135,12 @@ public class JobStore {
      */
     private JobStore(Context context, File dataDir) {
         mContext = context;
-        mDirtyOperations = 0;
 
         File systemDir = new File(dataDir, "system");
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournal = new RecordJournal(new File(jobDir, "jobs.journal"));
 
         mJobSet = new ArraySet<JobStatus>();
 
@@ -126,6 +157,8 @@ public class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingOps.add(new JournalOp(JOURNAL_OP_ADD, ++mJournalSeq, jobStatus.getUid(),
+                    jobStatus.getJobId(), copyForWrite(jobStatus)));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -167,15 +200,33 @@ public class JobStore {
             }
             return false;
         }
-        if (jobStatus.isPersisted()) {
+        // While a job is being replaced, JobSchedulerService adds the new JobStatus before
+        // removing the old one. The journal is keyed by uid and job id, so the removal must not
+        // be recorded if a persisted job with the same key is still around.
+        if (jobStatus.isPersisted()
+                && !containsPersistedJob(jobStatus.getUid(), jobStatus.getJobId())) {
+            mPendingOps.add(new JournalOp(JOURNAL_OP_REMOVE, ++mJournalSeq, jobStatus.getUid(),
+                    jobStatus.getJobId(), null));
             maybeWriteStatusToDiskAsync();
         }
         return removed;
     }
 
+    private boolean containsPersistedJob(int uid, int jobId) {
+        for (int i=mJobSet.size()-1; i>=0; i--) {
+            JobStatus ts = mJobSet.valueAt(i);
+            if (ts.getUid() == uid && ts.getJobId() == jobId && ts.isPersisted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mPendingOps.clear();
+        mRewriteRequested = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -243,164 +294,286 @@ public class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** A change to a persisted job waiting to be appended to the journal. */
+    private static final class JournalOp {
+        final int op;
+        final long seq;
+        final int uid;
+        final int jobId;
+        /** Copy of the job taken when it was added, for JOURNAL_OP_ADD. */
+        final JobStatus job;
+
+        JournalOp(int op, long seq, int uid, int jobId, JobStatus job) {
+            this.op = op;
+            this.seq = seq;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+    }
+
+    private static JobStatus copyForWrite(JobStatus jobStatus) {
+        return new JobStatus(jobStatus.getJob(), jobStatus.getUid(),
+                jobStatus.getEarliestRunTime(), jobStatus.getLatestRunTimeElapsed());
+    }
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
-     * @return Whether the operation was successful. This will only fail for e.g. if the system is
-     * low on storage. If this happens, we continue as normal
+     * Schedules the pending changes to be appended to the journal, or jobs.xml to be rewritten.
+     * This will only fail for e.g. if the system is low on storage. If this happens, we continue
+     * as normal.
      */
     private void maybeWriteStatusToDiskAsync() {
-        mDirtyOperations++;
-        if (mDirtyOperations >= MAX_OPS_BEFORE_WRITE) {
-            if (DEBUG) {
-                Slog.v(TAG, "Writing jobs to disk.");
-            }
-            mIoHandler.post(new WriteJobsMapToDiskRunnable());
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mIoHandler.postDelayed(mFlushRunnable,
+                    mRewriteRequested ? 0 : JOURNAL_FLUSH_DELAY_MS);
         }
     }
 
-    @VisibleForTesting
-    public void readJobMapFromDisk(ArraySet<JobStatus> jobSet) {
-        new ReadJobMapFromDiskRunnable(jobSet).run();
-    }
-
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Appends the pending changes to the journal with one fsync, then rewrites jobs.xml if the
+     * journal has grown too large.
      * NOTE: This Runnable locks on JobStore.this
      */
-    private class WriteJobsMapToDiskRunnable implements Runnable {
+    private final Runnable mFlushRunnable = new Runnable() {
         @Override
         public void run() {
-            final long startElapsed = SystemClock.elapsedRealtime();
-            List<JobStatus> mStoreCopy = new ArrayList<JobStatus>();
+            final ArrayList<JournalOp> ops;
+            boolean rewrite;
             synchronized (JobStore.this) {
-                // Copy over the jobs so we can release the lock before writing.
-                for (int i=0; i<mJobSet.size(); i++) {
-                    JobStatus jobStatus = mJobSet.valueAt(i);
-                    JobStatus copy = new JobStatus(jobStatus.getJob(), jobStatus.getUid(),
-                            jobStatus.getEarliestRunTime(), jobStatus.getLatestRunTimeElapsed());
-                    mStoreCopy.add(copy);
-                }
-            }
-            writeJobsMapImpl(mStoreCopy);
-            if (JobSchedulerService.DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
-                        - startElapsed) + "ms");
+                ops = new ArrayList<JournalOp>(mPendingOps);
+                mPendingOps.clear();
+                rewrite = mRewriteRequested;
+                mRewriteRequested = false;
+                mFlushScheduled = false;
             }
-        }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
-                for (int i=0; i<jobList.size(); i++) {
-                    JobStatus jobStatus = jobList.get(i);
-                    if (DEBUG) {
-                        Slog.d(TAG, "Saving job " + jobStatus.getJobId());
+            if (!rewrite && !ops.isEmpty()) {
+                final long startElapsed = SystemClock.elapsedRealtime();
+                try {
+                    final ArrayList<byte[]> records = new ArrayList<byte[]>(ops.size());
+                    for (int i=0; i<ops.size(); i++) {
+                        records.add(encodeJournalRecord(ops.get(i)));
                     }
-                    out.startTag(null, "job");
-                    addIdentifierAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getExtras(), out);
-                    out.endTag(null, "job");
+                    mJournal.append(records);
+                } catch (IOException | XmlPullParserException e) {
+                    // Everything is in memory; fall back to writing it all out.
+                    Slog.w(TAG, "Error appending to job journal, rewriting jobs file.", e);
+                    rewrite = true;
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
-
-                // Write out to disk in one fell sweep.
-                FileOutputStream fos = mJobsFile.startWrite();
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
-                mDirtyOperations = 0;
-            } catch (IOException e) {
                 if (DEBUG) {
-                    Slog.v(TAG, "Error writing out job data.", e);
+                    Slog.v(TAG, "Journaled " + ops.size() + " job changes, took "
+                            + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
                 }
-            } catch (XmlPullParserException e) {
+            }
+
+            if (rewrite || mJournal.getRecordCount() >= MAX_JOURNAL_RECORDS
+                    || mJournal.getSize() >= MAX_JOURNAL_BYTES) {
                 if (DEBUG) {
-                    Slog.d(TAG, "Error persisting bundle.", e);
+                    Slog.v(TAG, "Writing jobs to disk.");
+                }
+                // jobs.xml may include changes made after the ops drained above; it records the
+                // sequence number it was taken at, so that if we die before the reset, replay
+                // skips the records it already covers.
+                if (writeJobsMapToDisk()) {
+                    mJournal.reset();
                 }
             }
         }
+    };
 
-        /** Write out a tag with data comprising the required fields of this job and its client. */
-        private void addIdentifierAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
-            out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
-            out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
-            out.attribute(null, "uid", Integer.toString(jobStatus.getUid()));
-        }
+    @VisibleForTesting
+    static byte[] encodeJournalRecord(int op, JobStatus jobStatus)
+            throws IOException, XmlPullParserException {
+        return encodeJournalRecord(new JournalOp(op, 0, jobStatus.getUid(), jobStatus.getJobId(),
+                op == JOURNAL_OP_ADD ? jobStatus : null));
+    }
 
-        private void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
-                throws IOException, XmlPullParserException {
-            out.startTag(null, XML_TAG_EXTRAS);
-            extras.saveToXml(out);
-            out.endTag(null, XML_TAG_EXTRAS);
+    private static byte[] encodeJournalRecord(JournalOp op)
+            throws IOException, XmlPullParserException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(op.op);
+        out.writeLong(op.seq);
+        out.writeInt(op.uid);
+        out.writeInt(op.jobId);
+        if (op.op == JOURNAL_OP_ADD) {
+            out.flush();
+            XmlSerializer xml = new FastXmlSerializer();
+            xml.setOutput(baos, StandardCharsets.UTF_8.name());
+            xml.startDocument(null, true);
+            writeJobToXml(xml, op.job);
+            xml.endDocument();
         }
-        /**
-         * Write out a tag with data identifying this job's constraints. If the constraint isn't here
-         * it doesn't apply.
-         */
-        private void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus) throws IOException {
-            out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-            if (jobStatus.hasUnmeteredConstraint()) {
-                out.attribute(null, "unmetered", Boolean.toString(true));
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    @VisibleForTesting
+    public void readJobMapFromDisk(ArraySet<JobStatus> jobSet) {
+        new ReadJobMapFromDiskRunnable(jobSet).run();
+    }
+
+    /**
+     * Writes the persisted jobs in {@link #mJobSet} out to xml.
+     * NOTE: This locks on JobStore.this
+     * @return Whether the jobs file was written.
+     */
+    private boolean writeJobsMapToDisk() {
+        final long startElapsed = SystemClock.elapsedRealtime();
+        List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+        final long snapshotSeq;
+        synchronized (JobStore.this) {
+            // Every change up to here is in the copy, whether or not it reached the journal.
+            snapshotSeq = mJournalSeq;
+            // Copy over the jobs so we can release the lock before writing.
+            for (int i=0; i<mJobSet.size(); i++) {
+                JobStatus jobStatus = mJobSet.valueAt(i);
+                if (jobStatus.isPersisted()) {
+                    storeCopy.add(copyForWrite(jobStatus));
+                }
             }
-            if (jobStatus.hasConnectivityConstraint()) {
-                out.attribute(null, "connectivity", Boolean.toString(true));
+        }
+        boolean written = false;
+        try {
+            // Write out to disk in one fell sweep.
+            final byte[] data = encodeJobsFile(storeCopy, snapshotSeq);
+            FileOutputStream fos = mJobsFile.startWrite();
+            try {
+                fos.write(data);
+            } catch (IOException e) {
+                mJobsFile.failWrite(fos);
+                throw e;
             }
-            if (jobStatus.hasIdleConstraint()) {
-                out.attribute(null, "idle", Boolean.toString(true));
+            mJobsFile.finishWrite(fos);
+            written = true;
+        } catch (IOException e) {
+            if (DEBUG) {
+                Slog.v(TAG, "Error writing out job data.", e);
             }
-            if (jobStatus.hasChargingConstraint()) {
-                out.attribute(null, "charging", Boolean.toString(true));
+        } catch (XmlPullParserException e) {
+            if (DEBUG) {
+                Slog.d(TAG, "Error persisting bundle.", e);
             }
-            out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
         }
+        if (JobSchedulerService.DEBUG) {
+            Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
+                    - startElapsed) + "ms");
+        }
+        return written;
+    }
 
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            final JobInfo job = jobStatus.getJob();
-            if (jobStatus.getJob().isPeriodic()) {
-                out.startTag(null, XML_TAG_PERIODIC);
-                out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
-            } else {
-                out.startTag(null, XML_TAG_ONEOFF);
-            }
+    /** Returns the contents of jobs.xml holding the given jobs. */
+    @VisibleForTesting
+    static byte[] encodeJobsFile(List<JobStatus> jobList)
+            throws IOException, XmlPullParserException {
+        return encodeJobsFile(jobList, 0);
+    }
 
-            if (jobStatus.hasDeadlineConstraint()) {
-                // Wall clock deadline.
-                final long deadlineWallclock =  System.currentTimeMillis() +
-                        (jobStatus.getLatestRunTimeElapsed() - SystemClock.elapsedRealtime());
-                out.attribute(null, "deadline", Long.toString(deadlineWallclock));
-            }
-            if (jobStatus.hasTimingDelayConstraint()) {
-                final long delayWallclock = System.currentTimeMillis() +
-                        (jobStatus.getEarliestRunTime() - SystemClock.elapsedRealtime());
-                out.attribute(null, "delay", Long.toString(delayWallclock));
+    private static byte[] encodeJobsFile(List<JobStatus> jobList, long journalSeq)
+            throws IOException, XmlPullParserException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(baos, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+
+        out.startTag(null, "job-info");
+        out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+        out.attribute(null, "journal-seq", Long.toString(journalSeq));
+        for (int i=0; i<jobList.size(); i++) {
+            JobStatus jobStatus = jobList.get(i);
+            if (DEBUG) {
+                Slog.d(TAG, "Saving job " + jobStatus.getJobId());
             }
+            writeJobToXml(out, jobStatus);
+        }
+        out.endTag(null, "job-info");
+        out.endDocument();
+        return baos.toByteArray();
+    }
 
-            // Only write out back-off policy if it differs from the default.
-            // This also helps the case where the job is idle -> these aren't allowed to specify
-            // back-off.
-            if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
-                    || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
-                out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
-                out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
-            }
-            if (job.isPeriodic()) {
-                out.endTag(null, XML_TAG_PERIODIC);
-            } else {
-                out.endTag(null, XML_TAG_ONEOFF);
-            }
+    private static void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+            throws IOException, XmlPullParserException {
+        out.startTag(null, "job");
+        addIdentifierAttributesToJobTag(out, jobStatus);
+        writeConstraintsToXml(out, jobStatus);
+        writeExecutionCriteriaToXml(out, jobStatus);
+        writeBundleToXml(jobStatus.getExtras(), out);
+        out.endTag(null, "job");
+    }
+
+    /** Write out a tag with data comprising the required fields of this job and its client. */
+    private static void addIdentifierAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
+            throws IOException {
+        out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
+        out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
+        out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
+        out.attribute(null, "uid", Integer.toString(jobStatus.getUid()));
+    }
+
+    private static void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
+            throws IOException, XmlPullParserException {
+        out.startTag(null, XML_TAG_EXTRAS);
+        extras.saveToXml(out);
+        out.endTag(null, XML_TAG_EXTRAS);
+    }
+    /**
+     * Write out a tag with data identifying this job's constraints. If the constraint isn't here
+     * it doesn't apply.
+     */
+    private static void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus)
+            throws IOException {
+        out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
+        if (jobStatus.hasUnmeteredConstraint()) {
+            out.attribute(null, "unmetered", Boolean.toString(true));
+        }
+        if (jobStatus.hasConnectivityConstraint()) {
+            out.attribute(null, "connectivity", Boolean.toString(true));
+        }
+        if (jobStatus.hasIdleConstraint()) {
+            out.attribute(null, "idle", Boolean.toString(true));
+        }
+        if (jobStatus.hasChargingConstraint()) {
+            out.attribute(null, "charging", Boolean.toString(true));
+        }
+        out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
+    }
+
+    private static void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
+            throws IOException {
+        final JobInfo job = jobStatus.getJob();
+        if (jobStatus.getJob().isPeriodic()) {
+            out.startTag(null, XML_TAG_PERIODIC);
+            out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
+        } else {
+            out.startTag(null, XML_TAG_ONEOFF);
+        }
+
+        if (jobStatus.hasDeadlineConstraint()) {
+            // Wall clock deadline.
+            final long deadlineWallclock =  System.currentTimeMillis() +
+                    (jobStatus.getLatestRunTimeElapsed() - SystemClock.elapsedRealtime());
+            out.attribute(null, "deadline", Long.toString(deadlineWallclock));
+        }
+        if (jobStatus.hasTimingDelayConstraint()) {
+            final long delayWallclock = System.currentTimeMillis() +
+                    (jobStatus.getEarliestRunTime() - SystemClock.elapsedRealtime());
+            out.attribute(null, "delay", Long.toString(delayWallclock));
+        }
+
+        // Only write out back-off policy if it differs from the default.
+        // This also helps the case where the job is idle -> these aren't allowed to specify
+        // back-off.
+        if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
+            out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
+            out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
+        }
+        if (job.isPeriodic()) {
+            out.endTag(null, XML_TAG_PERIODIC);
+        } else {
+            out.endTag(null, XML_TAG_ONEOFF);
         }
     }
 
@@ -410,6 +583,8 @@ public class JobStore {
      */
     private class ReadJobMapFromDiskRunnable implements Runnable {
         private final ArraySet<JobStatus> jobSet;
+        /** Sequence number of the last change included in jobs.xml, from its journal-seq. */
+        private long snapshotSeq;
 
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
@@ -421,31 +596,104 @@ public class JobStore {
 
         @Override
         public void run() {
-            try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
-                synchronized (JobStore.this) {
+            synchronized (JobStore.this) {
+                List<JobStatus> jobs = null;
+                snapshotSeq = 0;
+                try {
+                    FileInputStream fis = mJobsFile.openRead();
                     jobs = readJobMapImpl(fis);
-                    if (jobs != null) {
-                        for (int i=0; i<jobs.size(); i++) {
-                            this.jobSet.add(jobs.get(i));
-                        }
+                    fis.close();
+                } catch (FileNotFoundException e) {
+                    if (JobSchedulerService.DEBUG) {
+                        Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
+                    }
+                } catch (XmlPullParserException e) {
+                    if (JobSchedulerService.DEBUG) {
+                        Slog.d(TAG, "Error parsing xml.", e);
+                    }
+                } catch (IOException e) {
+                    if (JobSchedulerService.DEBUG) {
+                        Slog.d(TAG, "Error parsing xml.", e);
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (JobSchedulerService.DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
+                if (jobs == null) {
+                    jobs = new ArrayList<JobStatus>();
+                    snapshotSeq = 0;
                 }
-            } catch (XmlPullParserException e) {
-                if (JobSchedulerService.DEBUG) {
-                    Slog.d(TAG, "Error parsing xml.", e);
+                replayJournal(jobs, snapshotSeq);
+                for (int i=0; i<jobs.size(); i++) {
+                    this.jobSet.add(jobs.get(i));
                 }
-            } catch (IOException e) {
-                if (JobSchedulerService.DEBUG) {
-                    Slog.d(TAG, "Error parsing xml.", e);
+            }
+        }
+
+        /**
+         * Applies the changes recorded in the journal since jobs.xml was last written.
+         * @param snapshotSeq Sequence number of the last change jobs.xml already includes.
+         */
+        private void replayJournal(List<JobStatus> jobs, long snapshotSeq) {
+            final ArrayList<byte[]> records = new ArrayList<byte[]>();
+            // Read through a separate instance; the store's own one belongs to the IoThread.
+            if (!new RecordJournal(mJournal.getFile()).read(records)) {
+                Slog.w(TAG, "Ignoring damaged end of job journal after " + records.size()
+                        + " records.");
+            }
+            long lastSeq = snapshotSeq;
+            for (int i=0; i<records.size(); i++) {
+                try {
+                    lastSeq = Math.max(lastSeq, applyJournalRecord(jobs, records.get(i),
+                            snapshotSeq));
+                } catch (IOException | XmlPullParserException e) {
+                    Slog.w(TAG, "Skipping unreadable job journal record.", e);
+                }
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "Replayed " + records.size() + " job journal records.");
+            }
+            // Keep numbering past anything on disk, so the next jobs.xml never claims to cover
+            // a record it has not seen.
+            mJournalSeq = Math.max(mJournalSeq, lastSeq);
+        }
+
+        /**
+         * Applies one journal record unless jobs.xml already includes it.
+         * @return The sequence number of the record.
+         */
+        private long applyJournalRecord(List<JobStatus> jobs, byte[] record, long snapshotSeq)
+                throws IOException, XmlPullParserException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            final int op = in.readByte();
+            final long seq = in.readLong();
+            if (seq <= snapshotSeq) {
+                return seq;
+            }
+            final int uid = in.readInt();
+            final int jobId = in.readInt();
+            for (int i=jobs.size()-1; i>=0; i--) {
+                JobStatus ts = jobs.get(i);
+                if (ts.getUid() == uid && ts.getJobId() == jobId) {
+                    jobs.remove(i);
                 }
             }
+            if (op != JOURNAL_OP_ADD) {
+                return seq;
+            }
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, StandardCharsets.UTF_8.name());
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG &&
+                    eventType != XmlPullParser.END_DOCUMENT) {
+                eventType = parser.next();
+            }
+            if (eventType == XmlPullParser.START_TAG && "job".equals(parser.getName())) {
+                JobStatus persistedJob = restoreJobFromXml(parser);
+                if (persistedJob != null) {
+                    jobs.add(persistedJob);
+                    return seq;
+                }
+            }
+            Slog.d(TAG, "Error reading job from journal.");
+            return seq;
         }
 
         private List<JobStatus> readJobMapImpl(FileInputStream fis)
@@ -480,6 +728,14 @@ public class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                final String seq = parser.getAttributeValue(null, "journal-seq");
+                if (seq != null) {
+                    try {
+                        snapshotSeq = Long.parseLong(seq);
+                    } catch (NumberFormatException e) {
+                        Slog.w(TAG, "Invalid journal-seq, replaying the whole journal.");
+                    }
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
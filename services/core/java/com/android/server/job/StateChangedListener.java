@@ -30,6 +30,13 @@ public interface StateChangedListener {
      */
     public void onControllerStateChanged();
 
+    /**
+     * Like {@link #onControllerStateChanged()}, but only jobs waiting on one of the given
+     * constraints need to be checked again.
+     * @param changedConstraints {@link JobStatus}{@code .CONSTRAINT_*} bits that may have changed.
+     */
+    public void onControllerStateChanged(int changedConstraints);
+
     /**
      * Called by the controller to notify the JobManager that regardless of the state of the task,
      * it must be run immediately.
@@ -119,7 +119,7 @@ public class AppIdleController extends StateController {
             }
         }
         if (changed) {
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_APP_NOT_IDLE);
         }
     }
 
@@ -147,7 +147,7 @@ public class AppIdleController extends StateController {
                 }
             }
             if (changed) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_APP_NOT_IDLE);
             }
         }
 
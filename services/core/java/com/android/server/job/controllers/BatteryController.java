@@ -115,7 +115,7 @@ public class BatteryController extends StateController {
         // Let the scheduler know that state has changed. This may or may not result in an
         // execution.
         if (reportChange) {
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_CHARGING);
         }
         // Also tell the scheduler that any ready jobs should be flushed.
         if (stablePower) {
@@ -119,7 +119,7 @@ public class ConnectivityController extends StateController implements
                 }
             }
             if (changed) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_CONNECTIVITY);
             }
         }
     }
@@ -92,7 +92,7 @@ public class IdleController extends StateController {
                 task.idleConstraintSatisfied.set(isIdle);
             }
         }
-        mStateChangedListener.onControllerStateChanged();
+        mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_IDLE);
     }
 
     /**
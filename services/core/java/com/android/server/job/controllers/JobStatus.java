@@ -41,6 +41,21 @@ public class JobStatus {
     public static final long NO_LATEST_RUNTIME = Long.MAX_VALUE;
     public static final long NO_EARLIEST_RUNTIME = 0L;
 
+    /**
+     * Constraint bits, used by controllers to tell the scheduler which kind of constraint
+     * changed so that only the jobs waiting on it are re-evaluated.
+     * See {@link #getConstraints()}.
+     */
+    public static final int CONSTRAINT_CHARGING = 1 << 0;
+    public static final int CONSTRAINT_TIMING_DELAY = 1 << 1;
+    public static final int CONSTRAINT_DEADLINE = 1 << 2;
+    public static final int CONSTRAINT_IDLE = 1 << 3;
+    /** Covers both the connectivity and the unmetered network constraint. */
+    public static final int CONSTRAINT_CONNECTIVITY = 1 << 4;
+    /** Implicit constraint that every job has. */
+    public static final int CONSTRAINT_APP_NOT_IDLE = 1 << 5;
+    public static final int CONSTRAINT_ALL = (1 << 6) - 1;
+
     final JobInfo job;
     /** Uid of the package requesting this job. */
     final int uId;
@@ -187,6 +202,29 @@ public class JobStatus {
         return job.isPersisted();
     }
 
+    /**
+     * @return The {@code CONSTRAINT_*} bits for the constraints this job waits on.
+     */
+    public int getConstraints() {
+        int constraints = CONSTRAINT_APP_NOT_IDLE;
+        if (hasChargingConstraint()) {
+            constraints |= CONSTRAINT_CHARGING;
+        }
+        if (hasTimingDelayConstraint()) {
+            constraints |= CONSTRAINT_TIMING_DELAY;
+        }
+        if (hasDeadlineConstraint()) {
+            constraints |= CONSTRAINT_DEADLINE;
+        }
+        if (hasIdleConstraint()) {
+            constraints |= CONSTRAINT_IDLE;
+        }
+        if (hasConnectivityConstraint() || hasUnmeteredConstraint()) {
+            constraints |= CONSTRAINT_CONNECTIVITY;
+        }
+        return constraints;
+    }
+
     public long getEarliestRunTime() {
         return earliestRunTimeElapsedMillis;
     }
@@ -202,7 +202,7 @@ public class TimeController extends StateController {
             }
         }
         if (ready) {
-            mStateChangedListener.onControllerStateChanged();
+            mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_TIMING_DELAY);
         }
         setDelayExpiredAlarm(nextDelayTime);
     }
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+import static android.text.format.DateUtils.WEEK_IN_MILLIS;
+import static com.android.server.net.NetworkStatsCollection.isAccessibleToUser;
+import static com.android.server.net.NetworkStatsCollection.templateMatches;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.Binder;
+import android.util.ArrayMap;
+import android.util.IntArray;
+
+import com.android.server.net.NetworkStatsCollection.Key;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only view of the {@link NetworkStatsCollection} files kept by a
+ * {@link com.android.internal.util.FileRotator}, combined with any pending
+ * stats that haven't been written yet. Files written with a key table are
+ * memory-mapped and only their keys are kept on the heap; queries read the
+ * buckets of matching histories straight from the mapping. Files written
+ * before that are read onto the heap as a {@link NetworkStatsCollection}.
+ * <p>
+ * Answers the queries of {@link NetworkStatsCollection} with the same results
+ * as loading every file and the pending stats into one. Not inherently thread
+ * safe.
+ */
+class MappedNetworkStatsCollection {
+    // bucketStart activeTime rxBytes rxPackets txBytes txPackets operations
+    private static final int COLUMN_BUCKET_START = 0;
+    private static final int COLUMN_RX_BYTES = 2;
+    private static final int COLUMN_RX_PACKETS = 3;
+    private static final int COLUMN_TX_BYTES = 4;
+    private static final int COLUMN_TX_PACKETS = 5;
+    private static final int COLUMN_OPERATIONS = 6;
+    private static final int COLUMN_COUNT = 7;
+
+    /** Version, bucket duration and bucket count before the columns. */
+    private static final int HISTORY_HEADER_LENGTH = 16;
+
+    private final long mBucketDuration;
+    private final NetworkStatsCollection mPending;
+    private final NetworkStatsCollection mLoaded;
+
+    /** Histories of each key in mapped files, in the order the files were listed. */
+    private final ArrayMap<Key, ArrayList<MappedHistory>> mMapped = new ArrayMap<>();
+
+    private long mStartMillis = Long.MAX_VALUE;
+    private long mEndMillis = Long.MIN_VALUE;
+
+    private MappedNetworkStatsCollection(long bucketDuration, NetworkStatsCollection pending) {
+        mBucketDuration = bucketDuration;
+        mPending = pending;
+        mLoaded = new NetworkStatsCollection(bucketDuration);
+    }
+
+    /**
+     * Map the given files, combined with the given pending stats as they change.
+     * Returns {@code null} when any history has a bucket duration other than
+     * the given one, since only {@link NetworkStatsCollection} can combine those.
+     */
+    public static MappedNetworkStatsCollection map(List<File> files,
+            NetworkStatsCollection pending, long bucketDuration) throws IOException {
+        final MappedNetworkStatsCollection res = new MappedNetworkStatsCollection(
+                bucketDuration, pending);
+        for (File file : files) {
+            if (!res.mapFile(file)) return null;
+        }
+        for (int i = 0; i < res.mLoaded.size(); i++) {
+            if (res.mLoaded.historyAt(i).getBucketDuration() != bucketDuration) return null;
+        }
+        return res;
+    }
+
+    private boolean mapFile(File file) throws IOException {
+        final ArrayList<Key> keys = new ArrayList<>();
+        final IntArray sizes = new IntArray();
+        final MappedByteBuffer buffer;
+
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            final int offset = NetworkStatsCollection.readColumnarKeys(in, keys, sizes);
+            if (offset < 0) {
+                // older file without a key table
+                IoUtils.closeQuietly(fis);
+                readFile(file);
+                return true;
+            }
+
+            final FileChannel channel = fis.getChannel();
+            final long length = channel.size() - offset;
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new ProtocolException("unexpected length: " + length);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+
+        long position = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            final int size = sizes.get(i);
+            final long historyLength = HISTORY_HEADER_LENGTH + (long) COLUMN_COUNT * size * 8;
+            if (position + historyLength > buffer.capacity()) {
+                throw new ProtocolException("truncated history");
+            }
+            final int historyOffset = (int) position;
+            if (buffer.getInt(historyOffset + 12) != size) {
+                throw new ProtocolException("mismatched history size");
+            }
+            if (buffer.getLong(historyOffset + 4) != mBucketDuration) {
+                return false;
+            }
+            position += historyLength;
+
+            if (size == 0) continue;
+            final MappedHistory history = new MappedHistory(
+                    buffer, historyOffset + HISTORY_HEADER_LENGTH, size);
+            ArrayList<MappedHistory> histories = mMapped.get(keys.get(i));
+            if (histories == null) {
+                histories = new ArrayList<>(1);
+                mMapped.put(keys.get(i), histories);
+            }
+            histories.add(history);
+
+            final long start = history.getLong(COLUMN_BUCKET_START, 0);
+            final long end = history.getLong(COLUMN_BUCKET_START, size - 1) + mBucketDuration;
+            if (start < mStartMillis) mStartMillis = start;
+            if (end > mEndMillis) mEndMillis = end;
+        }
+        if (position != buffer.capacity()) {
+            throw new ProtocolException("unexpected trailing data");
+        }
+        return true;
+    }
+
+    private void readFile(File file) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            mLoaded.read(in);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    public int[] getRelevantUids() {
+        final int callerUid = Binder.getCallingUid();
+        final IntArray uids = new IntArray();
+        for (int i = 0; i < mMapped.size(); i++) {
+            addRelevantUid(uids, mMapped.keyAt(i), callerUid);
+        }
+        for (int i = 0; i < mLoaded.size(); i++) {
+            addRelevantUid(uids, mLoaded.keyAt(i), callerUid);
+        }
+        for (int i = 0; i < mPending.size(); i++) {
+            addRelevantUid(uids, mPending.keyAt(i), callerUid);
+        }
+        return uids.toArray();
+    }
+
+    private static void addRelevantUid(IntArray uids, Key key, int callerUid) {
+        if (isAccessibleToUser(key.uid, callerUid)) {
+            int j = uids.binarySearch(key.uid);
+
+            if (j < 0) {
+                j = ~j;
+                uids.add(j, key.uid);
+            }
+        }
+    }
+
+    /**
+     * Combine all {@link NetworkStatsHistory} which match the requested
+     * parameters, as {@link NetworkStatsCollection#getHistory} does.
+     */
+    public NetworkStatsHistory getHistory(
+            NetworkTemplate template, int uid, int set, int tag, int fields) {
+        return getHistory(template, uid, set, tag, fields, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Combine all {@link NetworkStatsHistory} which match the requested
+     * parameters, as {@link NetworkStatsCollection#getHistory} does.
+     */
+    public NetworkStatsHistory getHistory(final NetworkTemplate template, final int uid,
+            final int set, final int tag, int fields, long start, long end) {
+        final int callerUid = Binder.getCallingUid();
+        if (!isAccessibleToUser(uid, callerUid)) {
+            throw new SecurityException("Network stats history of uid " + uid
+                    + " is forbidden for caller " + callerUid);
+        }
+
+        final NetworkStatsHistory combined = new NetworkStatsHistory(
+                mBucketDuration, start == end ? 1 : estimateBuckets(), fields);
+
+        // shortcut when we know stats will be empty
+        if (start == end) return combined;
+
+        final ArrayMap<Key, NetworkStatsHistory> matching = combineMatching(new KeyFilter() {
+            @Override
+            public boolean matches(Key key) {
+                return key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+                        && templateMatches(template, key.ident);
+            }
+        }, start, end, true);
+        for (int i = 0; i < matching.size(); i++) {
+            combined.recordHistory(matching.valueAt(i), start, end);
+        }
+        return combined;
+    }
+
+    /**
+     * Summarize all {@link NetworkStatsHistory} which match the requested
+     * parameters, as {@link NetworkStatsCollection#getSummary} does.
+     */
+    public NetworkStats getSummary(final NetworkTemplate template, long start, long end) {
+        final long now = System.currentTimeMillis();
+
+        final NetworkStats stats = new NetworkStats(end - start, 24);
+        // shortcut when we know stats will be empty
+        if (start == end) return stats;
+
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        NetworkStatsHistory.Entry historyEntry = null;
+
+        final int callerUid = Binder.getCallingUid();
+        final ArrayMap<Key, NetworkStatsHistory> matching = combineMatching(new KeyFilter() {
+            @Override
+            public boolean matches(Key key) {
+                return templateMatches(template, key.ident)
+                        && isAccessibleToUser(key.uid, callerUid)
+                        && key.set < NetworkStats.SET_DEBUG_START;
+            }
+        }, start, end, false);
+        for (int i = 0; i < matching.size(); i++) {
+            final Key key = matching.keyAt(i);
+            historyEntry = matching.valueAt(i).getValues(start, end, now, historyEntry);
+
+            entry.iface = IFACE_ALL;
+            entry.uid = key.uid;
+            entry.set = key.set;
+            entry.tag = key.tag;
+            entry.rxBytes = historyEntry.rxBytes;
+            entry.rxPackets = historyEntry.rxPackets;
+            entry.txBytes = historyEntry.txBytes;
+            entry.txPackets = historyEntry.txPackets;
+            entry.operations = historyEntry.operations;
+
+            if (!entry.isEmpty()) {
+                stats.combineValues(entry);
+            }
+        }
+
+        return stats;
+    }
+
+    private interface KeyFilter {
+        boolean matches(Key key);
+    }
+
+    /**
+     * Combine the histories of each matching key from every file and the
+     * pending stats, as loading them into one {@link NetworkStatsCollection}
+     * would. Mapped histories only contribute the buckets that overlap the
+     * requested range, or with {@code atomic} those that fall entirely inside
+     * it; the others can't change the results of a query over that range.
+     */
+    private ArrayMap<Key, NetworkStatsHistory> combineMatching(KeyFilter filter, long start,
+            long end, boolean atomic) {
+        final ArrayMap<Key, NetworkStatsHistory> combined = new ArrayMap<>();
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+
+        for (int i = 0; i < mMapped.size(); i++) {
+            final Key key = mMapped.keyAt(i);
+            if (!filter.matches(key)) continue;
+
+            final NetworkStatsHistory target = findOrCreateHistory(combined, key);
+            final ArrayList<MappedHistory> histories = mMapped.valueAt(i);
+            for (int j = 0; j < histories.size(); j++) {
+                histories.get(j).recordInto(target, mBucketDuration, start, end, atomic, entry);
+            }
+        }
+        recordMatching(combined, mLoaded, filter, start, end, atomic);
+        recordMatching(combined, mPending, filter, start, end, atomic);
+        return combined;
+    }
+
+    private void recordMatching(ArrayMap<Key, NetworkStatsHistory> combined,
+            NetworkStatsCollection collection, KeyFilter filter, long start, long end,
+            boolean atomic) {
+        for (int i = 0; i < collection.size(); i++) {
+            final Key key = collection.keyAt(i);
+            final NetworkStatsHistory history = collection.historyAt(i);
+            if (history.size() == 0 || !filter.matches(key)) continue;
+
+            final NetworkStatsHistory target = findOrCreateHistory(combined, key);
+            if (atomic) {
+                target.recordHistory(history, start, end);
+            } else {
+                target.recordEntireHistory(history);
+            }
+        }
+    }
+
+    private NetworkStatsHistory findOrCreateHistory(ArrayMap<Key, NetworkStatsHistory> combined,
+            Key key) {
+        NetworkStatsHistory history = combined.get(key);
+        if (history == null) {
+            history = new NetworkStatsHistory(mBucketDuration);
+            combined.put(key, history);
+        }
+        return history;
+    }
+
+    private int estimateBuckets() {
+        final long start = Math.min(mStartMillis,
+                Math.min(mLoaded.getStartMillis(), mPending.getStartMillis()));
+        final long end = Math.max(mEndMillis,
+                Math.max(mLoaded.getEndMillis(), mPending.getEndMillis()));
+        if (start > end) return 10;
+        return (int) (Math.min(end - start, WEEK_IN_MILLIS * 5) / mBucketDuration);
+    }
+
+    /**
+     * Columns of a single {@link NetworkStatsHistory} in a mapped file, as
+     * written by {@link NetworkStatsHistory#writeColumnsToStream}.
+     */
+    private static class MappedHistory {
+        private final MappedByteBuffer mBuffer;
+        private final int mOffset;
+        private final int mSize;
+
+        public MappedHistory(MappedByteBuffer buffer, int offset, int size) {
+            mBuffer = buffer;
+            mOffset = offset;
+            mSize = size;
+        }
+
+        public long getLong(int column, int index) {
+            return mBuffer.getLong(mOffset + (column * mSize + index) * 8);
+        }
+
+        /**
+         * Record the buckets that overlap the given range into the given history,
+         * or with {@code atomic} only those that fall entirely inside it.
+         */
+        public void recordInto(NetworkStatsHistory target, long bucketDuration, long start,
+                long end, boolean atomic, NetworkStats.Entry entry) {
+            // bucket starts are sorted, so find the first bucket to record
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                final long bucketStart = getLong(COLUMN_BUCKET_START, mid);
+                final boolean before = atomic ? bucketStart < start
+                        : bucketStart + bucketDuration <= start;
+                if (before) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            for (int i = low; i < mSize; i++) {
+                final long bucketStart = getLong(COLUMN_BUCKET_START, i);
+                final long bucketEnd = bucketStart + bucketDuration;
+                if (atomic ? bucketEnd > end : bucketStart >= end) break;
+
+                entry.rxBytes = getLong(COLUMN_RX_BYTES, i);
+                entry.rxPackets = getLong(COLUMN_RX_PACKETS, i);
+                entry.txBytes = getLong(COLUMN_TX_BYTES, i);
+                entry.txPackets = getLong(COLUMN_TX_PACKETS, i);
+                entry.operations = getLong(COLUMN_OPERATIONS, i);
+
+                target.recordData(bucketStart, bucketEnd, entry);
+            }
+        }
+    }
+}
@@ -48,6 +48,7 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -77,6 +78,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_COLUMNAR = 17;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -269,6 +271,22 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Number of {@link NetworkStatsHistory} in this collection, for walking
+     * them with {@link #keyAt(int)} and {@link #historyAt(int)}.
+     */
+    int size() {
+        return mStats.size();
+    }
+
+    Key keyAt(int index) {
+        return mStats.keyAt(index);
+    }
+
+    NetworkStatsHistory historyAt(int index) {
+        return mStats.valueAt(index);
+    }
+
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
         final Key key = new Key(ident, uid, set, tag);
@@ -323,6 +341,19 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 }
                 break;
             }
+            case VERSION_UNIFIED_COLUMNAR: {
+                final ArrayList<Key> keys = Lists.newArrayList();
+                final IntArray sizes = new IntArray();
+                readColumnarKeysAfterVersion(in, keys, sizes);
+                for (int i = 0; i < keys.size(); i++) {
+                    final NetworkStatsHistory history = new NetworkStatsHistory(in);
+                    if (history.size() != sizes.get(i)) {
+                        throw new ProtocolException("mismatched history size");
+                    }
+                    recordHistory(keys.get(i), history);
+                }
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
@@ -341,27 +372,98 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             keys.add(key);
         }
 
-        out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
+        // header := size *(NetworkIdentitySet) size *(ident uid set tag bucketCount)
+        final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        final DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(keysByIdent.size());
+        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
+            ident.writeToStream(header);
+        }
+        header.writeInt(mStats.size());
+        int identIndex = 0;
+        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
+            for (Key key : keysByIdent.get(ident)) {
+                header.writeInt(identIndex);
+                header.writeInt(key.uid);
+                header.writeInt(key.set);
+                header.writeInt(key.tag);
+                header.writeInt(mStats.get(key).size());
+            }
+            identIndex++;
+        }
+        header.flush();
 
-        out.writeInt(keysByIdent.size());
+        // uid := headerLength header *(NetworkStatsHistory columns) in header order,
+        // so that readers can map the file and find any history by its offset
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_UNIFIED_COLUMNAR);
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
         for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
-            ident.writeToStream(out);
-
-            out.writeInt(keys.size());
-            for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
+            for (Key key : keysByIdent.get(ident)) {
+                mStats.get(key).writeColumnsToStream(out);
             }
         }
 
         out.flush();
     }
 
+    /**
+     * Read the magic, version and key table of a file, along with the number of
+     * buckets in the history of each key. Returns the offset at which those
+     * histories follow in the same order, or -1 when the file was written before
+     * {@link #VERSION_UNIFIED_COLUMNAR} and has no key table.
+     */
+    static int readColumnarKeys(DataInputStream in, ArrayList<Key> keys, IntArray sizes)
+            throws IOException {
+        final int magic = in.readInt();
+        if (magic != FILE_MAGIC) {
+            throw new ProtocolException("unexpected magic: " + magic);
+        }
+        final int version = in.readInt();
+        if (version != VERSION_UNIFIED_COLUMNAR) {
+            return -1;
+        }
+        return readColumnarKeysAfterVersion(in, keys, sizes);
+    }
+
+    private static int readColumnarKeysAfterVersion(DataInputStream in, ArrayList<Key> keys,
+            IntArray sizes) throws IOException {
+        final int headerLength = in.readInt();
+        if (headerLength < 0) {
+            throw new ProtocolException("negative header length");
+        }
+
+        final int identSize = in.readInt();
+        if (identSize < 0) {
+            throw new ProtocolException("negative ident size");
+        }
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identSize];
+        for (int i = 0; i < identSize; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+        }
+
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            final int identIndex = in.readInt();
+            if (identIndex < 0 || identIndex >= identSize) {
+                throw new ProtocolException("unexpected ident: " + identIndex);
+            }
+            final int uid = in.readInt();
+            final int set = in.readInt();
+            final int tag = in.readInt();
+            final int bucketCount = in.readInt();
+            if (bucketCount < 0) {
+                throw new ProtocolException("negative bucket count");
+            }
+            keys.add(new Key(idents[identIndex], uid, set, tag));
+            sizes.add(bucketCount);
+        }
+
+        // magic, version and header length come before the header
+        return 12 + headerLength;
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -570,7 +672,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
-    private static boolean isAccessibleToUser(int uid, int callerUid) {
+    static boolean isAccessibleToUser(int uid, int callerUid) {
         return UserHandle.getAppId(callerUid) == android.os.Process.SYSTEM_UID ||
                 uid == android.os.Process.SYSTEM_UID || uid == UID_REMOVED || uid == UID_TETHERING
                 || UserHandle.getUserId(uid) == UserHandle.getUserId(callerUid);
@@ -580,7 +682,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
      * in the given {@link NetworkIdentitySet}.
      */
-    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+    static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
         for (NetworkIdentity ident : identSet) {
             if (template.matches(ident)) {
                 return true;
@@ -589,7 +691,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
-    private static class Key implements Comparable<Key> {
+    static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
         public final int set;
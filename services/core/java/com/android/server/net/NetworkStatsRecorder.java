@@ -91,6 +91,11 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /** Mapped view of the files, until {@link #mRotator} changes them. */
+    private MappedNetworkStatsCollection mMapped;
+    /** Mapping the current files failed; don't retry until {@link #mRotator} changes them. */
+    private boolean mMapFailed;
+
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags) {
         mRotator = checkNotNull(rotator, "missing FileRotator");
@@ -139,6 +144,36 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Return a view of the complete history that reads {@link FileRotator}
+     * files in place, combined with pending stats as they are recorded. Returns
+     * {@code null} when the complete history is already loaded, or when the
+     * files can't be mapped; callers should then use
+     * {@link #getOrLoadCompleteLocked()}.
+     */
+    public MappedNetworkStatsCollection getMappedLocked() {
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) return null;
+
+        if (mMapped == null && !mMapFailed) {
+            try {
+                mMapped = MappedNetworkStatsCollection.map(
+                        mRotator.listMatching(Long.MIN_VALUE, Long.MAX_VALUE), mPending,
+                        mBucketDuration);
+            } catch (IOException e) {
+                Log.e(TAG, "problem mapping network stats", e);
+            }
+            mMapFailed = mMapped == null;
+        }
+        return mMapped;
+    }
+
+    /** Forget the mapped view after {@link #mRotator} changed the files it maps. */
+    private void resetMappedLocked() {
+        mMapped = null;
+        mMapFailed = false;
+    }
+
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
         if (res == null) {
@@ -248,6 +283,7 @@ public class NetworkStatsRecorder {
             forcePersistLocked(currentTimeMillis);
         } else {
             mRotator.maybeRotate(currentTimeMillis);
+            resetMappedLocked();
         }
     }
 
@@ -261,6 +297,7 @@ public class NetworkStatsRecorder {
                 mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
                 mRotator.maybeRotate(currentTimeMillis);
                 mPending.reset();
+                resetMappedLocked();
             } catch (IOException e) {
             ///M: modefied revmove wtf
                 Log.e(TAG, "problem persisting pending stats", e);
@@ -280,6 +317,7 @@ public class NetworkStatsRecorder {
         try {
             // Rewrite all persisted data to migrate UID stats
             mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+            resetMappedLocked();
         } catch (IOException e) {
             ///M: modefied revmove wtf
             Log.e(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
@@ -377,6 +415,7 @@ public class NetworkStatsRecorder {
     public void importLegacyNetworkLocked(File file) throws IOException {
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
+        resetMappedLocked();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
         collection.readLegacyNetwork(file);
@@ -395,6 +434,7 @@ public class NetworkStatsRecorder {
     public void importLegacyUidLocked(File file) throws IOException {
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
+        resetMappedLocked();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
         collection.readLegacyUid(file, mOnlyTags);
@@ -445,5 +485,6 @@ public class NetworkStatsRecorder {
         }
 
         mRotator.deleteAll();
+        resetMappedLocked();
     }
 }
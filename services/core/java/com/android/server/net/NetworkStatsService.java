@@ -528,9 +528,46 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Summarize uid stats from the mapped files of the recorder when it
+             * can map them, otherwise from its complete history.
+             */
+            private NetworkStats getUidSummary(boolean tags, NetworkTemplate template,
+                    long start, long end) {
+                synchronized (mStatsLock) {
+                    final MappedNetworkStatsCollection mapped =
+                            (tags ? mUidTagRecorder : mUidRecorder).getMappedLocked();
+                    if (mapped != null) {
+                        return mapped.getSummary(template, start, end);
+                    }
+                }
+                return (tags ? getUidTagComplete() : getUidComplete())
+                        .getSummary(template, start, end);
+            }
+
+            private NetworkStatsHistory getUidHistory(NetworkTemplate template, int uid,
+                    int set, int tag, int fields, long start, long end) {
+                final boolean tags = tag != TAG_NONE;
+                synchronized (mStatsLock) {
+                    final MappedNetworkStatsCollection mapped =
+                            (tags ? mUidTagRecorder : mUidRecorder).getMappedLocked();
+                    if (mapped != null) {
+                        return mapped.getHistory(template, uid, set, tag, fields, start, end);
+                    }
+                }
+                return (tags ? getUidTagComplete() : getUidComplete())
+                        .getHistory(template, uid, set, tag, fields, start, end);
+            }
+
             @Override
             public int[] getRelevantUids() {
                 enforcePermissionForManagedAdmin(mCallingPackage);
+                synchronized (mStatsLock) {
+                    final MappedNetworkStatsCollection mapped = mUidRecorder.getMappedLocked();
+                    if (mapped != null) {
+                        return mapped.getRelevantUids();
+                    }
+                }
                 return getUidComplete().getRelevantUids();
             }
 
@@ -564,10 +601,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStats getSummaryForAllUid(
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 enforcePermissionForManagedAdmin(mCallingPackage);
-                final NetworkStats stats = getUidComplete().getSummary(template, start, end);
+                final NetworkStats stats = getUidSummary(false, template, start, end);
                 if (includeTags) {
-                    final NetworkStats tagStats = getUidTagComplete()
-                            .getSummary(template, start, end);
+                    final NetworkStats tagStats = getUidSummary(true, template, start, end);
                     stats.combineAllValues(tagStats);
                 }
                 return stats;
@@ -577,11 +613,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 enforcePermissionForManagedAdmin(mCallingPackage);
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields);
-                } else {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields);
-                }
+                return getUidHistory(template, uid, set, tag, fields, Long.MIN_VALUE,
+                        Long.MAX_VALUE);
             }
 
             @Override
@@ -589,12 +622,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields,
                     long start, long end) {
                 enforcePermissionForManagedAdmin(mCallingPackage);
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields, start, end);
-                } else {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields,
-                            start, end);
-                }
+                return getUidHistory(template, uid, set, tag, fields, start, end);
             }
 
             @Override
@@ -363,6 +363,20 @@ public class PackageManagerService extends IPackageManager.Stub {
      */
     private static final long DEFAULT_MANDATORY_FSTRIM_INTERVAL = 3 * DateUtils.DAY_IN_MILLIS;
 
+    /**
+     * Whether boot-time directory scans parse packages on a pool of worker
+     * threads. Results are still committed one at a time, in directory order.
+     */
+    private static final boolean PARALLEL_PACKAGE_SCAN =
+            SystemProperties.getBoolean("persist.pm.parallel_scan", true);
+
+    /**
+     * Whether boot-time directory scans reuse parse results cached on disk
+     * for packages that did not change since the last boot.
+     */
+    private static final boolean CACHE_PARSED_PACKAGES =
+            SystemProperties.getBoolean("persist.pm.package_cache", true);
+
     /**
      * Whether verification is enabled by default.
      */
@@ -444,6 +458,12 @@ public class PackageManagerService extends IPackageManager.Stub {
     final String[] mSeparateProcesses;
     final boolean mIsUpgrade;
 
+    /** Timing breakdown of the boot-time package scans. */
+    final PackageScanStats mScanStats = new PackageScanStats();
+
+    /** Cache of parsed packages used by boot-time scans, or null if disabled. */
+    final PackageParserCache mPackageParserCache;
+
     /// M: Mtprof tool
     boolean mMTPROFDisable;
 
@@ -1985,6 +2005,15 @@ public class PackageManagerService extends IPackageManager.Stub {
             mUserAppDataDir = new File(dataDir, "user");
             mDrmAppPrivateInstallDir = new File(dataDir, "app-private");
 
+            // Cached results would not reflect only-core filtering or
+            // debug process separation, so skip the cache in those modes.
+            if (CACHE_PARSED_PACKAGES && !mOnlyCore && mSeparateProcesses == null) {
+                mPackageParserCache = new PackageParserCache(
+                        new File(new File(dataDir, "system"), "package_cache"));
+            } else {
+                mPackageParserCache = null;
+            }
+
             sUserManager = new UserManagerService(context, this,
                     mInstallLock, mPackages);
 
@@ -2540,6 +2569,10 @@ public class PackageManagerService extends IPackageManager.Stub {
             // read and update their last usage times.
             mPackageUsage.readLP();
 
+            if (mPackageParserCache != null) {
+                mPackageParserCache.pruneUnusedEntries();
+            }
+
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SCAN_END,
                     SystemClock.uptimeMillis());
 
@@ -5917,10 +5950,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
 
-        /** M: Add PMS scan package time log @{ */
-        long startScanTime, endScanTime;
-        /** @} */
-
+        final ArrayList<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -5928,34 +5958,109 @@ public class PackageManagerService extends IPackageManager.Stub {
                 // Ignore entries which are not packages
                 continue;
             }
+            packageFiles.add(file);
+        }
 
-            /** M: Add PMS scan package time log @{ */
-            startScanTime = SystemClock.uptimeMillis();
-            Slog.d(TAG, "scan package: " + file.toString() + " , start at: " + startScanTime + "ms.");
-            /** @} */
+        final int threads = PARALLEL_PACKAGE_SCAN && packageFiles.size() > 1
+                ? ParallelPackageParser.getDefaultThreadCount() : 1;
+        final PackageScanStats.DirStats stats = mScanStats.startDir(dir.getPath(),
+                threads > 1, threads);
+        final long dirStartTime = SystemClock.uptimeMillis();
 
-            try {
-                scanPackageLI(file, parseFlags | PackageParser.PARSE_MUST_BE_APK,
-                        scanFlags, currentTime, null);
-            } catch (PackageManagerException e) {
-                Slog.w(TAG, "Failed to parse " + file + ": " + e.getMessage());
+        final int scanParseFlags = getScanParseFlags(parseFlags | PackageParser.PARSE_MUST_BE_APK,
+                scanFlags);
+        final ParallelPackageParser parallelParser = threads > 1
+                ? new ParallelPackageParser(mSeparateProcesses, mOnlyCore, mMetrics,
+                        mPackageParserCache, threads)
+                : null;
+        final PackageParser pp = newPackageParser();
 
-                // Delete invalid userdata apps
-                if ((parseFlags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
-                        e.error == PackageManager.INSTALL_FAILED_INVALID_APK) {
-                    logCriticalInfo(Log.WARN, "Deleting invalid package at " + file);
-                    if (file.isDirectory()) {
-                        mInstaller.rmPackageDir(file.getAbsolutePath());
-                    } else {
-                        file.delete();
-                    }
+        /** M: Add PMS scan package time log @{ */
+        long startScanTime, endScanTime;
+        /** @} */
+
+        try {
+            // Keep a bounded window of packages being parsed ahead of the one
+            // we are committing; results always come back in directory order.
+            final int count = packageFiles.size();
+            int nextToSubmit = 0;
+            if (parallelParser != null) {
+                while (nextToSubmit < count
+                        && parallelParser.getPendingCount() < ParallelPackageParser.MAX_QUEUED) {
+                    parallelParser.submit(packageFiles.get(nextToSubmit++), scanParseFlags);
                 }
             }
 
-            /** M: Add PMS scan package time log @{ */
-            endScanTime = SystemClock.uptimeMillis();
-            Slog.d(TAG, "scan package: " + file.toString() + " , end at: " + endScanTime + "ms. elapsed time = " + (endScanTime - startScanTime) + "ms.");
-            /** @} */
+            for (int i = 0; i < count; i++) {
+                final File file = packageFiles.get(i);
+
+                /** M: Add PMS scan package time log @{ */
+                startScanTime = SystemClock.uptimeMillis();
+                Slog.d(TAG, "scan package: " + file.toString() + " , start at: " + startScanTime + "ms.");
+                /** @} */
+
+                PackageParser.Package pkg = null;
+                PackageManagerException error = null;
+                long parseTime;
+                if (parallelParser != null) {
+                    final ParallelPackageParser.ParseResult result = parallelParser.take();
+                    stats.waitTimeMs += SystemClock.uptimeMillis() - startScanTime;
+                    if (nextToSubmit < count) {
+                        parallelParser.submit(packageFiles.get(nextToSubmit++), scanParseFlags);
+                    }
+                    pkg = result.pkg;
+                    if (result.throwable != null) {
+                        error = PackageManagerException.from(result.throwable);
+                    }
+                    parseTime = result.parseTimeMs;
+                } else {
+                    try {
+                        pkg = mPackageParserCache != null
+                                ? mPackageParserCache.parsePackage(pp, file, scanParseFlags)
+                                : pp.parsePackage(file, scanParseFlags);
+                    } catch (PackageParserException e) {
+                        error = PackageManagerException.from(e);
+                    }
+                    parseTime = SystemClock.uptimeMillis() - startScanTime;
+                }
+                stats.onPackageParsed(file.getPath(), parseTime);
+
+                final long commitStartTime = SystemClock.uptimeMillis();
+                if (error == null) {
+                    try {
+                        scanPackageLI(pp, pkg, file, scanParseFlags, scanFlags, currentTime,
+                                null);
+                    } catch (PackageManagerException e) {
+                        error = e;
+                    }
+                }
+                if (error != null) {
+                    stats.failures++;
+                    Slog.w(TAG, "Failed to parse " + file + ": " + error.getMessage());
+
+                    // Delete invalid userdata apps
+                    if ((parseFlags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
+                            error.error == PackageManager.INSTALL_FAILED_INVALID_APK) {
+                        logCriticalInfo(Log.WARN, "Deleting invalid package at " + file);
+                        if (file.isDirectory()) {
+                            mInstaller.rmPackageDir(file.getAbsolutePath());
+                        } else {
+                            file.delete();
+                        }
+                    }
+                }
+
+                /** M: Add PMS scan package time log @{ */
+                endScanTime = SystemClock.uptimeMillis();
+                stats.commitTimeMs += endScanTime - commitStartTime;
+                Slog.d(TAG, "scan package: " + file.toString() + " , end at: " + endScanTime + "ms. elapsed time = " + (endScanTime - startScanTime) + "ms.");
+                /** @} */
+            }
+        } finally {
+            if (parallelParser != null) {
+                parallelParser.close();
+            }
+            stats.wallTimeMs = SystemClock.uptimeMillis() - dirStartTime;
         }
 
         /// M: Mtprof tool
@@ -6038,23 +6143,46 @@ public class PackageManagerService extends IPackageManager.Stub {
     private PackageParser.Package scanPackageLI(File scanFile, int parseFlags, int scanFlags,
             long currentTime, UserHandle user) throws PackageManagerException {
         if (DEBUG_INSTALL) Slog.d(TAG, "Parsing: " + scanFile);
-        parseFlags |= mDefParseFlags;
+        parseFlags = getScanParseFlags(parseFlags, scanFlags);
+        PackageParser pp = newPackageParser();
+
+        final PackageParser.Package pkg;
+        try {
+            pkg = pp.parsePackage(scanFile, parseFlags);
+        } catch (PackageParserException e) {
+            throw PackageManagerException.from(e);
+        }
+
+        return scanPackageLI(pp, pkg, scanFile, parseFlags, scanFlags, currentTime, user);
+    }
+
+    private PackageParser newPackageParser() {
         PackageParser pp = new PackageParser();
         pp.setSeparateProcesses(mSeparateProcesses);
         pp.setOnlyCoreApps(mOnlyCore);
         pp.setDisplayMetrics(mMetrics);
+        return pp;
+    }
 
+    /**
+     * Returns the flags to parse a scanned package with, given the caller's
+     * parse and scan flags.
+     */
+    private int getScanParseFlags(int parseFlags, int scanFlags) {
+        parseFlags |= mDefParseFlags;
         if ((scanFlags & SCAN_TRUSTED_OVERLAY) != 0) {
             parseFlags |= PackageParser.PARSE_TRUSTED_OVERLAY;
         }
+        return parseFlags;
+    }
 
-        final PackageParser.Package pkg;
-        try {
-            pkg = pp.parsePackage(scanFile, parseFlags);
-        } catch (PackageParserException e) {
-            throw PackageManagerException.from(e);
-        }
-
+    /*
+     *  Scan a package that was already parsed from scanFile with the flags
+     *  returned by getScanParseFlags(), and return the newly scanned package.
+     */
+    private PackageParser.Package scanPackageLI(PackageParser pp, PackageParser.Package pkg,
+            File scanFile, int parseFlags, int scanFlags, long currentTime, UserHandle user)
+            throws PackageManagerException {
         PackageSetting ps = null;
         PackageSetting updatedPkg;
         // reader
@@ -15523,6 +15651,7 @@ public class PackageManagerService extends IPackageManager.Stub {
         public static final int DUMP_INSTALLS = 1 << 13;
         public static final int DUMP_INTENT_FILTER_VERIFIERS = 1 << 14;
         public static final int DUMP_DOMAIN_PREFERRED = 1 << 15;
+        public static final int DUMP_SCAN_STATS = 1 << 16;
 
         public static final int OPTION_SHOW_FILTERS = 1 << 0;
 
@@ -15631,6 +15760,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                 pw.println("    version: print database version info");
                 pw.println("    write: write current settings now");
                 pw.println("    installs: details about install sessions");
+                pw.println("    scan-stats: timing breakdown of the boot package scan");
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    <package.name>: info about given package");
                 return;
@@ -15727,6 +15857,8 @@ public class PackageManagerService extends IPackageManager.Stub {
                 dumpState.setDump(DumpState.DUMP_KEYSETS);
             } else if ("installs".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_INSTALLS);
+            } else if ("scan-stats".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_SCAN_STATS);
             } else if ("log".equals(cmd)) {
                 /** M: Add dynamic enable PMS log @{ */
                 configLogTag(pw, args, opti);
@@ -16048,6 +16180,16 @@ public class PackageManagerService extends IPackageManager.Stub {
                 mInstallerService.dump(new IndentingPrintWriter(pw, "  ", 120));
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_SCAN_STATS)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                final IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ", 120);
+                mScanStats.dump(ipw);
+                if (mPackageParserCache != null) {
+                    mPackageParserCache.dump(ipw);
+                }
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_MESSAGES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 mSettings.dumpReadMessagesLPr(pw, dumpState);
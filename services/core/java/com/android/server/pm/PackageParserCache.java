@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageParserException;
+import android.os.Build;
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of {@link PackageParser.Package} results, so that packages
+ * which did not change since the last boot can be restored without opening
+ * the APK and parsing its manifest again.
+ *
+ * <p>Each entry is keyed by the code path of the package and validated
+ * against the parse flags, the modification time and size of its APKs, and
+ * a stamp of the platform build. Any change to the build wipes the cache.
+ * Only the state produced by the parser is cached; certificates are still
+ * collected by the package manager as before.
+ */
+final class PackageParserCache {
+    private static final String TAG = "PackageParserCache";
+
+    private static final int ENTRY_MAGIC = 0x50504331; // "PPC1"
+
+    /** Bump whenever the flattened form of {@link PackageParser.Package} changes. */
+    private static final int ENTRY_VERSION = 1;
+
+    private static final String STAMP_FILE = "stamp";
+    private static final String FRAMEWORK_RES = "/system/framework/framework-res.apk";
+
+    private final File mCacheDir;
+
+    /** Entry names read or written since boot; everything else is stale. */
+    private final ArraySet<String> mUsedEntries = new ArraySet<>();
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mWrites = new AtomicInteger();
+    private final AtomicInteger mErrors = new AtomicInteger();
+
+    PackageParserCache(File cacheDir) {
+        mCacheDir = cacheDir;
+        validateStamp();
+    }
+
+    /**
+     * Returns the package parsed from {@code packageFile} with {@code flags},
+     * using a cached copy when one is still valid and caching the result of
+     * a fresh parse otherwise.
+     */
+    PackageParser.Package parsePackage(PackageParser pp, File packageFile, int flags)
+            throws PackageParserException {
+        if ((flags & PackageParser.PARSE_COLLECT_CERTIFICATES) != 0) {
+            // Certificates are not part of the cached form.
+            return pp.parsePackage(packageFile, flags);
+        }
+
+        final String entryName = getEntryName(packageFile);
+        final long[] stat = statPackage(packageFile);
+        synchronized (mUsedEntries) {
+            mUsedEntries.add(entryName);
+        }
+
+        final File entryFile = new File(mCacheDir, entryName);
+        final PackageParser.Package cached = readEntry(entryFile, packageFile, flags, stat);
+        if (cached != null) {
+            mHits.incrementAndGet();
+            return cached;
+        }
+
+        mMisses.incrementAndGet();
+        final PackageParser.Package pkg = pp.parsePackage(packageFile, flags);
+        writeEntry(entryFile, packageFile, flags, stat, pkg);
+        return pkg;
+    }
+
+    /**
+     * Deletes entries that were not used since boot, such as those of
+     * packages that have since been uninstalled.
+     */
+    void pruneUnusedEntries() {
+        final File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        synchronized (mUsedEntries) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!STAMP_FILE.equals(name) && !mUsedEntries.contains(name)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.print("Parsed package cache: ");
+        pw.println(mCacheDir);
+        pw.increaseIndent();
+        pw.print("hits="); pw.print(mHits.get());
+        pw.print(" misses="); pw.print(mMisses.get());
+        pw.print(" writes="); pw.print(mWrites.get());
+        pw.print(" errors="); pw.println(mErrors.get());
+        pw.decreaseIndent();
+    }
+
+    private void validateStamp() {
+        final String stamp = Build.FINGERPRINT + "|" + ENTRY_VERSION + "|"
+                + new File(FRAMEWORK_RES).lastModified();
+        final File stampFile = new File(mCacheDir, STAMP_FILE);
+        try {
+            if (stampFile.exists()
+                    && stamp.equals(IoUtils.readFileAsString(stampFile.getPath()))) {
+                return;
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read cache stamp", e);
+        }
+
+        Slog.i(TAG, "Platform changed; clearing " + mCacheDir);
+        mCacheDir.mkdirs();
+        FileUtils.deleteContents(mCacheDir);
+        FileUtils.setPermissions(mCacheDir.getPath(), FileUtils.S_IRWXU, -1, -1);
+        try {
+            FileUtils.stringToFile(stampFile.getPath(), stamp);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write cache stamp", e);
+        }
+    }
+
+    private static String getEntryName(File packageFile) {
+        return packageFile.getAbsolutePath().replace('/', '@');
+    }
+
+    /**
+     * Returns the newest modification time and the total size of the APKs
+     * making up the package; for cluster packages the directory itself does
+     * not change when an APK inside it is replaced.
+     */
+    private static long[] statPackage(File packageFile) {
+        final long[] stat = new long[2];
+        if (packageFile.isDirectory()) {
+            final File[] files = packageFile.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (PackageParser.isApkFile(file)) {
+                        stat[0] = Math.max(stat[0], file.lastModified());
+                        stat[1] += file.length();
+                    }
+                }
+            }
+        } else {
+            stat[0] = packageFile.lastModified();
+            stat[1] = packageFile.length();
+        }
+        return stat;
+    }
+
+    private PackageParser.Package readEntry(File entryFile, File packageFile, int flags,
+            long[] stat) {
+        if (!entryFile.exists()) {
+            return null;
+        }
+        final Parcel in = Parcel.obtain();
+        try {
+            final byte[] bytes = IoUtils.readFileAsByteArray(entryFile.getPath());
+            in.unmarshall(bytes, 0, bytes.length);
+            in.setDataPosition(0);
+            if (in.readInt() != ENTRY_MAGIC
+                    || in.readInt() != ENTRY_VERSION
+                    || in.readInt() != flags
+                    || in.readLong() != stat[0]
+                    || in.readLong() != stat[1]
+                    || !packageFile.getAbsolutePath().equals(in.readString())) {
+                return null;
+            }
+            final PackageParser.Package pkg = new PackageParser.Package(in);
+            // A trailing marker guards against entries cut short by a crash.
+            if (in.readInt() != ENTRY_MAGIC || in.dataAvail() != 0) {
+                throw new IllegalStateException("Truncated cache entry");
+            }
+            return pkg;
+        } catch (IOException | RuntimeException e) {
+            mErrors.incrementAndGet();
+            Slog.w(TAG, "Dropping cache entry " + entryFile + ": " + e);
+            entryFile.delete();
+            return null;
+        } finally {
+            in.recycle();
+        }
+    }
+
+    private void writeEntry(File entryFile, File packageFile, int flags, long[] stat,
+            PackageParser.Package pkg) {
+        final Parcel out = Parcel.obtain();
+        final File tempFile = new File(mCacheDir, entryFile.getName() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            out.writeInt(ENTRY_MAGIC);
+            out.writeInt(ENTRY_VERSION);
+            out.writeInt(flags);
+            out.writeLong(stat[0]);
+            out.writeLong(stat[1]);
+            out.writeString(packageFile.getAbsolutePath());
+            pkg.writeToParcel(out);
+            out.writeInt(ENTRY_MAGIC);
+
+            fos = new FileOutputStream(tempFile);
+            fos.write(out.marshall());
+            fos.close();
+            fos = null;
+            if (!tempFile.renameTo(entryFile)) {
+                throw new IOException("Failed to rename " + tempFile);
+            }
+            mWrites.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            mErrors.incrementAndGet();
+            Slog.w(TAG, "Failed to cache " + packageFile + ": " + e);
+            tempFile.delete();
+        } finally {
+            IoUtils.closeQuietly(fos);
+            out.recycle();
+        }
+    }
+}
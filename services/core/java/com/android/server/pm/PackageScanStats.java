@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+
+/**
+ * Per-boot timing breakdown of the package directory scans done by
+ * {@link PackageManagerService}, reported through {@code dumpsys package scan-stats}.
+ */
+final class PackageScanStats {
+
+    static final class DirStats {
+        final String dir;
+        final boolean parallel;
+        int packages;
+        int failures;
+        /** Wall clock time spent in scanDirLI for this directory. */
+        long wallTimeMs;
+        /** Sum of individual parse times; exceeds wall time when parsing in parallel. */
+        long parseTimeMs;
+        /** Time the scanning thread spent waiting for parse results. */
+        long waitTimeMs;
+        /** Time spent committing parsed packages into the package database. */
+        long commitTimeMs;
+        long slowestParseMs;
+        String slowestPackage;
+
+        DirStats(String dir, boolean parallel) {
+            this.dir = dir;
+            this.parallel = parallel;
+        }
+
+        void onPackageParsed(String path, long parseMs) {
+            packages++;
+            parseTimeMs += parseMs;
+            if (parseMs > slowestParseMs) {
+                slowestParseMs = parseMs;
+                slowestPackage = path;
+            }
+        }
+    }
+
+    private final ArrayList<DirStats> mDirs = new ArrayList<>();
+    private int mThreads;
+
+    synchronized DirStats startDir(String dir, boolean parallel, int threads) {
+        final DirStats stats = new DirStats(dir, parallel);
+        mDirs.add(stats);
+        if (parallel) {
+            mThreads = Math.max(mThreads, threads);
+        }
+        return stats;
+    }
+
+    synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("Package scan stats:");
+        pw.increaseIndent();
+        if (mDirs.isEmpty()) {
+            pw.println("(no scans recorded)");
+            pw.decreaseIndent();
+            return;
+        }
+        long totalWall = 0, totalParse = 0, totalWait = 0, totalCommit = 0;
+        int totalPackages = 0, totalFailures = 0;
+        for (int i = 0; i < mDirs.size(); i++) {
+            final DirStats ds = mDirs.get(i);
+            pw.print(ds.dir);
+            pw.print(ds.parallel ? " (parallel)" : " (serial)");
+            pw.print(": packages="); pw.print(ds.packages);
+            pw.print(" failures="); pw.print(ds.failures);
+            pw.print(" wall="); pw.print(ds.wallTimeMs);
+            pw.print("ms parse="); pw.print(ds.parseTimeMs);
+            pw.print("ms wait="); pw.print(ds.waitTimeMs);
+            pw.print("ms commit="); pw.print(ds.commitTimeMs);
+            pw.println("ms");
+            if (ds.slowestPackage != null) {
+                pw.increaseIndent();
+                pw.print("slowest: "); pw.print(ds.slowestPackage);
+                pw.print(" ("); pw.print(ds.slowestParseMs); pw.println("ms)");
+                pw.decreaseIndent();
+            }
+            totalWall += ds.wallTimeMs;
+            totalParse += ds.parseTimeMs;
+            totalWait += ds.waitTimeMs;
+            totalCommit += ds.commitTimeMs;
+            totalPackages += ds.packages;
+            totalFailures += ds.failures;
+        }
+        pw.print("Total: packages="); pw.print(totalPackages);
+        pw.print(" failures="); pw.print(totalFailures);
+        pw.print(" wall="); pw.print(totalWall);
+        pw.print("ms parse="); pw.print(totalParse);
+        pw.print("ms wait="); pw.print(totalWait);
+        pw.print("ms commit="); pw.print(totalCommit);
+        pw.print("ms parser-threads="); pw.println(mThreads);
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses packages on a bounded pool of worker threads while handing the
+ * results back in the exact order they were submitted.
+ *
+ * <p>Only {@link PackageParser#parsePackage} runs off the calling thread;
+ * everything that touches {@code mPackages} or {@link Settings} stays with
+ * the caller, which drains results through {@link #take()} and therefore
+ * commits them in the same order a serial scan would.
+ */
+class ParallelPackageParser implements AutoCloseable {
+
+    /** Upper bound on parser threads regardless of the number of cores. */
+    static final int MAX_THREADS = 4;
+
+    /**
+     * Maximum number of parse results allowed to be outstanding at once, so
+     * a slow commit phase does not pile up hundreds of parsed packages.
+     */
+    static final int MAX_QUEUED = 16;
+
+    static class ParseResult {
+        File scanFile;
+        int parseFlags;
+        PackageParser.Package pkg;
+        PackageParser.PackageParserException throwable;
+        long parseTimeMs;
+
+        @Override
+        public String toString() {
+            return "ParseResult{scanFile=" + scanFile + ", pkg=" + pkg
+                    + ", throwable=" + throwable + ", parseTimeMs=" + parseTimeMs + "}";
+        }
+    }
+
+    private final String[] mSeparateProcesses;
+    private final boolean mOnlyCore;
+    private final DisplayMetrics mMetrics;
+    private final PackageParserCache mCache;
+    private final ExecutorService mService;
+    private final ArrayDeque<Future<ParseResult>> mPending = new ArrayDeque<>();
+
+    /**
+     * @param cache optional cache consulted before parsing each package.
+     */
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, PackageParserCache cache, int threads) {
+        mSeparateProcesses = separateProcesses;
+        mOnlyCore = onlyCoreApps;
+        mMetrics = metrics;
+        mCache = cache;
+        mService = Executors.newFixedThreadPool(threads, new ParserThreadFactory());
+    }
+
+    /**
+     * Returns the number of parser threads to use on this device.
+     */
+    static int getDefaultThreadCount() {
+        return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns the number of submitted packages whose results have not been
+     * taken yet.
+     */
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Queues {@code scanFile} for parsing with the given flags. The flags must
+     * already include everything {@code scanPackageLI} would normally add.
+     */
+    void submit(final File scanFile, final int parseFlags) {
+        mPending.add(mService.submit(new Callable<ParseResult>() {
+            @Override
+            public ParseResult call() {
+                final ParseResult pr = new ParseResult();
+                pr.scanFile = scanFile;
+                pr.parseFlags = parseFlags;
+                final long start = SystemClock.uptimeMillis();
+                try {
+                    final PackageParser pp = newPackageParser();
+                    pr.pkg = mCache != null
+                            ? mCache.parsePackage(pp, scanFile, parseFlags)
+                            : pp.parsePackage(scanFile, parseFlags);
+                } catch (PackageParser.PackageParserException e) {
+                    pr.throwable = e;
+                } finally {
+                    pr.parseTimeMs = SystemClock.uptimeMillis() - start;
+                }
+                return pr;
+            }
+        }));
+    }
+
+    /**
+     * Returns the result for the oldest submitted package, blocking until it
+     * has been parsed.
+     *
+     * @throws IllegalStateException if nothing is pending, or if the parser
+     *             thread failed with an unexpected runtime error.
+     */
+    ParseResult take() {
+        final Future<ParseResult> future = mPending.poll();
+        if (future == null) {
+            throw new IllegalStateException("No packages pending");
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // Boot cannot continue without this result; keep waiting
+                    // and restore the interrupt once we have it.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Package parser thread failed",
+                            e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    PackageParser newPackageParser() {
+        final PackageParser pp = new PackageParser();
+        pp.setSeparateProcesses(mSeparateProcesses);
+        pp.setOnlyCoreApps(mOnlyCore);
+        pp.setDisplayMetrics(mMetrics);
+        return pp;
+    }
+
+    @Override
+    public void close() {
+        for (Future<ParseResult> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+        mService.shutdownNow();
+    }
+
+    private static class ParserThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread("package-parser-" + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    r.run();
+                }
+            };
+        }
+    }
+}
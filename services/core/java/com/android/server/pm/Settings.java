@@ -48,6 +48,7 @@ import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -61,6 +62,8 @@ import android.util.SparseLongArray;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
@@ -161,6 +164,16 @@ final class Settings {
     }
 
     private static final boolean DEBUG_STOPPED = false;
+
+    /**
+     * Whether packages.xml and runtime-permissions.xml are written in the
+     * binary XML encoding. Both encodings are always accepted when reading,
+     * so existing text files are migrated on their next write once this is
+     * turned on. Off by default: a device that writes binary settings can no
+     * longer be downgraded to a build that only reads text.
+     */
+    static final boolean WRITE_BINARY_XML =
+            SystemProperties.getBoolean("persist.pm.binary_settings", false);
     private static final boolean DEBUG_MU = false;
 
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
@@ -2095,7 +2108,8 @@ final class Settings {
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
             //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
+            XmlSerializer serializer = WRITE_BINARY_XML
+                    ? new BinaryXmlSerializer() : new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -2563,8 +2577,7 @@ final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = BinaryXmlPullParser.newPullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -4716,7 +4729,8 @@ final class Settings {
             try {
                 out = destination.startWrite();
 
-                XmlSerializer serializer = Xml.newSerializer();
+                XmlSerializer serializer = WRITE_BINARY_XML
+                        ? new BinaryXmlSerializer() : Xml.newSerializer();
                 serializer.setOutput(out, StandardCharsets.UTF_8.name());
                 serializer.setFeature(
                         "http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -4810,8 +4824,7 @@ final class Settings {
             }
 
             try {
-                XmlPullParser parser = Xml.newPullParser();
-                parser.setInput(in, null);
+                XmlPullParser parser = BinaryXmlPullParser.newPullParser(in);
                 parseRuntimePermissionsLPr(parser, userId);
 
             } catch (XmlPullParserException | IOException e) {
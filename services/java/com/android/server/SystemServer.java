@@ -1091,6 +1091,14 @@ public final class SystemServer {
             } catch (Throwable e) {
                 reportWtf("starting DiskStats Service", e);
             }
+
+            try {
+                Slog.i(TAG, "BinderCallsStats Service");
+                ServiceManager.addService("binder_calls_stats",
+                        new BinderCallsStatsService(context));
+            } catch (Throwable e) {
+                reportWtf("starting BinderCallsStats Service", e);
+            }
 						
 						 try {
                 Slog.i(TAG, "TouchSensor Service");
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Replays a trace of alarms being set and cancelled against the batch tree that
+ * AlarmManagerService uses, and against the sorted list with a linear coalescing scan that
+ * it used before.
+ */
+public class AlarmBatchTreeBenchmark extends SimpleBenchmark {
+    private static final long MINUTE = 60 * 1000;
+    // Inexact repeating intervals apps commonly ask for.
+    private static final long[] INTERVALS = {
+            15 * MINUTE, 30 * MINUTE, 60 * MINUTE, 12 * 60 * MINUTE, 24 * 60 * MINUTE,
+    };
+
+    /** Approximates the number of alarms scheduled at once. */
+    @Param({"100", "1000"})
+    private int alarms;
+
+    // The trace: alarm i is set with window [mWhen[i], mMaxWhen[i]] and, if mCancel[i] is
+    // not -1, alarm mCancel[i] is cancelled right after it.
+    private long[] mWhen;
+    private long[] mMaxWhen;
+    private int[] mCancel;
+
+    private static class TestBatch extends AlarmBatchTree.Node {
+        int alarms;
+
+        TestBatch(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        final Random random = new Random(42);
+        final int events = alarms * 4;
+        mWhen = new long[events];
+        mMaxWhen = new long[events];
+        mCancel = new int[events];
+        long now = 0;
+        for (int i = 0; i < events; i++) {
+            now += random.nextInt(1000);
+            if (random.nextInt(10) == 0) {
+                // An exact alarm, which can only join a batch that is due at the same time.
+                mWhen[i] = now + random.nextInt(60) * MINUTE;
+                mMaxWhen[i] = mWhen[i];
+            } else {
+                // An inexact alarm gets three quarters of its interval as a window.
+                final long interval = INTERVALS[random.nextInt(INTERVALS.length)];
+                mWhen[i] = now + interval;
+                mMaxWhen[i] = mWhen[i] + interval * 3 / 4;
+            }
+            // Keep about the requested number of alarms scheduled by cancelling older ones
+            // once there are enough.
+            mCancel[i] = i >= alarms ? i - alarms + random.nextInt(alarms / 2) : -1;
+            if (mCancel[i] >= i) {
+                mCancel[i] = -1;
+            }
+        }
+    }
+
+    public int timeTree(int reps) {
+        int batches = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            final AlarmBatchTree<TestBatch> tree = new AlarmBatchTree<>();
+            final TestBatch[] batchOf = new TestBatch[mWhen.length];
+            for (int i = 0; i < mWhen.length; i++) {
+                TestBatch b = tree.findFirstCanHold(mWhen[i], mMaxWhen[i]);
+                if (b == null) {
+                    b = new TestBatch(mWhen[i], mMaxWhen[i]);
+                    tree.add(b);
+                } else if (mWhen[i] > b.start || mMaxWhen[i] < b.end) {
+                    tree.remove(b);
+                    b.start = Math.max(b.start, mWhen[i]);
+                    b.end = Math.min(b.end, mMaxWhen[i]);
+                    tree.add(b);
+                }
+                b.alarms++;
+                batchOf[i] = b;
+                final int cancel = mCancel[i];
+                if (cancel >= 0 && batchOf[cancel] != null) {
+                    final TestBatch c = batchOf[cancel];
+                    batchOf[cancel] = null;
+                    if (--c.alarms == 0) {
+                        tree.remove(c);
+                    }
+                }
+            }
+            batches += tree.size();
+        }
+        return batches;
+    }
+
+    public int timeLinearList(int reps) {
+        int batches = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            final ArrayList<TestBatch> list = new ArrayList<>();
+            final TestBatch[] batchOf = new TestBatch[mWhen.length];
+            for (int i = 0; i < mWhen.length; i++) {
+                TestBatch b = null;
+                for (int j = 0; j < list.size(); j++) {
+                    final TestBatch candidate = list.get(j);
+                    if (candidate.end >= mWhen[i] && candidate.start <= mMaxWhen[i]) {
+                        b = candidate;
+                        break;
+                    }
+                }
+                if (b == null) {
+                    b = new TestBatch(mWhen[i], mMaxWhen[i]);
+                    insert(list, b);
+                } else if (mWhen[i] > b.start || mMaxWhen[i] < b.end) {
+                    list.remove(b);
+                    b.start = Math.max(b.start, mWhen[i]);
+                    b.end = Math.min(b.end, mMaxWhen[i]);
+                    insert(list, b);
+                }
+                b.alarms++;
+                batchOf[i] = b;
+                final int cancel = mCancel[i];
+                if (cancel >= 0 && batchOf[cancel] != null) {
+                    final TestBatch c = batchOf[cancel];
+                    batchOf[cancel] = null;
+                    if (--c.alarms == 0) {
+                        list.remove(c);
+                    }
+                }
+            }
+            batches += list.size();
+        }
+        return batches;
+    }
+
+    private static void insert(ArrayList<TestBatch> list, TestBatch b) {
+        int lo = 0;
+        int hi = list.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (list.get(mid).start <= b.start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        list.add(lo, b);
+    }
+}
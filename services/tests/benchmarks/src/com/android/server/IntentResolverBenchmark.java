@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+public class IntentResolverBenchmark extends SimpleBenchmark {
+    private static final String[] ACTIONS = {
+            Intent.ACTION_VIEW, Intent.ACTION_EDIT, Intent.ACTION_SEND,
+            Intent.ACTION_SEND_MULTIPLE, Intent.ACTION_PICK, Intent.ACTION_GET_CONTENT,
+    };
+    private static final String[] SCHEMES = {
+            "http", "https", "content", "file", "geo", "tel", "mailto", "market",
+    };
+    private static final String[] TYPES = {
+            "image/*", "image/png", "image/jpeg", "video/*", "audio/*", "text/plain",
+            "text/*", "application/pdf", "*/*",
+    };
+
+    /** Approximates the number of installed packages exporting data filters. */
+    @Param({"100", "500"})
+    private int filters;
+
+    private TestResolver mResolver;
+
+    private Intent mViewHttp;
+    private Intent mSendImage;
+    private Intent mBroadcast;
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mResolver = new TestResolver();
+        for (int i = 0; i < filters; i++) {
+            // Spread actions, schemes and types the way a typical system image
+            // does: most data filters share a handful of popular keys.
+            final IntentFilter scheme = new IntentFilter(ACTIONS[i % ACTIONS.length]);
+            scheme.addCategory(Intent.CATEGORY_DEFAULT);
+            scheme.addDataScheme(SCHEMES[i % SCHEMES.length]);
+            mResolver.addFilter(scheme);
+
+            final IntentFilter type = new IntentFilter(ACTIONS[(i / 2) % ACTIONS.length]);
+            type.addCategory(Intent.CATEGORY_DEFAULT);
+            type.addDataType(TYPES[i % TYPES.length]);
+            mResolver.addFilter(type);
+
+            final IntentFilter broadcast = new IntentFilter("com.example.action.EVENT_" + i);
+            broadcast.addAction(Intent.ACTION_BOOT_COMPLETED);
+            mResolver.addFilter(broadcast);
+        }
+
+        mViewHttp = new Intent(Intent.ACTION_VIEW, Uri.parse("http://www.example.com/"));
+        mSendImage = new Intent(Intent.ACTION_SEND);
+        mSendImage.setType("image/png");
+        mBroadcast = new Intent(Intent.ACTION_BOOT_COMPLETED);
+    }
+
+    public int timeQueryViewHttp(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            count += mResolver.queryIntent(mViewHttp, null, true, 0).size();
+        }
+        return count;
+    }
+
+    public int timeQuerySendImage(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            count += mResolver.queryIntent(mSendImage, "image/png", true, 0).size();
+        }
+        return count;
+    }
+
+    public int timeQueryBroadcast(int reps) {
+        int count = 0;
+        for (int i = 0; i < reps; i++) {
+            count += mResolver.queryIntent(mBroadcast, null, false, 0).size();
+        }
+        return count;
+    }
+}
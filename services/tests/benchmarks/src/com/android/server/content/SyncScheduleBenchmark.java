@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+
+import android.accounts.Account;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Cost of one pass of SyncManager.maybeStartNextSyncH() over the sync queue: walking every
+ * pending operation and sorting the ready ones, as the SyncManager used to, against asking the
+ * {@link SyncSchedule} for the ready operations and the next run time.  The queue holds a
+ * periodic sync for every authority of every synthetic account, spread over the next day,
+ * with a few of them due.
+ */
+public class SyncScheduleBenchmark extends SimpleBenchmark {
+    private static final String[] ACCOUNT_TYPES = {
+            "com.google", "com.android.exchange", "com.example.social", "com.example.notes",
+    };
+
+    @Param({"10", "50"})
+    private int accounts;
+
+    @Param({"8", "20"})
+    private int authoritiesPerAccount;
+
+    private ArrayList<SyncOperation> mOperations;
+    private SyncSchedule mSchedule;
+    private long mNow;
+    private final ArrayList<SyncOperation> mReady = new ArrayList<SyncOperation>();
+
+    @Override
+    protected void setUp() throws Exception {
+        final Random random = new Random(0);
+        mOperations = new ArrayList<SyncOperation>();
+        mSchedule = new SyncSchedule();
+        for (int a = 0; a < accounts; a++) {
+            final Account account = new Account("user" + a + "@example.com",
+                    ACCOUNT_TYPES[a % ACCOUNT_TYPES.length]);
+            for (int p = 0; p < authoritiesPerAccount; p++) {
+                // About one in twenty syncs is due now.
+                final long runTimeFromNow = random.nextInt(20) == 0
+                        ? 0 : 1000L * random.nextInt(24 * 60 * 60);
+                final SyncOperation op = new SyncOperation(account, 0,
+                        SyncOperation.REASON_PERIODIC, SyncStorageEngine.SOURCE_PERIODIC,
+                        "com.example.provider" + p, Bundle.EMPTY, runTimeFromNow,
+                        runTimeFromNow / 25 /* flex */, 0 /* backoff */, 0 /* delayUntil */,
+                        true);
+                mOperations.add(op);
+                mSchedule.add(op);
+            }
+        }
+        mNow = SystemClock.elapsedRealtime();
+    }
+
+    public void timeLinearScan(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mReady.clear();
+            long next = Long.MAX_VALUE;
+            for (int j = 0, N = mOperations.size(); j < N; j++) {
+                final SyncOperation op = mOperations.get(j);
+                if (op.effectiveRunTime - op.flexTime > mNow) {
+                    next = Math.min(next, op.effectiveRunTime);
+                    continue;
+                }
+                mReady.add(op);
+            }
+            Collections.sort(mReady);
+        }
+    }
+
+    public void timeSchedule(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mReady.clear();
+            mSchedule.getReadyOperations(mNow, mReady);
+            mSchedule.getNextRunTime(mNow);
+            Collections.sort(mReady);
+        }
+    }
+
+    /** Backing off one operation, which the schedule has to reposition. */
+    public void timeScheduleBackoff(int reps) {
+        final int N = mOperations.size();
+        for (int i = 0; i < reps; i++) {
+            final SyncOperation op = mOperations.get(i % N);
+            op.backoff = op.backoff == 0 ? mNow + 60 * 60 * 1000L : 0;
+            op.updateEffectiveRunTime();
+            mSchedule.update(op);
+        }
+    }
+}
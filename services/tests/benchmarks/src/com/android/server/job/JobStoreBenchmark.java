@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.os.PersistableBundle;
+import android.util.AtomicFile;
+
+import com.android.server.RecordJournal;
+import com.android.server.job.controllers.JobStatus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cost of persisting one job change: rewriting all of jobs.xml, as JobStore used to on every
+ * change, against appending a journal record and rewriting jobs.xml once per
+ * {@link JobStore#MAX_JOURNAL_RECORDS} changes.  Both paths fsync.
+ */
+public class JobStoreBenchmark extends SimpleBenchmark {
+    /** Persisted jobs already in the store. */
+    @Param({"20", "100"})
+    private int jobs;
+
+    private File mDir;
+    private AtomicFile mJobsFile;
+    private RecordJournal mJournal;
+    private List<JobStatus> mJobs;
+    private JobStatus mChanged;
+    private int mAppends;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = new File(System.getProperty("java.io.tmpdir"), "JobStoreBenchmark");
+        mDir.mkdirs();
+        mJobsFile = new AtomicFile(new File(mDir, "jobs.xml"));
+        mJournal = new RecordJournal(new File(mDir, "jobs.journal"));
+        mJournal.reset();
+
+        final ComponentName component = new ComponentName("com.example", "com.example.Job");
+        mJobs = new ArrayList<JobStatus>();
+        for (int i = 0; i < jobs; i++) {
+            final PersistableBundle extras = new PersistableBundle();
+            extras.putString("account", "user" + i + "@example.com");
+            extras.putLong("since", 1000L * i);
+            final JobInfo job = new JobInfo.Builder(i, component)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .setMinimumLatency(60 * 1000L)
+                    .setOverrideDeadline(60 * 60 * 1000L)
+                    .setExtras(extras)
+                    .setPersisted(true)
+                    .build();
+            mJobs.add(new JobStatus(job, 10000 + i));
+        }
+        mChanged = mJobs.get(jobs / 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournal.reset();
+        mJobsFile.delete();
+        mDir.delete();
+    }
+
+    private void rewriteJobsFile() throws Exception {
+        final FileOutputStream fos = mJobsFile.startWrite();
+        fos.write(JobStore.encodeJobsFile(mJobs));
+        mJobsFile.finishWrite(fos);
+    }
+
+    public void timeXmlRewrite(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            rewriteJobsFile();
+        }
+    }
+
+    public void timeJournalAppend(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            mJournal.append(Collections.singletonList(
+                    JobStore.encodeJournalRecord(JobStore.JOURNAL_OP_ADD, mChanged)));
+            if (++mAppends >= JobStore.MAX_JOURNAL_RECORDS) {
+                rewriteJobsFile();
+                mJournal.reset();
+                mAppends = 0;
+            }
+        }
+    }
+}
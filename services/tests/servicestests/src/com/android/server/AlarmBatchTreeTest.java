@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+public class AlarmBatchTreeTest extends TestCase {
+    private static class TestBatch extends AlarmBatchTree.Node {
+        TestBatch(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // The list AlarmManagerService used to keep: ordered by start, ties in insertion order.
+    private static void addToList(ArrayList<TestBatch> list, TestBatch b) {
+        int i = 0;
+        while (i < list.size() && list.get(i).start <= b.start) {
+            i++;
+        }
+        list.add(i, b);
+    }
+
+    private static TestBatch findInList(ArrayList<TestBatch> list, long when, long maxWhen) {
+        for (int i = 0; i < list.size(); i++) {
+            final TestBatch b = list.get(i);
+            if (b.end >= when && b.start <= maxWhen) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    public void testFindFirstCanHold() {
+        final AlarmBatchTree<TestBatch> tree = new AlarmBatchTree<>();
+        final TestBatch a = new TestBatch(100, 200);
+        final TestBatch b = new TestBatch(150, 160);
+        final TestBatch c = new TestBatch(300, 400);
+        tree.add(c);
+        tree.add(a);
+        tree.add(b);
+
+        assertSame(a, tree.first());
+        assertSame(a, tree.findFirstCanHold(0, 100));
+        assertSame(a, tree.findFirstCanHold(190, 250));
+        assertSame(c, tree.findFirstCanHold(210, 300));
+        assertNull(tree.findFirstCanHold(210, 290));
+        assertNull(tree.findFirstCanHold(401, 500));
+
+        assertTrue(tree.remove(a));
+        assertFalse(tree.remove(a));
+        assertSame(b, tree.findFirstCanHold(0, 1000));
+        assertSame(c, tree.findFirstCanHold(170, 1000));
+        assertEquals(2, tree.size());
+    }
+
+    public void testAddTwiceFails() {
+        final AlarmBatchTree<TestBatch> tree = new AlarmBatchTree<>();
+        final TestBatch a = new TestBatch(0, 10);
+        tree.add(a);
+        try {
+            tree.add(a);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testMatchesSortedList() {
+        final Random random = new Random(5);
+        for (int round = 0; round < 50; round++) {
+            final AlarmBatchTree<TestBatch> tree = new AlarmBatchTree<>();
+            final ArrayList<TestBatch> list = new ArrayList<>();
+            for (int step = 0; step < 500; step++) {
+                final int op = random.nextInt(6);
+                if (op < 3) {
+                    final long start = random.nextInt(100);
+                    final TestBatch b = new TestBatch(start, start + random.nextInt(30));
+                    tree.add(b);
+                    addToList(list, b);
+                } else if (op == 3 && !list.isEmpty()) {
+                    assertTrue(tree.remove(list.remove(random.nextInt(list.size()))));
+                } else if (op == 4 && !list.isEmpty()) {
+                    // Narrow a batch the way adding an alarm to it does.
+                    final TestBatch b = list.remove(random.nextInt(list.size()));
+                    tree.remove(b);
+                    b.start += random.nextInt(5);
+                    b.end = Math.max(b.start, b.end - random.nextInt(3));
+                    tree.add(b);
+                    addToList(list, b);
+                } else {
+                    final long when = random.nextInt(130);
+                    final long maxWhen = when + random.nextInt(20);
+                    assertSame(findInList(list, when, maxWhen),
+                            tree.findFirstCanHold(when, maxWhen));
+                }
+
+                assertEquals(list.size(), tree.size());
+                final ArrayList<TestBatch> inOrder = new ArrayList<>();
+                for (TestBatch b : tree) {
+                    inOrder.add(b);
+                }
+                assertEquals(list, inOrder);
+                if (!list.isEmpty()) {
+                    assertSame(list.get(0), tree.first());
+                    final int index = random.nextInt(list.size());
+                    assertSame(list.get(index), tree.get(index));
+                }
+            }
+            tree.clear();
+            assertEquals(0, tree.size());
+            assertNull(tree.first());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the action-partitioned candidate maps in {@link IntentResolver}
+ * return exactly what a full scan of every registered filter would.
+ */
+public class IntentResolverTest extends AndroidTestCase {
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    private TestResolver mResolver;
+    private final ArrayList<IntentFilter> mAll = new ArrayList<IntentFilter>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new TestResolver();
+        mAll.clear();
+        add(newFilter(new String[] { Intent.ACTION_VIEW }, "http", null));
+        add(newFilter(new String[] { Intent.ACTION_VIEW, Intent.ACTION_EDIT }, "http", null));
+        add(newFilter(new String[] { Intent.ACTION_EDIT }, "http", null));
+        add(newFilter(new String[0], "http", null));
+        add(newFilter(new String[] { Intent.ACTION_SEND }, null, "image/*"));
+        add(newFilter(new String[] { Intent.ACTION_SEND }, null, "image/png"));
+        add(newFilter(new String[] { Intent.ACTION_SEND, Intent.ACTION_SEND }, null, "*/*"));
+        add(newFilter(new String[] { Intent.ACTION_VIEW }, null, "image/png"));
+        add(newFilter(new String[] { Intent.ACTION_BOOT_COMPLETED }, null, null));
+    }
+
+    private static IntentFilter newFilter(String[] actions, String scheme, String type)
+            throws Exception {
+        final IntentFilter filter = new IntentFilter();
+        for (String action : actions) {
+            filter.addAction(action);
+        }
+        if (scheme != null) {
+            filter.addDataScheme(scheme);
+        }
+        if (type != null) {
+            filter.addDataType(type);
+        }
+        return filter;
+    }
+
+    private void add(IntentFilter filter) {
+        mResolver.addFilter(filter);
+        mAll.add(filter);
+    }
+
+    private void assertMatchesFullScan(Intent intent, String resolvedType) {
+        final ArrayList<IntentFilter[]> listCut = new ArrayList<IntentFilter[]>();
+        listCut.add(mAll.toArray(new IntentFilter[mAll.size()]));
+        final List<IntentFilter> expected = mResolver.queryIntentFromList(intent, resolvedType,
+                false, listCut, 0);
+        final List<IntentFilter> actual = mResolver.queryIntent(intent, resolvedType, false, 0);
+        assertEquals(expected, actual);
+    }
+
+    public void testSchemeWithAction() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+        assertMatchesFullScan(intent, null);
+        assertEquals(2, mResolver.queryIntent(intent, null, false, 0).size());
+    }
+
+    public void testSchemeWithoutAction() {
+        final Intent intent = new Intent();
+        intent.setData(Uri.parse("http://example.com"));
+        assertMatchesFullScan(intent, null);
+        assertEquals(4, mResolver.queryIntent(intent, null, false, 0).size());
+    }
+
+    public void testTypeWithAction() {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("image/png");
+        assertMatchesFullScan(intent, "image/png");
+        assertEquals(3, mResolver.queryIntent(intent, "image/png", false, 0).size());
+
+        intent.setType("image/*");
+        assertMatchesFullScan(intent, "image/*");
+        intent.setType("*/*");
+        assertMatchesFullScan(intent, "*/*");
+    }
+
+    public void testActionOnly() {
+        assertMatchesFullScan(new Intent(Intent.ACTION_BOOT_COMPLETED), null);
+        assertMatchesFullScan(new Intent(Intent.ACTION_EDIT), null);
+    }
+
+    public void testCategoriesReusedAcrossQueries() {
+        final IntentFilter browsable = newFilter(new String[] { Intent.ACTION_VIEW }, "https",
+                null);
+        browsable.addCategory(Intent.CATEGORY_BROWSABLE);
+        add(browsable);
+        final IntentFilter plain = newFilter(new String[] { Intent.ACTION_VIEW }, "https", null);
+        add(plain);
+
+        final Intent both = new Intent(Intent.ACTION_VIEW, Uri.parse("https://example.com"));
+        both.addCategory(Intent.CATEGORY_BROWSABLE);
+        assertMatchesFullScan(both, null);
+        assertEquals(1, mResolver.queryIntent(both, null, false, 0).size());
+
+        // Same category count, different category: must not see the previous contents.
+        final Intent other = new Intent(Intent.ACTION_VIEW, Uri.parse("https://example.com"));
+        other.addCategory(Intent.CATEGORY_ALTERNATIVE);
+        assertMatchesFullScan(other, null);
+        assertEquals(0, mResolver.queryIntent(other, null, false, 0).size());
+
+        final Intent none = new Intent(Intent.ACTION_VIEW, Uri.parse("https://example.com"));
+        assertEquals(2, mResolver.queryIntent(none, null, false, 0).size());
+        assertEquals(1, mResolver.queryIntent(both, null, false, 0).size());
+    }
+
+    public void testRemoveFilter() {
+        final IntentFilter removed = mAll.remove(1);
+        mResolver.removeFilter(removed);
+        final Intent intent = new Intent(Intent.ACTION_EDIT, Uri.parse("http://example.com"));
+        assertMatchesFullScan(intent, null);
+        assertEquals(1, mResolver.queryIntent(intent, null, false, 0).size());
+
+        final IntentFilter send = mAll.remove(mAll.size() - 3);
+        mResolver.removeFilter(send);
+        final Intent sendIntent = new Intent(Intent.ACTION_SEND);
+        sendIntent.setType("image/png");
+        assertMatchesFullScan(sendIntent, "image/png");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link RecordJournal}, in particular recovering from a crash part way through
+ * an append.
+ */
+public class RecordJournalTest extends AndroidTestCase {
+    private File mFile;
+    private RecordJournal mJournal;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test.journal");
+        mFile.delete();
+        mJournal = new RecordJournal(mFile);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static List<byte[]> records(String... contents) {
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        for (String s : contents) {
+            records.add(s.getBytes());
+        }
+        return records;
+    }
+
+    private void assertRecords(List<byte[]> actual, String... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            MoreAsserts.assertEquals(expected[i].getBytes(), actual.get(i));
+        }
+    }
+
+    private List<byte[]> readBack(boolean expectIntact) {
+        final ArrayList<byte[]> out = new ArrayList<byte[]>();
+        assertEquals(expectIntact, new RecordJournal(mFile).read(out));
+        return out;
+    }
+
+    public void testMissingFileIsEmpty() {
+        assertRecords(readBack(true));
+    }
+
+    public void testAppendAndRead() throws Exception {
+        mJournal.append(records("one", "two"));
+        mJournal.append(records("three"));
+        assertEquals(3, mJournal.getRecordCount());
+        assertRecords(readBack(true), "one", "two", "three");
+    }
+
+    public void testTornTailIsDropped() throws Exception {
+        mJournal.append(records("one", "two"));
+        final long intact = mFile.length();
+        mJournal.append(records("three"));
+
+        // Simulate a crash part way through writing the last record.
+        for (long cut = mFile.length() - 1; cut > intact; cut--) {
+            final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(cut);
+            raf.close();
+            assertRecords(readBack(false), "one", "two");
+        }
+    }
+
+    public void testCorruptRecordStopsReplay() throws Exception {
+        mJournal.append(records("one", "two", "three"));
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        // Flip the last byte, which belongs to "three".
+        raf.seek(mFile.length() - 1);
+        final int b = raf.read();
+        raf.seek(mFile.length() - 1);
+        raf.write(b ^ 0xff);
+        raf.close();
+        assertRecords(readBack(false), "one", "two");
+    }
+
+    public void testAppendAfterCrashDiscardsGarbage() throws Exception {
+        mJournal.append(records("one"));
+        final FileOutputStream fos = new FileOutputStream(mFile, true);
+        fos.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        fos.close();
+
+        // A fresh instance, as after a reboot.
+        final RecordJournal journal = new RecordJournal(mFile);
+        final ArrayList<byte[]> out = new ArrayList<byte[]>();
+        assertFalse(journal.read(out));
+        assertRecords(out, "one");
+        journal.append(records("two"));
+        assertRecords(readBack(true), "one", "two");
+    }
+
+    public void testBadHeader() throws Exception {
+        final FileOutputStream fos = new FileOutputStream(mFile);
+        fos.write(new byte[] { 1, 2 });
+        fos.close();
+        assertRecords(readBack(false));
+        mJournal.append(records("one"));
+        assertRecords(readBack(true), "one");
+    }
+
+    public void testReset() throws Exception {
+        mJournal.append(records("one"));
+        mJournal.reset();
+        assertEquals(0, mJournal.getRecordCount());
+        assertFalse(mFile.exists());
+        mJournal.append(records("two"));
+        assertRecords(readBack(true), "two");
+    }
+}
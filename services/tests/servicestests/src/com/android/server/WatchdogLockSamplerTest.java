@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class WatchdogLockSamplerTest extends TestCase {
+    private static class TestMonitor implements Watchdog.Monitor {
+        private final Object mLock = new Object();
+
+        @Override
+        public void monitor() {
+            synchronized (mLock) {
+            }
+        }
+
+        void holdLock(long millis) {
+            synchronized (mLock) {
+                SystemClock.sleep(millis);
+            }
+        }
+
+        /** Waits for the lock in another class, called from this one. */
+        void callOut() {
+            new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                    }
+                }
+            }.run();
+        }
+    }
+
+    @LargeTest
+    public void testAttributesContentionToHolder() throws Exception {
+        final TestMonitor monitor = new TestMonitor();
+        final WatchdogLockSampler sampler = new WatchdogLockSampler(20);
+        final ArrayList<Watchdog.Monitor> monitors = new ArrayList<Watchdog.Monitor>();
+        monitors.add(monitor);
+        sampler.start(monitors);
+
+        final Thread holder = new Thread("lock.holder") {
+            @Override
+            public void run() {
+                monitor.holdLock(1000);
+            }
+        };
+        holder.start();
+        holder.join();
+        // Let the probe that was waiting finish.
+        SystemClock.sleep(200);
+
+        final String report = sampler.describe();
+        assertTrue(report, report.contains(TestMonitor.class.getName() + ": contended="));
+        assertTrue(report, report.contains("lock.holder at " + TestMonitor.class.getName()
+                + ".holdLock"));
+    }
+
+    @LargeTest
+    public void testBlockedThreadsNotHolders() throws Exception {
+        final TestMonitor monitor = new TestMonitor();
+        final WatchdogLockSampler sampler = new WatchdogLockSampler(20);
+        final ArrayList<Watchdog.Monitor> monitors = new ArrayList<Watchdog.Monitor>();
+        monitors.add(monitor);
+
+        final Thread holder = new Thread("lock.holder") {
+            @Override
+            public void run() {
+                monitor.holdLock(1000);
+            }
+        };
+        holder.start();
+        SystemClock.sleep(50);
+        final ArrayList<Thread> waiters = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final Thread waiter = new Thread("lock.waiter") {
+                @Override
+                public void run() {
+                    monitor.callOut();
+                }
+            };
+            waiter.start();
+            waiters.add(waiter);
+        }
+        sampler.start(monitors);
+        holder.join();
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        SystemClock.sleep(200);
+
+        final String report = sampler.describe();
+        assertTrue(report, report.contains("lock.holder at " + TestMonitor.class.getName()
+                + ".holdLock"));
+        assertFalse(report, report.contains("lock.waiter"));
+    }
+}
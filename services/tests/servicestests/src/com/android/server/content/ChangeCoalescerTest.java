@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.database.ContentObserver;
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+
+import com.android.server.content.ContentService.ChangeCoalescer;
+import com.android.server.content.ContentService.ObserverCall;
+import com.android.server.content.ContentService.ObserverNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks how {@link ChangeCoalescer} batches change notifications per observer.
+ */
+public class ChangeCoalescerTest extends AndroidTestCase {
+    private static final long WINDOW_MS = 60 * 1000;
+
+    /** Records the calls it gets; without a handler they arrive synchronously. */
+    static class RecordingObserver extends ContentObserver {
+        final boolean mHandlesBatches;
+        final List<Uri> mChanges = new ArrayList<Uri>();
+        final List<Uri[]> mBatches = new ArrayList<Uri[]>();
+
+        RecordingObserver(boolean handlesBatches) {
+            super(null);
+            mHandlesBatches = handlesBatches;
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri, int userId) {
+            mChanges.add(uri);
+        }
+
+        @Override
+        public void onBatchChange(boolean selfChange, Uri[] uris, int userId) {
+            if (mHandlesBatches) {
+                mBatches.add(uris);
+            } else {
+                super.onBatchChange(selfChange, uris, userId);
+            }
+        }
+    }
+
+    /** Records the flushes the coalescer schedules instead of running them. */
+    static class RecordingHandler extends Handler {
+        final List<Long> mDelays = new ArrayList<Long>();
+
+        RecordingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mDelays.add(Math.max(0, uptimeMillis - SystemClock.uptimeMillis()));
+            return true;
+        }
+    }
+
+    private ObserverNode mRoot;
+    private RecordingHandler mHandler;
+    private ChangeCoalescer mCoalescer;
+    private int mUserHandle;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = new ObserverNode("");
+        mHandler = new RecordingHandler();
+        mCoalescer = new ChangeCoalescer(mRoot, WINDOW_MS, mHandler);
+        mUserHandle = UserHandle.myUserId();
+    }
+
+    private IContentObserver register(String uri, ContentObserver observer) {
+        final IContentObserver binder = observer.getContentObserver();
+        synchronized (mRoot) {
+            mRoot.addObserverLocked(Uri.parse(uri), binder, true, mRoot, 0, 0, mUserHandle);
+        }
+        return binder;
+    }
+
+    private void notifyChange(String uri) {
+        final ArrayList<ObserverCall> calls = new ArrayList<ObserverCall>();
+        synchronized (mRoot) {
+            mRoot.collectObserversLocked(Uri.parse(uri), 0, null, false, mUserHandle, calls);
+            mCoalescer.queueLocked(calls, Uri.parse(uri), mUserHandle);
+        }
+    }
+
+    private int pendingCount() {
+        synchronized (mRoot) {
+            return mCoalescer.getPendingCountLocked();
+        }
+    }
+
+    public void testChangesHeldUntilFlush() {
+        final RecordingObserver observer = new RecordingObserver(true);
+        register("content://c/", observer);
+
+        notifyChange("content://c/1");
+        notifyChange("content://c/2");
+        assertTrue(observer.mChanges.isEmpty());
+        assertTrue(observer.mBatches.isEmpty());
+        assertEquals(1, pendingCount());
+        // One flush is scheduled for the end of the window.
+        assertEquals(1, mHandler.mDelays.size());
+        assertTrue(mHandler.mDelays.get(0) > WINDOW_MS / 2);
+
+        mCoalescer.flush();
+        assertEquals(0, pendingCount());
+        assertTrue(observer.mChanges.isEmpty());
+        assertEquals(1, observer.mBatches.size());
+        assertTrue(Arrays.equals(new Uri[] {
+                Uri.parse("content://c/1"), Uri.parse("content://c/2") },
+                observer.mBatches.get(0)));
+    }
+
+    public void testRepeatedUrisCollapse() {
+        final RecordingObserver observer = new RecordingObserver(true);
+        register("content://c/", observer);
+
+        notifyChange("content://c/1");
+        notifyChange("content://c/2");
+        notifyChange("content://c/1");
+        mCoalescer.flush();
+        assertEquals(1, observer.mBatches.size());
+        assertEquals(2, observer.mBatches.get(0).length);
+        assertEquals(Uri.parse("content://c/1"), observer.mBatches.get(0)[0]);
+    }
+
+    public void testSingleChangeUsesOnChange() {
+        final RecordingObserver observer = new RecordingObserver(true);
+        register("content://c/", observer);
+
+        notifyChange("content://c/1");
+        notifyChange("content://c/1");
+        mCoalescer.flush();
+        assertTrue(observer.mBatches.isEmpty());
+        assertEquals(Arrays.asList(Uri.parse("content://c/1")), observer.mChanges);
+    }
+
+    public void testBatchesArePerObserver() {
+        final RecordingObserver c = new RecordingObserver(true);
+        final RecordingObserver x = new RecordingObserver(true);
+        register("content://c/", c);
+        register("content://x/", x);
+
+        notifyChange("content://c/1");
+        notifyChange("content://x/1");
+        notifyChange("content://c/2");
+        mCoalescer.flush();
+        assertEquals(1, c.mBatches.size());
+        assertEquals(2, c.mBatches.get(0).length);
+        assertTrue(x.mBatches.isEmpty());
+        assertEquals(Arrays.asList(Uri.parse("content://x/1")), x.mChanges);
+    }
+
+    public void testDefaultBatchCallsOnChangePerUri() {
+        final RecordingObserver observer = new RecordingObserver(false);
+        register("content://c/", observer);
+
+        notifyChange("content://c/1");
+        notifyChange("content://c/2");
+        mCoalescer.flush();
+        assertEquals(Arrays.asList(Uri.parse("content://c/1"), Uri.parse("content://c/2")),
+                observer.mChanges);
+    }
+
+    public void testUnregisteredObserverDropped() {
+        final RecordingObserver observer = new RecordingObserver(true);
+        final IContentObserver binder = register("content://c/", observer);
+
+        notifyChange("content://c/1");
+        notifyChange("content://c/2");
+        synchronized (mRoot) {
+            mRoot.removeObserverLocked(binder);
+        }
+        mCoalescer.flush();
+        assertTrue(observer.mChanges.isEmpty());
+        assertTrue(observer.mBatches.isEmpty());
+    }
+
+    public void testLargeBatchSplit() {
+        final RecordingObserver observer = new RecordingObserver(true);
+        register("content://c/", observer);
+
+        for (int i = 0; i < 200; i++) {
+            notifyChange("content://c/" + i);
+        }
+        // A full batch asks for an immediate flush.
+        assertEquals(2, mHandler.mDelays.size());
+        assertEquals(0L, (long) mHandler.mDelays.get(1));
+        mCoalescer.flush();
+        assertEquals(2, observer.mBatches.size());
+        assertEquals(128, observer.mBatches.get(0).length);
+        assertEquals(72, observer.mBatches.get(1).length);
+        assertEquals(Uri.parse("content://c/128"), observer.mBatches.get(1)[0]);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.accounts.Account;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks {@link SyncSchedule} against a scan of every operation, as the SyncManager used to do.
+ */
+public class SyncScheduleTest extends TestCase {
+    private final Account mAccount = new Account("a@example.com", "example.type");
+    private final ArrayList<SyncOperation> mOperations = new ArrayList<SyncOperation>();
+    private final SyncSchedule mSchedule = new SyncSchedule();
+
+    private SyncOperation addOperation(int i, long runTimeFromNow, long flex) {
+        final SyncOperation op = new SyncOperation(mAccount, 0,
+                SyncOperation.REASON_PERIODIC, SyncStorageEngine.SOURCE_PERIODIC,
+                "provider" + i, Bundle.EMPTY, runTimeFromNow, flex, 0 /* backoff */,
+                0 /* delayUntil */, true);
+        mOperations.add(op);
+        mSchedule.add(op);
+        return op;
+    }
+
+    private void assertMatchesScan(long now) {
+        final ArrayList<SyncOperation> ready = new ArrayList<SyncOperation>();
+        mSchedule.getReadyOperations(now, ready);
+        long next = Long.MAX_VALUE;
+        int numReady = 0;
+        for (SyncOperation op : mOperations) {
+            if (op.effectiveRunTime - op.flexTime > now) {
+                next = Math.min(next, op.effectiveRunTime);
+            } else {
+                numReady++;
+                assertTrue("missing " + op, ready.contains(op));
+            }
+        }
+        assertEquals(numReady, ready.size());
+        assertEquals(next, mSchedule.getNextRunTime(now));
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        final ArrayList<SyncOperation> ready = new ArrayList<SyncOperation>();
+        mSchedule.getReadyOperations(SystemClock.elapsedRealtime(), ready);
+        assertTrue(ready.isEmpty());
+        assertEquals(Long.MAX_VALUE, mSchedule.getNextRunTime(SystemClock.elapsedRealtime()));
+    }
+
+    @SmallTest
+    public void testFlexWindowIsReady() {
+        // Due in an hour, but may run from 30 minutes from now.
+        final SyncOperation op = addOperation(0, 60 * 60 * 1000L, 30 * 60 * 1000L);
+        final long now = SystemClock.elapsedRealtime();
+        assertMatchesScan(now);
+        assertEquals(op.effectiveRunTime, mSchedule.getNextRunTime(now));
+        assertMatchesScan(now + 45 * 60 * 1000L);
+    }
+
+    @SmallTest
+    public void testRandomOperationsAndBackoff() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            final long runTime = 1000L * random.nextInt(3600);
+            addOperation(i, runTime, random.nextBoolean() ? runTime / 4 : 0);
+        }
+        final long now = SystemClock.elapsedRealtime();
+        for (long t = now; t < now + 3600 * 1000L; t += 5 * 60 * 1000L) {
+            assertMatchesScan(t);
+        }
+
+        // Back off and remove some, as the SyncManager does after failures.
+        for (int i = 0; i < 50; i++) {
+            final SyncOperation op = mOperations.get(random.nextInt(mOperations.size()));
+            if (random.nextBoolean()) {
+                op.backoff = now + 1000L * random.nextInt(7200);
+                op.updateEffectiveRunTime();
+                mSchedule.update(op);
+            } else {
+                mOperations.remove(op);
+                mSchedule.remove(op);
+            }
+        }
+        assertEquals(mOperations.size(), mSchedule.size());
+        for (long t = now; t < now + 7200 * 1000L; t += 5 * 60 * 1000L) {
+            assertMatchesScan(t);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
 import android.content.PeriodicSync;
+import android.content.SyncStatusInfo;
 import android.content.res.Resources;
 import android.os.Bundle;
 import android.test.AndroidTestCase;
@@ -106,6 +107,39 @@ public class SyncStorageEngineTest extends AndroidTestCase {
         engine.stopSyncEvent(historyId, time1 - time0, "yay", 0, 0);
     }
 
+    /**
+     * Test that sync status and statistics written through the status journal are read back.
+     */
+    @MediumTest
+    public void testStatusJournal() throws Exception {
+        final EndPoint target = new EndPoint(account1, authority1, DEFAULT_USER);
+        engine.setIsSyncable(account1, DEFAULT_USER, authority1, 1);
+        SyncOperation op = new SyncOperation(account1, DEFAULT_USER,
+                SyncOperation.REASON_PERIODIC,
+                SyncStorageEngine.SOURCE_LOCAL,
+                authority1,
+                Bundle.EMPTY, 0 /* runtime */, 0 /* flex */, 0, 0, true);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            long historyId = engine.insertStartSyncEvent(op, now);
+            engine.stopSyncEvent(historyId, 10, SyncStorageEngine.MESG_SUCCESS, 0, 0);
+        }
+        engine.writeAllState();
+        assertTrue(new File(getSyncDir(), "status.journal").exists());
+
+        engine.clearAndReadState();
+
+        SyncStatusInfo status = engine.getStatusByAuthority(target);
+        assertNotNull(status);
+        assertEquals(3, status.numSyncs);
+        assertEquals(3, status.numSourceLocal);
+        assertEquals(3, engine.getDayStatistics()[0].successCount);
+        // Reading the state back folds the journal into status.bin and stats.bin.
+        assertFalse(new File(getSyncDir(), "status.journal").exists());
+        engine.clearAndReadState();
+        assertEquals(3, engine.getStatusByAuthority(target).numSyncs);
+    }
+
     /**
      * Test persistence of pending operations.
      */
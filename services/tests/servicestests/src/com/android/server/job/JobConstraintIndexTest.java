@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.test.AndroidTestCase;
+import android.util.ArraySet;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that {@link JobConstraintIndex} only re-evaluates the jobs affected by a change.
+ */
+public class JobConstraintIndexTest extends AndroidTestCase {
+    private static final int SOME_UID = 34234;
+
+    /** Job whose readiness is set by the test and which counts how often it is checked. */
+    private static class TestJobStatus extends JobStatus {
+        boolean ready;
+        int checks;
+
+        TestJobStatus(JobInfo job) {
+            super(job, SOME_UID);
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            checks++;
+            return ready;
+        }
+    }
+
+    private ComponentName mComponent;
+    private JobConstraintIndex mIndex;
+    private TestJobStatus mCharging;
+    private TestJobStatus mIdle;
+    private TestJobStatus mNetwork;
+    private TestJobStatus mChargingAndIdle;
+
+    @Override
+    public void setUp() throws Exception {
+        mComponent = new ComponentName(getContext().getPackageName(), StubClass.class.getName());
+        mIndex = new JobConstraintIndex();
+        mCharging = addJob(new JobInfo.Builder(1, mComponent)
+                .setRequiresCharging(true).build());
+        mIdle = addJob(new JobInfo.Builder(2, mComponent)
+                .setRequiresDeviceIdle(true).build());
+        mNetwork = addJob(new JobInfo.Builder(3, mComponent)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY).build());
+        mChargingAndIdle = addJob(new JobInfo.Builder(4, mComponent)
+                .setRequiresCharging(true).setRequiresDeviceIdle(true).build());
+    }
+
+    private TestJobStatus addJob(JobInfo job) {
+        final TestJobStatus status = new TestJobStatus(job);
+        mIndex.add(status);
+        return status;
+    }
+
+    private void clearChecks() {
+        mCharging.checks = mIdle.checks = mNetwork.checks = mChargingAndIdle.checks = 0;
+    }
+
+    public void testNewJobsEvaluatedOnce() {
+        mIndex.evaluate(null);
+        assertEquals(1, mCharging.checks);
+        assertEquals(1, mIdle.checks);
+        assertEquals(1, mNetwork.checks);
+        assertEquals(1, mChargingAndIdle.checks);
+        assertEquals(4, mIndex.getJobsEvaluated());
+
+        clearChecks();
+        mIndex.evaluate(null);
+        assertEquals(0, mCharging.checks + mIdle.checks + mNetwork.checks
+                + mChargingAndIdle.checks);
+    }
+
+    public void testOnlyChangedConstraintIsEvaluated() {
+        mIndex.evaluate(null);
+        clearChecks();
+
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_CHARGING);
+        mIndex.evaluate(null);
+        assertEquals(1, mCharging.checks);
+        assertEquals(1, mChargingAndIdle.checks);
+        assertEquals(0, mIdle.checks);
+        assertEquals(0, mNetwork.checks);
+
+        clearChecks();
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_CONNECTIVITY);
+        mIndex.evaluate(null);
+        assertEquals(1, mNetwork.checks);
+        assertEquals(0, mCharging.checks + mIdle.checks + mChargingAndIdle.checks);
+    }
+
+    public void testJobInSeveralDirtyBucketsEvaluatedOnce() {
+        mIndex.evaluate(null);
+        clearChecks();
+
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_CHARGING | JobStatus.CONSTRAINT_IDLE);
+        mIndex.evaluate(null);
+        assertEquals(1, mCharging.checks);
+        assertEquals(1, mIdle.checks);
+        assertEquals(1, mChargingAndIdle.checks);
+        assertEquals(0, mNetwork.checks);
+    }
+
+    public void testAppIdleChangeEvaluatesEveryJob() {
+        mIndex.evaluate(null);
+        clearChecks();
+
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_APP_NOT_IDLE);
+        mIndex.evaluate(null);
+        assertEquals(1, mCharging.checks);
+        assertEquals(1, mIdle.checks);
+        assertEquals(1, mNetwork.checks);
+        assertEquals(1, mChargingAndIdle.checks);
+    }
+
+    public void testReadySetFollowsChangedJobs() {
+        mIndex.evaluate(null);
+        mCharging.ready = true;
+        mChargingAndIdle.ready = true;
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_CHARGING);
+        ArraySet<JobStatus> ready = mIndex.evaluate(null);
+        assertEquals(2, ready.size());
+        assertTrue(ready.contains(mCharging));
+        assertTrue(ready.contains(mChargingAndIdle));
+
+        // An idle change only re-checks idle jobs; the charging-only job stays ready.
+        mChargingAndIdle.ready = false;
+        final ArrayList<JobStatus> notReady = new ArrayList<JobStatus>();
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_IDLE);
+        ready = mIndex.evaluate(notReady);
+        assertEquals(1, ready.size());
+        assertTrue(ready.contains(mCharging));
+        assertEquals(2, notReady.size());
+        assertTrue(notReady.contains(mIdle));
+        assertTrue(notReady.contains(mChargingAndIdle));
+    }
+
+    public void testMarkJobDirty() {
+        mIndex.evaluate(null);
+        clearChecks();
+
+        mNetwork.ready = true;
+        mIndex.markJobDirty(mNetwork);
+        final ArraySet<JobStatus> ready = mIndex.evaluate(null);
+        assertEquals(1, mNetwork.checks);
+        assertEquals(0, mCharging.checks + mIdle.checks + mChargingAndIdle.checks);
+        assertTrue(ready.contains(mNetwork));
+    }
+
+    public void testRemovedJobNotEvaluated() {
+        mCharging.ready = true;
+        mIndex.evaluate(null);
+        clearChecks();
+
+        mIndex.remove(mCharging);
+        mIndex.markConstraintsDirty(JobStatus.CONSTRAINT_CHARGING);
+        final ArraySet<JobStatus> ready = mIndex.evaluate(null);
+        assertEquals(0, mCharging.checks);
+        assertEquals(1, mChargingAndIdle.checks);
+        assertFalse(ready.contains(mCharging));
+        assertEquals(3, mIndex.size());
+    }
+
+    private static class StubClass {}
+}
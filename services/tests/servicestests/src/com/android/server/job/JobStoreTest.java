@@ -11,10 +11,16 @@ import android.test.RenamingDelegatingContext;
 import android.util.Log;
 import android.util.ArraySet;
 
+import com.android.server.RecordJournal;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 
+import libcore.io.IoUtils;
+
 /**
  * Test reading and writing correctly from file.
  */
@@ -143,6 +149,141 @@ public class JobStoreTest extends AndroidTestCase {
         assertTasksEqual(task, loaded.getJob());
     }
 
+    public void testRemoveIsJournaled() throws Exception {
+        final JobInfo task = new Builder(3, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus = new JobStatus(task, SOME_UID);
+        mTaskStoreUnderTest.add(taskStatus);
+        Thread.sleep(IO_WAIT);
+        mTaskStoreUnderTest.remove(taskStatus);
+        Thread.sleep(IO_WAIT);
+
+        final ArraySet<JobStatus> jobStatusSet = new ArraySet<JobStatus>();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        assertEquals("Removed task was loaded.", 0, jobStatusSet.size());
+    }
+
+    public void testReplacingJobKeepsNewOne() throws Exception {
+        final JobInfo oldTask = new Builder(4, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo newTask = new Builder(4, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus oldStatus = new JobStatus(oldTask, SOME_UID);
+        final JobStatus newStatus = new JobStatus(newTask, SOME_UID);
+        mTaskStoreUnderTest.add(oldStatus);
+        // JobSchedulerService adds the replacement before cancelling the old job.
+        mTaskStoreUnderTest.add(newStatus);
+        mTaskStoreUnderTest.remove(oldStatus);
+        Thread.sleep(IO_WAIT);
+
+        final ArraySet<JobStatus> jobStatusSet = new ArraySet<JobStatus>();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(newTask, jobStatusSet.valueAt(0).getJob());
+    }
+
+    public void testDamagedJournalTailIsIgnored() throws Exception {
+        final JobInfo task = new Builder(6, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(new JobStatus(task, SOME_UID));
+        Thread.sleep(IO_WAIT);
+
+        // Simulate a crash part way through appending another record.
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.journal");
+        assertTrue(journal.exists());
+        final FileOutputStream fos = new FileOutputStream(journal, true);
+        fos.write(new byte[] { 0, 0, 1, 0, 42, 42 });
+        fos.close();
+
+        final ArraySet<JobStatus> jobStatusSet = new ArraySet<JobStatus>();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task, jobStatusSet.valueAt(0).getJob());
+    }
+
+    public void testJournalIsCompacted() throws Exception {
+        final int count = JobStore.MAX_JOURNAL_RECORDS + 10;
+        for (int i = 0; i < count; i++) {
+            final JobInfo task = new Builder(100 + i, mComponent)
+                    .setRequiresCharging(true)
+                    .setPersisted(true)
+                    .build();
+            mTaskStoreUnderTest.add(new JobStatus(task, SOME_UID));
+            if (i % 20 == 0) {
+                Thread.sleep(IO_WAIT / 5);
+            }
+        }
+        Thread.sleep(IO_WAIT);
+
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.journal");
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        new RecordJournal(journal).read(records);
+        assertTrue("Journal was not compacted.", records.size() < JobStore.MAX_JOURNAL_RECORDS);
+
+        final ArraySet<JobStatus> jobStatusSet = new ArraySet<JobStatus>();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        assertEquals("Incorrect # of persisted tasks.", count, jobStatusSet.size());
+    }
+
+    public void testCrashBeforeJournalResetKeepsRemovedJobGone() throws Exception {
+        final JobInfo removedTask = new Builder(7, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo keptTask = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus removedStatus = new JobStatus(removedTask, SOME_UID);
+        mTaskStoreUnderTest.add(removedStatus);
+        mTaskStoreUnderTest.add(new JobStatus(keptTask, SOME_UID));
+        Thread.sleep(IO_WAIT);
+
+        // The journal now holds both adds; keep a copy of it as it was before the compaction.
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.journal");
+        final byte[] staleJournal = IoUtils.readFileAsByteArray(journal.getPath());
+
+        // Remove one job, then add enough others that jobs.xml is rewritten without it.
+        mTaskStoreUnderTest.remove(removedStatus);
+        for (int i = 0; i < JobStore.MAX_JOURNAL_RECORDS; i++) {
+            final JobInfo task = new Builder(100 + i, mComponent)
+                    .setRequiresCharging(true)
+                    .setPersisted(true)
+                    .build();
+            mTaskStoreUnderTest.add(new JobStatus(task, SOME_UID));
+            if (i % 20 == 0) {
+                Thread.sleep(IO_WAIT / 5);
+            }
+        }
+        Thread.sleep(IO_WAIT);
+
+        // Simulate dying after jobs.xml was written but before the journal was discarded.
+        final FileOutputStream fos = new FileOutputStream(journal);
+        fos.write(staleJournal);
+        fos.close();
+
+        final ArraySet<JobStatus> jobStatusSet = new ArraySet<JobStatus>();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        boolean foundKept = false;
+        for (int i = 0; i < jobStatusSet.size(); i++) {
+            final int jobId = jobStatusSet.valueAt(i).getJobId();
+            assertTrue("Removed task was brought back by the journal.",
+                    jobId != removedTask.getId());
+            if (jobId == keptTask.getId()) {
+                foundKept = true;
+            }
+        }
+        assertTrue("Kept task was lost.", foundKept);
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
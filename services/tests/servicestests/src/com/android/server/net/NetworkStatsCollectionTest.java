@@ -16,6 +16,8 @@
 
 package com.android.server.net;
 
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
@@ -24,7 +26,9 @@ import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
 import android.content.res.Resources;
+import android.net.NetworkIdentity;
 import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
@@ -35,9 +39,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import libcore.io.IoUtils;
 import libcore.io.Streams;
@@ -151,6 +157,131 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
         assertEquals(2 * HOUR_IN_MILLIS, collection.getEndMillis());
     }
 
+    public void testMappedMatchesLoaded() throws Exception {
+        final File testFile = new File(getContext().getFilesDir(), TEST_FILE);
+        stageFile(R.raw.netstats_uid_v4, testFile);
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        collection.readLegacyUid(testFile, false);
+        final long start = collection.getStartMillis();
+        final long end = collection.getEndMillis();
+
+        // persist as two files, and keep more stats pending for an overlapping range
+        final File first = new File(getContext().getFilesDir(), "first.bin");
+        final File second = new File(getContext().getFilesDir(), "second.bin");
+        writeCollection(collection, first);
+
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, 0, TEST_IMSI, null, false));
+        final NetworkStatsCollection later = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        later.recordData(ident, 1000, SET_DEFAULT, TAG_NONE, end - 2 * HOUR_IN_MILLIS,
+                end + HOUR_IN_MILLIS, new NetworkStats.Entry(4096L, 8L, 1024L, 4L, 2L));
+        writeCollection(later, second);
+
+        final NetworkStatsCollection pending = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        pending.recordData(ident, 1000, SET_DEFAULT, TAG_NONE, end, end + 2 * HOUR_IN_MILLIS,
+                new NetworkStats.Entry(2048L, 4L, 512L, 2L, 1L));
+
+        final NetworkStatsCollection loaded = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        readCollection(loaded, first);
+        readCollection(loaded, second);
+        loaded.recordCollection(pending);
+        final MappedNetworkStatsCollection mapped = MappedNetworkStatsCollection.map(
+                Arrays.asList(first, second), pending, 30 * MINUTE_IN_MILLIS);
+        assertNotNull(mapped);
+
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final int[] uids = loaded.getRelevantUids();
+        assertTrue(uids.length > 0);
+        assertTrue(Arrays.equals(uids, mapped.getRelevantUids()));
+
+        // partial ranges interpolate buckets at both ends
+        final long third = (end - start) / 3 + 17 * MINUTE_IN_MILLIS;
+        final long[][] ranges = {
+                { Long.MIN_VALUE, Long.MAX_VALUE },
+                { start + third, end - third },
+                { end - HOUR_IN_MILLIS, end + 3 * HOUR_IN_MILLIS },
+        };
+        for (long[] range : ranges) {
+            assertSummaryEquals(loaded.getSummary(template, range[0], range[1]),
+                    mapped.getSummary(template, range[0], range[1]));
+            for (int uid : uids) {
+                assertHistoryEquals(
+                        loaded.getHistory(template, uid, SET_ALL, TAG_NONE,
+                                NetworkStatsHistory.FIELD_ALL, range[0], range[1]),
+                        mapped.getHistory(template, uid, SET_ALL, TAG_NONE,
+                                NetworkStatsHistory.FIELD_ALL, range[0], range[1]));
+            }
+        }
+
+        // pending stats are included as they change
+        pending.recordData(ident, 1000, SET_DEFAULT, TAG_NONE, end, end + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(100L, 1L, 100L, 1L, 0L));
+        loaded.recordData(ident, 1000, SET_DEFAULT, TAG_NONE, end, end + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(100L, 1L, 100L, 1L, 0L));
+        assertSummaryEquals(loaded.getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE),
+                mapped.getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE));
+
+        // histories with another bucket duration can't be combined in place
+        assertNull(MappedNetworkStatsCollection.map(
+                Arrays.asList(first), pending, HOUR_IN_MILLIS));
+    }
+
+    private static void writeCollection(NetworkStatsCollection collection, File file)
+            throws Exception {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            collection.write(out);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private static void readCollection(NetworkStatsCollection collection, File file)
+            throws Exception {
+        final InputStream in = new FileInputStream(file);
+        try {
+            collection.read(in);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void assertSummaryEquals(NetworkStats expected, NetworkStats actual) {
+        assertEquals("unexpected size", expected.size(), actual.size());
+        NetworkStats.Entry expectedEntry = null;
+        NetworkStats.Entry actualEntry = null;
+        for (int i = 0; i < expected.size(); i++) {
+            expectedEntry = expected.getValues(i, expectedEntry);
+            final int j = actual.findIndex(expectedEntry.iface, expectedEntry.uid,
+                    expectedEntry.set, expectedEntry.tag);
+            assertTrue("missing " + expectedEntry, j >= 0);
+            actualEntry = actual.getValues(j, actualEntry);
+            assertEntry(actualEntry, expectedEntry.rxBytes, expectedEntry.rxPackets,
+                    expectedEntry.txBytes, expectedEntry.txPackets);
+            assertEquals("unexpected operations", expectedEntry.operations,
+                    actualEntry.operations);
+        }
+    }
+
+    private static void assertHistoryEquals(NetworkStatsHistory expected,
+            NetworkStatsHistory actual) {
+        assertEquals("unexpected size", expected.size(), actual.size());
+        NetworkStatsHistory.Entry expectedEntry = null;
+        NetworkStatsHistory.Entry actualEntry = null;
+        for (int i = 0; i < expected.size(); i++) {
+            expectedEntry = expected.getValues(i, expectedEntry);
+            actualEntry = actual.getValues(i, actualEntry);
+            assertEquals(expectedEntry.bucketStart, actualEntry.bucketStart);
+            assertEquals(expectedEntry.activeTime, actualEntry.activeTime);
+            assertEquals(expectedEntry.rxBytes, actualEntry.rxBytes);
+            assertEquals(expectedEntry.rxPackets, actualEntry.rxPackets);
+            assertEquals(expectedEntry.txBytes, actualEntry.txBytes);
+            assertEquals(expectedEntry.txPackets, actualEntry.txPackets);
+            assertEquals(expectedEntry.operations, actualEntry.operations);
+        }
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.